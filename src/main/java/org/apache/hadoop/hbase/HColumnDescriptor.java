@@ -71,6 +71,8 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
   public static final String CACHE_INDEX_ON_WRITE = "CACHE_INDEX_ON_WRITE";
   public static final String CACHE_BLOOMS_ON_WRITE = "CACHE_BLOOMS_ON_WRITE";
   public static final String EVICT_BLOCKS_ON_CLOSE = "EVICT_BLOCKS_ON_CLOSE";
+  public static final String IN_MEMORY_COMPACTION = "IN_MEMORY_COMPACTION";
+  public static final String PREFETCH_BLOCKS_ON_OPEN = "PREFETCH_BLOCKS_ON_OPEN";
 
   /**
    * Size of storefile/hfile 'blocks'.  Default is {@link #DEFAULT_BLOCKSIZE}.
@@ -179,6 +181,17 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
    */
   public static final boolean DEFAULT_EVICT_BLOCKS_ON_CLOSE = false;
 
+  /**
+   * Default setting for compacting the memstore in memory.
+   */
+  public static final boolean DEFAULT_IN_MEMORY_COMPACTION = false;
+
+  /**
+   * Default setting for whether to prefetch the blocks of store files into
+   * the blockcache when they are opened.
+   */
+  public static final boolean DEFAULT_PREFETCH_BLOCKS_ON_OPEN = false;
+
   private final static Map<String, String> DEFAULT_VALUES = new HashMap<String, String>();
   private final static Set<ImmutableBytesWritable> RESERVED_KEYWORDS
     = new HashSet<ImmutableBytesWritable>();
@@ -205,6 +218,10 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
           String.valueOf(DEFAULT_CACHE_BLOOMS_ON_WRITE));
       DEFAULT_VALUES.put(EVICT_BLOCKS_ON_CLOSE,
           String.valueOf(DEFAULT_EVICT_BLOCKS_ON_CLOSE));
+      DEFAULT_VALUES.put(IN_MEMORY_COMPACTION,
+          String.valueOf(DEFAULT_IN_MEMORY_COMPACTION));
+      DEFAULT_VALUES.put(PREFETCH_BLOCKS_ON_OPEN,
+          String.valueOf(DEFAULT_PREFETCH_BLOCKS_ON_OPEN));
       for (String s : DEFAULT_VALUES.keySet()) {
         RESERVED_KEYWORDS.add(new ImmutableBytesWritable(Bytes.toBytes(s)));
       }
@@ -863,6 +880,53 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
     return setValue(EVICT_BLOCKS_ON_CLOSE, Boolean.toString(value));
   }
 
+  /**
+   * @return true if the memstore of this family merges its cells into an
+   * in-memory segment, dropping versions that can no longer be read, before
+   * it is flushed
+   */
+  public boolean isInMemoryCompaction() {
+    String value = getValue(IN_MEMORY_COMPACTION);
+    if (value != null) {
+      return Boolean.valueOf(value).booleanValue();
+    }
+    return DEFAULT_IN_MEMORY_COMPACTION;
+  }
+
+  /**
+   * Compacting the memstore in memory pays off for families whose rows are
+   * overwritten often, like counters, since the superseded versions are
+   * dropped without a flush.
+   * @param value true if the memstore should be compacted in memory
+   * @return this (for chained invocation)
+   */
+  public HColumnDescriptor setInMemoryCompaction(boolean value) {
+    return setValue(IN_MEMORY_COMPACTION, Boolean.toString(value));
+  }
+
+  /**
+   * @return true if the blocks of store files should be read into the
+   * blockcache in the background when the files are opened
+   */
+  public boolean shouldPrefetchBlocksOnOpen() {
+    String value = getValue(PREFETCH_BLOCKS_ON_OPEN);
+    if (value != null) {
+      return Boolean.valueOf(value).booleanValue();
+    }
+    return DEFAULT_PREFETCH_BLOCKS_ON_OPEN;
+  }
+
+  /**
+   * Prefetching keeps the first reads of a latency sensitive family from
+   * going to disk after a region opens, a flush or a compaction.
+   * @param value true if we should prefetch blocks into the blockcache when
+   * store files are opened
+   * @return this (for chained invocation)
+   */
+  public HColumnDescriptor setPrefetchBlocksOnOpen(boolean value) {
+    return setValue(PREFETCH_BLOCKS_ON_OPEN, Boolean.toString(value));
+  }
+
   /**
    * @see java.lang.Object#toString()
    */
@@ -280,6 +280,18 @@ public class HalfStoreFileReader extends StoreFile.Reader {
       public boolean isSeeked() {
         return this.delegate.isSeeked();
       }
+
+      public void setStopKey(byte[] key) {
+        this.delegate.setStopKey(key);
+      }
+
+      public void setTimeRange(long minStamp, long maxStamp) {
+        this.delegate.setTimeRange(minStamp, maxStamp);
+      }
+
+      public void close() {
+        this.delegate.close();
+      }
     };
   }
 
@@ -301,6 +313,8 @@ public class HalfStoreFileReader extends StoreFile.Reader {
       }
     } catch (IOException e) {
       LOG.warn("Failed seekBefore " + Bytes.toStringBinary(this.splitkey), e);
+    } finally {
+      scanner.close();
     }
     return null;
   }
@@ -322,6 +336,8 @@ public class HalfStoreFileReader extends StoreFile.Reader {
         firstKeySeeked = true;
       } catch (IOException e) {
         LOG.warn("Failed seekTo first KV in the file", e);
+      } finally {
+        scanner.close();
       }
     }
     return this.firstKey;
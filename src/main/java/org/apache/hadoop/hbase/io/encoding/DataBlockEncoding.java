@@ -38,7 +38,8 @@ public enum DataBlockEncoding {
   // id 1 is reserved for the BITSET algorithm to be added later
   PREFIX(2, new PrefixKeyDeltaEncoder()),
   DIFF(3, new DiffKeyDeltaEncoder()),
-  FAST_DIFF(4, new FastDiffDeltaEncoder());
+  FAST_DIFF(4, new FastDiffDeltaEncoder()),
+  ROW_INDEX(5, new RowIndexDataBlockEncoder());
 
   private final short id;
   private final byte[] idInBytes;
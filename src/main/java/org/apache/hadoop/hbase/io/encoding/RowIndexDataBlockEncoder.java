@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.hadoop.hbase.io.encoding;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.ByteBufferUtils;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Store the KeyValues as they are, followed by the offsets of the first
+ * KeyValue of every row, so that seeks binary search the rows of the block
+ * instead of walking it from the start.
+ *
+ * Format:
+ * 4 bytes: length of the KeyValues
+ * ... bytes: KeyValues, unencoded
+ * 4 bytes: number of rows
+ * 4 bytes per row: offset of the first KeyValue of the row, from the first
+ * KeyValue of the block
+ */
+public class RowIndexDataBlockEncoder extends BufferedDataBlockEncoder {
+
+  @Override
+  public void compressKeyValues(DataOutputStream out,
+      ByteBuffer in, boolean includesMemstoreTS) throws IOException {
+    in.rewind();
+    int[] rowOffsets = new int[16];
+    int rowCount = 0;
+    int prevRowOffset = -1;
+    int prevRowLength = 0;
+    int offset = 0;
+    while (offset < in.limit()) {
+      int keyLength = in.getInt(offset);
+      int valueLength = in.getInt(offset + Bytes.SIZEOF_INT);
+      int rowOffset = offset + KeyValue.ROW_OFFSET + Bytes.SIZEOF_SHORT;
+      int rowLength = in.getShort(offset + KeyValue.ROW_OFFSET);
+      if (prevRowOffset == -1 || !ByteBufferUtils.arePartsEqual(in,
+          prevRowOffset, prevRowLength, rowOffset, rowLength)) {
+        if (rowCount == rowOffsets.length) {
+          rowOffsets = Arrays.copyOf(rowOffsets, rowCount * 2);
+        }
+        rowOffsets[rowCount++] = offset;
+        prevRowOffset = rowOffset;
+        prevRowLength = rowLength;
+      }
+      offset += KeyValue.ROW_OFFSET + keyLength + valueLength;
+      if (includesMemstoreTS) {
+        offset += WritableUtils.decodeVIntSize(in.get(offset));
+      }
+    }
+
+    ByteBufferUtils.putInt(out, in.limit());
+    ByteBufferUtils.moveBufferToStream(out, in, in.limit());
+    ByteBufferUtils.putInt(out, rowCount);
+    for (int i = 0; i < rowCount; ++i) {
+      ByteBufferUtils.putInt(out, rowOffsets[i]);
+    }
+  }
+
+  @Override
+  public ByteBuffer uncompressKeyValues(DataInputStream source,
+      int preserveHeaderLength, int skipLastBytes, boolean includesMemstoreTS)
+      throws IOException {
+    int decompressedSize = source.readInt();
+    ByteBuffer buffer = ByteBuffer.allocate(decompressedSize +
+        preserveHeaderLength);
+    buffer.position(preserveHeaderLength);
+    ByteBufferUtils.copyFromStreamToBuffer(buffer, source, decompressedSize);
+    int rowCount = source.readInt();
+    source.skipBytes(rowCount * Bytes.SIZEOF_INT);
+
+    return buffer;
+  }
+
+  @Override
+  public ByteBuffer getFirstKeyInBlock(ByteBuffer block) {
+    int keyLength = block.getInt(Bytes.SIZEOF_INT);
+    return ByteBuffer.wrap(block.array(),
+        block.arrayOffset() + 3 * Bytes.SIZEOF_INT, keyLength).slice();
+  }
+
+  @Override
+  public String toString() {
+    return RowIndexDataBlockEncoder.class.getSimpleName();
+  }
+
+  @Override
+  public EncodedSeeker createSeeker(RawComparator<byte[]> comparator,
+      final boolean includesMemstoreTS) {
+    return new BufferedEncodedSeeker<SeekerState>(comparator) {
+      /** The encoded block, holding the row offsets */
+      private ByteBuffer block;
+      private int rowOffsetsStart;
+      private int rowCount;
+
+      @Override
+      public void setCurrentBuffer(ByteBuffer buffer) {
+        int start = buffer.position();
+        int dataLength = buffer.getInt(start);
+        block = buffer;
+        rowCount = buffer.getInt(start + Bytes.SIZEOF_INT + dataLength);
+        rowOffsetsStart = start + 2 * Bytes.SIZEOF_INT + dataLength;
+        // The seeker walks the KeyValues only, up to the row offsets
+        super.setCurrentBuffer(ByteBuffer.wrap(buffer.array(),
+            buffer.arrayOffset() + start + Bytes.SIZEOF_INT,
+            dataLength).slice());
+      }
+
+      @Override
+      public int seekToKeyInBlock(byte[] key, int offset, int length,
+          boolean seekBefore) {
+        currentBuffer.position(getRowOffset(
+            findRow(key, offset, length, seekBefore)));
+        decodeNext();
+        return super.seekToKeyInBlock(key, offset, length, seekBefore);
+      }
+
+      /**
+       * @return the last row whose first key is less than the given key, or
+       *         equal to it if not seeking before it, or the first row if
+       *         there is none
+       */
+      private int findRow(byte[] key, int offset, int length,
+          boolean seekBefore) {
+        int low = 1;
+        int high = rowCount - 1;
+        int found = 0;
+        while (low <= high) {
+          int mid = (low + high) >>> 1;
+          int kvOffset = getRowOffset(mid);
+          int comp = comparator.compare(key, offset, length,
+              currentBuffer.array(), currentBuffer.arrayOffset() + kvOffset +
+                  KeyValue.ROW_OFFSET,
+              currentBuffer.getInt(kvOffset));
+          if (comp > 0 || (comp == 0 && !seekBefore)) {
+            found = mid;
+            low = mid + 1;
+          } else {
+            high = mid - 1;
+          }
+        }
+        return found;
+      }
+
+      private int getRowOffset(int row) {
+        return block.getInt(rowOffsetsStart + row * Bytes.SIZEOF_INT);
+      }
+
+      @Override
+      protected void decodeNext() {
+        current.keyLength = currentBuffer.getInt();
+        current.valueLength = currentBuffer.getInt();
+        current.lastCommonPrefix = 0;
+        current.ensureSpaceForKey();
+        currentBuffer.get(current.keyBuffer, 0, current.keyLength);
+        current.valueOffset = currentBuffer.position();
+        ByteBufferUtils.skip(currentBuffer, current.valueLength);
+        if (includesMemstoreTS) {
+          current.memstoreTS = ByteBufferUtils.readVLong(currentBuffer);
+        } else {
+          current.memstoreTS = 0;
+        }
+        current.nextKvOffset = currentBuffer.position();
+      }
+
+      @Override
+      protected void decodeFirst() {
+        decodeNext();
+      }
+    };
+  }
+}
@@ -74,6 +74,9 @@ public abstract class AbstractHFileReader extends SchemaConfigured
   /** Last key in the file. Filled in when we read in the file info */
   protected byte [] lastKey = null;
 
+  /** First key in the file, copied out of the block index on first use */
+  private volatile byte [] firstKey = null;
+
   /** Average key length read from file info */
   protected int avgKeyLen = -1;
 
@@ -165,9 +168,9 @@ public abstract class AbstractHFileReader extends SchemaConfigured
 
   /**
    * Create a Scanner on this file. No seeks or reads are done on creation. Call
-   * {@link HFileScanner#seekTo(byte[])} to position an start the read. There is
-   * nothing to clean up in a Scanner. Letting go of your references to the
-   * scanner is sufficient. NOTE: Do not use this overload of getScanner for
+   * {@link HFileScanner#seekTo(byte[])} to position an start the read. Call
+   * {@link HFileScanner#close()} when done with the scanner, to release the
+   * resources it may hold. NOTE: Do not use this overload of getScanner for
    * compactions.
    *
    * @param cacheBlocks True if we should cache blocks read in by this scanner.
@@ -190,8 +193,15 @@ public abstract class AbstractHFileReader extends SchemaConfigured
     if (dataBlockIndexReader == null) {
       throw new BlockIndexNotLoadedException();
     }
-    return dataBlockIndexReader.isEmpty() ? null
-        : dataBlockIndexReader.getRootBlockKey(0);
+    if (dataBlockIndexReader.isEmpty()) {
+      return null;
+    }
+    byte[] key = firstKey;
+    if (key == null) {
+      key = dataBlockIndexReader.getRootBlockKey(0);
+      firstKey = key;
+    }
+    return key;
   }
 
   /**
@@ -339,6 +349,18 @@ public abstract class AbstractHFileReader extends SchemaConfigured
     public HFile.Reader getReader() {
       return reader;
     }
+
+    @Override
+    public void setStopKey(byte[] key) {
+    }
+
+    @Override
+    public void setTimeRange(long minStamp, long maxStamp) {
+    }
+
+    @Override
+    public void close() {
+    }
   }
 
   /** For testing */
@@ -21,6 +21,8 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -123,4 +125,16 @@ public interface BlockCache {
    * @throws IOException exception
    */
   public List<BlockCacheColumnFamilySummary> getBlockCacheColumnFamilySummaries(Configuration conf) throws IOException;
+
+  /**
+   * Lists the cached blocks of the given HFiles, including those in any
+   * second level cache, with their priority. Caches that do not track
+   * priorities report every block as single access. This is a linear-time
+   * scan of the cache.
+   *
+   * @param hfileNames names of the HFiles, see {@link BlockCacheKey#getHfileName()}
+   * @return the priority of each cached block of the files
+   */
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames);
 }
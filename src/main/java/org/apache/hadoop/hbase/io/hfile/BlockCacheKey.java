@@ -92,6 +92,13 @@ public class BlockCacheKey implements HeapSize {
     return hfileName;
   }
 
+  /**
+   * @return Offset of the block into the file
+   */
+  public long getOffset() {
+    return offset;
+  }
+
   public DataBlockEncoding getDataBlockEncoding() {
     return encoding;
   }
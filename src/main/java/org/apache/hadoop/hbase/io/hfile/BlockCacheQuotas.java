@@ -0,0 +1,291 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics.SchemaAware;
+
+/**
+ * Soft and hard quotas on the share of a block cache used by the blocks of a
+ * table, or of one column family of a table, and the live usage of every
+ * table and column family in the cache.
+ * <p>
+ * Quotas are fractions of the maximum size of the cache, configured as a
+ * comma separated list of <code>table=fraction</code> or
+ * <code>table:family=fraction</code> entries. A block that would take its
+ * table or family over its hard quota is not cached. When the cache evicts,
+ * the least recently used blocks of the tables and families over their soft
+ * quota are evicted first, down to the soft quota. A table or family with a
+ * hard quota but no soft quota is trimmed to the same fraction of its hard
+ * quota as the whole cache is of its acceptable size when it evicts.
+ */
+public class BlockCacheQuotas {
+
+  /** Configuration key for the soft quotas */
+  public static final String SOFT_QUOTAS_KEY = "hbase.lru.blockcache.quota.soft";
+
+  /** Configuration key for the hard quotas */
+  public static final String HARD_QUOTAS_KEY = "hbase.lru.blockcache.quota.hard";
+
+  /** Separates the table from the family in a quota owner */
+  static final char FAMILY_SEPARATOR = ':';
+
+  private static final float NO_QUOTA = -1f;
+
+  /** The cached size of a table or of a column family, with its quotas */
+  static class Usage {
+    private final String owner;
+    private final AtomicLong size = new AtomicLong();
+    private final float softQuota;
+    private final float hardQuota;
+
+    Usage(String owner, float softQuota, float hardQuota) {
+      this.owner = owner;
+      this.softQuota = softQuota;
+      this.hardQuota = hardQuota;
+    }
+
+    String getOwner() {
+      return owner;
+    }
+
+    long getSize() {
+      return size.get();
+    }
+
+    /**
+     * @param maxSize maximum size of the cache
+     * @return bytes over the soft quota, zero or less if not over
+     */
+    long overSoftQuota(long maxSize) {
+      return softQuota == NO_QUOTA ? 0 :
+        size.get() - (long) (maxSize * softQuota);
+    }
+
+    boolean exceedsHardQuota(long heapSize, long maxSize) {
+      return hardQuota != NO_QUOTA &&
+        size.get() + heapSize > (long) (maxSize * hardQuota);
+    }
+  }
+
+  /** The usage of a table, with the usage of its families */
+  private class TableUsage extends Usage {
+    private final ConcurrentMap<String, Usage> families =
+      new ConcurrentHashMap<String, Usage>();
+
+    TableUsage(String table) {
+      super(table, getSoftQuota(table), getHardQuota(table));
+    }
+
+    Usage getFamily(String family) {
+      Usage usage = families.get(family);
+      if (usage == null) {
+        String owner = getOwner() + FAMILY_SEPARATOR + family;
+        usage = new Usage(owner, getSoftQuota(owner), getHardQuota(owner));
+        Usage existing = families.putIfAbsent(family, usage);
+        if (existing != null) usage = existing;
+      }
+      return usage;
+    }
+  }
+
+  private final Map<String, Float> softQuotas;
+  private final Map<String, Float> hardQuotas;
+
+  /** Soft quota as a fraction of the hard quota, when none is set */
+  private final float defaultSoftFactor;
+
+  private final ConcurrentMap<String, TableUsage> tables =
+    new ConcurrentHashMap<String, TableUsage>();
+
+  BlockCacheQuotas(Map<String, Float> softQuotas,
+      Map<String, Float> hardQuotas, float defaultSoftFactor) {
+    for (Map.Entry<String, Float> e : softQuotas.entrySet()) {
+      Float hard = hardQuotas.get(e.getKey());
+      if (hard != null && hard < e.getValue()) {
+        throw new IllegalArgumentException("Soft block cache quota of " +
+          e.getKey() + " is larger than its hard quota");
+      }
+    }
+    this.softQuotas = softQuotas;
+    this.hardQuotas = hardQuotas;
+    this.defaultSoftFactor = defaultSoftFactor;
+  }
+
+  /**
+   * @param conf configuration
+   * @param defaultSoftFactor soft quota as a fraction of the hard quota, for
+   *          the tables and families that have only a hard quota
+   * @return the configured quotas, or null if there are none
+   */
+  static BlockCacheQuotas create(Configuration conf, float defaultSoftFactor) {
+    Map<String, Float> softQuotas = parseQuotas(conf, SOFT_QUOTAS_KEY);
+    Map<String, Float> hardQuotas = parseQuotas(conf, HARD_QUOTAS_KEY);
+    if (softQuotas.isEmpty() && hardQuotas.isEmpty()) return null;
+    return new BlockCacheQuotas(softQuotas, hardQuotas, defaultSoftFactor);
+  }
+
+  static Map<String, Float> parseQuotas(Configuration conf, String key) {
+    Map<String, Float> quotas = new HashMap<String, Float>();
+    String [] entries = conf.getStrings(key);
+    if (entries == null) return quotas;
+    for (String entry : entries) {
+      entry = entry.trim();
+      if (entry.length() == 0) continue;
+      int eq = entry.indexOf('=');
+      float quota;
+      try {
+        quota = eq > 0 ? Float.parseFloat(entry.substring(eq + 1).trim()) : -1;
+      } catch (NumberFormatException e) {
+        quota = -1;
+      }
+      if (quota < 0 || quota > 1) {
+        throw new IllegalArgumentException("Bad block cache quota '" + entry +
+          "' in " + key + ", expected table[:family]=fraction");
+      }
+      quotas.put(entry.substring(0, eq).trim(), quota);
+    }
+    return quotas;
+  }
+
+  private float getSoftQuota(String owner) {
+    Float soft = softQuotas.get(owner);
+    if (soft != null) return soft;
+    Float hard = hardQuotas.get(owner);
+    return hard == null ? NO_QUOTA : hard * defaultSoftFactor;
+  }
+
+  private float getHardQuota(String owner) {
+    Float hard = hardQuotas.get(owner);
+    return hard == null ? NO_QUOTA : hard;
+  }
+
+  /**
+   * @return the usage of the table the block belongs to, or null if the block
+   *         is not associated with a table
+   */
+  Usage getTableUsage(Cacheable buf) {
+    if (!(buf instanceof SchemaAware)) return null;
+    String table = ((SchemaAware) buf).getTableName();
+    if (table == null) return null;
+    TableUsage usage = tables.get(table);
+    if (usage == null) {
+      usage = new TableUsage(table);
+      TableUsage existing = tables.putIfAbsent(table, usage);
+      if (existing != null) usage = existing;
+    }
+    return usage;
+  }
+
+  /**
+   * @return the usage of the column family the block belongs to, or null if
+   *         the block is not associated with a column family
+   */
+  Usage getFamilyUsage(Cacheable buf) {
+    TableUsage tableUsage = (TableUsage) getTableUsage(buf);
+    if (tableUsage == null) return null;
+    String family = ((SchemaAware) buf).getColumnFamilyName();
+    return family == null ? null : tableUsage.getFamily(family);
+  }
+
+  /**
+   * Accounts for a block put in or removed from the cache.
+   * @param buf the block
+   * @param heapSizeDelta its heap size, negative if removed
+   */
+  void update(Cacheable buf, long heapSizeDelta) {
+    Usage tableUsage = getTableUsage(buf);
+    if (tableUsage == null) return;
+    tableUsage.size.addAndGet(heapSizeDelta);
+    Usage familyUsage = getFamilyUsage(buf);
+    if (familyUsage != null) {
+      familyUsage.size.addAndGet(heapSizeDelta);
+    }
+  }
+
+  /**
+   * @param buf a block about to be cached
+   * @param heapSize its heap size once cached
+   * @param maxSize maximum size of the cache
+   * @return true if caching the block would take its table or its column
+   *         family over a hard quota
+   */
+  boolean exceedsHardQuota(Cacheable buf, long heapSize, long maxSize) {
+    Usage tableUsage = getTableUsage(buf);
+    if (tableUsage == null) return false;
+    if (tableUsage.exceedsHardQuota(heapSize, maxSize)) return true;
+    Usage familyUsage = getFamilyUsage(buf);
+    return familyUsage != null &&
+      familyUsage.exceedsHardQuota(heapSize, maxSize);
+  }
+
+  /**
+   * @param maxSize maximum size of the cache
+   * @return the tables and families over their soft quota, with the number
+   *         of bytes each is over by
+   */
+  Map<Usage, Long> getOverSoftQuota(long maxSize) {
+    Map<Usage, Long> over = new HashMap<Usage, Long>();
+    for (TableUsage tableUsage : tables.values()) {
+      long bytes = tableUsage.overSoftQuota(maxSize);
+      if (bytes > 0) over.put(tableUsage, bytes);
+      for (Usage familyUsage : tableUsage.families.values()) {
+        bytes = familyUsage.overSoftQuota(maxSize);
+        if (bytes > 0) over.put(familyUsage, bytes);
+      }
+    }
+    return over;
+  }
+
+  /**
+   * @return the cached bytes of every table and column family, by owner, a
+   *         table name or <code>table:family</code>
+   */
+  public Map<String, Long> getUsage() {
+    Map<String, Long> usage = new TreeMap<String, Long>();
+    for (TableUsage tableUsage : tables.values()) {
+      usage.put(tableUsage.getOwner(), tableUsage.getSize());
+      for (Usage familyUsage : tableUsage.families.values()) {
+        usage.put(familyUsage.getOwner(), familyUsage.getSize());
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * @param owner a table name or <code>table:family</code>
+   * @return the name of the dynamic metric holding the cached bytes of the
+   *         owner
+   */
+  public static String getUsageMetricName(String owner) {
+    int sep = owner.indexOf(FAMILY_SEPARATOR);
+    String prefix = sep < 0 ?
+      SchemaMetrics.TABLE_PREFIX + owner + "." :
+      SchemaMetrics.TABLE_PREFIX + owner.substring(0, sep) + "." +
+        SchemaMetrics.CF_PREFIX + owner.substring(sep + 1) + ".";
+    return prefix + "blockCacheQuotaUsage";
+  }
+}
@@ -28,17 +28,47 @@ public class BlockWithScanInfo {
    * If this key is unknown, this is reference-equal with HConstants.NO_NEXT_INDEXED_KEY
    */
   private final byte[] nextIndexedKey;
+  private final int nextIndexedKeyOffset;
+  private final int nextIndexedKeyLength;
 
   public BlockWithScanInfo(HFileBlock hFileBlock, byte[] nextIndexedKey) {
+    this(hFileBlock, nextIndexedKey, 0,
+        nextIndexedKey == null ? 0 : nextIndexedKey.length);
+  }
+
+  /**
+   * @param hFileBlock the block
+   * @param nextIndexedKey the array holding the next indexed key, which may
+   *          hold other bytes too
+   * @param nextIndexedKeyOffset the offset of the key in the array
+   * @param nextIndexedKeyLength the length of the key
+   */
+  public BlockWithScanInfo(HFileBlock hFileBlock, byte[] nextIndexedKey,
+      int nextIndexedKeyOffset, int nextIndexedKeyLength) {
     this.hFileBlock = hFileBlock;
     this.nextIndexedKey = nextIndexedKey;
+    this.nextIndexedKeyOffset = nextIndexedKeyOffset;
+    this.nextIndexedKeyLength = nextIndexedKeyLength;
   }
 
   public HFileBlock getHFileBlock() {
     return hFileBlock;
   }
 
+  /**
+   * @return the array holding the next indexed key, from
+   *         {@link #getNextIndexedKeyOffset()} for
+   *         {@link #getNextIndexedKeyLength()} bytes
+   */
   public byte[] getNextIndexedKey() {
     return nextIndexedKey;
   }
+
+  public int getNextIndexedKeyOffset() {
+    return nextIndexedKeyOffset;
+  }
+
+  public int getNextIndexedKeyLength() {
+    return nextIndexedKeyLength;
+  }
 }
@@ -17,6 +17,7 @@
  */
 package org.apache.hadoop.hbase.io.hfile;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
 
@@ -26,6 +27,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.io.hfile.BlockType.BlockCategory;
+import org.apache.hadoop.hbase.io.hfile.bucket.BucketCache;
 import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.util.DirectMemoryUtils;
 import org.apache.hadoop.util.StringUtils;
@@ -70,6 +72,40 @@ public class CacheConfig {
   public static final String EVICT_BLOCKS_ON_CLOSE_KEY =
       "hbase.rs.evictblocksonclose";
 
+  /**
+   * Configuration key to prefetch all blocks of a given file into the block
+   * cache when the file is opened.
+   */
+  public static final String PREFETCH_BLOCKS_ON_OPEN_KEY =
+      "hbase.rs.prefetchblocksonopen";
+
+  /**
+   * Configuration key for where the bucket cache keeps its blocks: "offheap"
+   * for direct memory, or "file:" followed by the path of a local file. The
+   * bucket cache is disabled if this is not set.
+   */
+  public static final String BUCKET_CACHE_IOENGINE_KEY =
+      "hbase.bucketcache.ioengine";
+
+  /**
+   * Configuration key for the size of the bucket cache, in megabytes.
+   */
+  public static final String BUCKET_CACHE_SIZE_KEY = "hbase.bucketcache.size";
+
+  /**
+   * Configuration key for the comma separated, increasing item sizes of the
+   * bucket cache, in bytes. Blocks larger than the last size are not cached.
+   */
+  public static final String BUCKET_CACHE_BUCKETS_KEY =
+      "hbase.bucketcache.bucket.sizes";
+
+  /**
+   * Configuration key to use a {@link SegmentedBlockCache} instead of the
+   * {@link LruBlockCache}.
+   */
+  public static final String SEGMENTED_BLOCK_CACHE_KEY =
+      "hbase.blockcache.segmented";
+
   // Defaults
 
   public static final boolean DEFAULT_CACHE_DATA_ON_READ = true;
@@ -79,6 +115,7 @@ public class CacheConfig {
   public static final boolean DEFAULT_CACHE_BLOOMS_ON_WRITE = false;
   public static final boolean DEFAULT_EVICT_ON_CLOSE = false;
   public static final boolean DEFAULT_COMPRESSED_CACHE = false;
+  public static final boolean DEFAULT_PREFETCH_ON_OPEN = false;
 
   /** Local reference to the block cache, null if completely disabled */
   private final BlockCache blockCache;
@@ -107,6 +144,9 @@ public class CacheConfig {
   /** Whether data blocks should be stored in compressed form in the cache */
   private final boolean cacheCompressed;
 
+  /** Whether all blocks of a file should be read into the cache on open */
+  private final boolean prefetchOnOpen;
+
   /**
    * Create a cache configuration using the specified configuration object and
    * family descriptor.
@@ -127,8 +167,11 @@ public class CacheConfig {
             DEFAULT_CACHE_BLOOMS_ON_WRITE) || family.shouldCacheBloomsOnWrite(),
         conf.getBoolean(EVICT_BLOCKS_ON_CLOSE_KEY,
             DEFAULT_EVICT_ON_CLOSE) || family.shouldEvictBlocksOnClose(),
-        conf.getBoolean(CACHE_DATA_BLOCKS_COMPRESSED_KEY, DEFAULT_COMPRESSED_CACHE)
+        conf.getBoolean(CACHE_DATA_BLOCKS_COMPRESSED_KEY, DEFAULT_COMPRESSED_CACHE),
+        conf.getBoolean(PREFETCH_BLOCKS_ON_OPEN_KEY,
+            DEFAULT_PREFETCH_ON_OPEN) || family.shouldPrefetchBlocksOnOpen()
      );
+    if (shouldPrefetchOnOpen()) PrefetchExecutor.instantiate(conf);
   }
 
   /**
@@ -148,8 +191,10 @@ public class CacheConfig {
                 DEFAULT_CACHE_BLOOMS_ON_WRITE),
         conf.getBoolean(EVICT_BLOCKS_ON_CLOSE_KEY, DEFAULT_EVICT_ON_CLOSE),
         conf.getBoolean(CACHE_DATA_BLOCKS_COMPRESSED_KEY,
-            DEFAULT_COMPRESSED_CACHE)
+            DEFAULT_COMPRESSED_CACHE),
+        conf.getBoolean(PREFETCH_BLOCKS_ON_OPEN_KEY, DEFAULT_PREFETCH_ON_OPEN)
      );
+    if (shouldPrefetchOnOpen()) PrefetchExecutor.instantiate(conf);
   }
 
   /**
@@ -169,6 +214,30 @@ public class CacheConfig {
       final boolean cacheDataOnWrite, final boolean cacheIndexesOnWrite,
       final boolean cacheBloomsOnWrite, final boolean evictOnClose,
       final boolean cacheCompressed) {
+    this(blockCache, cacheDataOnRead, inMemory, cacheDataOnWrite,
+        cacheIndexesOnWrite, cacheBloomsOnWrite, evictOnClose,
+        cacheCompressed, DEFAULT_PREFETCH_ON_OPEN);
+  }
+
+  /**
+   * Create a block cache configuration with the specified cache and
+   * configuration parameters.
+   * @param blockCache reference to block cache, null if completely disabled
+   * @param cacheDataOnRead whether data blocks should be cached on read
+   * @param inMemory whether blocks should be flagged as in-memory
+   * @param cacheDataOnWrite whether data blocks should be cached on write
+   * @param cacheIndexesOnWrite whether index blocks should be cached on write
+   * @param cacheBloomsOnWrite whether blooms should be cached on write
+   * @param evictOnClose whether blocks should be evicted when HFile is closed
+   * @param cacheCompressed whether to store blocks as compressed in the cache
+   * @param prefetchOnOpen whether to read all blocks into the cache when the
+   *          HFile is opened
+   */
+  CacheConfig(final BlockCache blockCache,
+      final boolean cacheDataOnRead, final boolean inMemory,
+      final boolean cacheDataOnWrite, final boolean cacheIndexesOnWrite,
+      final boolean cacheBloomsOnWrite, final boolean evictOnClose,
+      final boolean cacheCompressed, final boolean prefetchOnOpen) {
     this.blockCache = blockCache;
     this.cacheDataOnRead = cacheDataOnRead;
     this.inMemory = inMemory;
@@ -177,6 +246,7 @@ public class CacheConfig {
     this.cacheBloomsOnWrite = cacheBloomsOnWrite;
     this.evictOnClose = evictOnClose;
     this.cacheCompressed = cacheCompressed;
+    this.prefetchOnOpen = prefetchOnOpen;
   }
 
   /**
@@ -187,7 +257,7 @@ public class CacheConfig {
     this(cacheConf.blockCache, cacheConf.cacheDataOnRead, cacheConf.inMemory,
         cacheConf.cacheDataOnWrite, cacheConf.cacheIndexesOnWrite,
         cacheConf.cacheBloomsOnWrite, cacheConf.evictOnClose,
-        cacheConf.cacheCompressed);
+        cacheConf.cacheCompressed, cacheConf.prefetchOnOpen);
   }
 
   /**
@@ -290,6 +360,14 @@ public class CacheConfig {
     return isBlockCacheEnabled() && this.cacheCompressed;
   }
 
+  /**
+   * @return true if all blocks of an HFile should be read into the cache in
+   *         the background when the HFile is opened, false if not
+   */
+  public boolean shouldPrefetchOnOpen() {
+    return isBlockCacheEnabled() && this.prefetchOnOpen;
+  }
+
   @Override
   public String toString() {
     if (!isBlockCacheEnabled()) {
@@ -301,7 +379,8 @@ public class CacheConfig {
       "[cacheIndexesOnWrite=" + shouldCacheIndexesOnWrite() + "] " +
       "[cacheBloomsOnWrite=" + shouldCacheBloomsOnWrite() + "] " +
       "[cacheEvictOnClose=" + shouldEvictOnClose() + "] " +
-      "[cacheCompressed=" + shouldCacheCompressed() + "]";
+      "[cacheCompressed=" + shouldCacheCompressed() + "] " +
+      "[prefetchOnOpen=" + shouldPrefetchOnOpen() + "]";
   }
 
   // Static block cache reference and methods
@@ -345,9 +424,27 @@ public class CacheConfig {
     long offHeapCacheSize =
       (long) (conf.getFloat("hbase.offheapcache.percentage", (float) 0) *
           DirectMemoryUtils.getDirectMemorySize());
+    BucketCache bucketCache = instantiateBucketCache(conf);
+    boolean segmented = conf.getBoolean(SEGMENTED_BLOCK_CACHE_KEY, false);
+    if (offHeapCacheSize > 0 && (bucketCache != null || segmented)) {
+      LOG.warn("The off heap cache is only used in front of a plain " +
+        "LruBlockCache without a bucket cache; not using it");
+    }
+    if (segmented) {
+      SegmentedBlockCache segmentedCache =
+        new SegmentedBlockCache(cacheSize, conf);
+      if (bucketCache != null) segmentedCache.setVictimCache(bucketCache);
+      globalBlockCache = segmentedCache;
+      return globalBlockCache;
+    }
     LOG.info("Allocating LruBlockCache with maximum size " +
       StringUtils.humanReadableInt(cacheSize));
-    if (offHeapCacheSize <= 0) {
+    if (bucketCache != null) {
+      LruBlockCache lruCache = new LruBlockCache(cacheSize,
+          StoreFile.DEFAULT_BLOCKSIZE_SMALL, conf);
+      lruCache.setVictimCache(bucketCache);
+      globalBlockCache = lruCache;
+    } else if (offHeapCacheSize <= 0) {
       globalBlockCache = new LruBlockCache(cacheSize,
           StoreFile.DEFAULT_BLOCKSIZE_SMALL, conf);
     } else {
@@ -356,4 +453,40 @@ public class CacheConfig {
     }
     return globalBlockCache;
   }
+
+  /**
+   * @param conf The current configuration.
+   * @return the second level cache to put behind the LRU cache, or null if
+   * it is not configured or cannot be created.
+   */
+  private static BucketCache instantiateBucketCache(Configuration conf) {
+    String ioEngineName = conf.get(BUCKET_CACHE_IOENGINE_KEY, null);
+    long bucketCacheSize = conf.getLong(BUCKET_CACHE_SIZE_KEY, 0) * 1024 * 1024;
+    if (ioEngineName == null || ioEngineName.trim().isEmpty() ||
+        bucketCacheSize <= 0) {
+      return null;
+    }
+    long maxDirectMemory = DirectMemoryUtils.getDirectMemorySize();
+    if (ioEngineName.equals("offheap") && maxDirectMemory > 0 &&
+        bucketCacheSize > maxDirectMemory) {
+      throw new IllegalArgumentException(BUCKET_CACHE_SIZE_KEY +
+        " is larger than -XX:MaxDirectMemorySize");
+    }
+    int [] bucketSizes = null;
+    String [] configuredSizes = conf.getStrings(BUCKET_CACHE_BUCKETS_KEY);
+    if (configuredSizes != null) {
+      bucketSizes = new int[configuredSizes.length];
+      for (int i = 0; i < configuredSizes.length; i++) {
+        bucketSizes[i] = Integer.parseInt(configuredSizes[i].trim());
+      }
+    }
+    LOG.info("Allocating BucketCache with size " +
+      StringUtils.humanReadableInt(bucketCacheSize) + " in " + ioEngineName);
+    try {
+      return new BucketCache(ioEngineName, bucketCacheSize, bucketSizes);
+    } catch (IOException e) {
+      LOG.error("Can't create the bucket cache, continuing without it", e);
+      return null;
+    }
+  }
 }
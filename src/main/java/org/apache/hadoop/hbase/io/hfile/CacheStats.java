@@ -51,6 +51,8 @@ public class CacheStats {
   private final AtomicLong evictionCount = new AtomicLong(0);
   /** The total number of blocks that have been evicted */
   private final AtomicLong evictedBlockCount = new AtomicLong(0);
+  /** The number of blocks an admission filter kept out of the cache */
+  private final AtomicLong rejectedBlockCount = new AtomicLong(0);
 
   /** The number of metrics periods to include in window */
   private final int numPeriodsInWindow;
@@ -103,6 +105,10 @@ public class CacheStats {
     evictedBlockCount.incrementAndGet();
   }
 
+  public void reject() {
+    rejectedBlockCount.incrementAndGet();
+  }
+
   public long getRequestCount() {
     return getHitCount() + getMissCount();
   }
@@ -135,6 +141,10 @@ public class CacheStats {
     return evictedBlockCount.get();
   }
 
+  public long getRejectedCount() {
+    return rejectedBlockCount.get();
+  }
+
   public double getHitRatio() {
     return ((float)getHitCount()/(float)getRequestCount());
   }
@@ -46,6 +46,34 @@ public class ChecksumUtil {
    */
   private static boolean generateExceptions = false;
 
+  /**
+   * Checksum objects of every type, reused by their thread rather than
+   * created through reflection for every block
+   */
+  private static final ThreadLocal<Checksum[]> checksums =
+      new ThreadLocal<Checksum[]>() {
+    @Override
+    protected Checksum[] initialValue() {
+      return new Checksum[ChecksumType.values().length];
+    }
+  };
+
+  /**
+   * @param checksumType type of checksum
+   * @return a reset checksum object of the given type, owned by the calling
+   *         thread
+   */
+  static Checksum getChecksum(ChecksumType checksumType) throws IOException {
+    Checksum[] threadChecksums = checksums.get();
+    Checksum checksum = threadChecksums[checksumType.ordinal()];
+    if (checksum == null) {
+      checksum = checksumType.getChecksumObject();
+      threadChecksums[checksumType.ordinal()] = checksum;
+    }
+    checksum.reset();
+    return checksum;
+  }
+
   /**
    * Generates a checksum for all the data in indata. The checksum is
    * written to outdata.
@@ -70,7 +98,7 @@ public class ChecksumUtil {
       return; // No checkums for this block.
     }
 
-    Checksum checksum = checksumType.getChecksumObject();
+    Checksum checksum = getChecksum(checksumType);
     int bytesLeft = endOffset - startOffset;
     int chunkNum = 0;
 
@@ -119,8 +147,7 @@ public class ChecksumUtil {
     if (cktype == ChecksumType.NULL) {
       return true; // No checkums validations needed for this block.
     }
-    Checksum checksumObject = cktype.getChecksumObject();
-    checksumObject.reset();
+    Checksum checksumObject = getChecksum(cktype);
 
     // read in the stored value of the checksum size from the header.
     int bytesPerChecksum = block.getBytesPerChecksum();
@@ -244,6 +244,38 @@ public final class Compression {
           throw new RuntimeException(e);
         }
       }
+    },
+    LZ4_JAVA("lz4_java") {
+      private final transient JavaLz4Codec codec = new JavaLz4Codec();
+
+      @Override
+      CompressionCodec getCodec(Configuration conf) {
+        if (codec.getConf() == null) {
+          codec.setConf(conf);
+        }
+        return codec;
+      }
+
+      @Override
+      JavaBlockCodec getJavaBlockCodec() {
+        return codec;
+      }
+    },
+    SNAPPY_JAVA("snappy_java") {
+      private final transient JavaSnappyCodec codec = new JavaSnappyCodec();
+
+      @Override
+      CompressionCodec getCodec(Configuration conf) {
+        if (codec.getConf() == null) {
+          codec.setConf(conf);
+        }
+        return codec;
+      }
+
+      @Override
+      JavaBlockCodec getJavaBlockCodec() {
+        return codec;
+      }
     };
 
     private final String compressName;
@@ -265,6 +297,14 @@ public final class Compression {
 
     abstract CompressionCodec getCodec(Configuration conf);
 
+    /**
+     * @return the pure Java codec of the algorithm, which decompresses blocks
+     *         from array to array, or null if it has none
+     */
+    JavaBlockCodec getJavaBlockCodec() {
+      return null;
+    }
+
     public InputStream createDecompressionStream(
         InputStream downStream, Decompressor decompressor,
         int downStreamBufferSize) throws IOException {
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The range of the KeyValue timestamps of each data block of an HFile, in
+ * file order, with the location of the block. Written as a meta block by
+ * {@link HFileWriterV2} when {@link #ENABLED_KEY} is set, so that scanners
+ * only interested in a time range skip the data blocks outside of it
+ * without reading them.
+ * <p>
+ * Like the store file {@link
+ * org.apache.hadoop.hbase.regionserver.TimeRangeTracker}, the range of a
+ * block holding a column or family delete marker goes down to zero, since
+ * the marker deletes all the older versions.
+ */
+public class DataBlockTimeRanges implements Writable {
+
+  /**
+   * Configuration key to write the time ranges of the data blocks of the
+   * HFiles holding KeyValues
+   */
+  public static final String ENABLED_KEY =
+      "hbase.hfile.block.timerange.enabled";
+
+  /** The name of the meta block holding the time ranges */
+  public static final String META_BLOCK_NAME = "DATA_BLOCK_TIMERANGES";
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int count;
+  private long[] offsets = new long[INITIAL_CAPACITY];
+  private int[] onDiskSizes = new int[INITIAL_CAPACITY];
+  private long[] minStamps = new long[INITIAL_CAPACITY];
+  private long[] maxStamps = new long[INITIAL_CAPACITY];
+
+  /**
+   * Adds the time range of the data block following the blocks already
+   * added.
+   * @param offset the offset of the block
+   * @param onDiskSize the on-disk size of the block, header included
+   * @param minStamp the smallest timestamp of the block
+   * @param maxStamp the largest timestamp of the block
+   */
+  void add(long offset, int onDiskSize, long minStamp, long maxStamp) {
+    if (count == offsets.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, 2 * count);
+      offsets = Arrays.copyOf(offsets, capacity);
+      onDiskSizes = Arrays.copyOf(onDiskSizes, capacity);
+      minStamps = Arrays.copyOf(minStamps, capacity);
+      maxStamps = Arrays.copyOf(maxStamps, capacity);
+    }
+    offsets[count] = offset;
+    onDiskSizes[count] = onDiskSize;
+    minStamps[count] = minStamp;
+    maxStamps[count] = maxStamp;
+    count++;
+  }
+
+  /** @return the number of data blocks */
+  public int size() {
+    return count;
+  }
+
+  /** @return the offset of the given data block */
+  public long getOffset(int block) {
+    return offsets[block];
+  }
+
+  /** @return the on-disk size of the given data block, header included */
+  public int getOnDiskSize(int block) {
+    return onDiskSizes[block];
+  }
+
+  /**
+   * @param offset a file offset
+   * @return the first data block at or after the offset, or {@link #size()}
+   *         if there is none
+   */
+  public int firstBlockAtOrAfter(long offset) {
+    int i = Arrays.binarySearch(offsets, 0, count, offset);
+    return i >= 0 ? i : -(i + 1);
+  }
+
+  /**
+   * @param block a data block
+   * @param minStamp the minimum timestamp, inclusive
+   * @param maxStamp the maximum timestamp, exclusive
+   * @return whether the block may hold KeyValues in the time range
+   */
+  public boolean overlaps(int block, long minStamp, long maxStamp) {
+    return minStamps[block] < maxStamp && maxStamps[block] >= minStamp;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, count);
+    long prevOffset = 0;
+    for (int i = 0; i < count; i++) {
+      WritableUtils.writeVLong(out, offsets[i] - prevOffset);
+      WritableUtils.writeVInt(out, onDiskSizes[i]);
+      WritableUtils.writeVLong(out, minStamps[i]);
+      WritableUtils.writeVLong(out, maxStamps[i] - minStamps[i]);
+      prevOffset = offsets[i];
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    count = 0;
+    int n = WritableUtils.readVInt(in);
+    offsets = new long[n];
+    onDiskSizes = new int[n];
+    minStamps = new long[n];
+    maxStamps = new long[n];
+    long offset = 0;
+    for (int i = 0; i < n; i++) {
+      offset += WritableUtils.readVLong(in);
+      int onDiskSize = WritableUtils.readVInt(in);
+      long minStamp = WritableUtils.readVLong(in);
+      add(offset, onDiskSize, minStamp,
+          minStamp + WritableUtils.readVLong(in));
+    }
+  }
+
+}
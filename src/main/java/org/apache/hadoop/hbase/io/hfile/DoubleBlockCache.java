@@ -21,6 +21,8 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -126,6 +128,13 @@ public class DoubleBlockCache implements BlockCache, HeapSize {
     return this.stats;
   }
 
+  /**
+   * @return the off heap cache behind the on heap one
+   */
+  public SlabCache getOffHeapCache() {
+    return this.offHeapCache;
+  }
+
   @Override
   public void shutdown() {
     onHeapCache.shutdown();
@@ -166,6 +175,15 @@ public class DoubleBlockCache implements BlockCache, HeapSize {
     return onHeapCache.getBlockCacheColumnFamilySummaries(conf);
   }
 
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys =
+      offHeapCache.getCachedBlockKeys(hfileNames);
+    keys.putAll(onHeapCache.getCachedBlockKeys(hfileNames));
+    return keys;
+  }
+
   @Override
   public long getBlockCount() {
     return onHeapCache.getBlockCount() + offHeapCache.getBlockCount();
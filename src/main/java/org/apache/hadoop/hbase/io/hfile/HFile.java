@@ -21,6 +21,7 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.io.Closeable;
 import java.io.DataInput;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -39,8 +40,10 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
@@ -176,6 +179,10 @@ public class HFile {
   private static final AtomicInteger preadOps = new AtomicInteger();
   private static final AtomicLong preadTimeNano = new AtomicLong();
 
+  // For measuring latency of reads on a scanner's own stream
+  private static final AtomicInteger streamReadOps = new AtomicInteger();
+  private static final AtomicLong streamReadTimeNano = new AtomicLong();
+
   // For measuring number of checksum failures
   static final AtomicLong checksumFailures = new AtomicLong();
 
@@ -191,6 +198,8 @@ public class HFile {
       new ArrayBlockingQueue<Long>(LATENCY_BUFFER_SIZE);
   private static final BlockingQueue<Long> fsPreadLatenciesNanos =
       new ArrayBlockingQueue<Long>(LATENCY_BUFFER_SIZE);
+  private static final BlockingQueue<Long> fsStreamReadLatenciesNanos =
+      new ArrayBlockingQueue<Long>(LATENCY_BUFFER_SIZE);
 
   public static final void offerReadLatency(long latencyNanos, boolean pread) {
     if (pread) {
@@ -204,6 +213,16 @@ public class HFile {
     }
   }
 
+  /**
+   * Records the latency of a read on the stream of a scanner reading
+   * sequentially, see {@link HFileReaderV2#STREAM_READ_THRESHOLD_KEY}.
+   */
+  public static final void offerStreamReadLatency(long latencyNanos) {
+    fsStreamReadLatenciesNanos.offer(latencyNanos); // might be silently dropped, if the queue is full
+    streamReadTimeNano.addAndGet(latencyNanos);
+    streamReadOps.incrementAndGet();
+  }
+
   public static final void offerWriteLatency(long latencyNanos) {
     fsWriteLatenciesNanos.offer(latencyNanos); // might be silently dropped, if the queue is full
 
@@ -225,6 +244,13 @@ public class HFile {
     return latencies;
   }
 
+  public static final Collection<Long> getStreamReadLatenciesNanos() {
+    final List<Long> latencies =
+        Lists.newArrayListWithCapacity(fsStreamReadLatenciesNanos.size());
+    fsStreamReadLatenciesNanos.drainTo(latencies);
+    return latencies;
+  }
+
   public static final Collection<Long> getWriteLatenciesNanos() {
     final List<Long> latencies =
         Lists.newArrayListWithCapacity(fsWriteLatenciesNanos.size());
@@ -253,6 +279,15 @@ public class HFile {
     return preadTimeNano.getAndSet(0) / 1000000;
   }
 
+  // number of reads on the streams of sequential scanners
+  public static final int getStreamReadOps() {
+    return streamReadOps.getAndSet(0);
+  }
+
+  public static final long getStreamReadTimeMs() {
+    return streamReadTimeNano.getAndSet(0) / 1000000;
+  }
+
   public static final int getWriteOps() {
     return writeOps.getAndSet(0);
   }
@@ -412,6 +447,13 @@ public class HFile {
   /** The configuration key for HFile version to use for new files */
   public static final String FORMAT_VERSION_KEY = "hfile.format.version";
 
+  /**
+   * Configuration key to memory map HFiles on a local file system. The
+   * mapping serves the reads verified by HBase checksums, so it is only used
+   * when HBase checksum verification is enabled.
+   */
+  public static final String MMAP_ENABLED_KEY = "hbase.hfile.mmap.enabled";
+
   public static int getFormatVersion(Configuration conf) {
     int version = conf.getInt(FORMAT_VERSION_KEY, MAX_FORMAT_VERSION);
     checkFormatVersion(version);
@@ -609,7 +651,7 @@ public class HFile {
       // open a stream to read data without checksum verification in
       // the filesystem
       if (hfs != null) {
-        fsdisNoFsChecksum = hfs.getNoChecksumFs().open(path);
+        fsdisNoFsChecksum = openNoFsChecksum(hfs, path);
       }
     }
     return pickReaderVersion(path, fsdis, fsdisNoFsChecksum,
@@ -617,6 +659,30 @@ public class HFile {
         preferredEncodingInCache, hfs);
   }
 
+  /**
+   * Opens the stream that reads a file without checksum verification in the
+   * file system, mapping the file in memory if it is local and
+   * {@link #MMAP_ENABLED_KEY} is set.
+   */
+  private static FSDataInputStream openNoFsChecksum(HFileSystem hfs,
+      Path path) throws IOException {
+    FileSystem noChecksumFs = hfs.getNoChecksumFs();
+    Configuration conf = noChecksumFs.getConf();
+    if (hfs.useHBaseChecksum() && conf != null &&
+        conf.getBoolean(MMAP_ENABLED_KEY, false)) {
+      File file = null;
+      if (noChecksumFs instanceof LocalFileSystem) {
+        file = ((LocalFileSystem) noChecksumFs).pathToFile(path);
+      } else if (noChecksumFs instanceof RawLocalFileSystem) {
+        file = ((RawLocalFileSystem) noChecksumFs).pathToFile(path);
+      }
+      if (file != null) {
+        return MappedFileInputStream.open(file);
+      }
+    }
+    return noChecksumFs.open(path);
+  }
+
   /**
    * @param fs A file system
    * @param path Path to HFile
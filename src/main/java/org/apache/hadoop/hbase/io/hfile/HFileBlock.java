@@ -28,6 +28,7 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -810,9 +811,11 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
 
     /**
      * Transitions the block writer from the "writing" state to the "block
-     * ready" state.  Does nothing if a block is already finished.
+     * ready" state.  Does nothing if a block is already finished. A data
+     * block finished this way, on any thread, can be written by another
+     * writer with {@link #writeFinishedBlock(Writer, FSDataOutputStream)}.
      */
-    private void ensureBlockReady() throws IOException {
+    void ensureBlockReady() throws IOException {
       Preconditions.checkState(state != State.INIT,
           "Unexpected state: " + state);
 
@@ -1069,6 +1072,62 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
       }
     }
 
+    /**
+     * Writes a block that another writer with the same settings finished, as
+     * if this writer had written it. The block gets the offset of the previous
+     * block of its type from this writer, which changes its header and the
+     * checksum of its first chunk, and becomes the previous block of its type
+     * for the blocks this writer writes next. This lets blocks be compressed
+     * and checksummed by separate writers on other threads, and still be
+     * written exactly as this writer would have written them.
+     *
+     * @param block a writer in the "block ready" state
+     * @param out the file system output stream
+     * @throws IOException
+     */
+    void writeFinishedBlock(Writer block, FSDataOutputStream out)
+        throws IOException {
+      block.expectState(State.BLOCK_READY);
+      if (state == State.BLOCK_READY && startOffset != -1) {
+        // As in startWriting(), as this writer is done with its own block.
+        prevOffsetByType[blockType.getId()] = startOffset;
+      }
+      state = State.INIT;
+      startOffset = -1;
+
+      // finishBlock() looks the previous offset up by the type the block was
+      // started with, before the block is encoded.
+      BlockType startType = block.blockType == BlockType.ENCODED_DATA ?
+          BlockType.DATA : block.blockType;
+      block.setPrevOffset(prevOffsetByType[startType.getId()]);
+      block.writeHeaderAndData(out);
+      prevOffsetByType[block.blockType.getId()] = block.startOffset;
+    }
+
+    /**
+     * Changes the offset of the previous block of the same type in the
+     * header of the finished block, and the checksum covering the header.
+     */
+    private void setPrevOffset(long newPrevOffset) throws IOException {
+      if (newPrevOffset == prevOffset) {
+        return;
+      }
+      prevOffset = newPrevOffset;
+      int prevOffsetPos = MAGIC_LENGTH + 2 * Bytes.SIZEOF_INT;
+      Bytes.putLong(onDiskBytesWithHeader, prevOffsetPos, prevOffset);
+      Bytes.putLong(uncompressedBytesWithHeader, prevOffsetPos, prevOffset);
+
+      if (minorVersion > MINOR_VERSION_NO_CHECKSUM) {
+        // Only the first chunk's checksum covers the header.
+        boolean separateChecksums = compressAlgo == NONE;
+        ChecksumUtil.generateChecksums(onDiskBytesWithHeader, 0,
+            Math.min(bytesPerChecksum, onDiskDataSizeWithHeader),
+            separateChecksums ? onDiskChecksum : onDiskBytesWithHeader,
+            separateChecksums ? 0 : onDiskDataSizeWithHeader,
+            checksumType, bytesPerChecksum);
+      }
+    }
+
     /**
      * Returns the header or the compressed data (or uncompressed data when not
      * using compression) as a byte array. Can be called in the "writing" state
@@ -1467,6 +1526,33 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
       }
     }
 
+    /**
+     * Decompresses a block read into an array. The pure Java codecs
+     * decompress straight into the destination array, other codecs through
+     * a decompression stream.
+     *
+     * @param dest the destination array
+     * @param destOffset the offset of the raw data in the destination array
+     * @param src the array holding the compressed data
+     * @param srcOffset the offset of the compressed data
+     * @param srcLength the length of the compressed data, which may be
+     *          followed by checksums
+     * @param uncompressedSize the length of the raw data
+     */
+    protected void decompress(byte[] dest, int destOffset, byte[] src,
+        int srcOffset, int srcLength, int uncompressedSize)
+        throws IOException {
+      JavaBlockCodec codec = compressAlgo.getJavaBlockCodec();
+      if (codec != null) {
+        codec.decompressBlock(src, srcOffset, srcLength, dest, destOffset,
+            uncompressedSize);
+        return;
+      }
+      DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+          src, srcOffset, srcLength));
+      decompress(dest, destOffset, dis, uncompressedSize);
+    }
+
     /**
      * Creates a buffered stream reading a certain slice of the file system
      * input stream. We need this because the decompression we use seems to
@@ -1881,13 +1967,11 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
             return null;             // checksum mismatch
           }
 
-          DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
-              onDiskBlock, hdrSize, onDiskSizeWithoutHeader));
-
           // This will allocate a new buffer but keep header bytes.
           b.allocateBuffer(b.nextBlockOnDiskSizeWithHeader > 0);
 
-          decompress(b.buf.array(), b.buf.arrayOffset() + hdrSize, dis,
+          decompress(b.buf.array(), b.buf.arrayOffset() + hdrSize,
+              onDiskBlock, hdrSize, onDiskSizeWithoutHeader,
               b.uncompressedSizeWithoutHeader);
 
           // Copy next block's header bytes into the new block if we have them.
@@ -1957,10 +2041,8 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
               !validateBlockChecksum(b, compressedBytes, hdrSize)) {
             return null;             // checksum mismatch
           }
-          DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
-              compressedBytes, hdrSize, b.onDiskSizeWithoutHeader));
-
-          decompress(b.buf.array(), b.buf.arrayOffset() + hdrSize, dis,
+          decompress(b.buf.array(), b.buf.arrayOffset() + hdrSize,
+              compressedBytes, hdrSize, b.onDiskSizeWithoutHeader,
               b.uncompressedSizeWithoutHeader);
 
           if (b.nextBlockOnDiskSizeWithHeader > 0) {
@@ -2000,6 +2082,72 @@ public class HFileBlock extends SchemaConfigured implements Cacheable {
       this.dataBlockEncoder = encoder;
     }
 
+    /**
+     * Opens a reader of the same file on input streams of its own, for a
+     * scanner reading the file sequentially. Its non-positional reads neither
+     * wait for nor move the streams shared by the other readers of the file,
+     * so consecutive blocks are read off one open connection.
+     *
+     * @param readahead buffer size of the new streams, and the number of
+     *          bytes they read ahead where the file system supports it
+     * @return the new reader, whose streams {@link #closeStreams()} closes
+     * @throws IOException if the file cannot be opened
+     */
+    FSReaderV2 openStreamReader(int readahead) throws IOException {
+      if (hfs == null || path == null) {
+        throw new IOException("No file system and path to open " +
+            "a stream from");
+      }
+      FSDataInputStream is = hfs.open(path, readahead);
+      FSDataInputStream isNoFsChecksum = is;
+      if (istreamNoFsChecksum != istream) {
+        try {
+          isNoFsChecksum = hfs.getNoChecksumFs().open(path, readahead);
+        } catch (IOException e) {
+          is.close();
+          throw e;
+        }
+        setReadahead(isNoFsChecksum, readahead);
+      }
+      setReadahead(is, readahead);
+      FSReaderV2 reader = new FSReaderV2(is, isNoFsChecksum, compressAlgo,
+          fileSize, getMinorVersion(), hfs, path);
+      reader.setIncludesMemstoreTS(includesMemstoreTS);
+      reader.setDataBlockEncoder(dataBlockEncoder);
+      return reader;
+    }
+
+    /**
+     * Sets the readahead of a stream, on Hadoop versions where streams
+     * support it. Other versions read ahead as much as the buffer holds.
+     */
+    private void setReadahead(FSDataInputStream is, long readahead) {
+      try {
+        Method setReadahead = is.getClass().getMethod("setReadahead",
+            Long.class);
+        setReadahead.invoke(is, Long.valueOf(readahead));
+      } catch (NoSuchMethodException e) {
+        // Not supported by this Hadoop version
+      } catch (Exception e) {
+        HFile.LOG.debug("Could not set the readahead of a stream of " +
+            path, e);
+      }
+    }
+
+    /**
+     * Closes the streams of a reader returned by
+     * {@link #openStreamReader(int)}.
+     */
+    void closeStreams() throws IOException {
+      try {
+        if (istreamNoFsChecksum != istream) {
+          istreamNoFsChecksum.close();
+        }
+      } finally {
+        istream.close();
+      }
+    }
+
     /**
      * Generates the checksum for the header as well as the data and
      * then validates that it matches the value stored in the header.
@@ -94,6 +94,13 @@ public class HFileBlockIndex {
   private static final int MID_KEY_METADATA_SIZE = Bytes.SIZEOF_LONG +
       2 * Bytes.SIZEOF_INT;
 
+  /**
+   * The number of bytes per entry initially allocated for the packed keys of
+   * a root-level index being read. The array grows as needed, and is trimmed
+   * to the keys once they are all read.
+   */
+  private static final int ROOT_KEY_SIZE_ESTIMATE = 64;
+
   /**
    * The reader will always hold the root level index in the memory. Index
    * blocks at all other levels will be cached in the LRU cache in practice,
@@ -108,8 +115,10 @@ public class HFileBlockIndex {
     /** Needed doing lookup on blocks. */
     private final RawComparator<byte[]> comparator;
 
-    // Root-level data.
-    private byte[][] blockKeys;
+    // Root-level data. The keys are packed in one array, the key of entry i
+    // going from blockKeyOffsets[i] to blockKeyOffsets[i + 1].
+    private byte[] blockKeys;
+    private int[] blockKeyOffsets;
     private long[] blockOffsets;
     private int[] blockDataSizes;
     private int rootByteSize = 0;
@@ -148,7 +157,7 @@ public class HFileBlockIndex {
      * @return true if the block index is empty.
      */
     public boolean isEmpty() {
-      return blockKeys.length == 0;
+      return rootCount == 0;
     }
 
     /**
@@ -156,7 +165,7 @@ public class HFileBlockIndex {
      * {@link IllegalStateException} otherwise.
      */
     public void ensureNonEmpty() {
-      if (blockKeys.length == 0) {
+      if (rootCount == 0) {
         throw new IllegalStateException("Block index is empty or not loaded");
       }
     }
@@ -208,21 +217,27 @@ public class HFileBlockIndex {
         boolean pread, boolean isCompaction)
         throws IOException {
       int rootLevelIndex = rootBlockContainingKey(key, keyOffset, keyLength);
-      if (rootLevelIndex < 0 || rootLevelIndex >= blockOffsets.length) {
+      if (rootLevelIndex < 0 || rootLevelIndex >= rootCount) {
         return null;
       }
 
-      // the next indexed key
+      // the next indexed key, compared in place where it is stored
       byte[] nextIndexedKey = null;
+      int nextIndexedKeyOffset = 0;
+      int nextIndexedKeyLength = 0;
 
       // Read the next-level (intermediate or leaf) index block.
       long currentOffset = blockOffsets[rootLevelIndex];
       int currentOnDiskSize = blockDataSizes[rootLevelIndex];
 
-      if (rootLevelIndex < blockKeys.length - 1) {
-        nextIndexedKey = blockKeys[rootLevelIndex + 1];
+      if (rootLevelIndex < rootCount - 1) {
+        nextIndexedKey = blockKeys;
+        nextIndexedKeyOffset = blockKeyOffsets[rootLevelIndex + 1];
+        nextIndexedKeyLength = blockKeyOffsets[rootLevelIndex + 2] -
+            nextIndexedKeyOffset;
       } else {
         nextIndexedKey = HConstants.NO_NEXT_INDEXED_KEY;
+        nextIndexedKeyLength = nextIndexedKey.length;
       }
 
       int lookupLevel = 1; // How many levels deep we are in our lookup.
@@ -292,6 +307,8 @@ public class HFileBlockIndex {
         byte[] tmpNextIndexedKey = getNonRootIndexedKey(buffer, index + 1);
         if (tmpNextIndexedKey != null) {
           nextIndexedKey = tmpNextIndexedKey;
+          nextIndexedKeyOffset = 0;
+          nextIndexedKeyLength = tmpNextIndexedKey.length;
         }
       }
 
@@ -301,7 +318,8 @@ public class HFileBlockIndex {
       }
 
       // set the next indexed key for the current block.
-      BlockWithScanInfo blockWithScanInfo = new BlockWithScanInfo(block, nextIndexedKey);
+      BlockWithScanInfo blockWithScanInfo = new BlockWithScanInfo(block,
+          nextIndexedKey, nextIndexedKeyOffset, nextIndexedKeyLength);
       return blockWithScanInfo;
     }
 
@@ -342,7 +360,7 @@ public class HFileBlockIndex {
         midKey = Arrays.copyOfRange(b.array(), keyOffset, keyOffset + keyLen);
       } else {
         // The middle of the root-level index.
-        midKey = blockKeys[rootCount / 2];
+        midKey = getRootBlockKey(rootCount / 2);
       }
 
       this.midKey.set(midKey);
@@ -351,9 +369,26 @@ public class HFileBlockIndex {
 
     /**
      * @param i from 0 to {@link #getRootBlockCount() - 1}
+     * @return a copy of the key of the root-level block
      */
     public byte[] getRootBlockKey(int i) {
-      return blockKeys[i];
+      return Arrays.copyOfRange(blockKeys, blockKeyOffsets[i],
+          blockKeyOffsets[i + 1]);
+    }
+
+    /**
+     * Compares a key with the key of a root-level block, without copying it.
+     * @param key the array holding the key
+     * @param offset the offset of the key in the array
+     * @param length the length of the key
+     * @param i from 0 to {@link #getRootBlockCount() - 1}
+     * @return negative, zero or positive as the key is less than, equal to or
+     *         greater than the key of the root-level block
+     */
+    public int compareRootBlockKey(byte[] key, int offset, int length,
+        int i) {
+      return comparator.compare(key, offset, length, blockKeys,
+          blockKeyOffsets[i], blockKeyOffsets[i + 1] - blockKeyOffsets[i]);
     }
 
     /**
@@ -390,41 +425,63 @@ public class HFileBlockIndex {
      */
     public int rootBlockContainingKey(final byte[] key, int offset,
         int length) {
-      int pos = Bytes.binarySearch(blockKeys, key, offset, length,
-          comparator);
-      // pos is between -(blockKeys.length + 1) to blockKeys.length - 1, see
-      // binarySearch's javadoc.
-
-      if (pos >= 0) {
-        // This means this is an exact match with an element of blockKeys.
-        assert pos < blockKeys.length;
-        return pos;
-      }
+      int low = 0;
+      int high = rootCount - 1;
 
-      // Otherwise, pos = -(i + 1), where blockKeys[i - 1] < key < blockKeys[i],
-      // and i is in [0, blockKeys.length]. We are returning j = i - 1 such that
-      // blockKeys[j] <= key < blockKeys[j + 1]. In particular, j = -1 if
-      // key < blockKeys[0], meaning the file does not contain the given key.
+      // If we imagine that keys[-1] = -Infinity and
+      // keys[rootCount] = Infinity, then we are maintaining an invariant that
+      // keys[low - 1] < key < keys[high + 1] while narrowing down the range.
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int midKeyOffset = blockKeyOffsets[mid];
+
+        // we have to compare in this order, because the comparator order
+        // has special logic when the 'left side' is a special key.
+        int cmp = comparator.compare(key, offset, length, blockKeys,
+            midKeyOffset, blockKeyOffsets[mid + 1] - midKeyOffset);
 
-      int i = -pos - 1;
-      assert 0 <= i && i <= blockKeys.length;
-      return i - 1;
+        if (cmp > 0) {
+          low = mid + 1;
+        } else if (cmp < 0) {
+          high = mid - 1;
+        } else {
+          // An exact match with the key of a root-level block.
+          return mid;
+        }
+      }
+
+      // Now keys[low - 1] < key < keys[low]. We are returning j = low - 1
+      // such that keys[j] <= key < keys[j + 1]. In particular, j = -1 if
+      // key < keys[0], meaning the file does not contain the given key.
+      return low - 1;
     }
 
     /**
      * Adds a new entry in the root block index. Only used when reading.
      *
-     * @param key Last key in the block
+     * @param in the input stream holding the key
+     * @param keyLength the length of the key
      * @param offset file offset where the block is stored
      * @param dataSize the uncompressed data size
+     * @throws IOException
      */
-    private void add(final byte[] key, final long offset, final int dataSize) {
+    private void add(final DataInput in, final int keyLength,
+        final long offset, final int dataSize) throws IOException {
+      if (keyLength < 0) {
+        throw new NegativeArraySizeException(Integer.toString(keyLength));
+      }
+      int keyOffset = blockKeyOffsets[rootCount];
+      if (keyOffset + keyLength > blockKeys.length) {
+        blockKeys = Arrays.copyOf(blockKeys,
+            Math.max(2 * blockKeys.length, keyOffset + keyLength));
+      }
+      in.readFully(blockKeys, keyOffset, keyLength);
+      blockKeyOffsets[rootCount + 1] = keyOffset + keyLength;
       blockOffsets[rootCount] = offset;
-      blockKeys[rootCount] = key;
       blockDataSizes[rootCount] = dataSize;
 
       rootCount++;
-      rootByteSize += SECONDARY_INDEX_ENTRY_OVERHEAD + key.length;
+      rootByteSize += SECONDARY_INDEX_ENTRY_OVERHEAD + keyLength;
     }
 
     /**
@@ -601,7 +658,8 @@ public class HFileBlockIndex {
     public void readRootIndex(DataInput in, final int numEntries)
         throws IOException {
       blockOffsets = new long[numEntries];
-      blockKeys = new byte[numEntries][];
+      blockKeys = new byte[numEntries * ROOT_KEY_SIZE_ESTIMATE];
+      blockKeyOffsets = new int[numEntries + 1];
       blockDataSizes = new int[numEntries];
 
       // If index size is zero, no index was written.
@@ -609,10 +667,14 @@ public class HFileBlockIndex {
         for (int i = 0; i < numEntries; ++i) {
           long offset = in.readLong();
           int dataSize = in.readInt();
-          byte[] key = Bytes.readByteArray(in);
-          add(key, offset, dataSize);
+          add(in, WritableUtils.readVInt(in), offset, dataSize);
         }
       }
+
+      int keysLength = blockKeyOffsets[numEntries];
+      if (keysLength < blockKeys.length) {
+        blockKeys = Arrays.copyOf(blockKeys, keysLength);
+      }
     }
     
     /**
@@ -661,7 +723,9 @@ public class HFileBlockIndex {
       StringBuilder sb = new StringBuilder();
       sb.append("size=" + rootCount).append("\n");
       for (int i = 0; i < rootCount; i++) {
-        sb.append("key=").append(KeyValue.keyToString(blockKeys[i]))
+        sb.append("key=").append(KeyValue.keyToString(blockKeys,
+                blockKeyOffsets[i], blockKeyOffsets[i + 1] -
+                blockKeyOffsets[i]))
             .append("\n  offset=").append(blockOffsets[i])
             .append(", dataSize=" + blockDataSizes[i]).append("\n");
       }
@@ -670,22 +734,19 @@ public class HFileBlockIndex {
 
     @Override
     public long heapSize() {
-      long heapSize = ClassSize.align(6 * ClassSize.REFERENCE +
+      long heapSize = ClassSize.align(7 * ClassSize.REFERENCE +
           3 * Bytes.SIZEOF_INT + ClassSize.OBJECT);
 
       // Mid-key metadata.
       heapSize += MID_KEY_METADATA_SIZE;
 
-      // Calculating the size of blockKeys
       if (blockKeys != null) {
-        // Adding array + references overhead
-        heapSize += ClassSize.align(ClassSize.ARRAY + blockKeys.length
-            * ClassSize.REFERENCE);
+        heapSize += ClassSize.align(ClassSize.ARRAY + blockKeys.length);
+      }
 
-        // Adding bytes
-        for (byte[] key : blockKeys) {
-          heapSize += ClassSize.align(ClassSize.ARRAY + key.length);
-        }
+      if (blockKeyOffsets != null) {
+        heapSize += ClassSize.align(ClassSize.ARRAY + blockKeyOffsets.length
+            * Bytes.SIZEOF_INT);
       }
 
       if (blockOffsets != null) {
@@ -1112,6 +1173,34 @@ public class HFileBlockIndex {
       ++totalNumEntries;
     }
 
+    /**
+     * Sets the location of a block whose index entry was added before the
+     * block was written. The entry must still be in the current leaf-level
+     * chunk, i.e. no inline index block may be written before the blocks of
+     * its entries.
+     *
+     * @param entry the number of the entry among all the leaf-level entries,
+     *          starting from zero
+     * @param blockOffset the offset of the data block
+     * @param blockDataSize the on-disk size of the data block
+     */
+    void setEntryLocation(long entry, long blockOffset, int blockDataSize) {
+      long firstInlineEntry = curInlineChunk == null ? totalNumEntries :
+        totalNumEntries - curInlineChunk.getNumEntries();
+      if (entry < firstInlineEntry || entry >= totalNumEntries) {
+        throw new IllegalStateException("Index entry #" + entry + " is not " +
+            "in the current leaf-level chunk, which holds entries #" +
+            firstInlineEntry + " to #" + (totalNumEntries - 1));
+      }
+      curInlineChunk.setLocation((int) (entry - firstInlineEntry),
+          blockOffset, blockDataSize);
+    }
+
+    /** @return the number of leaf-level entries added so far */
+    long getNumEntries() {
+      return totalNumEntries;
+    }
+
     /**
      * @throws IOException if we happened to write a multi-level index.
      */
@@ -1237,6 +1326,15 @@ public class HFileBlockIndex {
       add(firstKey, blockOffset, onDiskDataSize, -1);
     }
 
+    /**
+     * Sets the offset and on-disk size of the block of an entry, which does
+     * not change the size of the chunk.
+     */
+    void setLocation(int i, long blockOffset, int onDiskDataSize) {
+      blockOffsets.set(i, blockOffset);
+      onDiskDataSizes.set(i, onDiskDataSize);
+    }
+
     public void clear() {
       blockKeys.clear();
       blockOffsets.clear();
@@ -234,6 +234,7 @@ public class HFilePrettyPrinter {
       }
       if (shouldScanKeysValues)
         scanKeysValues(file, fileStats, scanner, row);
+      scanner.close();
     }
 
     // print meta data
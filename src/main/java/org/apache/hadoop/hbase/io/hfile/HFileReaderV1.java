@@ -36,6 +36,7 @@ import org.apache.hadoop.hbase.io.hfile.HFile.FileInfo;
 import org.apache.hadoop.hbase.io.hfile.HFile.Writer;
 import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.IdLock;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.RawComparator;
 
@@ -51,6 +52,9 @@ public class HFileReaderV1 extends AbstractHFileReader {
 
   private volatile boolean fileInfoLoaded = false;
 
+  /** Locks the reads of a block, so that it is read once into the cache */
+  private final IdLock offsetLock = new IdLock();
+
   /**
    * Opens a HFile.  You must load the index before you can
    * use it by calling {@link #loadFileInfo()}.
@@ -223,8 +227,9 @@ public class HFileReaderV1 extends AbstractHFileReader {
       effectiveCategory = BlockCategory.BLOOM;
     }
 
-    // Per meta key from any given file, synchronize reads for said block
-    synchronized (metaBlockIndexReader.getRootBlockKey(block)) {
+    // Per meta block from any given file, lock reads for said block
+    IdLock.Entry lockEntry = offsetLock.getLockEntry(offset);
+    try {
       // Check cache for block.  If found return.
       if (cacheConf.isBlockCacheEnabled()) {
         HFileBlock cachedBlock =
@@ -256,6 +261,8 @@ public class HFileReaderV1 extends AbstractHFileReader {
       }
 
       return hfileBlock.getBufferWithoutHeader();
+    } finally {
+      offsetLock.releaseLockEntry(lockEntry);
     }
   }
 
@@ -281,12 +288,13 @@ public class HFileReaderV1 extends AbstractHFileReader {
     long offset = dataBlockIndexReader.getRootBlockOffset(block);
     BlockCacheKey cacheKey = new BlockCacheKey(name, offset);
 
-    // For any given block from any given file, synchronize reads for said
+    // For any given block from any given file, lock reads for said
     // block.
-    // Without a cache, this synchronizing is needless overhead, but really
+    // Without a cache, this locking is needless overhead, but really
     // the other choice is to duplicate work (which the cache would prevent you
     // from doing).
-    synchronized (dataBlockIndexReader.getRootBlockKey(block)) {
+    IdLock.Entry lockEntry = offsetLock.getLockEntry(offset);
+    try {
       // Check cache for block.  If found return.
       if (cacheConf.isBlockCacheEnabled()) {
         HFileBlock cachedBlock =
@@ -331,6 +339,8 @@ public class HFileReaderV1 extends AbstractHFileReader {
             cacheConf.isInMemory());
       }
       return hfileBlock.getBufferWithoutHeader();
+    } finally {
+      offsetLock.releaseLockEntry(lockEntry);
     }
   }
 
@@ -460,9 +470,8 @@ public class HFileReaderV1 extends AbstractHFileReader {
         return false; // key is before the start of the file.
 
       // Question: does this block begin with 'key'?
-      byte[] firstkKey = reader.getDataBlockIndexReader().getRootBlockKey(b);
-      if (reader.getComparator().compare(firstkKey, 0, firstkKey.length,
-          key, offset, length) == 0) {
+      if (reader.getDataBlockIndexReader().compareRootBlockKey(key, offset,
+          length, b) == 0) {
         // Ok the key we're interested in is the first of the block, so go back
         // by one.
         if (b == 0) {
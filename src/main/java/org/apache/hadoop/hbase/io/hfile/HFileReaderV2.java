@@ -19,14 +19,24 @@
  */
 package org.apache.hadoop.hbase.io.hfile;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HConstants;
@@ -81,6 +91,59 @@ public class HFileReaderV2 extends AbstractHFileReader {
   /** Maximum minor version supported by this HFile format */
   static final int MAX_MINOR_VERSION = 1;
 
+  /**
+   * Configuration key for the number of data blocks a scanner reads in file
+   * order before it switches to an input stream of its own. Scanners use
+   * positional reads until then, and again as soon as they seek elsewhere.
+   * Zero or less, the default, keeps the reads of scanners on the shared
+   * stream.
+   */
+  public static final String STREAM_READ_THRESHOLD_KEY =
+      "hbase.hfile.stream.read.threshold";
+
+  public static final int DEFAULT_STREAM_READ_THRESHOLD = 0;
+
+  /**
+   * Configuration key for the buffer size of the stream of a scanner reading
+   * sequentially, also its readahead where the file system supports it
+   */
+  public static final String STREAM_READAHEAD_KEY =
+      "hbase.hfile.stream.readahead";
+
+  public static final int DEFAULT_STREAM_READAHEAD = 1024 * 1024;
+
+  /**
+   * Configuration key for the number of data blocks a scanner moving from a
+   * block to the next one keeps read ahead of its current block, on the
+   * read-ahead threads of {@link PrefetchExecutor}. Zero, the default,
+   * disables it.
+   */
+  public static final String READAHEAD_BLOCKS_KEY =
+      "hbase.hfile.readahead.blocks";
+
+  public static final int DEFAULT_READAHEAD_BLOCKS = 0;
+
+  /** Sequential blocks to switch to a stream, zero or less if never */
+  private final int streamReadThreshold;
+
+  private final int streamReadahead;
+
+  /** Data blocks scanners read ahead, zero or less if none */
+  private final int readAheadBlocks;
+
+  /**
+   * Time ranges of the data blocks, loaded for the first scanner with a time
+   * range, or null if the file has none
+   */
+  private DataBlockTimeRanges dataBlockTimeRanges;
+
+  private boolean dataBlockTimeRangesLoaded;
+
+  /** Readers over the streams of sequential scanners, closed with the file */
+  private final Set<HFileBlock.FSReaderV2> streamReaders =
+      Collections.newSetFromMap(
+          new ConcurrentHashMap<HFileBlock.FSReaderV2, Boolean>());
+
   /**
    * Opens a HFile. You must load the index before you can use it by calling
    * {@link #loadFileInfo()}.
@@ -110,6 +173,24 @@ public class HFileReaderV2 extends AbstractHFileReader {
         fsdisNoFsChecksum,
         compressAlgo, fileSize, trailer.getMinorVersion(), hfs, path);
     this.fsBlockReader = fsBlockReaderV2; // upcast
+    if (hfs != null && hfs.getNoChecksumFs().getConf() != null) {
+      Configuration conf = hfs.getNoChecksumFs().getConf();
+      // Positional reads of a mapped file are as cheap as stream reads
+      streamReadThreshold = fsdisNoFsChecksum instanceof MappedFileInputStream
+          && hfs.useHBaseChecksum() ? 0 :
+          conf.getInt(STREAM_READ_THRESHOLD_KEY, DEFAULT_STREAM_READ_THRESHOLD);
+      streamReadahead = conf.getInt(STREAM_READAHEAD_KEY,
+          DEFAULT_STREAM_READAHEAD);
+      readAheadBlocks = conf.getInt(READAHEAD_BLOCKS_KEY,
+          DEFAULT_READAHEAD_BLOCKS);
+      if (readAheadBlocks > 0) {
+        PrefetchExecutor.instantiateReadAhead(conf);
+      }
+    } else {
+      streamReadThreshold = 0;
+      streamReadahead = DEFAULT_STREAM_READAHEAD;
+      readAheadBlocks = 0;
+    }
 
     // Comparator class name is stored in the trailer in version 2.
     comparator = trailer.createComparator();
@@ -161,13 +242,53 @@ public class HFileReaderV2 extends AbstractHFileReader {
     while ((b = blockIter.nextBlock()) != null) {
       loadOnOpenBlocks.add(b);
     }
+
+    if (cacheConf.shouldPrefetchOnOpen()) {
+      PrefetchExecutor.request(this, new Runnable() {
+        public void run() {
+          prefetchBlocks();
+        }
+      });
+    }
+  }
+
+  /**
+   * Reads all the blocks before the load-on-open section into the block cache,
+   * stopping early if the prefetch is cancelled.
+   */
+  private void prefetchBlocks() {
+    long offset = 0;
+    long end = trailer.getLoadOnOpenDataOffset();
+    HFileBlock prevBlock = null;
+    try {
+      while (offset < end) {
+        if (PrefetchExecutor.isCancelled(this)) {
+          return;
+        }
+        long onDiskSize = prevBlock != null ?
+            prevBlock.getNextBlockOnDiskSizeWithHeader() : -1;
+        HFileBlock block = readBlock(offset, onDiskSize, true, false, false,
+            null);
+        PrefetchExecutor.blockPrefetched(block.getOnDiskSizeWithHeader());
+        prevBlock = block;
+        offset += block.getOnDiskSizeWithHeader();
+      }
+      PrefetchExecutor.prefetchCompleted();
+    } catch (IOException e) {
+      // The reader may have been closed under us
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Prefetch of " + path + " stopped at offset " + offset, e);
+      }
+    }
   }
 
   /**
    * Create a Scanner on this file. No seeks or reads are done on creation. Call
-   * {@link HFileScanner#seekTo(byte[])} to position an start the read. There is
-   * nothing to clean up in a Scanner. Letting go of your references to the
-   * scanner is sufficient.
+   * {@link HFileScanner#seekTo(byte[])} to position an start the read. If
+   * {@link #STREAM_READ_THRESHOLD_KEY} is set, a scanner reading sequentially
+   * switches to an input stream of its own, so callers must call
+   * {@link HFileScanner#close()} when done with it, or the stream stays open
+   * until the reader is closed.
    *
    * @param cacheBlocks True if we should cache blocks read in by this scanner.
    * @param pread Use positional read rather than seek+read if true (pread is
@@ -211,12 +332,13 @@ public class HFileReaderV2 extends AbstractHFileReader {
     long blockSize = metaBlockIndexReader.getRootBlockDataSize(block);
     long startTimeNs = System.nanoTime();
 
-    // Per meta key from any given file, synchronize reads for said block. This
+    // Per meta block from any given file, lock reads for said block. This
     // is OK to do for meta blocks because the meta block index is always
     // single-level.
-    synchronized (metaBlockIndexReader.getRootBlockKey(block)) {
+    long metaBlockOffset = metaBlockIndexReader.getRootBlockOffset(block);
+    IdLock.Entry lockEntry = offsetLock.getLockEntry(metaBlockOffset);
+    try {
       // Check cache for block. If found return.
-      long metaBlockOffset = metaBlockIndexReader.getRootBlockOffset(block);
       BlockCacheKey cacheKey = new BlockCacheKey(name, metaBlockOffset,
           DataBlockEncoding.NONE, BlockType.META);
 
@@ -248,7 +370,31 @@ public class HFileReaderV2 extends AbstractHFileReader {
       }
 
       return metaBlock.getBufferWithoutHeader();
+    } finally {
+      offsetLock.releaseLockEntry(lockEntry);
+    }
+  }
+
+  /**
+   * @return the time ranges of the data blocks, or null if they were not
+   *         written
+   * @throws IOException
+   */
+  synchronized DataBlockTimeRanges getDataBlockTimeRanges()
+      throws IOException {
+    if (!dataBlockTimeRangesLoaded) {
+      ByteBuffer buf = getMetaBlock(DataBlockTimeRanges.META_BLOCK_NAME,
+          false);
+      if (buf != null) {
+        DataBlockTimeRanges timeRanges = new DataBlockTimeRanges();
+        timeRanges.readFields(new DataInputStream(new ByteArrayInputStream(
+            buf.array(), buf.arrayOffset() + buf.position(),
+            buf.remaining())));
+        dataBlockTimeRanges = timeRanges;
+      }
+      dataBlockTimeRangesLoaded = true;
     }
+    return dataBlockTimeRanges;
   }
 
   /**
@@ -271,6 +417,21 @@ public class HFileReaderV2 extends AbstractHFileReader {
       final boolean cacheBlock, boolean pread, final boolean isCompaction,
       BlockType expectedBlockType)
       throws IOException {
+    return readBlock(dataBlockOffset, onDiskBlockSize, cacheBlock, pread,
+        isCompaction, expectedBlockType, null);
+  }
+
+  /**
+   * Read in a file block, from the given stream on a cache miss.
+   * @param streamReader reader over the stream of a scanner reading
+   *          sequentially, see {@link #openStreamReader()}, or null to read
+   *          from the streams shared by all the scanners
+   * @see #readBlock(long, long, boolean, boolean, boolean, BlockType)
+   */
+  HFileBlock readBlock(long dataBlockOffset, long onDiskBlockSize,
+      final boolean cacheBlock, boolean pread, final boolean isCompaction,
+      BlockType expectedBlockType, HFileBlock.FSReader streamReader)
+      throws IOException {
     if (dataBlockIndexReader == null) {
       throw new IOException("Block index not loaded");
     }
@@ -340,8 +501,11 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
         // Load block from filesystem.
         long startTimeNs = System.nanoTime();
-        HFileBlock hfileBlock = fsBlockReader.readBlockData(dataBlockOffset,
-            onDiskBlockSize, -1, pread);
+        HFileBlock hfileBlock = streamReader != null ?
+            streamReader.readBlockData(dataBlockOffset, onDiskBlockSize, -1,
+                false) :
+            fsBlockReader.readBlockData(dataBlockOffset, onDiskBlockSize, -1,
+                pread);
         hfileBlock = dataBlockEncoder.diskToCacheFormat(hfileBlock,
             isCompaction);
         validateBlockType(hfileBlock, expectedBlockType);
@@ -349,7 +513,11 @@ public class HFileReaderV2 extends AbstractHFileReader {
         BlockCategory blockCategory = hfileBlock.getBlockType().getCategory();
 
         final long delta = System.nanoTime() - startTimeNs;
-        HFile.offerReadLatency(delta, pread);
+        if (streamReader != null) {
+          HFile.offerStreamReadLatency(delta);
+        } else {
+          HFile.offerReadLatency(delta, pread);
+        }
         getSchemaMetrics().updateOnCacheMiss(blockCategory, isCompaction, delta);
 
         // Cache the block if necessary
@@ -377,6 +545,38 @@ public class HFileReaderV2 extends AbstractHFileReader {
     return includesMemstoreTS && decodeMemstoreTS;
   }
 
+  /**
+   * Opens a block reader over input streams of its own, for a scanner that
+   * reads sequentially.
+   * @return the block reader, to close with
+   *         {@link #closeStreamReader(HFileBlock.FSReaderV2)}
+   */
+  HFileBlock.FSReaderV2 openStreamReader() throws IOException {
+    HFileBlock.FSReaderV2 streamReader =
+        ((HFileBlock.FSReaderV2) fsBlockReader).openStreamReader(
+            streamReadahead);
+    streamReaders.add(streamReader);
+    return streamReader;
+  }
+
+  /** For testing */
+  int getStreamReaderCount() {
+    return streamReaders.size();
+  }
+
+  /**
+   * Closes the streams of a block reader from {@link #openStreamReader()}.
+   */
+  void closeStreamReader(HFileBlock.FSReaderV2 streamReader) {
+    if (streamReaders.remove(streamReader)) {
+      try {
+        streamReader.closeStreams();
+      } catch (IOException e) {
+        LOG.warn("Failed to close a scanner stream of " + path, e);
+      }
+    }
+  }
+
   /**
    * Compares the actual type of a block retrieved from cache or disk with its
    * expected type and throws an exception in case of a mismatch. Expected
@@ -430,6 +630,10 @@ public class HFileReaderV2 extends AbstractHFileReader {
   }
 
   public void close(boolean evictOnClose) throws IOException {
+    PrefetchExecutor.cancel(this);
+    for (HFileBlock.FSReaderV2 streamReader : streamReaders) {
+      closeStreamReader(streamReader);
+    }
     if (evictOnClose && cacheConf.isBlockCacheEnabled()) {
       int numEvicted = cacheConf.getBlockCache().evictBlocksByHfileName(name);
       if (LOG.isTraceEnabled()) {
@@ -461,12 +665,270 @@ public class HFileReaderV2 extends AbstractHFileReader {
      * current data block is the last data block.
      *
      * If the nextIndexedKey is null, it means the nextIndexedKey has not been loaded yet.
+     *
+     * The key may be stored in place in a larger array, from nextIndexedKeyOffset for
+     * nextIndexedKeyLength bytes.
      */
     protected byte[] nextIndexedKey;
+    protected int nextIndexedKeyOffset;
+    protected int nextIndexedKeyLength;
+
+    /**
+     * Number of moves of this scanner from a data block to the next one in
+     * the file, since it last moved anywhere else.
+     */
+    private int sequentialBlocks;
+
+    /**
+     * Reader over a stream of this scanner's own, open while the scanner
+     * reads sequentially
+     */
+    private volatile HFileBlock.FSReaderV2 streamReader;
+
+    /** Reads the blocks after the current one, while reading sequentially */
+    private ReadAhead readAhead;
+
+    /** Key the scanner is not read at or past, or null if none */
+    private byte[] stopKey;
+
+    /** Offset of the last block that may hold keys before the stop key */
+    private long readAheadLimit = Long.MAX_VALUE;
+
+    /**
+     * Time ranges of the data blocks, if the scanner only needs a time range
+     * and the file has them, or null
+     */
+    private DataBlockTimeRanges timeRanges;
+
+    /** The time range of the scanner, if {@link #timeRanges} is set */
+    private long minStamp;
+    private long maxStamp;
 
     public AbstractScannerV2(HFileReaderV2 r, boolean cacheBlocks,
         final boolean pread, final boolean isCompaction) {
-      super(r, cacheBlocks, pread, isCompaction);
+      // Scanners that switch to a stream of their own when reading
+      // sequentially do positional reads when reading at random.
+      super(r, cacheBlocks, pread || r.streamReadThreshold > 0, isCompaction);
+    }
+
+    /**
+     * Tracks whether the scanner reads sequentially, on its move from the
+     * current block to the given one. On a move to the next data block the
+     * scanner reads the following blocks ahead, and after enough such moves
+     * it reads them from a stream of its own. A move anywhere else stops
+     * the read-ahead and closes the stream.
+     * @param newBlock the data block the scanner moves to
+     */
+    protected void trackBlockMove(HFileBlock newBlock) {
+      if (block != null && newBlock.getOffset() == block.getOffset()) {
+        return;
+      }
+      if (block == null || newBlock.getPrevBlockOffset() != block.getOffset()) {
+        resetReadMode();
+        return;
+      }
+      HFileReaderV2 readerV2 = (HFileReaderV2) reader;
+      sequentialBlocks++;
+      if (streamReader == null && readerV2.streamReadThreshold > 0 &&
+          sequentialBlocks >= readerV2.streamReadThreshold) {
+        try {
+          streamReader = readerV2.openStreamReader();
+        } catch (IOException e) {
+          LOG.warn("Failed to open a scanner stream of " + readerV2.getPath() +
+              ", reading with the shared streams", e);
+          // Do not try again until the scanner moves elsewhere
+          sequentialBlocks = Integer.MIN_VALUE;
+        }
+      }
+      if (readerV2.readAheadBlocks > 0) {
+        if (readAhead == null || readAhead.isStale()) {
+          readAhead = new ReadAhead(newBlock, readerV2.readAheadBlocks);
+        }
+        readAhead.fill();
+      }
+    }
+
+    /**
+     * Stops reading ahead, and closes the stream of the scanner.
+     */
+    private void resetReadMode() {
+      sequentialBlocks = 0;
+      if (readAhead != null) {
+        readAhead.cancel();
+        readAhead = null;
+      }
+      if (streamReader != null) {
+        ((HFileReaderV2) reader).closeStreamReader(streamReader);
+        streamReader = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      resetReadMode();
+    }
+
+    @Override
+    public void setStopKey(byte[] key) {
+      stopKey = key;
+      HFileBlockIndex.BlockIndexReader indexReader =
+          reader.getDataBlockIndexReader();
+      int rootBlock = indexReader.rootBlockContainingKey(key, 0, key.length);
+      // With a multi-level index the root entry is an index block, written
+      // after the data blocks it indexes
+      readAheadLimit = rootBlock < 0 ? -1 :
+          indexReader.getRootBlockOffset(rootBlock);
+    }
+
+    @Override
+    public void setTimeRange(long minStamp, long maxStamp) {
+      try {
+        timeRanges = ((HFileReaderV2) reader).getDataBlockTimeRanges();
+      } catch (IOException e) {
+        LOG.warn("Failed to load the data block time ranges of " +
+            reader.getPath() + ", reading all the data blocks", e);
+        timeRanges = null;
+      }
+      this.minStamp = minStamp;
+      this.maxStamp = maxStamp;
+    }
+
+    /**
+     * Reads the blocks following the current block of the scanner on the
+     * read-ahead threads, keeping a number of data blocks read ahead of it,
+     * until the last data block or the first block past the stop key.
+     * Blocks are cached if the scanner caches the blocks it reads.
+     */
+    private class ReadAhead implements Runnable {
+      private final int maxDataBlocks;
+
+      /** Blocks read and not taken by the scanner yet, by offset */
+      private final Map<Long, HFileBlock> blocks =
+          new HashMap<Long, HFileBlock>();
+
+      /** Number of data blocks in {@link #blocks} */
+      private int dataBlocks;
+
+      private long nextOffset;
+      private long nextOnDiskSize;
+
+      /** Whether a read is queued or running */
+      private boolean running;
+
+      /** Whether there is nothing more to read */
+      private boolean ended;
+
+      /** Whether the scanner read a block on its own, past the blocks read */
+      private boolean stale;
+
+      ReadAhead(HFileBlock current, int maxDataBlocks) {
+        this.maxDataBlocks = maxDataBlocks;
+        nextOffset = current.getOffset() + current.getOnDiskSizeWithHeader();
+        nextOnDiskSize = current.getNextBlockOnDiskSizeWithHeader();
+      }
+
+      /**
+       * Queues a read, if fewer than the wanted data blocks are read ahead.
+       */
+      synchronized void fill() {
+        if (running || ended || dataBlocks >= maxDataBlocks) return;
+        running = true;
+        try {
+          PrefetchExecutor.readAhead(this);
+        } catch (RejectedExecutionException e) {
+          running = false;
+          ended = true;
+        }
+      }
+
+      synchronized void cancel() {
+        ended = true;
+        blocks.clear();
+        dataBlocks = 0;
+      }
+
+      @Override
+      public void run() {
+        long lastDataBlockOffset = reader.getTrailer().getLastDataBlockOffset();
+        try {
+          while (true) {
+            long offset;
+            long onDiskSize;
+            synchronized (this) {
+              if (ended || dataBlocks >= maxDataBlocks) break;
+              if (nextOffset > lastDataBlockOffset ||
+                  nextOffset > readAheadLimit) {
+                ended = true;
+                break;
+              }
+              offset = nextOffset;
+              onDiskSize = nextOnDiskSize;
+            }
+            HFileBlock b = ((HFileReaderV2) reader).readBlock(offset,
+                onDiskSize, cacheBlocks, pread, isCompaction, null,
+                streamReader);
+            boolean isData = b.getBlockType() == BlockType.DATA ||
+                b.getBlockType() == BlockType.ENCODED_DATA;
+            synchronized (this) {
+              if (ended) break;
+              blocks.put(offset, b);
+              if (isData) dataBlocks++;
+              nextOffset = offset + b.getOnDiskSizeWithHeader();
+              nextOnDiskSize = b.getNextBlockOnDiskSizeWithHeader();
+              if (isData && isPastStopKey(b)) ended = true;
+              notifyAll();
+            }
+          }
+        } catch (Exception e) {
+          // The scanner reads the blocks itself
+          LOG.debug("Read-ahead of " + reader.getPath() + " failed", e);
+          synchronized (this) {
+            ended = true;
+          }
+        } finally {
+          synchronized (this) {
+            running = false;
+            notifyAll();
+          }
+        }
+      }
+
+      private boolean isPastStopKey(HFileBlock b) {
+        if (stopKey == null) return false;
+        ByteBuffer firstKey = getFirstKeyInBlock(b);
+        return reader.getComparator().compare(firstKey.array(),
+            firstKey.arrayOffset(), firstKey.limit(), stopKey, 0,
+            stopKey.length) >= 0;
+      }
+
+      /**
+       * Takes a block read ahead, waiting for it if it is being read.
+       * @param offset offset of the block
+       * @return the block, or null if it was not read ahead
+       */
+      synchronized HFileBlock take(long offset) throws IOException {
+        while (running && !blocks.containsKey(offset) && nextOffset <= offset) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException().initCause(e);
+          }
+        }
+        HFileBlock b = blocks.remove(offset);
+        if (b == null) {
+          stale = true;
+          cancel();
+        } else if (b.getBlockType() == BlockType.DATA ||
+            b.getBlockType() == BlockType.ENCODED_DATA) {
+          dataBlocks--;
+        }
+        return b;
+      }
+
+      synchronized boolean isStale() {
+        return stale;
+      }
     }
 
     /**
@@ -494,14 +956,19 @@ public class HFileReaderV2 extends AbstractHFileReader {
         // This happens if the key e.g. falls before the beginning of the file.
         return -1;
       }
+      trackBlockMove(blockWithScanInfo.getHFileBlock());
       return loadBlockAndSeekToKey(blockWithScanInfo.getHFileBlock(),
-          blockWithScanInfo.getNextIndexedKey(), rewind, key, offset, length, false);
+          blockWithScanInfo.getNextIndexedKey(),
+          blockWithScanInfo.getNextIndexedKeyOffset(),
+          blockWithScanInfo.getNextIndexedKeyLength(), rewind, key, offset,
+          length, false);
     }
 
     protected abstract ByteBuffer getFirstKeyInBlock(HFileBlock curBlock);
 
     protected abstract int loadBlockAndSeekToKey(HFileBlock seekToBlock, byte[] nextIndexedKey,
-        boolean rewind, byte[] key, int offset, int length, boolean seekBefore)
+        int nextIndexedKeyOffset, int nextIndexedKeyLength, boolean rewind,
+        byte[] key, int offset, int length, boolean seekBefore)
         throws IOException;
 
     @Override
@@ -524,12 +991,14 @@ public class HFileReaderV2 extends AbstractHFileReader {
           if (this.nextIndexedKey != null &&
               (this.nextIndexedKey == HConstants.NO_NEXT_INDEXED_KEY ||
                reader.getComparator().compare(key, offset, length,
-                   nextIndexedKey, 0, nextIndexedKey.length) < 0)) {
+                   nextIndexedKey, nextIndexedKeyOffset,
+                   nextIndexedKeyLength) < 0)) {
             // The reader shall continue to scan the current data block instead of querying the
             // block index as long as it knows the target key is strictly smaller than
             // the next indexed key or the current data block is the last data block.
             return loadBlockAndSeekToKey(this.block, this.nextIndexedKey,
-                false, key, offset, length, false);
+                this.nextIndexedKeyOffset, this.nextIndexedKeyLength, false,
+                key, offset, length, false);
           }
         }
       }
@@ -569,6 +1038,7 @@ public class HFileReaderV2 extends AbstractHFileReader {
         // block.
       }
       byte[] firstKeyInCurrentBlock = Bytes.getBytes(firstKey);
+      trackBlockMove(seekToBlock);
       loadBlockAndSeekToKey(seekToBlock, firstKeyInCurrentBlock, true, key, offset, length, true);
       return true;
     }
@@ -596,15 +1066,42 @@ public class HFileReaderV2 extends AbstractHFileReader {
           throw new IOException("Invalid block file offset: " + block);
         }
 
-        // We are reading the next block without block type validation, because
-        // it might turn out to be a non-data block.
-        curBlock = reader.readBlock(curBlock.getOffset()
-            + curBlock.getOnDiskSizeWithHeader(),
-            curBlock.getNextBlockOnDiskSizeWithHeader(), cacheBlocks, pread,
-            isCompaction, null);
+        long nextOffset = curBlock.getOffset()
+            + curBlock.getOnDiskSizeWithHeader();
+        long nextOnDiskSize = curBlock.getNextBlockOnDiskSizeWithHeader();
+        if (timeRanges != null) {
+          // Jump over the data blocks outside of the time range, and the
+          // blocks in between.
+          int firstBlock = timeRanges.firstBlockAtOrAfter(nextOffset);
+          int nextDataBlock = firstBlock;
+          while (nextDataBlock < timeRanges.size() &&
+              !timeRanges.overlaps(nextDataBlock, minStamp, maxStamp)) {
+            nextDataBlock++;
+          }
+          if (nextDataBlock == timeRanges.size()) {
+            return null;
+          }
+          if (nextDataBlock != firstBlock) {
+            // Not a sequential read
+            resetReadMode();
+            nextOffset = timeRanges.getOffset(nextDataBlock);
+            nextOnDiskSize = timeRanges.getOnDiskSize(nextDataBlock);
+          }
+        }
+        HFileBlock nextBlock = readAhead == null ? null :
+            readAhead.take(nextOffset);
+        if (nextBlock == null) {
+          // We are reading the next block without block type validation,
+          // because it might turn out to be a non-data block.
+          nextBlock = ((HFileReaderV2) reader).readBlock(nextOffset,
+              nextOnDiskSize, cacheBlocks, pread, isCompaction, null,
+              streamReader);
+        }
+        curBlock = nextBlock;
       } while (!(curBlock.getBlockType().equals(BlockType.DATA) ||
           curBlock.getBlockType().equals(BlockType.ENCODED_DATA)));
 
+      trackBlockMove(curBlock);
       return curBlock;
     }
     /**
@@ -752,8 +1249,10 @@ public class HFileReaderV2 extends AbstractHFileReader {
         return true;
       }
 
-      block = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
-          isCompaction, BlockType.DATA);
+      HFileBlock firstBlock = reader.readBlock(firstDataBlockOffset, -1,
+          cacheBlocks, pread, isCompaction, BlockType.DATA);
+      trackBlockMove(firstBlock);
+      block = firstBlock;
       if (block.getOffset() < 0) {
         throw new IOException("Invalid block offset: " + block.getOffset());
       }
@@ -763,7 +1262,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
     @Override
     protected int loadBlockAndSeekToKey(HFileBlock seekToBlock, byte[] nextIndexedKey,
-        boolean rewind, byte[] key, int offset, int length, boolean seekBefore)
+        int nextIndexedKeyOffset, int nextIndexedKeyLength, boolean rewind,
+        byte[] key, int offset, int length, boolean seekBefore)
         throws IOException {
       if (block == null || block.getOffset() != seekToBlock.getOffset()) {
         updateCurrBlock(seekToBlock);
@@ -773,6 +1273,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
       // Update the nextIndexedKey
       this.nextIndexedKey = nextIndexedKey;
+      this.nextIndexedKeyOffset = nextIndexedKeyOffset;
+      this.nextIndexedKeyLength = nextIndexedKeyLength;
       return blockSeek(key, offset, length, seekBefore);
     }
 
@@ -1035,8 +1537,10 @@ public class HFileReaderV2 extends AbstractHFileReader {
         return true;
       }
 
-      block = reader.readBlock(firstDataBlockOffset, -1, cacheBlocks, pread,
-          isCompaction, BlockType.DATA);
+      HFileBlock firstBlock = reader.readBlock(firstDataBlockOffset, -1,
+          cacheBlocks, pread, isCompaction, BlockType.DATA);
+      trackBlockMove(firstBlock);
+      block = firstBlock;
       if (block.getOffset() < 0) {
         throw new IOException("Invalid block offset: " + block.getOffset());
       }
@@ -1109,7 +1613,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
 
     @Override
     protected int loadBlockAndSeekToKey(HFileBlock seekToBlock, byte[] nextIndexedKey,
-        boolean rewind, byte[] key, int offset, int length, boolean seekBefore)
+        int nextIndexedKeyOffset, int nextIndexedKeyLength, boolean rewind,
+        byte[] key, int offset, int length, boolean seekBefore)
         throws IOException  {
       if (block == null || block.getOffset() != seekToBlock.getOffset()) {
         updateCurrentBlock(seekToBlock);
@@ -1117,6 +1622,8 @@ public class HFileReaderV2 extends AbstractHFileReader {
         seeker.rewind();
       }
       this.nextIndexedKey = nextIndexedKey;
+      this.nextIndexedKeyOffset = nextIndexedKeyOffset;
+      this.nextIndexedKeyLength = nextIndexedKeyLength;
       return seeker.seekToKeyInBlock(key, offset, length, seekBefore);
     }
   }
@@ -143,4 +143,25 @@ public interface HFileScanner {
    * Otherwise returns false.
    */
   public boolean isSeeked();
+  /**
+   * Tells the scanner it will not be read at or past the given key, so that
+   * it does not read blocks ahead beyond it.
+   * @param key the stop key
+   */
+  public void setStopKey(byte[] key);
+  /**
+   * Tells the scanner it only needs the KeyValues with timestamps in the
+   * given range, so that it may skip data blocks without any when moving to
+   * the next block. Blocks are still read whole, so the scanner may return
+   * KeyValues outside of the range.
+   * @param minStamp the minimum timestamp, inclusive
+   * @param maxStamp the maximum timestamp, exclusive
+   */
+  public void setTimeRange(long minStamp, long maxStamp);
+  /**
+   * Releases the resources held by the scanner, such as an input stream of
+   * its own. Callers must close every scanner they get from a reader. The
+   * scanner must not be used afterwards.
+   */
+  public void close();
 }
\ No newline at end of file
@@ -23,8 +23,16 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,6 +50,7 @@ import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
 import org.apache.hadoop.hbase.util.ChecksumType;
 import org.apache.hadoop.hbase.util.BloomFilterWriter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
 
@@ -62,6 +71,45 @@ public class HFileWriterV2 extends AbstractHFileWriter {
   /** Version for KeyValue which includes memstore timestamp */
   public static final int KEY_VALUE_VER_WITH_MEMSTORE = 1;
 
+  /**
+   * Configuration key for the number of threads a region server uses to
+   * compress and checksum the data blocks of the HFiles it writes, while the
+   * writers go on with their next blocks. Zero compresses data blocks on the
+   * thread writing the file.
+   */
+  public static final String COMPRESSION_THREADS_KEY =
+      "hbase.hfile.thread.compression";
+
+  public static final int DEFAULT_COMPRESSION_THREADS = 0;
+
+  /** The pool, created by the first writer compressing in parallel */
+  private static ThreadPoolExecutor compressionPool;
+
+  /** A data block being finished on the compression pool */
+  private static class PendingBlock {
+    /** The writer holding the block */
+    final HFileBlock.Writer blockWriter;
+
+    /** Done when the block is compressed and checksummed */
+    final Future<Void> finished;
+
+    /** The number of the block's entry in the data block index */
+    final long indexEntry;
+
+    /** The time range of the block, if tracked */
+    final long minStamp;
+    final long maxStamp;
+
+    PendingBlock(HFileBlock.Writer blockWriter, Future<Void> finished,
+        long indexEntry, long minStamp, long maxStamp) {
+      this.blockWriter = blockWriter;
+      this.finished = finished;
+      this.indexEntry = indexEntry;
+      this.minStamp = minStamp;
+      this.maxStamp = maxStamp;
+    }
+  }
+
   /** Inline block writers for multi-level block index and compound Blooms. */
   private List<InlineBlockWriter> inlineBlockWriters =
       new ArrayList<InlineBlockWriter>();
@@ -69,6 +117,31 @@ public class HFileWriterV2 extends AbstractHFileWriter {
   /** Unified version 2 block writer */
   private HFileBlock.Writer fsBlockWriter;
 
+  /**
+   * Writer of the current data block. This is {@link #fsBlockWriter}, unless
+   * data blocks are compressed in parallel, in which case every data block
+   * is written into one of {@link #dataBlockWriters}.
+   */
+  private HFileBlock.Writer dataBlockWriter;
+
+  /**
+   * The maximum number of data blocks being compressed in parallel, or zero
+   * if data blocks are compressed on the writing thread.
+   */
+  private int maxPendingBlocks;
+
+  /** Data blocks being compressed in parallel, in file order */
+  private final Deque<PendingBlock> pendingBlocks =
+      new ArrayDeque<PendingBlock>();
+
+  /** Writers of data blocks compressed in parallel */
+  private final List<HFileBlock.Writer> dataBlockWriters =
+      new ArrayList<HFileBlock.Writer>();
+
+  /** Writers of data blocks compressed in parallel that are not in use */
+  private final Deque<HFileBlock.Writer> idleDataBlockWriters =
+      new ArrayDeque<HFileBlock.Writer>();
+
   private HFileBlockIndex.BlockIndexWriter dataBlockIndexWriter;
   private HFileBlockIndex.BlockIndexWriter metaBlockIndexWriter;
 
@@ -78,6 +151,18 @@ public class HFileWriterV2 extends AbstractHFileWriter {
   /** The offset of the last data block or 0 if the file is empty. */
   private long lastDataBlockOffset;
 
+  /**
+   * Time ranges of the data blocks written, or null if they are not
+   * tracked.
+   */
+  private DataBlockTimeRanges blockTimeRanges;
+
+  /** The smallest timestamp of the current data block */
+  private long blockMinStamp = Long.MAX_VALUE;
+
+  /** The largest timestamp of the current data block */
+  private long blockMaxStamp = Long.MIN_VALUE;
+
   /** Additional data items to be written to the "load-on-open" section. */
   private List<BlockWritable> additionalLoadOnOpenData =
     new ArrayList<BlockWritable>();
@@ -134,6 +219,19 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     // HFile filesystem-level (non-caching) block writer
     fsBlockWriter = new HFileBlock.Writer(compressAlgo, blockEncoder,
         includeMemstoreTS, minorVersion, checksumType, bytesPerChecksum);
+    dataBlockWriter = fsBlockWriter;
+
+    int compressionThreads = conf.getInt(COMPRESSION_THREADS_KEY,
+        DEFAULT_COMPRESSION_THREADS);
+    if (compressionThreads > 0) {
+      instantiateCompressionPool(compressionThreads);
+      // Enough blocks to keep the threads busy while the oldest is written.
+      maxPendingBlocks = 2 * compressionThreads;
+    }
+
+    if (conf.getBoolean(DataBlockTimeRanges.ENABLED_KEY, false)) {
+      blockTimeRanges = new DataBlockTimeRanges();
+    }
 
     // Data block index writer
     boolean cacheIndexesOnWrite = cacheConf.shouldCacheIndexesOnWrite();
@@ -153,6 +251,18 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     }
   }
 
+  /**
+   * Creates the compression pool, if it does not exist yet.
+   * @param threads the number of threads of the pool
+   */
+  private static synchronized void instantiateCompressionPool(int threads) {
+    if (compressionPool != null) return;
+    compressionPool = Threads.getBoundedCachedThreadPool(threads, 60,
+        TimeUnit.SECONDS, Threads.newDaemonThreadFactory("hfile-compression-"));
+    LOG.info("Compressing HFile data blocks with up to " + threads +
+        " threads");
+  }
+
   @Override
   protected void schemaConfigurationChanged() {
     passSchemaMetricsTo(dataBlockIndexWriter);
@@ -165,7 +275,7 @@ public class HFileWriterV2 extends AbstractHFileWriter {
    * @throws IOException
    */
   private void checkBlockBoundary() throws IOException {
-    if (fsBlockWriter.blockSizeWritten() < blockSize)
+    if (dataBlockWriter.blockSizeWritten() < blockSize)
       return;
 
     finishBlock();
@@ -175,9 +285,14 @@ public class HFileWriterV2 extends AbstractHFileWriter {
 
   /** Clean up the current block */
   private void finishBlock() throws IOException {
-    if (!fsBlockWriter.isWriting() || fsBlockWriter.blockSizeWritten() == 0)
+    if (!dataBlockWriter.isWriting() || dataBlockWriter.blockSizeWritten() == 0)
       return;
 
+    if (maxPendingBlocks > 0) {
+      finishBlockInParallel();
+      return;
+    }
+
     long startTimeNs = System.nanoTime();
 
     // Update the first data block offset for scanning.
@@ -193,12 +308,98 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     int onDiskSize = fsBlockWriter.getOnDiskSizeWithHeader();
     dataBlockIndexWriter.addEntry(firstKeyInBlock, lastDataBlockOffset,
         onDiskSize);
+    if (blockTimeRanges != null) {
+      blockTimeRanges.add(lastDataBlockOffset, onDiskSize, blockMinStamp,
+          blockMaxStamp);
+    }
     totalUncompressedBytes += fsBlockWriter.getUncompressedSizeWithHeader();
 
     HFile.offerWriteLatency(System.nanoTime() - startTimeNs);
     
     if (cacheConf.shouldCacheDataOnWrite()) {
-      doCacheOnWrite(lastDataBlockOffset);
+      doCacheOnWrite(fsBlockWriter, lastDataBlockOffset);
+    }
+  }
+
+  /**
+   * Hands the current data block to the compression pool, and writes the
+   * blocks already compressed.
+   */
+  private void finishBlockInParallel() throws IOException {
+    final HFileBlock.Writer blockWriter = dataBlockWriter;
+    dataBlockWriter = fsBlockWriter;
+
+    // The block's index entry gets its location once the block is written.
+    // Adding it now keeps the leaf-level index chunk as large as it would be
+    // if the block had been written, so that inline index blocks are written
+    // after the same data blocks.
+    dataBlockIndexWriter.addEntry(firstKeyInBlock, -1, -1);
+    long indexEntry = dataBlockIndexWriter.getNumEntries() - 1;
+
+    Future<Void> finished = compressionPool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        blockWriter.ensureBlockReady();
+        return null;
+      }
+    });
+    pendingBlocks.add(new PendingBlock(blockWriter, finished, indexEntry,
+        blockMinStamp, blockMaxStamp));
+
+    while (!pendingBlocks.isEmpty() && pendingBlocks.peek().finished.isDone()) {
+      writePendingBlock();
+    }
+  }
+
+  /**
+   * Writes the oldest data block being compressed in parallel, waiting for
+   * it if needed. The block ends up at the offset and with the header it
+   * would have had if it had been compressed on the writing thread.
+   */
+  private void writePendingBlock() throws IOException {
+    PendingBlock block = pendingBlocks.remove();
+    try {
+      block.finished.get();
+    } catch (InterruptedException e) {
+      throw (IOException) new InterruptedIOException().initCause(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not compress a data block of " + path,
+          e.getCause());
+    }
+
+    long startTimeNs = System.nanoTime();
+    HFileBlock.Writer blockWriter = block.blockWriter;
+    if (firstDataBlockOffset == -1) {
+      firstDataBlockOffset = outputStream.getPos();
+    }
+    lastDataBlockOffset = outputStream.getPos();
+
+    fsBlockWriter.writeFinishedBlock(blockWriter, outputStream);
+
+    dataBlockIndexWriter.setEntryLocation(block.indexEntry,
+        lastDataBlockOffset, blockWriter.getOnDiskSizeWithHeader());
+    if (blockTimeRanges != null) {
+      blockTimeRanges.add(lastDataBlockOffset,
+          blockWriter.getOnDiskSizeWithHeader(), block.minStamp,
+          block.maxStamp);
+    }
+    totalUncompressedBytes += blockWriter.getUncompressedSizeWithHeader();
+
+    HFile.offerWriteLatency(System.nanoTime() - startTimeNs);
+
+    if (cacheConf.shouldCacheDataOnWrite()) {
+      doCacheOnWrite(blockWriter, lastDataBlockOffset);
+    }
+    idleDataBlockWriters.add(blockWriter);
+  }
+
+  /** Writes all the data blocks being compressed in parallel */
+  private void writePendingBlocks() throws IOException {
+    while (!pendingBlocks.isEmpty()) {
+      writePendingBlock();
     }
   }
 
@@ -206,6 +407,8 @@ public class HFileWriterV2 extends AbstractHFileWriter {
   private void writeInlineBlocks(boolean closing) throws IOException {
     for (InlineBlockWriter ibw : inlineBlockWriters) {
       while (ibw.shouldWriteBlock(closing)) {
+        // An inline block follows the data blocks before it in the file.
+        writePendingBlocks();
         long offset = outputStream.getPos();
         boolean cacheThisBlock = ibw.cacheOnWrite();
         ibw.writeInlineBlock(fsBlockWriter.startWriting(
@@ -216,7 +419,7 @@ public class HFileWriterV2 extends AbstractHFileWriter {
         totalUncompressedBytes += fsBlockWriter.getUncompressedSizeWithHeader();
 
         if (cacheThisBlock) {
-          doCacheOnWrite(offset);
+          doCacheOnWrite(fsBlockWriter, offset);
         }
       }
     }
@@ -224,15 +427,16 @@ public class HFileWriterV2 extends AbstractHFileWriter {
 
   /**
    * Caches the last written HFile block.
+   * @param blockWriter the writer of the block
    * @param offset the offset of the block we want to cache. Used to determine
    *          the cache key.
    */
-  private void doCacheOnWrite(long offset) {
+  private void doCacheOnWrite(HFileBlock.Writer blockWriter, long offset) {
     // We don't cache-on-write data blocks on compaction, so assume this is not
     // a compaction.
     final boolean isCompaction = false;
     HFileBlock cacheFormatBlock = blockEncoder.diskToCacheFormat(
-        fsBlockWriter.getBlockForCaching(), isCompaction);
+        blockWriter.getBlockForCaching(), isCompaction);
     passSchemaMetricsTo(cacheFormatBlock);
     cacheConf.getBlockCache().cacheBlock(
         new BlockCacheKey(name, offset, blockEncoder.getEncodingInCache(),
@@ -245,9 +449,25 @@ public class HFileWriterV2 extends AbstractHFileWriter {
    * @throws IOException
    */
   private void newBlock() throws IOException {
+    if (maxPendingBlocks > 0) {
+      if (idleDataBlockWriters.isEmpty()) {
+        if (dataBlockWriters.size() < maxPendingBlocks) {
+          idleDataBlockWriters.add(new HFileBlock.Writer(compressAlgo,
+              blockEncoder, includeMemstoreTS, minorVersion, checksumType,
+              bytesPerChecksum));
+          dataBlockWriters.add(idleDataBlockWriters.peek());
+        } else {
+          writePendingBlock();
+        }
+      }
+      dataBlockWriter = idleDataBlockWriters.remove();
+    }
+
     // This is where the next block begins.
-    fsBlockWriter.startWriting(BlockType.DATA);
+    dataBlockWriter.startWriting(BlockType.DATA);
     firstKeyInBlock = null;
+    blockMinStamp = Long.MAX_VALUE;
+    blockMaxStamp = Long.MIN_VALUE;
   }
 
   /**
@@ -328,13 +548,13 @@ public class HFileWriterV2 extends AbstractHFileWriter {
       checkBlockBoundary();
     }
 
-    if (!fsBlockWriter.isWriting())
+    if (!dataBlockWriter.isWriting())
       newBlock();
 
     // Write length of key and value and then actual key and value bytes.
     // Additionally, we may also write down the memstoreTS.
     {
-      DataOutputStream out = fsBlockWriter.getUserDataStream();
+      DataOutputStream out = dataBlockWriter.getUserDataStream();
       out.writeInt(klength);
       totalKeyLength += klength;
       out.writeInt(vlength);
@@ -353,12 +573,34 @@ public class HFileWriterV2 extends AbstractHFileWriter {
       System.arraycopy(key, koffset, firstKeyInBlock, 0, klength);
     }
 
+    if (blockTimeRanges != null) {
+      includeTimestamp(key, koffset, klength);
+    }
+
     lastKeyBuffer = key;
     lastKeyOffset = koffset;
     lastKeyLength = klength;
     entryCount++;
   }
 
+  /**
+   * Includes the timestamp of the given KeyValue key in the time range of
+   * the current data block. A column or family delete marker also includes
+   * all the older timestamps.
+   */
+  private void includeTimestamp(final byte[] key, final int koffset,
+      final int klength) {
+    long timestamp = Bytes.toLong(key,
+        koffset + klength - KeyValue.TIMESTAMP_TYPE_SIZE);
+    byte type = key[koffset + klength - 1];
+    if (type == KeyValue.Type.DeleteColumn.getCode() ||
+        type == KeyValue.Type.DeleteFamily.getCode()) {
+      blockMinStamp = Math.min(blockMinStamp, 0);
+    }
+    blockMinStamp = Math.min(blockMinStamp, timestamp);
+    blockMaxStamp = Math.max(blockMaxStamp, timestamp);
+  }
+
   @Override
   public void close() throws IOException {
     if (outputStream == null) {
@@ -370,8 +612,13 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     // followed by fileinfo, data block index and meta block index.
 
     finishBlock();
+    writePendingBlocks();
     writeInlineBlocks(true);
 
+    if (blockTimeRanges != null && blockTimeRanges.size() > 0) {
+      appendMetaBlock(DataBlockTimeRanges.META_BLOCK_NAME, blockTimeRanges);
+    }
+
     FixedFileTrailer trailer = new FixedFileTrailer(2, minorVersion);
 
     // Write out the metadata blocks if any.
@@ -439,6 +686,9 @@ public class HFileWriterV2 extends AbstractHFileWriter {
     finishClose(trailer);
 
     fsBlockWriter.releaseCompressor();
+    for (HFileBlock.Writer blockWriter : dataBlockWriters) {
+      blockWriter.releaseCompressor();
+    }
   }
 
   @Override
@@ -0,0 +1,414 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.compress.BlockCompressorStream;
+import org.apache.hadoop.io.compress.BlockDecompressorStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * A codec compressing with a pure Java block compression algorithm, so that
+ * it needs no native library. Streams use the framing of Hadoop's block
+ * compressor streams: the length of every chunk of raw data, followed by the
+ * length and the bytes of its compressed form.
+ * <p>
+ * Besides streams, a compressed HFile block can be decompressed straight
+ * from the array it was read into to the array of the block, see
+ * {@link #decompressBlock(byte[], int, int, byte[], int, int)}.
+ */
+public abstract class JavaBlockCodec implements CompressionCodec, Configurable {
+
+  /** Size of the chunks of raw data compressed at once */
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  private Configuration conf;
+
+  /**
+   * @param srcLength length of raw data
+   * @return the maximum length of the compressed data
+   */
+  abstract int maxCompressedLength(int srcLength);
+
+  /**
+   * Compresses raw data.
+   * @return the length of the compressed data, at most
+   *         {@link #maxCompressedLength(int)} of the raw data length
+   */
+  abstract int compress(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset);
+
+  /**
+   * Decompresses data.
+   * @param destLength the room in the destination array
+   * @return the length of the raw data
+   * @throws IOException if the data is corrupt or does not fit
+   */
+  abstract int decompress(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset, int destLength) throws IOException;
+
+  /**
+   * Decompresses data compressed by a stream of this codec.
+   * @param src the compressed data, which may be followed by other data
+   * @param uncompressedSize the length of the raw data
+   * @throws IOException if the data is corrupt
+   */
+  public void decompressBlock(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset, int uncompressedSize) throws IOException {
+    int srcEnd = srcOffset + srcLength;
+    int pos = srcOffset;
+    int done = 0;
+    while (done < uncompressedSize) {
+      if (pos + Bytes.SIZEOF_INT > srcEnd) {
+        throw new IOException("Compressed block ends after " + done +
+            " of " + uncompressedSize + " bytes");
+      }
+      int chunkEnd = done + Bytes.toInt(src, pos);
+      pos += Bytes.SIZEOF_INT;
+      if (chunkEnd > uncompressedSize || chunkEnd < done) {
+        throw new IOException("Bad raw chunk length " + (chunkEnd - done));
+      }
+      while (done < chunkEnd) {
+        int compressedLength = pos + Bytes.SIZEOF_INT > srcEnd ? -1 :
+          Bytes.toInt(src, pos);
+        pos += Bytes.SIZEOF_INT;
+        if (compressedLength < 0 || pos + compressedLength > srcEnd) {
+          throw new IOException("Bad compressed chunk length " +
+              compressedLength);
+        }
+        done += decompress(src, pos, compressedLength, dest,
+            destOffset + done, chunkEnd - done);
+        pos += compressedLength;
+      }
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public CompressionOutputStream createOutputStream(OutputStream out)
+      throws IOException {
+    return createOutputStream(out, createCompressor());
+  }
+
+  @Override
+  public CompressionOutputStream createOutputStream(OutputStream out,
+      Compressor compressor) throws IOException {
+    // Keeps the compressed form of a full chunk within the buffer
+    return new BlockCompressorStream(out, compressor, BUFFER_SIZE,
+        maxCompressedLength(BUFFER_SIZE) - BUFFER_SIZE);
+  }
+
+  @Override
+  public Class<? extends Compressor> getCompressorType() {
+    return BlockCompressor.class;
+  }
+
+  @Override
+  public Compressor createCompressor() {
+    return new BlockCompressor(this);
+  }
+
+  @Override
+  public CompressionInputStream createInputStream(InputStream in)
+      throws IOException {
+    return createInputStream(in, createDecompressor());
+  }
+
+  @Override
+  public CompressionInputStream createInputStream(InputStream in,
+      Decompressor decompressor) throws IOException {
+    return new BlockDecompressorStream(in, decompressor,
+        maxCompressedLength(BUFFER_SIZE));
+  }
+
+  @Override
+  public Class<? extends Decompressor> getDecompressorType() {
+    return BlockDecompressor.class;
+  }
+
+  @Override
+  public Decompressor createDecompressor() {
+    return new BlockDecompressor(this);
+  }
+
+  /**
+   * Buffers raw data up to a chunk, and compresses it at once when the
+   * chunk is full or when finishing.
+   */
+  static class BlockCompressor implements Compressor {
+    private final JavaBlockCodec codec;
+    private final byte[] uncompressed = new byte[BUFFER_SIZE];
+    private int uncompressedLength;
+    private final byte[] compressed;
+    private int compressedOffset;
+    private int compressedLength;
+
+    /** Input that did not fit in the buffer, compressed later */
+    private byte[] userBuf;
+    private int userBufOff;
+    private int userBufLen;
+
+    private boolean finish;
+    private boolean finished;
+    private long bytesRead;
+    private long bytesWritten;
+
+    BlockCompressor(JavaBlockCodec codec) {
+      this.codec = codec;
+      this.compressed = new byte[codec.maxCompressedLength(BUFFER_SIZE)];
+    }
+
+    @Override
+    public synchronized void setInput(byte[] b, int off, int len) {
+      finished = false;
+      if (len > uncompressed.length - uncompressedLength) {
+        userBuf = b;
+        userBufOff = off;
+        userBufLen = len;
+      } else {
+        System.arraycopy(b, off, uncompressed, uncompressedLength, len);
+        uncompressedLength += len;
+      }
+      bytesRead += len;
+    }
+
+    private void setInputFromSavedData() {
+      int len = Math.min(userBufLen, uncompressed.length);
+      System.arraycopy(userBuf, userBufOff, uncompressed, 0, len);
+      uncompressedLength = len;
+      userBufOff += len;
+      userBufLen -= len;
+    }
+
+    @Override
+    public synchronized boolean needsInput() {
+      return compressedLength == compressedOffset &&
+        uncompressedLength < uncompressed.length && userBufLen <= 0;
+    }
+
+    @Override
+    public synchronized void setDictionary(byte[] b, int off, int len) {
+      // not supported
+    }
+
+    @Override
+    public synchronized long getBytesRead() {
+      return bytesRead;
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    @Override
+    public synchronized void finish() {
+      finish = true;
+    }
+
+    @Override
+    public synchronized boolean finished() {
+      return finish && finished && compressedLength == compressedOffset;
+    }
+
+    @Override
+    public synchronized int compress(byte[] b, int off, int len) {
+      int n = compressedLength - compressedOffset;
+      if (n == 0) {
+        compressedOffset = 0;
+        compressedLength = 0;
+        if (uncompressedLength == 0) {
+          if (userBufLen > 0) {
+            setInputFromSavedData();
+          }
+          if (uncompressedLength == 0) {
+            finished = true;
+            return 0;
+          }
+        }
+        compressedLength = codec.compress(uncompressed, 0,
+            uncompressedLength, compressed, 0);
+        uncompressedLength = 0;
+        if (userBufLen <= 0) {
+          finished = true;
+        }
+        n = compressedLength;
+      }
+      n = Math.min(n, len);
+      System.arraycopy(compressed, compressedOffset, b, off, n);
+      compressedOffset += n;
+      bytesWritten += n;
+      return n;
+    }
+
+    @Override
+    public synchronized void reset() {
+      finish = false;
+      finished = false;
+      uncompressedLength = 0;
+      compressedOffset = 0;
+      compressedLength = 0;
+      userBuf = null;
+      userBufOff = 0;
+      userBufLen = 0;
+      bytesRead = 0;
+      bytesWritten = 0;
+    }
+
+    @Override
+    public synchronized void end() {
+      // nothing to release
+    }
+
+    public synchronized void reinit(Configuration conf) {
+      reset();
+    }
+  }
+
+  /**
+   * Decompresses a whole compressed chunk at once, and hands out its raw
+   * data.
+   */
+  static class BlockDecompressor implements Decompressor {
+    private final JavaBlockCodec codec;
+    private final byte[] compressed;
+    private int compressedLength;
+    private final byte[] uncompressed = new byte[BUFFER_SIZE];
+    private int uncompressedOffset;
+    private int uncompressedLength;
+
+    private byte[] userBuf;
+    private int userBufOff;
+    private int userBufLen;
+
+    private boolean finished;
+
+    BlockDecompressor(JavaBlockCodec codec) {
+      this.codec = codec;
+      this.compressed = new byte[codec.maxCompressedLength(BUFFER_SIZE)];
+    }
+
+    @Override
+    public synchronized void setInput(byte[] b, int off, int len) {
+      userBuf = b;
+      userBufOff = off;
+      userBufLen = len;
+      setInputFromSavedData();
+      uncompressedOffset = 0;
+      uncompressedLength = 0;
+    }
+
+    private void setInputFromSavedData() {
+      compressedLength = Math.min(userBufLen, compressed.length);
+      System.arraycopy(userBuf, userBufOff, compressed, 0, compressedLength);
+      userBufOff += compressedLength;
+      userBufLen -= compressedLength;
+    }
+
+    @Override
+    public synchronized boolean needsInput() {
+      if (uncompressedLength > uncompressedOffset) {
+        return false;
+      }
+      if (compressedLength <= 0) {
+        if (userBufLen <= 0) {
+          return true;
+        }
+        setInputFromSavedData();
+      }
+      return false;
+    }
+
+    @Override
+    public synchronized void setDictionary(byte[] b, int off, int len) {
+      // not supported
+    }
+
+    @Override
+    public synchronized boolean needsDictionary() {
+      return false;
+    }
+
+    @Override
+    public synchronized boolean finished() {
+      return finished && uncompressedLength == uncompressedOffset;
+    }
+
+    @Override
+    public synchronized int decompress(byte[] b, int off, int len)
+        throws IOException {
+      int n = uncompressedLength - uncompressedOffset;
+      if (n == 0) {
+        if (compressedLength <= 0) {
+          return 0;
+        }
+        uncompressedOffset = 0;
+        uncompressedLength = codec.decompress(compressed, 0,
+            compressedLength, uncompressed, 0, uncompressed.length);
+        compressedLength = 0;
+        if (userBufLen <= 0) {
+          finished = true;
+        }
+        n = uncompressedLength;
+      }
+      n = Math.min(n, len);
+      System.arraycopy(uncompressed, uncompressedOffset, b, off, n);
+      uncompressedOffset += n;
+      return n;
+    }
+
+    public synchronized int getRemaining() {
+      return userBufLen;
+    }
+
+    @Override
+    public synchronized void reset() {
+      finished = false;
+      compressedLength = 0;
+      uncompressedOffset = 0;
+      uncompressedLength = 0;
+      userBuf = null;
+      userBufOff = 0;
+      userBufLen = 0;
+    }
+
+    @Override
+    public synchronized void end() {
+      // nothing to release
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java codec writing the LZ4 block format. A block is a sequence of
+ * literal runs, each followed by a match: a token holding the literal and
+ * match lengths, the extra bytes of a literal length over 14, the literals,
+ * the 2-byte little endian offset of the match, and the extra bytes of a
+ * match length over 18. The last run has no match.
+ */
+public class JavaLz4Codec extends JavaBlockCodec {
+
+  private static final int MIN_MATCH = 4;
+
+  /** The last bytes of a block are always literals */
+  private static final int LAST_LITERALS = 5;
+
+  /** Matches start at least this many bytes before the end of a block */
+  private static final int MF_LIMIT = 12;
+
+  private static final int MAX_OFFSET = 65535;
+
+  private static final int HASH_LOG = 12;
+
+  /** Misses after which the match search skips ahead faster */
+  private static final int SKIP_TRIGGER = 6;
+
+  private static final int RUN_MASK = 15;
+
+  @Override
+  int maxCompressedLength(int srcLength) {
+    return srcLength + srcLength / 255 + 16;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 |
+      (b[i + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLength(int length, byte[] dest, int dp) {
+    while (length >= 255) {
+      dest[dp++] = (byte) 255;
+      length -= 255;
+    }
+    dest[dp++] = (byte) length;
+    return dp;
+  }
+
+  /** Writes a literal run, and returns the position of its token */
+  private static int writeLiterals(byte[] src, int sp, int length,
+      byte[] dest, int dp, int[] tokenPos) {
+    int token = dp++;
+    if (length >= RUN_MASK) {
+      dest[token] = (byte) (RUN_MASK << 4);
+      dp = writeLength(length - RUN_MASK, dest, dp);
+    } else {
+      dest[token] = (byte) (length << 4);
+    }
+    System.arraycopy(src, sp, dest, dp, length);
+    tokenPos[0] = token;
+    return dp + length;
+  }
+
+  @Override
+  int compress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+      int destOffset) {
+    int srcEnd = srcOffset + srcLength;
+    int dp = destOffset;
+    int anchor = srcOffset;
+    int[] tokenPos = new int[1];
+    if (srcLength > MF_LIMIT) {
+      int[] table = new int[1 << HASH_LOG];
+      Arrays.fill(table, -1);
+      int matchLimit = srcEnd - LAST_LITERALS;
+      int mfLimit = srcEnd - MF_LIMIT;
+      int sp = srcOffset;
+      int misses = 0;
+      while (sp < mfLimit) {
+        int sequence = readInt(src, sp);
+        int h = hash(sequence);
+        int ref = table[h];
+        table[h] = sp;
+        if (ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+          sp += 1 + (misses++ >>> SKIP_TRIGGER);
+          continue;
+        }
+        misses = 0;
+        while (sp > anchor && ref > srcOffset && src[sp - 1] == src[ref - 1]) {
+          sp--;
+          ref--;
+        }
+        int matchLength = MIN_MATCH;
+        while (sp + matchLength < matchLimit &&
+            src[sp + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+
+        dp = writeLiterals(src, anchor, sp - anchor, dest, dp, tokenPos);
+        int offset = sp - ref;
+        dest[dp++] = (byte) offset;
+        dest[dp++] = (byte) (offset >>> 8);
+        int extra = matchLength - MIN_MATCH;
+        if (extra >= RUN_MASK) {
+          dest[tokenPos[0]] |= RUN_MASK;
+          dp = writeLength(extra - RUN_MASK, dest, dp);
+        } else {
+          dest[tokenPos[0]] |= extra;
+        }
+        sp += matchLength;
+        anchor = sp;
+      }
+    }
+    dp = writeLiterals(src, anchor, srcEnd - anchor, dest, dp, tokenPos);
+    return dp - destOffset;
+  }
+
+  @Override
+  int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+      int destOffset, int destLength) throws IOException {
+    int srcEnd = srcOffset + srcLength;
+    int destEnd = destOffset + destLength;
+    int sp = srcOffset;
+    int dp = destOffset;
+    try {
+      while (sp < srcEnd) {
+        int token = src[sp++] & 0xff;
+        int literals = token >>> 4;
+        if (literals == RUN_MASK) {
+          int b;
+          do {
+            b = src[sp++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+        if (sp + literals > srcEnd || dp + literals > destEnd) {
+          throw new IOException("Corrupt LZ4 block: literals past the end");
+        }
+        System.arraycopy(src, sp, dest, dp, literals);
+        sp += literals;
+        dp += literals;
+        if (sp == srcEnd) {
+          break;
+        }
+
+        int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+        sp += 2;
+        int matchLength = token & RUN_MASK;
+        if (matchLength == RUN_MASK) {
+          int b;
+          do {
+            b = src[sp++] & 0xff;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        int ref = dp - offset;
+        if (offset == 0 || ref < destOffset || dp + matchLength > destEnd) {
+          throw new IOException("Corrupt LZ4 block: bad match at " + dp);
+        }
+        if (offset >= matchLength) {
+          System.arraycopy(dest, ref, dest, dp, matchLength);
+          dp += matchLength;
+        } else {
+          // Overlapping match, repeating the last offset bytes
+          for (int end = dp + matchLength; dp < end;) {
+            dest[dp++] = dest[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZ4 block: truncated", e);
+    }
+    return dp - destOffset;
+  }
+
+  @Override
+  public String getDefaultExtension() {
+    return ".lz4";
+  }
+}
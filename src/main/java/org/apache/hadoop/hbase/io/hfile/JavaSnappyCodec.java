@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java codec writing the Snappy raw format: the varint length of the
+ * raw data, followed by elements tagged by their two low bits, literals (0),
+ * copies with a 1-byte offset (1), and copies with a 2-byte (2) or 4-byte
+ * (3) little endian offset. Data is compressed in fragments of 64 KB, so
+ * that copies need at most 2-byte offsets.
+ */
+public class JavaSnappyCodec extends JavaBlockCodec {
+
+  private static final int FRAGMENT_SIZE = 1 << 16;
+
+  private static final int MIN_MATCH = 4;
+
+  private static final int HASH_LOG = 14;
+
+  /** Misses after which the match search skips ahead faster */
+  private static final int SKIP_TRIGGER = 5;
+
+  private static final int LITERAL = 0;
+  private static final int COPY_1_BYTE_OFFSET = 1;
+  private static final int COPY_2_BYTE_OFFSET = 2;
+
+  @Override
+  int maxCompressedLength(int srcLength) {
+    return 32 + srcLength + srcLength / 6;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 |
+      (b[i + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * 0x1e35a7bd) >>> (32 - HASH_LOG);
+  }
+
+  private static int writeLiteral(byte[] src, int sp, int length,
+      byte[] dest, int dp) {
+    int n = length - 1;
+    if (n < 60) {
+      dest[dp++] = (byte) (LITERAL | n << 2);
+    } else {
+      int bytes = n < (1 << 8) ? 1 : n < (1 << 16) ? 2 : n < (1 << 24) ? 3 : 4;
+      dest[dp++] = (byte) (LITERAL | (59 + bytes) << 2);
+      for (int i = 0; i < bytes; i++) {
+        dest[dp++] = (byte) (n >>> (8 * i));
+      }
+    }
+    System.arraycopy(src, sp, dest, dp, length);
+    return dp + length;
+  }
+
+  /** Writes a copy of 4 to 64 bytes */
+  private static int writeCopyUpTo64(int offset, int length, byte[] dest,
+      int dp) {
+    if (length < 12 && offset < 2048) {
+      dest[dp++] = (byte) (COPY_1_BYTE_OFFSET | (length - 4) << 2 |
+          (offset >>> 8) << 5);
+      dest[dp++] = (byte) offset;
+    } else {
+      dest[dp++] = (byte) (COPY_2_BYTE_OFFSET | (length - 1) << 2);
+      dest[dp++] = (byte) offset;
+      dest[dp++] = (byte) (offset >>> 8);
+    }
+    return dp;
+  }
+
+  private static int writeCopy(int offset, int length, byte[] dest, int dp) {
+    while (length >= 68) {
+      dp = writeCopyUpTo64(offset, 64, dest, dp);
+      length -= 64;
+    }
+    if (length > 64) {
+      dp = writeCopyUpTo64(offset, 60, dest, dp);
+      length -= 60;
+    }
+    return writeCopyUpTo64(offset, length, dest, dp);
+  }
+
+  @Override
+  int compress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+      int destOffset) {
+    int dp = destOffset;
+    int n = srcLength;
+    while (n >= 0x80) {
+      dest[dp++] = (byte) (n | 0x80);
+      n >>>= 7;
+    }
+    dest[dp++] = (byte) n;
+
+    int[] table = new int[1 << HASH_LOG];
+    int srcEnd = srcOffset + srcLength;
+    for (int fragment = srcOffset; fragment < srcEnd;
+        fragment += FRAGMENT_SIZE) {
+      int fragmentEnd = Math.min(fragment + FRAGMENT_SIZE, srcEnd);
+      Arrays.fill(table, -1);
+      int anchor = fragment;
+      int sp = fragment;
+      int misses = 0;
+      while (sp + MIN_MATCH <= fragmentEnd) {
+        int sequence = readInt(src, sp);
+        int h = hash(sequence);
+        int ref = table[h];
+        table[h] = sp;
+        if (ref < 0 || readInt(src, ref) != sequence) {
+          sp += 1 + (misses++ >>> SKIP_TRIGGER);
+          continue;
+        }
+        misses = 0;
+        int matchLength = MIN_MATCH;
+        while (sp + matchLength < fragmentEnd &&
+            src[sp + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+        if (sp > anchor) {
+          dp = writeLiteral(src, anchor, sp - anchor, dest, dp);
+        }
+        dp = writeCopy(sp - ref, matchLength, dest, dp);
+        sp += matchLength;
+        anchor = sp;
+      }
+      if (anchor < fragmentEnd) {
+        dp = writeLiteral(src, anchor, fragmentEnd - anchor, dest, dp);
+      }
+    }
+    return dp - destOffset;
+  }
+
+  @Override
+  int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest,
+      int destOffset, int destLength) throws IOException {
+    int srcEnd = srcOffset + srcLength;
+    int sp = srcOffset;
+    try {
+      int rawLength = 0;
+      for (int shift = 0;; shift += 7) {
+        int b = src[sp++] & 0xff;
+        rawLength |= (b & 0x7f) << shift;
+        if (b < 0x80) {
+          break;
+        }
+        if (shift == 28) {
+          throw new IOException("Corrupt Snappy block: bad length");
+        }
+      }
+      if (rawLength < 0 || rawLength > destLength) {
+        throw new IOException("Snappy block of " + rawLength +
+            " bytes does not fit in " + destLength);
+      }
+
+      int destEnd = destOffset + rawLength;
+      int dp = destOffset;
+      while (sp < srcEnd) {
+        int tag = src[sp++] & 0xff;
+        int length;
+        int offset;
+        switch (tag & 3) {
+        case LITERAL:
+          length = tag >>> 2;
+          if (length >= 60) {
+            int bytes = length - 59;
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+              length |= (src[sp++] & 0xff) << (8 * i);
+            }
+          }
+          length++;
+          if (length <= 0 || sp + length > srcEnd || dp + length > destEnd) {
+            throw new IOException("Corrupt Snappy block: literal past the " +
+                "end");
+          }
+          System.arraycopy(src, sp, dest, dp, length);
+          sp += length;
+          dp += length;
+          continue;
+        case COPY_1_BYTE_OFFSET:
+          length = ((tag >>> 2) & 7) + 4;
+          offset = (tag >>> 5) << 8 | (src[sp++] & 0xff);
+          break;
+        case COPY_2_BYTE_OFFSET:
+          length = (tag >>> 2) + 1;
+          offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+          sp += 2;
+          break;
+        default: // a copy with a 4-byte offset
+          length = (tag >>> 2) + 1;
+          offset = readInt(src, sp);
+          sp += 4;
+          break;
+        }
+        int ref = dp - offset;
+        if (offset <= 0 || ref < destOffset || dp + length > destEnd) {
+          throw new IOException("Corrupt Snappy block: bad copy at " + dp);
+        }
+        if (offset >= length) {
+          System.arraycopy(dest, ref, dest, dp, length);
+          dp += length;
+        } else {
+          // Overlapping copy, repeating the last offset bytes
+          for (int end = dp + length; dp < end;) {
+            dest[dp++] = dest[ref++];
+          }
+        }
+      }
+      if (dp != destEnd) {
+        throw new IOException("Corrupt Snappy block: " + (dp - destOffset) +
+            " bytes instead of " + rawLength);
+      }
+      return rawLength;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt Snappy block: truncated", e);
+    }
+  }
+
+  @Override
+  public String getDefaultExtension() {
+    return ".snappy";
+  }
+}
@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -91,7 +92,21 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * size, and then while scanning determines the fewest least-recently-used
  * blocks necessary from each of the three priorities (would be 3 times bytes
  * to free).  It then uses the priority chunk sizes to evict fairly according
- * to the relative sizes and usage.
+ * to the relative sizes and usage.<p>
+ *
+ * A second level cache can be set with {@link #setVictimCache(BlockCache)}.
+ * Blocks pushed out by the eviction process are handed to it, and blocks not
+ * found here are looked up in it.<p>
+ *
+ * With an admission filter, see {@link TinyLfuAdmissionFilter}, a data block
+ * that would make a full cache evict is only cached if it has been read more
+ * often than the blocks last evicted.  Blocks turned away this way are
+ * counted as rejected in the {@link CacheStats}.<p>
+ *
+ * With {@link BlockCacheQuotas}, a block that would take its table or column
+ * family over a hard quota is rejected the same way, and each eviction run
+ * first evicts the least recently used blocks of the tables and families over
+ * their soft quota.
  */
 public class LruBlockCache implements BlockCache, HeapSize {
 
@@ -99,6 +114,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
   static final String LRU_MIN_FACTOR_CONFIG_NAME = "hbase.lru.blockcache.min.factor";
   static final String LRU_ACCEPTABLE_FACTOR_CONFIG_NAME = "hbase.lru.blockcache.acceptable.factor";
+  static final String LRU_ADMISSION_FILTER_CONFIG_NAME = "hbase.lru.blockcache.admission.filter";
 
   /** Default Configuration Parameters*/
 
@@ -174,6 +190,15 @@ public class LruBlockCache implements BlockCache, HeapSize {
   /** Overhead of the structure itself */
   private long overhead;
 
+  /** Where blocks evicted to make room go, if anywhere */
+  private BlockCache victimHandler = null;
+
+  /** Decides which data blocks are cached once the cache is full, if set */
+  private TinyLfuAdmissionFilter admissionFilter = null;
+
+  /** Per table and column family quotas, if any are configured */
+  private BlockCacheQuotas quotas = null;
+
   /**
    * Default constructor.  Specify maximum size and expected average block
    * size (approximation is fine).
@@ -201,6 +226,10 @@ public class LruBlockCache implements BlockCache, HeapSize {
         DEFAULT_SINGLE_FACTOR,
         DEFAULT_MULTI_FACTOR,
         DEFAULT_MEMORY_FACTOR);
+    if (conf.getBoolean(LRU_ADMISSION_FILTER_CONFIG_NAME, false)) {
+      this.admissionFilter = new TinyLfuAdmissionFilter(maxSize / blockSize);
+    }
+    this.quotas = BlockCacheQuotas.create(conf, minFactor / acceptableFactor);
   }
 
 
@@ -288,7 +317,19 @@ public class LruBlockCache implements BlockCache, HeapSize {
       LOG.warn(msg);
       return;
     }
+    if (admissionFilter != null && !inMemory &&
+        buf.getBlockType().getCategory() == BlockType.BlockCategory.DATA &&
+        size.get() >= minSize() && !admissionFilter.admit(cacheKey)) {
+      stats.reject();
+      return;
+    }
     cb = new CachedBlock(cacheKey, buf, count.incrementAndGet(), inMemory);
+    if (quotas != null && quotas.exceedsHardQuota(buf, cb.heapSize(), maxSize)) {
+      // Not an eviction trigger: the owner is trimmed to its soft quota by
+      // the next eviction, once the cache is over its acceptable size
+      stats.reject();
+      return;
+    }
     long newSize = updateSizeMetrics(cb, false);
     map.put(cacheKey, cb);
     elements.incrementAndGet();
@@ -339,6 +380,9 @@ public class LruBlockCache implements BlockCache, HeapSize {
       schemaMetrics.updateOnCachePutOrEvict(
           cachedBlock.getBlockType().getCategory(), heapsize, evict);
     }
+    if (quotas != null) {
+      quotas.update(cachedBlock, heapsize);
+    }
     return size.addAndGet(heapsize);
   }
 
@@ -353,9 +397,13 @@ public class LruBlockCache implements BlockCache, HeapSize {
    */
   @Override
   public Cacheable getBlock(BlockCacheKey cacheKey, boolean caching, boolean repeat) {
+    if (admissionFilter != null && !repeat) admissionFilter.record(cacheKey);
     CachedBlock cb = map.get(cacheKey);
     if(cb == null) {
       if (!repeat) stats.miss(caching);
+      if (victimHandler != null) {
+        return victimHandler.getBlock(cacheKey, caching, repeat);
+      }
       return null;
     }
     stats.hit(caching);
@@ -366,9 +414,11 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
   @Override
   public boolean evictBlock(BlockCacheKey cacheKey) {
+    boolean evictedVictim = victimHandler != null &&
+      victimHandler.evictBlock(cacheKey);
     CachedBlock cb = map.get(cacheKey);
-    if (cb == null) return false;
-    evictBlock(cb);
+    if (cb == null) return evictedVictim;
+    evictBlock(cb, false);
     return true;
   }
 
@@ -391,14 +441,33 @@ public class LruBlockCache implements BlockCache, HeapSize {
           ++numEvicted;
       }
     }
+    if (victimHandler != null) {
+      numEvicted += victimHandler.evictBlocksByHfileName(hfileName);
+    }
     return numEvicted;
   }
 
-  protected long evictBlock(CachedBlock block) {
+  /**
+   * Evicts the block and updates the size metrics.
+   * @param block the block to evict
+   * @param evictedByEvictionProcess true if the block is evicted to make
+   * room, in which case it is handed to the victim cache; false if it is
+   * explicitly removed, for example because its file is gone
+   * @return heap size of the evicted block
+   */
+  protected long evictBlock(CachedBlock block,
+      boolean evictedByEvictionProcess) {
     map.remove(block.getCacheKey());
     updateSizeMetrics(block, true);
     elements.decrementAndGet();
     stats.evicted();
+    if (evictedByEvictionProcess && admissionFilter != null) {
+      admissionFilter.recordEviction(block.getCacheKey());
+    }
+    if (evictedByEvictionProcess && victimHandler != null) {
+      victimHandler.cacheBlock(block.getCacheKey(), block.getBuffer(),
+        block.getPriority() == CachedBlock.BlockPriority.MEMORY);
+    }
     return block.heapSize();
   }
 
@@ -434,6 +503,11 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
       if(bytesToFree <= 0) return;
 
+      if (quotas != null) {
+        bytesToFree -= evictOverQuota();
+        if (bytesToFree <= 0) return;
+      }
+
       // Instantiate priority buckets
       BlockBucket bucketSingle = new BlockBucket(bytesToFree, blockSize,
           singleSize());
@@ -493,12 +567,55 @@ public class LruBlockCache implements BlockCache, HeapSize {
           "memory=" + StringUtils.byteDesc(memory));
       }
     } finally {
+      if (admissionFilter != null) {
+        admissionFilter.evictionCompleted();
+      }
       stats.evict();
       evictionInProgress = false;
       evictionLock.unlock();
     }
   }
 
+  /**
+   * Evicts the least recently used blocks of the tables and column families
+   * over their soft quota, down to the soft quota.
+   * @return bytes freed
+   */
+  private long evictOverQuota() {
+    Map<BlockCacheQuotas.Usage, Long> over = quotas.getOverSoftQuota(maxSize);
+    if (over.isEmpty()) return 0;
+    Map<BlockCacheQuotas.Usage, CachedBlockQueue> queues =
+      new HashMap<BlockCacheQuotas.Usage, CachedBlockQueue>();
+    for (Map.Entry<BlockCacheQuotas.Usage, Long> e : over.entrySet()) {
+      queues.put(e.getKey(), new CachedBlockQueue(e.getValue(), blockSize));
+    }
+    for (CachedBlock cachedBlock : map.values()) {
+      CachedBlockQueue queue =
+        queues.get(quotas.getTableUsage(cachedBlock.getBuffer()));
+      if (queue != null) queue.add(cachedBlock);
+      queue = queues.get(quotas.getFamilyUsage(cachedBlock.getBuffer()));
+      if (queue != null) queue.add(cachedBlock);
+    }
+    long bytesFreed = 0;
+    for (Map.Entry<BlockCacheQuotas.Usage, CachedBlockQueue> e :
+        queues.entrySet()) {
+      long toFree = over.get(e.getKey());
+      long ownerFreed = 0;
+      CachedBlock cb;
+      while (ownerFreed < toFree && (cb = e.getValue().pollLast()) != null) {
+        // A block can be queued for both its table and its family
+        if (map.get(cb.getCacheKey()) != cb) continue;
+        ownerFreed += evictBlock(cb, true);
+      }
+      bytesFreed += ownerFreed;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Evicted " + StringUtils.byteDesc(ownerFreed) + " of " +
+          e.getKey().getOwner() + ", over its soft block cache quota");
+      }
+    }
+    return bytesFreed;
+  }
+
   /**
    * Used to group blocks into priority buckets.  There will be a BlockBucket
    * for each priority (single, multi, memory).  Once bucketed, the eviction
@@ -526,7 +643,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
       CachedBlock cb;
       long freedBytes = 0;
       while ((cb = queue.pollLast()) != null) {
-        freedBytes += evictBlock(cb);
+        freedBytes += evictBlock(cb, true);
         if (freedBytes >= toFree) {
           return freedBytes;
         }
@@ -707,7 +824,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
   }
 
   public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
-      (3 * Bytes.SIZEOF_LONG) + (8 * ClassSize.REFERENCE) +
+      (3 * Bytes.SIZEOF_LONG) + (11 * ClassSize.REFERENCE) +
       (5 * Bytes.SIZEOF_FLOAT) + Bytes.SIZEOF_BOOLEAN
       + ClassSize.OBJECT);
 
@@ -726,6 +843,33 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
   @Override
   public List<BlockCacheColumnFamilySummary> getBlockCacheColumnFamilySummaries(Configuration conf) throws IOException {
+    return summarizeByColumnFamily(conf, map.values());
+  }
+
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys = victimHandler == null?
+      new HashMap<BlockCacheKey, CachedBlock.BlockPriority>():
+      victimHandler.getCachedBlockKeys(hfileNames);
+    for (CachedBlock cb : map.values()) {
+      if (hfileNames.contains(cb.getCacheKey().getHfileName())) {
+        keys.put(cb.getCacheKey(), cb.getPriority());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Groups cached blocks by the column family of the store file they come
+   * from.
+   * @param conf configuration, used to find the store files
+   * @param blocks the cached blocks
+   * @return one summary per column family, sorted
+   * @throws IOException
+   */
+  static List<BlockCacheColumnFamilySummary> summarizeByColumnFamily(
+      Configuration conf, Iterable<CachedBlock> blocks) throws IOException {
 
     Map<String, Path> sfMap = FSUtils.getTableStoreFilePathMap(
         FileSystem.get(conf),
@@ -736,7 +880,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
     Map<BlockCacheColumnFamilySummary, BlockCacheColumnFamilySummary> bcs =
       new HashMap<BlockCacheColumnFamilySummary, BlockCacheColumnFamilySummary>();
 
-    for (CachedBlock cb : map.values()) {
+    for (CachedBlock cb : blocks) {
       String sf = cb.getCacheKey().getHfileName();
       Path path = sfMap.get(sf);
       if ( path != null) {
@@ -784,7 +928,31 @@ public class LruBlockCache implements BlockCache, HeapSize {
       List<Runnable> runnables = this.scheduleThreadPool.shutdownNow();
       LOG.debug("Still running " + runnables);
     }
-    this.evictionThread.shutdown();
+    if (this.evictionThread != null) {
+      this.evictionThread.shutdown();
+    }
+    if (victimHandler != null) {
+      victimHandler.shutdown();
+    }
+  }
+
+  /**
+   * @return the cached bytes of every table and column family, by owner, or
+   *         an empty map if no block cache quotas are configured
+   */
+  public Map<String, Long> getQuotaUsage() {
+    if (quotas == null) return Collections.emptyMap();
+    return quotas.getUsage();
+  }
+
+  /**
+   * Sets the cache that blocks evicted from this one are handed to, and that
+   * is looked up on a miss.
+   * @param handler the second level cache
+   */
+  public void setVictimCache(BlockCache handler) {
+    assert victimHandler == null : "The victim cache has already been set";
+    victimHandler = handler;
   }
 
   /** Clears the cache. Used in tests. */
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * An input stream over a local file mapped in memory. Reads, positional
+ * reads in particular, copy straight from the mapping, without a system call
+ * and without locking, so concurrent readers of the file do not contend.
+ * <p>
+ * The file is mapped read-only in chunks of at most
+ * {@link #MAX_CHUNK_SIZE} bytes, so files larger than 2 GB can be mapped.
+ * The file itself is closed once mapped. Closing the stream drops the
+ * mapping, which is unmapped once garbage collected: unmapping it right away
+ * would crash a reader still copying from it. Reads after close fail.
+ * <p>
+ * The file system checksums of the file, if any, are not verified.
+ */
+class MappedFileInputStream extends FSDataInputStream {
+
+  /** Maximum size of a mapped chunk of the file */
+  static final int MAX_CHUNK_SIZE = 1 << 30;
+
+  /**
+   * Maps a file in memory.
+   * @param file a local file
+   * @return a stream over the mapped file
+   * @throws IOException if the file cannot be opened or mapped
+   */
+  static MappedFileInputStream open(File file) throws IOException {
+    return open(file, MAX_CHUNK_SIZE);
+  }
+
+  static MappedFileInputStream open(File file, int chunkSize)
+      throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      MappedByteBuffer[] chunks =
+          new MappedByteBuffer[(int) ((length + chunkSize - 1) / chunkSize)];
+      for (int i = 0; i < chunks.length; i++) {
+        long position = (long) i * chunkSize;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+            Math.min(chunkSize, length - position));
+      }
+      return new MappedFileInputStream(new Mapping(file, chunks, chunkSize,
+          length));
+    } finally {
+      raf.close();
+    }
+  }
+
+  private MappedFileInputStream(Mapping mapping) throws IOException {
+    super(mapping);
+  }
+
+  /** @return the length of the mapped file */
+  long getLength() {
+    return ((Mapping) in).length;
+  }
+
+  /** The chunks of a mapped file, read as a seekable stream */
+  private static class Mapping extends InputStream
+      implements Seekable, PositionedReadable {
+    private final File file;
+    private final int chunkSize;
+    private final long length;
+
+    /** The mapped chunks, null once closed */
+    private volatile MappedByteBuffer[] chunks;
+
+    private long pos;
+
+    Mapping(File file, MappedByteBuffer[] chunks, int chunkSize, long length) {
+      this.file = file;
+      this.chunks = chunks;
+      this.chunkSize = chunkSize;
+      this.length = length;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int len)
+        throws IOException {
+      MappedByteBuffer[] mapped = chunks;
+      if (mapped == null) {
+        throw new IOException("Stream of " + file + " is closed");
+      }
+      if (position < 0) {
+        throw new IOException("Negative position " + position + " in " +
+            file);
+      }
+      if (position >= length) {
+        return len == 0 ? 0 : -1;
+      }
+      int n = (int) Math.min(len, length - position);
+      int done = 0;
+      while (done < n) {
+        long p = position + done;
+        // The duplicate keeps the position of the shared chunk untouched
+        ByteBuffer chunk = mapped[(int) (p / chunkSize)].duplicate();
+        chunk.position((int) (p % chunkSize));
+        int count = Math.min(n - done, chunk.remaining());
+        chunk.get(buffer, offset + done, count);
+        done += count;
+      }
+      return n;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int len)
+        throws IOException {
+      if (position + len > length) {
+        throw new EOFException("Reading " + len + " bytes at " + position +
+            " past the end of " + file + ", of " + length + " bytes");
+      }
+      read(position, buffer, offset, len);
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len)
+        throws IOException {
+      int n = read(pos, b, off, len);
+      if (n > 0) {
+        pos += n;
+      }
+      return n;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, length - pos));
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    @Override
+    public synchronized void seek(long position) throws IOException {
+      if (position < 0 || position > length) {
+        throw new EOFException("Cannot seek to " + position + " in " + file +
+            ", of " + length + " bytes");
+      }
+      pos = position;
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+      return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      chunks = null;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * Runs the reads that prefetch the blocks of newly opened HFiles into the
+ * block cache, on a bounded number of daemon threads shared by all the files
+ * of the region server.
+ * <p>
+ * A prefetch is keyed by the reader it runs for, so that several readers of
+ * the same file each have their own. Closing the reader cancels its prefetch
+ * only: a queued prefetch does not run, and a running one stops before its
+ * next block, see {@link #isCancelled(HFile.Reader)}. Running prefetches are
+ * not
+ * interrupted, as an interrupt can close the input stream the reader shares
+ * with its scanners.
+ * <p>
+ * The blocks scanners read ahead of their current block are read on a
+ * separate pool, so that they do not queue behind the prefetch of whole
+ * files.
+ */
+public final class PrefetchExecutor {
+  private static final Log LOG = LogFactory.getLog(PrefetchExecutor.class);
+
+  /** Configuration key for the number of prefetch threads */
+  public static final String PREFETCH_THREADS_KEY = "hbase.hfile.thread.prefetch";
+
+  public static final int DEFAULT_PREFETCH_THREADS = 4;
+
+  /** Configuration key for the number of scanner read-ahead threads */
+  public static final String READAHEAD_THREADS_KEY = "hbase.hfile.thread.readahead";
+
+  public static final int DEFAULT_READAHEAD_THREADS = 8;
+
+  /** The pool, created by the first {@link CacheConfig} that prefetches */
+  private static ThreadPoolExecutor prefetchPool;
+
+  /** The pool, created by the first reader whose scanners read ahead */
+  private static ThreadPoolExecutor readAheadPool;
+
+  /** Queued and running prefetches */
+  private static final ConcurrentMap<HFile.Reader, Prefetch> prefetches =
+    new ConcurrentHashMap<HFile.Reader, Prefetch>();
+
+  /** Number of blocks read by prefetches, whether or not already cached */
+  private static final AtomicLong prefetchedBlockCount = new AtomicLong();
+
+  /** Number of on-disk bytes read by prefetches */
+  private static final AtomicLong prefetchedBytes = new AtomicLong();
+
+  /** Number of prefetches that read their whole file */
+  private static final AtomicLong completedCount = new AtomicLong();
+
+  /**
+   * A prefetch that unregisters itself when it completes or is cancelled.
+   */
+  private static class Prefetch extends FutureTask<Void> {
+    private final HFile.Reader reader;
+
+    Prefetch(HFile.Reader reader, Runnable runnable) {
+      super(runnable, null);
+      this.reader = reader;
+    }
+
+    @Override
+    protected void done() {
+      prefetches.remove(reader, this);
+    }
+  }
+
+  private PrefetchExecutor() {
+  }
+
+  /**
+   * Creates the prefetch pool, if it does not exist yet.
+   * @param conf configuration to read the number of threads from
+   */
+  static synchronized void instantiate(Configuration conf) {
+    if (prefetchPool != null) return;
+    int threads = conf.getInt(PREFETCH_THREADS_KEY, DEFAULT_PREFETCH_THREADS);
+    prefetchPool = Threads.getBoundedCachedThreadPool(Math.max(1, threads),
+      60, TimeUnit.SECONDS, Threads.newDaemonThreadFactory("hfile-prefetch-"));
+    LOG.info("Prefetching HFile blocks with up to " + threads + " threads");
+  }
+
+  private static synchronized ThreadPoolExecutor getPool() {
+    if (prefetchPool == null) {
+      instantiate(new Configuration(false));
+    }
+    return prefetchPool;
+  }
+
+  /**
+   * Creates the scanner read-ahead pool, if it does not exist yet.
+   * @param conf configuration to read the number of threads from
+   */
+  static synchronized void instantiateReadAhead(Configuration conf) {
+    if (readAheadPool != null) return;
+    int threads = conf.getInt(READAHEAD_THREADS_KEY, DEFAULT_READAHEAD_THREADS);
+    readAheadPool = Threads.getBoundedCachedThreadPool(Math.max(1, threads),
+      60, TimeUnit.SECONDS, Threads.newDaemonThreadFactory("hfile-readahead-"));
+    LOG.info("Reading ahead HFile blocks with up to " + threads + " threads");
+  }
+
+  private static synchronized ThreadPoolExecutor getReadAheadPool() {
+    if (readAheadPool == null) {
+      instantiateReadAhead(new Configuration(false));
+    }
+    return readAheadPool;
+  }
+
+  /**
+   * Queues a read of the blocks following the current block of a scanner.
+   * @param runnable reads the blocks
+   */
+  static void readAhead(Runnable runnable) {
+    getReadAheadPool().execute(runnable);
+  }
+
+  /**
+   * Queues the prefetch of a file.
+   * @param reader the reader of the file
+   * @param runnable reads the blocks of the file into the block cache
+   */
+  public static void request(HFile.Reader reader, Runnable runnable) {
+    Prefetch prefetch = new Prefetch(reader, runnable);
+    Prefetch previous = prefetches.put(reader, prefetch);
+    if (previous != null) {
+      previous.cancel(false);
+    }
+    getPool().execute(prefetch);
+  }
+
+  /**
+   * Cancels the prefetch of a reader, if any. The prefetches of other readers
+   * of the same file go on.
+   * @param reader the reader of the file
+   */
+  public static void cancel(HFile.Reader reader) {
+    Prefetch prefetch = prefetches.remove(reader);
+    if (prefetch != null) {
+      prefetch.cancel(false);
+      LOG.debug("Cancelled the prefetch of " + reader.getPath());
+    }
+  }
+
+  /**
+   * @param reader the reader of the file
+   * @return true if the reader has no queued or running prefetch
+   */
+  public static boolean isCompleted(HFile.Reader reader) {
+    return !prefetches.containsKey(reader);
+  }
+
+  /**
+   * Called by a running prefetch between blocks.
+   * @param reader the reader prefetching the file
+   * @return true if the prefetch should stop
+   */
+  public static boolean isCancelled(HFile.Reader reader) {
+    Prefetch prefetch = prefetches.get(reader);
+    return prefetch == null || prefetch.isCancelled();
+  }
+
+  /**
+   * Counts a block read by a prefetch.
+   * @param onDiskSize size of the block on disk, with its header
+   */
+  static void blockPrefetched(long onDiskSize) {
+    prefetchedBlockCount.incrementAndGet();
+    prefetchedBytes.addAndGet(onDiskSize);
+  }
+
+  /**
+   * Counts a prefetch that read its whole file.
+   */
+  static void prefetchCompleted() {
+    completedCount.incrementAndGet();
+  }
+
+  /** @return the number of queued and running prefetches */
+  public static int getPendingCount() {
+    return prefetches.size();
+  }
+
+  /** @return the number of prefetches that read their whole file */
+  public static long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  /** @return the number of blocks read by prefetches */
+  public static long getPrefetchedBlockCount() {
+    return prefetchedBlockCount.get();
+  }
+
+  /** @return the number of on-disk bytes read by prefetches */
+  public static long getPrefetchedBytes() {
+    return prefetchedBytes.get();
+  }
+}
@@ -0,0 +1,518 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.util.StringUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A block cache split into independent segments, each with its own lock,
+ * size accounting and CLOCK eviction.<p>
+ *
+ * A block goes to the segment picked by the hash of its key. Lookups do not
+ * lock: each segment's map is a {@link ConcurrentHashMap} and a hit only sets
+ * the referenced bit of the entry. Inserts and evictions lock the one segment
+ * they touch, so handlers caching blocks of different segments do not wait
+ * on each other.<p>
+ *
+ * Eviction is incremental: when an insert takes a segment over its share of
+ * the maximum size, the inserting thread evicts from that segment only as
+ * much as needed, so there is no eviction thread and no scan of the whole
+ * cache. Each segment keeps its blocks in insertion order on a ring; the
+ * clock hand evicts the oldest block whose referenced bit is clear and gives
+ * the others a second chance, clearing their bit and moving them to the back.
+ * A block that was cached by a scan and never read again goes on the first
+ * pass, which gives the same scan resistance as the single and multi access
+ * priorities of {@link LruBlockCache}. In-memory blocks are kept on a ring of
+ * their own and are only evicted when they take more than their share of the
+ * segment.<p>
+ *
+ * Like {@link LruBlockCache}, a victim cache can be set to receive the
+ * evicted blocks.
+ */
+public class SegmentedBlockCache implements BlockCache, HeapSize {
+  static final Log LOG = LogFactory.getLog(SegmentedBlockCache.class);
+
+  /**
+   * Configuration key for the number of segments. It is rounded up to a
+   * power of two. If not set or 0, it is derived from the handler count.
+   */
+  public static final String SEGMENTS_KEY = "hbase.blockcache.segments";
+
+  /** Segments per regionserver handler when the count is not configured */
+  static final int SEGMENTS_PER_HANDLER = 2;
+
+  /** Share of each segment kept for in-memory blocks */
+  static final float DEFAULT_MEMORY_FACTOR = 0.25f;
+
+  /** Statistics thread */
+  static final int statThreadPeriod = 60 * 5;
+
+  /** Heap taken by the entry of one block, besides the block itself */
+  static final long PER_NODE_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+      3 * ClassSize.REFERENCE + Bytes.SIZEOF_BOOLEAN) +
+      ClassSize.CONCURRENT_HASHMAP_ENTRY;
+
+  /*
+   * An entry on a segment's ring. The ring is a circular doubly linked list
+   * with a sentinel; the oldest entry follows the sentinel.
+   */
+  private static class Node {
+    final CachedBlock block;
+    volatile boolean referenced = false;
+    Node prev = this;
+    Node next = this;
+
+    Node(CachedBlock block) {
+      this.block = block;
+    }
+
+    void linkBefore(Node successor) {
+      this.next = successor;
+      this.prev = successor.prev;
+      successor.prev.next = this;
+      successor.prev = this;
+    }
+
+    void unlink() {
+      this.prev.next = this.next;
+      this.next.prev = this.prev;
+      this.prev = this;
+      this.next = this;
+    }
+
+    long heapSize() {
+      return this.block.heapSize() + PER_NODE_OVERHEAD;
+    }
+  }
+
+  private class Segment {
+    final ReentrantLock lock = new ReentrantLock();
+    final ConcurrentHashMap<BlockCacheKey, Node> map =
+      new ConcurrentHashMap<BlockCacheKey, Node>(16, 0.75f, 1);
+    final Node ring = new Node(null);
+    final Node memoryRing = new Node(null);
+    // Written under the lock, read without it
+    volatile long size = 0;
+    long memorySize = 0;
+    int ringCount = 0;
+    int memoryRingCount = 0;
+
+    /*
+     * Adds the block unless it is already cached.
+     * @return the blocks evicted to make room for it
+     */
+    List<CachedBlock> add(CachedBlock cb) {
+      List<CachedBlock> evicted = null;
+      lock.lock();
+      try {
+        if (map.containsKey(cb.getCacheKey())) return null;
+        Node node = new Node(cb);
+        map.put(cb.getCacheKey(), node);
+        if (cb.getPriority() == CachedBlock.BlockPriority.MEMORY) {
+          node.linkBefore(memoryRing);
+          memoryRingCount++;
+          memorySize += node.heapSize();
+        } else {
+          node.linkBefore(ring);
+          ringCount++;
+        }
+        size += node.heapSize();
+        updateSchemaMetrics(cb, false);
+        if (size > segmentSize) {
+          evicted = evict();
+        }
+      } finally {
+        lock.unlock();
+      }
+      return evicted;
+    }
+
+    /*
+     * Runs the clock hand until the segment fits its share again.
+     */
+    private List<CachedBlock> evict() {
+      List<CachedBlock> evicted = new ArrayList<CachedBlock>();
+      // Bound the second chances so that blocks read while we sweep cannot
+      // keep us going forever
+      int chances = ringCount + memoryRingCount;
+      while (size > segmentSize) {
+        boolean fromMemory = ringCount == 0 ||
+          (memoryRingCount > 0 && memorySize > memorySegmentSize);
+        Node head = fromMemory? memoryRing: ring;
+        Node node = head.next;
+        if (node == head) break;
+        if (node.referenced && chances-- > 0) {
+          node.referenced = false;
+          node.unlink();
+          node.linkBefore(head);
+          continue;
+        }
+        remove(node);
+        evicted.add(node.block);
+      }
+      stats.evict();
+      return evicted;
+    }
+
+    /*
+     * Removes the block with the given key.
+     * @return the removed block, or null if it was not cached
+     */
+    CachedBlock remove(BlockCacheKey key) {
+      lock.lock();
+      try {
+        Node node = map.get(key);
+        if (node == null) return null;
+        remove(node);
+        return node.block;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void remove(Node node) {
+      map.remove(node.block.getCacheKey());
+      node.unlink();
+      if (node.block.getPriority() == CachedBlock.BlockPriority.MEMORY) {
+        memoryRingCount--;
+        memorySize -= node.heapSize();
+      } else {
+        ringCount--;
+      }
+      size -= node.heapSize();
+      updateSchemaMetrics(node.block, true);
+      stats.evicted();
+    }
+  }
+
+  private final Segment [] segments;
+  private final int segmentMask;
+
+  /** Maximum size of the whole cache */
+  private final long maxSize;
+
+  /** Maximum size of each segment, and of its in-memory blocks */
+  private final long segmentSize;
+  private final long memorySegmentSize;
+
+  private final CacheStats stats = new CacheStats();
+
+  private final ScheduledExecutorService scheduleThreadPool =
+    Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder()
+        .setNameFormat("SegmentedBlockCache.StatisticsThread")
+        .setDaemon(true)
+        .build());
+
+  /** Where evicted blocks go, if anywhere */
+  private BlockCache victimHandler = null;
+
+  /**
+   * Creates a cache with a segment count from the configuration.
+   * @param maxSize maximum size of the cache, in bytes
+   * @param conf configuration
+   */
+  public SegmentedBlockCache(long maxSize, Configuration conf) {
+    this(maxSize, getSegmentCount(conf), DEFAULT_MEMORY_FACTOR);
+  }
+
+  /**
+   * @param maxSize maximum size of the cache, in bytes
+   * @param segmentCount number of segments, rounded up to a power of two
+   * @param memoryFactor share of each segment kept for in-memory blocks
+   */
+  public SegmentedBlockCache(long maxSize, int segmentCount,
+      float memoryFactor) {
+    int count = 1;
+    while (count < segmentCount) count <<= 1;
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      this.segments[i] = new Segment();
+    }
+    this.segmentMask = count - 1;
+    this.maxSize = maxSize;
+    this.segmentSize = maxSize / count;
+    this.memorySegmentSize = (long)(this.segmentSize * memoryFactor);
+    this.scheduleThreadPool.scheduleAtFixedRate(new StatisticsThread(this),
+        statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
+    LOG.info("Allocating SegmentedBlockCache with maximum size " +
+      StringUtils.byteDesc(maxSize) + " in " + count + " segments");
+  }
+
+  private static int getSegmentCount(Configuration conf) {
+    int count = conf.getInt(SEGMENTS_KEY, 0);
+    if (count <= 0) {
+      count = SEGMENTS_PER_HANDLER *
+        conf.getInt("hbase.regionserver.handler.count", 10);
+    }
+    return count;
+  }
+
+  private Segment segmentFor(BlockCacheKey key) {
+    // Spread the hash so that keys differing in high bits use all segments
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return this.segments[h & this.segmentMask];
+  }
+
+  /**
+   * Sets the cache that evicted blocks are handed to, and that is looked up
+   * on a miss.
+   * @param handler the second level cache
+   */
+  public void setVictimCache(BlockCache handler) {
+    assert this.victimHandler == null : "The victim cache has already been set";
+    this.victimHandler = handler;
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf,
+      boolean inMemory) {
+    CachedBlock cb = new CachedBlock(cacheKey, buf, 0, inMemory);
+    if (cb.heapSize() + PER_NODE_OVERHEAD > this.segmentSize) {
+      // It would only push everything else out of its segment
+      return;
+    }
+    List<CachedBlock> evicted = segmentFor(cacheKey).add(cb);
+    if (evicted != null && this.victimHandler != null) {
+      // Outside of the segment lock, handing over may copy the blocks
+      for (CachedBlock block : evicted) {
+        this.victimHandler.cacheBlock(block.getCacheKey(), block.getBuffer(),
+          block.getPriority() == CachedBlock.BlockPriority.MEMORY);
+      }
+    }
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf) {
+    cacheBlock(cacheKey, buf, false);
+  }
+
+  @Override
+  public Cacheable getBlock(BlockCacheKey cacheKey, boolean caching,
+      boolean repeat) {
+    Node node = segmentFor(cacheKey).map.get(cacheKey);
+    if (node == null) {
+      if (!repeat) this.stats.miss(caching);
+      if (this.victimHandler != null) {
+        return this.victimHandler.getBlock(cacheKey, caching, repeat);
+      }
+      return null;
+    }
+    this.stats.hit(caching);
+    // Avoid writing a shared cache line when the bit is already set
+    if (!node.referenced) node.referenced = true;
+    return node.block.getBuffer();
+  }
+
+  @Override
+  public boolean evictBlock(BlockCacheKey cacheKey) {
+    boolean evictedVictim = this.victimHandler != null &&
+      this.victimHandler.evictBlock(cacheKey);
+    return segmentFor(cacheKey).remove(cacheKey) != null || evictedVictim;
+  }
+
+  @Override
+  public int evictBlocksByHfileName(String hfileName) {
+    int numEvicted = 0;
+    for (Segment segment : this.segments) {
+      for (BlockCacheKey key : segment.map.keySet()) {
+        if (key.getHfileName().equals(hfileName)) {
+          if (segment.remove(key) != null) ++numEvicted;
+        }
+      }
+    }
+    if (this.victimHandler != null) {
+      numEvicted += this.victimHandler.evictBlocksByHfileName(hfileName);
+    }
+    return numEvicted;
+  }
+
+  private void updateSchemaMetrics(CachedBlock cb, boolean evict) {
+    Cacheable cachedBlock = cb.getBuffer();
+    SchemaMetrics schemaMetrics = cachedBlock.getSchemaMetrics();
+    if (schemaMetrics != null) {
+      long heapsize = cb.heapSize();
+      schemaMetrics.updateOnCachePutOrEvict(
+          cachedBlock.getBlockType().getCategory(),
+          evict? -heapsize: heapsize, evict);
+    }
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return this.stats;
+  }
+
+  public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
+      (3 * Bytes.SIZEOF_LONG) + (4 * ClassSize.REFERENCE) +
+      Bytes.SIZEOF_INT + ClassSize.OBJECT);
+
+  // HeapSize implementation
+  @Override
+  public long heapSize() {
+    return getCurrentSize();
+  }
+
+  /**
+   * @return the maximum size of the cache, in bytes
+   */
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+
+  @Override
+  public long getCurrentSize() {
+    long size = CACHE_FIXED_OVERHEAD;
+    for (Segment segment : this.segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  @Override
+  public long getFreeSize() {
+    return this.maxSize - getCurrentSize();
+  }
+
+  @Override
+  public long size() {
+    return getBlockCount();
+  }
+
+  @Override
+  public long getBlockCount() {
+    long count = 0;
+    for (Segment segment : this.segments) {
+      count += segment.map.size();
+    }
+    return count;
+  }
+
+  @Override
+  public long getEvictedCount() {
+    return this.stats.getEvictedCount();
+  }
+
+  /**
+   * @return number of segments
+   */
+  int getSegmentCount() {
+    return this.segments.length;
+  }
+
+  @Override
+  public List<BlockCacheColumnFamilySummary> getBlockCacheColumnFamilySummaries(
+      Configuration conf) throws IOException {
+    List<CachedBlock> blocks = new ArrayList<CachedBlock>();
+    for (Segment segment : this.segments) {
+      for (Node node : segment.map.values()) {
+        blocks.add(node.block);
+      }
+    }
+    return LruBlockCache.summarizeByColumnFamily(conf, blocks);
+  }
+
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys =
+      this.victimHandler == null?
+        new HashMap<BlockCacheKey, CachedBlock.BlockPriority>():
+        this.victimHandler.getCachedBlockKeys(hfileNames);
+    for (Segment segment : this.segments) {
+      for (Node node : segment.map.values()) {
+        BlockCacheKey key = node.block.getCacheKey();
+        if (!hfileNames.contains(key.getHfileName())) continue;
+        CachedBlock.BlockPriority priority = node.block.getPriority();
+        if (priority != CachedBlock.BlockPriority.MEMORY && node.referenced) {
+          // Read again since it was cached
+          priority = CachedBlock.BlockPriority.MULTI;
+        }
+        keys.put(key, priority);
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public void shutdown() {
+    this.scheduleThreadPool.shutdown();
+    if (this.victimHandler != null) {
+      this.victimHandler.shutdown();
+    }
+  }
+
+  public void logStats() {
+    if (!LOG.isDebugEnabled()) return;
+    long totalSize = heapSize();
+    LOG.debug("Stats: " +
+        "total=" + StringUtils.byteDesc(totalSize) + ", " +
+        "free=" + StringUtils.byteDesc(this.maxSize - totalSize) + ", " +
+        "max=" + StringUtils.byteDesc(this.maxSize) + ", " +
+        "blocks=" + size() + ", " +
+        "accesses=" + this.stats.getRequestCount() + ", " +
+        "hits=" + this.stats.getHitCount() + ", " +
+        "hitRatio=" + (this.stats.getHitCount() == 0? "0":
+          StringUtils.formatPercent(this.stats.getHitRatio(), 2)) + ", " +
+        "cachingAccesses=" + this.stats.getRequestCachingCount() + ", " +
+        "cachingHits=" + this.stats.getHitCachingCount() + ", " +
+        "evictions=" + this.stats.getEvictionCount() + ", " +
+        "evicted=" + this.stats.getEvictedCount());
+  }
+
+  /*
+   * Statistics thread.  Periodically prints the cache statistics to the log.
+   */
+  static class StatisticsThread extends Thread {
+    private final SegmentedBlockCache cache;
+
+    public StatisticsThread(SegmentedBlockCache cache) {
+      super("SegmentedBlockCache.StatisticsThread");
+      setDaemon(true);
+      this.cache = cache;
+    }
+
+    @Override
+    public void run() {
+      this.cache.logStats();
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 
@@ -128,6 +129,12 @@ public class SimpleBlockCache implements BlockCache {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public long getBlockCount() {
     // TODO: implement this if we ever actually use this block cache
@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A TinyLFU style admission filter for a block cache.
+ * <p>
+ * Block accesses are counted in a count-min sketch of four rows of 4-bit
+ * counters, so that the filter costs about two bytes per block the cache can
+ * hold no matter how many distinct blocks are read.  Once the number of
+ * recorded accesses reaches ten times the number of blocks the cache holds
+ * every counter is halved, so that the estimates follow the recent workload
+ * rather than all of history.
+ * <p>
+ * A block is admitted if its estimated frequency is higher than the average
+ * frequency of the blocks the last eviction run of the cache evicted.  A
+ * block read once by a scan is therefore not let in to push out blocks that
+ * are read repeatedly.  Before the cache evicts anything every block is
+ * admitted.
+ */
+public class TinyLfuAdmissionFilter {
+
+  /** Number of hash functions, one row of counters each */
+  static final int DEPTH = 4;
+
+  /** Largest value of a 4-bit counter */
+  static final int MAX_FREQUENCY = 15;
+
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+    0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  /** Sixteen 4-bit counters per long, DEPTH rows of width counters */
+  private final AtomicLongArray table;
+
+  /** Counters per row, a power of two */
+  private final int width;
+
+  /** Number of recorded accesses after which all counters are halved */
+  private final long sampleSize;
+
+  /** Recorded accesses since the last halving */
+  private final AtomicLong additions = new AtomicLong();
+
+  /**
+   * Average estimated frequency of the blocks of the last eviction run, or
+   * less than zero before the first one so that every block is admitted
+   */
+  private volatile double victimFrequency = -1;
+
+  /** Sum of the frequencies of the blocks of the current eviction run */
+  private long victimFrequencySum = 0;
+
+  /** Number of blocks evicted by the current eviction run */
+  private long victimCount = 0;
+
+  /**
+   * @param expectedBlocks the number of blocks the cache holds, approximately
+   */
+  public TinyLfuAdmissionFilter(long expectedBlocks) {
+    int blocks = (int)Math.max(1024, Math.min(expectedBlocks, 1 << 24));
+    this.width = Integer.highestOneBit(blocks - 1) << 1;
+    this.table = new AtomicLongArray(DEPTH * width / 16);
+    this.sampleSize = 10L * blocks;
+  }
+
+  /**
+   * Counts an access to the given block.
+   * @param cacheKey the key of the accessed block
+   */
+  public void record(BlockCacheKey cacheKey) {
+    int hash = spread(cacheKey.hashCode());
+    for (int row = 0; row < DEPTH; row++) {
+      increment(indexOf(hash, row));
+    }
+    if (additions.incrementAndGet() >= sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * @param cacheKey the key of a block
+   * @return the estimated number of recent accesses to the block, at most
+   * {@link #MAX_FREQUENCY}
+   */
+  public int frequency(BlockCacheKey cacheKey) {
+    int hash = spread(cacheKey.hashCode());
+    int frequency = MAX_FREQUENCY;
+    for (int row = 0; row < DEPTH; row++) {
+      frequency = Math.min(frequency, counter(indexOf(hash, row)));
+    }
+    return frequency;
+  }
+
+  /**
+   * @param cacheKey the key of a block the cache has no room for
+   * @return whether the block is worth evicting another block for
+   */
+  public boolean admit(BlockCacheKey cacheKey) {
+    return frequency(cacheKey) > victimFrequency;
+  }
+
+  /**
+   * Notes that the cache evicted a block to make room.  Only the eviction
+   * process of the cache, of which there is one at a time, may call this.
+   * @param cacheKey the key of the evicted block
+   */
+  public void recordEviction(BlockCacheKey cacheKey) {
+    victimFrequencySum += frequency(cacheKey);
+    victimCount++;
+  }
+
+  /**
+   * Notes that an eviction run completed, making the frequency of the
+   * blocks it evicted the bar for admission.
+   */
+  public void evictionCompleted() {
+    if (victimCount > 0) {
+      victimFrequency = (double)victimFrequencySum / victimCount;
+    }
+    victimFrequencySum = 0;
+    victimCount = 0;
+  }
+
+  /** @return the average frequency of the blocks last evicted */
+  double getVictimFrequency() {
+    return victimFrequency;
+  }
+
+  /** @return the number of accesses after which all counters are halved */
+  long getSampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Halves all counters, and the victim frequency along with them.
+   */
+  synchronized void reset() {
+    if (additions.get() < sampleSize) {
+      // Another thread got here first
+      return;
+    }
+    for (int i = 0; i < table.length(); i++) {
+      long value;
+      do {
+        value = table.get(i);
+      } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+    }
+    additions.set(additions.get() / 2);
+    victimFrequency /= 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return row * width + ((int)h & (width - 1));
+  }
+
+  private int counter(int index) {
+    int shift = (index & 15) << 2;
+    return (int)((table.get(index >>> 4) >>> shift) & 0xfL);
+  }
+
+  private void increment(int index) {
+    int i = index >>> 4;
+    int shift = (index & 15) << 2;
+    long value;
+    do {
+      value = table.get(i);
+      if (((value >>> shift) & 0xfL) == MAX_FREQUENCY) return;
+    } while (!table.compareAndSet(i, value, value + (1L << shift)));
+  }
+
+  /**
+   * Applies a supplemental hash function, as the key hash codes of the blocks
+   * of a file differ only in their low bits.
+   */
+  private static int spread(int h) {
+    h ^= (h >>> 17);
+    h *= 0xed5ad4bb;
+    h ^= (h >>> 11);
+    h *= 0xac4c1b51;
+    h ^= (h >>> 15);
+    return h;
+  }
+}
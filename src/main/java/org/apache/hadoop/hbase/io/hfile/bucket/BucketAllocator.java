@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Hands out space of a {@link IOEngine} to cached blocks.
+ * <p>
+ * The capacity is cut into buckets of equal size. A bucket is assigned to
+ * one size class when it is first needed and is then split into items of
+ * that size; a block gets an item of the smallest size class it fits in.
+ * A bucket whose items are all freed goes back to the pool and can be
+ * assigned to another size class, so the split between size classes follows
+ * the block sizes actually cached instead of being fixed up front.
+ * <p>
+ * All methods are synchronized: allocation is cheap next to copying a block.
+ */
+final class BucketAllocator {
+  /**
+   * Default item sizes. Each is a bit larger than a power-of-two block size
+   * to leave room for the block header and serialization overhead.
+   */
+  static final int [] DEFAULT_BUCKET_SIZES = {
+    4 * 1024 + 1024, 8 * 1024 + 1024, 16 * 1024 + 1024, 32 * 1024 + 1024,
+    40 * 1024 + 1024, 48 * 1024 + 1024, 56 * 1024 + 1024, 64 * 1024 + 1024,
+    96 * 1024 + 1024, 128 * 1024 + 1024, 192 * 1024 + 1024,
+    256 * 1024 + 1024, 384 * 1024 + 1024, 512 * 1024 + 1024
+  };
+
+  /** A bucket holds this many items of the largest size class */
+  static final int ITEMS_PER_LARGEST_BUCKET = 4;
+
+  /** Thrown when no item can be found for a block */
+  static class CacheFullException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    CacheFullException(int size) {
+      super("No free item of size class for " + size + " bytes");
+    }
+  }
+
+  private final class Bucket {
+    private final long baseOffset;
+    private int sizeIndex = -1;
+    private int itemSize;
+    // Indexes of the free items, the first freeCount entries are valid
+    private int [] freeList;
+    private int freeCount;
+    private int itemCount;
+
+    Bucket(long baseOffset) {
+      this.baseOffset = baseOffset;
+    }
+
+    void reconfigure(int sizeIndex) {
+      this.sizeIndex = sizeIndex;
+      this.itemSize = bucketSizes[sizeIndex];
+      this.itemCount = (int)(bucketCapacity / this.itemSize);
+      this.freeList = new int[this.itemCount];
+      for (int i = 0; i < this.itemCount; i++) {
+        this.freeList[i] = this.itemCount - 1 - i;
+      }
+      this.freeCount = this.itemCount;
+    }
+
+    boolean isFree() {
+      return this.sizeIndex < 0 || this.freeCount == this.itemCount;
+    }
+
+    boolean hasFreeItem() {
+      return this.freeCount > 0;
+    }
+
+    long allocate() {
+      int item = this.freeList[--this.freeCount];
+      return this.baseOffset + (long)item * this.itemSize;
+    }
+
+    void free(long offset) {
+      int item = (int)((offset - this.baseOffset) / this.itemSize);
+      assert offset == this.baseOffset + (long)item * this.itemSize;
+      assert this.freeCount < this.itemCount;
+      this.freeList[this.freeCount++] = item;
+    }
+  }
+
+  private final int [] bucketSizes;
+  private final long bucketCapacity;
+  private final Bucket [] buckets;
+  // Buckets not assigned to any size class
+  private final LinkedList<Bucket> freeBuckets = new LinkedList<Bucket>();
+  // Per size class, the assigned buckets that have a free item
+  private final List<LinkedHashSet<Bucket>> bucketsWithSpace;
+  private long usedSize = 0;
+  // Per size class, bytes taken by allocated items
+  private final long [] usedSizes;
+
+  /**
+   * @param capacity bytes available in the engine
+   * @param bucketSizes item sizes, in increasing order; null for defaults
+   */
+  BucketAllocator(final long capacity, final int [] bucketSizes) {
+    this.bucketSizes = bucketSizes == null? DEFAULT_BUCKET_SIZES: bucketSizes;
+    for (int i = 1; i < this.bucketSizes.length; i++) {
+      if (this.bucketSizes[i] <= this.bucketSizes[i - 1]) {
+        throw new IllegalArgumentException("Bucket sizes must be increasing: " +
+          Arrays.toString(this.bucketSizes));
+      }
+    }
+    this.bucketCapacity = (long)ITEMS_PER_LARGEST_BUCKET *
+      this.bucketSizes[this.bucketSizes.length - 1];
+    int count = (int)(capacity / this.bucketCapacity);
+    if (count <= 0) {
+      throw new IllegalArgumentException("Capacity " + capacity +
+        " is smaller than one bucket of " + this.bucketCapacity + " bytes");
+    }
+    this.buckets = new Bucket[count];
+    for (int i = 0; i < count; i++) {
+      this.buckets[i] = new Bucket(i * this.bucketCapacity);
+      this.freeBuckets.add(this.buckets[i]);
+    }
+    this.usedSizes = new long[this.bucketSizes.length];
+    this.bucketsWithSpace = new ArrayList<LinkedHashSet<Bucket>>();
+    for (int i = 0; i < this.bucketSizes.length; i++) {
+      this.bucketsWithSpace.add(new LinkedHashSet<Bucket>());
+    }
+  }
+
+  /**
+   * @param size length of a block
+   * @return index of the smallest size class that fits <code>size</code>,
+   * or -1 if it is too large for all of them
+   */
+  int getSizeIndex(final int size) {
+    for (int i = 0; i < this.bucketSizes.length; i++) {
+      if (size <= this.bucketSizes[i]) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return number of size classes
+   */
+  int getSizeClassCount() {
+    return this.bucketSizes.length;
+  }
+
+  /**
+   * Allocates an item for a block.
+   * @param size length of the block
+   * @return offset of the item in the engine
+   * @throws CacheFullException if there is no room in the block's size class
+   * @throws IllegalArgumentException if the block is larger than the largest
+   * size class
+   */
+  synchronized long allocate(final int size) throws CacheFullException {
+    int sizeIndex = getSizeIndex(size);
+    if (sizeIndex < 0) {
+      throw new IllegalArgumentException("Block of " + size +
+        " bytes is larger than the largest bucket size " +
+        this.bucketSizes[this.bucketSizes.length - 1]);
+    }
+    LinkedHashSet<Bucket> withSpace = this.bucketsWithSpace.get(sizeIndex);
+    Bucket bucket = withSpace.isEmpty()? null: withSpace.iterator().next();
+    if (bucket == null) {
+      bucket = this.freeBuckets.poll();
+      if (bucket == null) throw new CacheFullException(size);
+      bucket.reconfigure(sizeIndex);
+      withSpace.add(bucket);
+    }
+    long offset = bucket.allocate();
+    if (!bucket.hasFreeItem()) withSpace.remove(bucket);
+    this.usedSize += bucket.itemSize;
+    this.usedSizes[sizeIndex] += bucket.itemSize;
+    return offset;
+  }
+
+  /**
+   * Frees an item handed out by {@link #allocate(int)}.
+   * @param offset offset of the item
+   * @return size of the freed item
+   */
+  synchronized int free(final long offset) {
+    Bucket bucket = this.buckets[(int)(offset / this.bucketCapacity)];
+    boolean wasFull = !bucket.hasFreeItem();
+    bucket.free(offset);
+    this.usedSize -= bucket.itemSize;
+    this.usedSizes[bucket.sizeIndex] -= bucket.itemSize;
+    LinkedHashSet<Bucket> withSpace =
+      this.bucketsWithSpace.get(bucket.sizeIndex);
+    if (bucket.isFree()) {
+      if (!wasFull) withSpace.remove(bucket);
+      this.freeBuckets.add(bucket);
+    } else if (wasFull) {
+      withSpace.add(bucket);
+    }
+    return bucket.itemSize;
+  }
+
+  /**
+   * @return bytes taken by allocated items, including their unused tails
+   */
+  synchronized long getUsedSize() {
+    return this.usedSize;
+  }
+
+  /**
+   * @return bytes taken by the allocated items of the given size class
+   */
+  synchronized long getUsedSize(final int sizeIndex) {
+    return this.usedSizes[sizeIndex];
+  }
+
+  /**
+   * @return bytes covered by buckets; the remainder of the capacity is unused
+   */
+  long getTotalSize() {
+    return this.buckets.length * this.bucketCapacity;
+  }
+
+  /**
+   * @return number of buckets not assigned to a size class
+   */
+  synchronized int getFreeBucketCount() {
+    return this.freeBuckets.size();
+  }
+
+  /**
+   * @return true if an item of the given size class is available without
+   * freeing anything
+   */
+  synchronized boolean hasFreeItem(final int sizeIndex) {
+    return !this.freeBuckets.isEmpty() ||
+      !this.bucketsWithSpace.get(sizeIndex).isEmpty();
+  }
+}
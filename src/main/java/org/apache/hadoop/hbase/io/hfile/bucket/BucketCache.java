@@ -0,0 +1,588 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.io.hfile.BlockCache;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheColumnFamilySummary;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.CacheStats;
+import org.apache.hadoop.hbase.io.hfile.Cacheable;
+import org.apache.hadoop.hbase.io.hfile.CacheableDeserializer;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.apache.hadoop.hbase.util.IdLock;
+import org.apache.hadoop.util.StringUtils;
+
+import com.google.common.collect.MinMaxPriorityQueue;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A block cache that keeps serialized blocks outside of the java heap, in
+ * direct memory or in a memory-mapped local file (see {@link IOEngine}).
+ * <p>
+ * Space is handed out by a {@link BucketAllocator} in size classes; a block
+ * takes an item of the smallest size class that fits it. Only a small
+ * {@link BucketEntry} per block lives on the heap, so the cache can hold
+ * hundreds of gigabytes without adding to garbage collection work. Blocks are
+ * copied into the engine when cached and copied back to the heap and
+ * deserialized on every hit.
+ * <p>
+ * It is meant to be the second level behind an
+ * {@link org.apache.hadoop.hbase.io.hfile.LruBlockCache}: set it as the
+ * victim cache of the LRU cache and it receives the blocks the LRU cache
+ * evicts. When it fills up, it frees the least recently accessed blocks.
+ * <p>
+ * An item is only freed while holding the lock for its offset, and a reader
+ * holds the same lock while copying a block out, so a block is never read
+ * after its space was handed to another block.
+ */
+public class BucketCache implements BlockCache, HeapSize {
+  static final Log LOG = LogFactory.getLog(BucketCache.class);
+
+  /** Start freeing space when this fraction of the cache is used */
+  static final float DEFAULT_ACCEPTABLE_FACTOR = 0.95f;
+  /** Free space until this fraction of the cache is used */
+  static final float DEFAULT_MIN_FACTOR = 0.85f;
+  /** Fraction of a size class freed when it has no free item left */
+  static final float DEFAULT_SIZE_CLASS_FREE_FACTOR = 0.1f;
+
+  /** Statistics thread */
+  static final int statThreadPeriod = 60 * 5;
+
+  private final IOEngine ioEngine;
+  private final BucketAllocator allocator;
+  private final ConcurrentHashMap<BlockCacheKey, BucketEntry> backingMap;
+
+  /** Locks the offset of a block while it is read or freed */
+  private final IdLock offsetLock = new IdLock();
+
+  /** Held while freeing space; concurrent callers skip instead of waiting */
+  private final ReentrantLock freeSpaceLock = new ReentrantLock();
+
+  private final ScheduledExecutorService scheduleThreadPool =
+    Executors.newScheduledThreadPool(1,
+      new ThreadFactoryBuilder()
+        .setNameFormat("BucketCache.StatisticsThread")
+        .setDaemon(true)
+        .build());
+
+  private final CacheStats stats = new CacheStats();
+  private final AtomicLong accessCount = new AtomicLong(0);
+  /** Heap used by the entries of the backing map */
+  private final AtomicLong heapSize = new AtomicLong(0);
+  /** Sum of the lengths of the cached blocks */
+  private final AtomicLong blockSize = new AtomicLong(0);
+  /** Blocks that could not be cached for lack of space or an IO error */
+  private final AtomicLong failedInsertCount = new AtomicLong(0);
+
+  private volatile boolean cacheEnabled = true;
+
+  /**
+   * @param ioEngineName "offheap" for direct memory, "heap" for heap memory
+   * (tests only) or "file:" followed by the path of a local file
+   * @param capacity size of the cache, in bytes
+   * @param bucketSizes item sizes in increasing order, null for defaults
+   * @throws IOException if the file cannot be mapped
+   */
+  public BucketCache(String ioEngineName, long capacity, int [] bucketSizes)
+  throws IOException {
+    this(getIOEngineFromName(ioEngineName, capacity), capacity, bucketSizes);
+  }
+
+  BucketCache(IOEngine ioEngine, long capacity, int [] bucketSizes) {
+    this.ioEngine = ioEngine;
+    this.allocator = new BucketAllocator(capacity, bucketSizes);
+    this.backingMap = new ConcurrentHashMap<BlockCacheKey, BucketEntry>();
+    this.scheduleThreadPool.scheduleAtFixedRate(new StatisticsThread(this),
+        statThreadPeriod, statThreadPeriod, TimeUnit.SECONDS);
+    LOG.info("Started bucket cache; ioEngine=" + ioEngine +
+      ", capacity=" + StringUtils.byteDesc(capacity));
+  }
+
+  static IOEngine getIOEngineFromName(String ioEngineName, long capacity)
+  throws IOException {
+    if (ioEngineName.startsWith("file:")) {
+      return new FileMmapIOEngine(ioEngineName.substring(5), capacity);
+    } else if (ioEngineName.equals("offheap")) {
+      return new ByteBufferIOEngine(capacity, true);
+    } else if (ioEngineName.equals("heap")) {
+      return new ByteBufferIOEngine(capacity, false);
+    }
+    throw new IllegalArgumentException("Unknown bucket cache IO engine " +
+      ioEngineName + ", expected \"offheap\" or \"file:<path>\"");
+  }
+
+  /**
+   * Cache the block with the specified key. Blocks larger than the largest
+   * size class, or that do not fit after freeing space, are not cached.
+   * Caching a block that is already cached is a no-op.
+   * @param cacheKey block's cache key
+   * @param buf block buffer
+   * @param inMemory ignored; all blocks are treated alike
+   */
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf,
+      boolean inMemory) {
+    if (!this.cacheEnabled || this.backingMap.containsKey(cacheKey)) return;
+    int len = buf.getSerializedLength();
+    int sizeIndex = this.allocator.getSizeIndex(len);
+    if (len <= 0 || sizeIndex < 0) {
+      this.failedInsertCount.incrementAndGet();
+      return;
+    }
+    long offset;
+    try {
+      offset = allocate(len, sizeIndex);
+    } catch (BucketAllocator.CacheFullException e) {
+      this.failedInsertCount.incrementAndGet();
+      return;
+    }
+    ByteBuffer bb = ByteBuffer.allocate(len);
+    buf.serialize(bb);
+    bb.rewind();
+    try {
+      this.ioEngine.write(bb, offset);
+    } catch (IOException e) {
+      LOG.warn("Failed writing block " + cacheKey + " to the bucket cache", e);
+      this.allocator.free(offset);
+      this.failedInsertCount.incrementAndGet();
+      return;
+    }
+    BucketEntry entry = new BucketEntry(offset, len, buf.getDeserializer(),
+      this.accessCount.incrementAndGet());
+    if (this.backingMap.putIfAbsent(cacheKey, entry) != null) {
+      // Lost a race with another thread caching the same block. Nobody else
+      // has seen our offset, so it can be freed without the offset lock.
+      this.allocator.free(offset);
+      return;
+    }
+    this.heapSize.addAndGet(cacheKey.heapSize() + BucketEntry.PER_ENTRY_OVERHEAD);
+    this.blockSize.addAndGet(len);
+  }
+
+  @Override
+  public void cacheBlock(BlockCacheKey cacheKey, Cacheable buf) {
+    cacheBlock(cacheKey, buf, false);
+  }
+
+  /*
+   * Allocates an item, freeing space first when the cache is nearly full or
+   * the block's size class has run out of items.
+   */
+  private long allocate(int len, int sizeIndex)
+  throws BucketAllocator.CacheFullException {
+    if (this.allocator.getUsedSize() > acceptableSize()) {
+      freeSpace(-1);
+    }
+    try {
+      return this.allocator.allocate(len);
+    } catch (BucketAllocator.CacheFullException e) {
+      freeSpace(sizeIndex);
+      return this.allocator.allocate(len);
+    }
+  }
+
+  /**
+   * Evicts the least recently accessed blocks. If <code>sizeIndex</code> is
+   * not negative and that size class has no free item, some of its own
+   * blocks are evicted first; then blocks of all size classes are evicted
+   * until the used space is below the minimum factor.
+   * <p>
+   * Like the eviction of the LRU cache, the map is scanned once into a
+   * bounded queue per size class that only keeps the oldest blocks, enough
+   * to free what is needed, rather than sorting all the blocks.
+   * @param sizeIndex size class that needs an item, or -1
+   */
+  void freeSpace(final int sizeIndex) {
+    // Only one thread frees space; the others do not wait for it
+    if (!this.freeSpaceLock.tryLock()) return;
+    try {
+      this.stats.evict();
+      long bytesToFree = this.allocator.getUsedSize() - minSize();
+      long sizeClassBytesToFree = 0;
+      if (sizeIndex >= 0 && !this.allocator.hasFreeItem(sizeIndex)) {
+        // At least one block
+        sizeClassBytesToFree = Math.max(1, (long)(
+          this.allocator.getUsedSize(sizeIndex) *
+          DEFAULT_SIZE_CLASS_FREE_FACTOR));
+      }
+      if (bytesToFree <= 0 && sizeClassBytesToFree <= 0) return;
+
+      CandidateQueue [] queues =
+        new CandidateQueue[this.allocator.getSizeClassCount()];
+      for (int i = 0; i < queues.length; i++) {
+        queues[i] = new CandidateQueue(i == sizeIndex?
+          Math.max(bytesToFree, sizeClassBytesToFree): bytesToFree);
+      }
+      for (Map.Entry<BlockCacheKey, BucketEntry> e :
+          this.backingMap.entrySet()) {
+        int i = this.allocator.getSizeIndex(e.getValue().length);
+        if (i >= 0) queues[i].add(new Candidate(e.getKey(), e.getValue()));
+      }
+
+      if (sizeClassBytesToFree > 0) {
+        long freed = 0;
+        Candidate c;
+        while (freed < sizeClassBytesToFree &&
+            (c = queues[sizeIndex].poll()) != null) {
+          if (evictEntry(c.key, c.entry)) freed += c.entry.length;
+        }
+      }
+
+      // Evict the oldest of the remaining candidates of all size classes
+      long minSize = minSize();
+      if (this.allocator.getUsedSize() <= minSize) return;
+      PriorityQueue<Candidate> oldest = new PriorityQueue<Candidate>();
+      for (CandidateQueue queue : queues) {
+        Candidate c;
+        while ((c = queue.poll()) != null) {
+          oldest.add(c);
+        }
+      }
+      Candidate c;
+      while (this.allocator.getUsedSize() > minSize &&
+          (c = oldest.poll()) != null) {
+        evictEntry(c.key, c.entry);
+      }
+    } finally {
+      this.freeSpaceLock.unlock();
+    }
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    final BlockCacheKey key;
+    final BucketEntry entry;
+    final long accessTime;
+
+    Candidate(BlockCacheKey key, BucketEntry entry) {
+      this.key = key;
+      this.entry = entry;
+      this.accessTime = entry.accessTime;
+    }
+
+    public int compareTo(Candidate that) {
+      return this.accessTime < that.accessTime? -1:
+        this.accessTime > that.accessTime? 1: 0;
+    }
+  }
+
+  /*
+   * Keeps the least recently accessed candidates added to it, as few as
+   * possible to reach the given number of bytes.
+   */
+  private static class CandidateQueue {
+    private final MinMaxPriorityQueue<Candidate> queue =
+      MinMaxPriorityQueue.create();
+    private final long maxSize;
+    private long size = 0;
+
+    CandidateQueue(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    void add(Candidate c) {
+      if (this.maxSize <= 0) return;
+      if (this.size < this.maxSize) {
+        this.queue.add(c);
+        this.size += c.entry.length;
+        return;
+      }
+      Candidate newest = this.queue.peekLast();
+      if (c.compareTo(newest) < 0) {
+        this.queue.add(c);
+        this.size += c.entry.length;
+        // Drop the newest while the others are enough
+        if (this.size - newest.entry.length >= this.maxSize) {
+          this.queue.pollLast();
+          this.size -= newest.entry.length;
+        }
+      }
+    }
+
+    /**
+     * @return the least recently accessed candidate, or null
+     */
+    Candidate poll() {
+      return this.queue.poll();
+    }
+  }
+
+  /**
+   * Get the block with the specified key, copied back onto the heap.
+   * @param key block's cache key
+   * @param caching true if the caller caches blocks on cache misses
+   * @param repeat Whether this is a repeat lookup for the same block
+   * @return the block, or null if not in cache
+   */
+  @Override
+  public Cacheable getBlock(BlockCacheKey key, boolean caching,
+      boolean repeat) {
+    BucketEntry entry = this.cacheEnabled? this.backingMap.get(key): null;
+    if (entry != null) {
+      boolean failed = false;
+      IdLock.Entry lockEntry = null;
+      try {
+        lockEntry = this.offsetLock.getLockEntry(entry.offset);
+        // The entry may have been evicted, and its space reused, before we
+        // got the lock
+        if (this.backingMap.get(key) == entry) {
+          ByteBuffer bb = ByteBuffer.allocate(entry.length);
+          this.ioEngine.read(bb, entry.offset);
+          bb.rewind();
+          Cacheable block = entry.deserializer.deserialize(bb);
+          entry.accessTime = this.accessCount.incrementAndGet();
+          this.stats.hit(caching);
+          return block;
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed reading block " + key + " from the bucket cache", e);
+        failed = true;
+      } finally {
+        if (lockEntry != null) this.offsetLock.releaseLockEntry(lockEntry);
+      }
+      if (failed) evictEntry(key, entry);
+    }
+    if (!repeat) this.stats.miss(caching);
+    return null;
+  }
+
+  @Override
+  public boolean evictBlock(BlockCacheKey cacheKey) {
+    BucketEntry entry = this.backingMap.get(cacheKey);
+    return entry != null && evictEntry(cacheKey, entry);
+  }
+
+  /*
+   * Removes the entry from the map and frees its space.
+   * @return false if the key was no longer mapped to the entry
+   */
+  private boolean evictEntry(BlockCacheKey key, BucketEntry entry) {
+    if (!this.backingMap.remove(key, entry)) return false;
+    IdLock.Entry lockEntry = lockOffsetUninterruptibly(entry.offset);
+    try {
+      this.allocator.free(entry.offset);
+    } finally {
+      this.offsetLock.releaseLockEntry(lockEntry);
+    }
+    this.heapSize.addAndGet(-(key.heapSize() + BucketEntry.PER_ENTRY_OVERHEAD));
+    this.blockSize.addAndGet(-entry.length);
+    this.stats.evicted();
+    return true;
+  }
+
+  /*
+   * Freeing an item must not be skipped, or its space would be lost for good.
+   */
+  private IdLock.Entry lockOffsetUninterruptibly(long offset) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return this.offsetLock.getLockEntry(offset);
+        } catch (IOException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public int evictBlocksByHfileName(String hfileName) {
+    int numEvicted = 0;
+    for (BlockCacheKey key : this.backingMap.keySet()) {
+      if (key.getHfileName().equals(hfileName)) {
+        if (evictBlock(key)) ++numEvicted;
+      }
+    }
+    return numEvicted;
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return this.stats;
+  }
+
+  /**
+   * @return number of blocks that could not be cached
+   */
+  public long getFailedInsertCount() {
+    return this.failedInsertCount.get();
+  }
+
+  @Override
+  public void shutdown() {
+    this.cacheEnabled = false;
+    this.scheduleThreadPool.shutdown();
+    this.backingMap.clear();
+    this.ioEngine.shutdown();
+  }
+
+  public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
+      (11 * ClassSize.REFERENCE) + Bytes.SIZEOF_BOOLEAN + ClassSize.OBJECT);
+
+  // HeapSize implementation
+  @Override
+  public long heapSize() {
+    return CACHE_FIXED_OVERHEAD + this.heapSize.get();
+  }
+
+  /**
+   * @return capacity of the cache, in bytes
+   */
+  @Override
+  public long size() {
+    return this.allocator.getTotalSize();
+  }
+
+  @Override
+  public long getFreeSize() {
+    return this.allocator.getTotalSize() - this.allocator.getUsedSize();
+  }
+
+  @Override
+  public long getCurrentSize() {
+    return this.allocator.getUsedSize();
+  }
+
+  @Override
+  public long getEvictedCount() {
+    return this.stats.getEvictedCount();
+  }
+
+  @Override
+  public long getBlockCount() {
+    return this.backingMap.size();
+  }
+
+  /*
+   * Not implemented, like the other off heap caches.
+   */
+  @Override
+  public List<BlockCacheColumnFamilySummary> getBlockCacheColumnFamilySummaries(
+      Configuration conf) {
+    throw new UnsupportedOperationException();
+  }
+
+  /*
+   * Priorities are not tracked. Blocks here were pushed out of the first
+   * level cache, so they are reported as single access.
+   */
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys =
+      new HashMap<BlockCacheKey, CachedBlock.BlockPriority>();
+    for (BlockCacheKey key : this.backingMap.keySet()) {
+      if (hfileNames.contains(key.getHfileName())) {
+        keys.put(key, CachedBlock.BlockPriority.SINGLE);
+      }
+    }
+    return keys;
+  }
+
+  private long acceptableSize() {
+    return (long)Math.floor(this.allocator.getTotalSize() *
+      DEFAULT_ACCEPTABLE_FACTOR);
+  }
+
+  private long minSize() {
+    return (long)Math.floor(this.allocator.getTotalSize() * DEFAULT_MIN_FACTOR);
+  }
+
+  public void logStats() {
+    if (!LOG.isDebugEnabled()) return;
+    long totalSize = this.allocator.getTotalSize();
+    long usedSize = this.allocator.getUsedSize();
+    LOG.debug("Stats: " +
+        "used=" + StringUtils.byteDesc(usedSize) + ", " +
+        "blocks=" + StringUtils.byteDesc(this.blockSize.get()) + ", " +
+        "free=" + StringUtils.byteDesc(totalSize - usedSize) + ", " +
+        "max=" + StringUtils.byteDesc(totalSize) + ", " +
+        "blockCount=" + getBlockCount() + ", " +
+        "freeBuckets=" + this.allocator.getFreeBucketCount() + ", " +
+        "accesses=" + this.stats.getRequestCount() + ", " +
+        "hits=" + this.stats.getHitCount() + ", " +
+        "hitRatio=" + (this.stats.getHitCount() == 0? "0":
+          StringUtils.formatPercent(this.stats.getHitRatio(), 2)) + ", " +
+        "failedInserts=" + this.failedInsertCount.get() + ", " +
+        "evictions=" + this.stats.getEvictionCount() + ", " +
+        "evicted=" + this.stats.getEvictedCount());
+  }
+
+  /*
+   * Statistics thread.  Periodically prints the cache statistics to the log.
+   */
+  static class StatisticsThread extends Thread {
+    private final BucketCache cache;
+
+    public StatisticsThread(BucketCache cache) {
+      super("BucketCache.StatisticsThread");
+      setDaemon(true);
+      this.cache = cache;
+    }
+
+    @Override
+    public void run() {
+      this.cache.logStats();
+    }
+  }
+
+  /**
+   * Where a block lives in the engine, and how to turn it back into a
+   * {@link Cacheable}.
+   */
+  static class BucketEntry {
+    static final long PER_ENTRY_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+      2 * Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT + ClassSize.REFERENCE) +
+      ClassSize.CONCURRENT_HASHMAP_ENTRY;
+
+    final long offset;
+    final int length;
+    final CacheableDeserializer<Cacheable> deserializer;
+    volatile long accessTime;
+
+    BucketEntry(long offset, int length,
+        CacheableDeserializer<Cacheable> deserializer, long accessTime) {
+      this.offset = offset;
+      this.length = length;
+      this.deserializer = deserializer;
+      this.accessTime = accessTime;
+    }
+  }
+}
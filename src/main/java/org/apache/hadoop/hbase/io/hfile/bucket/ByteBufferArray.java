@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A run of equally sized {@link ByteBuffer}s addressed as one long range.
+ * A single ByteBuffer is limited to 2GB, so large engines are made of many
+ * of them; reads and writes may cross buffer boundaries.
+ */
+class ByteBufferArray {
+  private final ByteBuffer [] buffers;
+  private final int bufferSize;
+
+  /**
+   * @param buffers the buffers; all but the last must hold
+   * <code>bufferSize</code> bytes
+   * @param bufferSize size of each buffer
+   */
+  ByteBufferArray(final ByteBuffer [] buffers, final int bufferSize) {
+    this.buffers = buffers;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Copies <code>dst.remaining()</code> bytes starting at <code>offset</code>
+   * into <code>dst</code>.
+   */
+  void getMultiple(final long offset, final ByteBuffer dst) {
+    long pos = offset;
+    while (dst.hasRemaining()) {
+      int index = (int)(pos / this.bufferSize);
+      int inBuffer = (int)(pos % this.bufferSize);
+      int len = Math.min(dst.remaining(), this.bufferSize - inBuffer);
+      ByteBuffer src = this.buffers[index].duplicate();
+      src.limit(inBuffer + len).position(inBuffer);
+      dst.put(src);
+      pos += len;
+    }
+  }
+
+  /**
+   * Copies the remaining bytes of <code>src</code> to <code>offset</code>.
+   */
+  void putMultiple(final long offset, final ByteBuffer src) {
+    long pos = offset;
+    while (src.hasRemaining()) {
+      int index = (int)(pos / this.bufferSize);
+      int inBuffer = (int)(pos % this.bufferSize);
+      int len = Math.min(src.remaining(), this.bufferSize - inBuffer);
+      ByteBuffer dst = this.buffers[index].duplicate();
+      dst.position(inBuffer);
+      ByteBuffer part = src.duplicate();
+      part.limit(part.position() + len);
+      dst.put(part);
+      src.position(src.position() + len);
+      pos += len;
+    }
+  }
+
+  ByteBuffer [] getBuffers() {
+    return this.buffers;
+  }
+}
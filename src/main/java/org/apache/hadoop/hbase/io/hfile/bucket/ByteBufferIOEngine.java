@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IO engine that keeps the cached blocks in direct (off-heap) memory, or in
+ * heap byte arrays when <code>direct</code> is false (used in tests).
+ */
+public class ByteBufferIOEngine implements IOEngine {
+  /** Size of each of the buffers the capacity is split into */
+  static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private final long capacity;
+  private final ByteBufferArray bufferArray;
+
+  /**
+   * @param capacity total size of the engine in bytes
+   * @param direct whether to allocate direct buffers
+   */
+  public ByteBufferIOEngine(final long capacity, final boolean direct) {
+    this.capacity = capacity;
+    int count = (int)((capacity + BUFFER_SIZE - 1) / BUFFER_SIZE);
+    ByteBuffer [] buffers = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      int size = (int)Math.min(BUFFER_SIZE, capacity - (long)i * BUFFER_SIZE);
+      buffers[i] = direct? ByteBuffer.allocateDirect(size):
+        ByteBuffer.allocate(size);
+    }
+    this.bufferArray = new ByteBufferArray(buffers, BUFFER_SIZE);
+  }
+
+  @Override
+  public boolean isPersistent() {
+    return false;
+  }
+
+  @Override
+  public void read(ByteBuffer dstBuffer, long offset) {
+    this.bufferArray.getMultiple(offset, dstBuffer);
+  }
+
+  @Override
+  public void write(ByteBuffer srcBuffer, long offset) {
+    this.bufferArray.putMultiple(offset, srcBuffer);
+  }
+
+  @Override
+  public void sync() {
+    // Nothing to do
+  }
+
+  @Override
+  public void shutdown() {
+    // The buffers are not freed eagerly: a reader may still be copying from
+    // them. They go away with the engine once nothing references it.
+  }
+
+  @Override
+  public String toString() {
+    return "ByteBufferIOEngine, capacity=" + this.capacity;
+  }
+}
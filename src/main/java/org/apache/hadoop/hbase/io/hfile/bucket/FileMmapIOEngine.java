@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * IO engine that keeps the cached blocks in a memory-mapped local file, for
+ * example on a local SSD. The file is mapped in chunks of at most
+ * {@link #MAP_SIZE} bytes; the OS pages the contents in and out so the cache
+ * can be larger than physical memory.
+ */
+public class FileMmapIOEngine implements IOEngine {
+  static final Log LOG = LogFactory.getLog(FileMmapIOEngine.class);
+
+  /** Size of each mapped region of the file */
+  static final int MAP_SIZE = 1024 * 1024 * 1024;
+
+  private final String path;
+  private final long capacity;
+  private final RandomAccessFile raf;
+  private final ByteBufferArray bufferArray;
+
+  /**
+   * @param path the file to map; created if it does not exist
+   * @param capacity size of the file in bytes
+   * @throws IOException
+   */
+  public FileMmapIOEngine(final String path, final long capacity)
+  throws IOException {
+    this(path, capacity, MAP_SIZE);
+  }
+
+  FileMmapIOEngine(final String path, final long capacity, final int mapSize)
+  throws IOException {
+    this.path = path;
+    this.capacity = capacity;
+    this.raf = new RandomAccessFile(path, "rw");
+    try {
+      this.raf.setLength(capacity);
+      FileChannel channel = this.raf.getChannel();
+      int count = (int)((capacity + mapSize - 1) / mapSize);
+      ByteBuffer [] buffers = new ByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long position = (long)i * mapSize;
+        buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+          Math.min(mapSize, capacity - position));
+      }
+      this.bufferArray = new ByteBufferArray(buffers, mapSize);
+    } catch (IOException e) {
+      this.raf.close();
+      throw e;
+    }
+    LOG.info("Mapped " + path + ", capacity=" + capacity);
+  }
+
+  /**
+   * The file outlives the process, but the cache index does not, so the
+   * contents are not reused on restart.
+   */
+  @Override
+  public boolean isPersistent() {
+    return false;
+  }
+
+  @Override
+  public void read(ByteBuffer dstBuffer, long offset) {
+    this.bufferArray.getMultiple(offset, dstBuffer);
+  }
+
+  @Override
+  public void write(ByteBuffer srcBuffer, long offset) {
+    this.bufferArray.putMultiple(offset, srcBuffer);
+  }
+
+  @Override
+  public void sync() {
+    for (ByteBuffer buffer : this.bufferArray.getBuffers()) {
+      ((MappedByteBuffer)buffer).force();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    // Closing the file leaves the mappings valid, so a reader still copying
+    // from them is safe; they are unmapped once garbage collected.
+    try {
+      this.raf.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close " + this.path, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FileMmapIOEngine, path=" + this.path + ", capacity=" + this.capacity;
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage behind a {@link BucketCache}: a flat, fixed capacity address
+ * space that blocks are copied into and out of.
+ */
+public interface IOEngine {
+
+  /**
+   * @return true if the contents survive a restart of the process
+   */
+  boolean isPersistent();
+
+  /**
+   * Transfers data from the engine into the given buffer, filling it from
+   * its position up to its limit.
+   * @param dstBuffer the buffer to fill
+   * @param offset the offset in the engine to read from
+   * @throws IOException
+   */
+  void read(ByteBuffer dstBuffer, long offset) throws IOException;
+
+  /**
+   * Transfers the remaining bytes of the given buffer into the engine.
+   * @param srcBuffer the buffer to copy from
+   * @param offset the offset in the engine to write to
+   * @throws IOException
+   */
+  void write(ByteBuffer srcBuffer, long offset) throws IOException;
+
+  /**
+   * Flushes outstanding writes to the underlying storage.
+   * @throws IOException
+   */
+  void sync() throws IOException;
+
+  /**
+   * Releases the resources held by the engine.
+   */
+  void shutdown();
+}
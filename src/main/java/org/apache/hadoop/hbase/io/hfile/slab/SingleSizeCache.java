@@ -20,9 +20,17 @@
 package org.apache.hadoop.hbase.io.hfile.slab;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +42,7 @@ import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
 import org.apache.hadoop.hbase.io.hfile.CacheStats;
 import org.apache.hadoop.hbase.io.hfile.Cacheable;
 import org.apache.hadoop.hbase.io.hfile.CacheableDeserializer;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.util.StringUtils;
@@ -52,18 +61,25 @@ import com.google.common.cache.RemovalNotification;
  * Eviction and LRUness is taken care of by Guava's MapMaker, which creates a
  * ConcurrentLinkedHashMap.
  *
+ * The cache can grow or shrink by whole pages of memory, see
+ * {@link #addPages(List)} and {@link #releasePages(int)}.
  **/
 public class SingleSizeCache implements BlockCache, HeapSize {
   private final Slab backingStore;
-  private final ConcurrentMap<BlockCacheKey, CacheablePair> backingMap;
-  private final int numBlocks;
+  private volatile ConcurrentMap<BlockCacheKey, CacheablePair> backingMap;
+  private volatile int numBlocks;
   private final int blockSize;
   private final CacheStats stats;
   private final SlabItemActionWatcher actionWatcher;
   private final AtomicLong size;
   private final AtomicLong timeSinceLastAccess;
+  /** Bytes of cached data, to measure the space lost to fixed size blocks */
+  private final AtomicLong storedSize = new AtomicLong();
+  /** Held to cache or evict, and exclusively to add or release pages */
+  private final ReentrantReadWriteLock resizeLock =
+    new ReentrantReadWriteLock();
   public final static long CACHE_FIXED_OVERHEAD = ClassSize
-      .align((2 * Bytes.SIZEOF_INT) + (5 * ClassSize.REFERENCE)
+      .align((2 * Bytes.SIZEOF_INT) + (7 * ClassSize.REFERENCE)
           + +ClassSize.OBJECT);
 
   static final Log LOG = LogFactory.getLog(SingleSizeCache.class);
@@ -88,7 +104,11 @@ public class SingleSizeCache implements BlockCache, HeapSize {
     this.actionWatcher = master;
     this.size = new AtomicLong(CACHE_FIXED_OVERHEAD + backingStore.heapSize());
     this.timeSinceLastAccess = new AtomicLong();
+    this.backingMap = createBackingMap(numBlocks);
+  }
 
+  private ConcurrentMap<BlockCacheKey, CacheablePair> createBackingMap(
+      int numBlocks) {
     // This evictionListener is called whenever the cache automatically
     // evicts
     // something.
@@ -110,45 +130,53 @@ public class SingleSizeCache implements BlockCache, HeapSize {
         }
       };
 
-    backingMap = CacheBuilder.newBuilder()
-        .maximumSize(numBlocks - 1)
+    return CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, numBlocks - 1))
         .removalListener(listener)
         .<BlockCacheKey, CacheablePair>build()
         .asMap();
-
-
   }
 
   @Override
   public void cacheBlock(BlockCacheKey blockName, Cacheable toBeCached) {
-    ByteBuffer storedBlock;
-
+    resizeLock.readLock().lock();
     try {
-      storedBlock = backingStore.alloc(toBeCached.getSerializedLength());
-    } catch (InterruptedException e) {
-      LOG.warn("SlabAllocator was interrupted while waiting for block to become available");
-      LOG.warn(e);
-      return;
-    }
+      if (numBlocks == 0) {
+        return; // no memory to cache in
+      }
+      // Never wait for a block with the lock held: releasePages needs the
+      // write lock, and would wait for us while we wait for a free block.
+      // The map evicts to keep a block free, so none only when concurrent
+      // inserts are still freeing theirs; skip caching this one.
+      ByteBuffer storedBlock =
+        backingStore.tryAlloc(toBeCached.getSerializedLength());
+      if (storedBlock == null) {
+        stats.reject();
+        return;
+      }
 
-    CacheablePair newEntry = new CacheablePair(toBeCached.getDeserializer(),
-        storedBlock);
-    toBeCached.serialize(storedBlock);
+      CacheablePair newEntry = new CacheablePair(toBeCached.getDeserializer(),
+          storedBlock, backingStore.getPage(storedBlock));
+      toBeCached.serialize(storedBlock);
 
-    synchronized (this) {
-      CacheablePair alreadyCached = backingMap.putIfAbsent(blockName, newEntry);
-    
+      synchronized (this) {
+        CacheablePair alreadyCached = backingMap.putIfAbsent(blockName, newEntry);
 
-      if (alreadyCached != null) {
-        backingStore.free(storedBlock);
-        throw new RuntimeException("already cached " + blockName);
-      }
-      if (actionWatcher != null) {
-        actionWatcher.onInsertion(blockName, this);
+
+        if (alreadyCached != null) {
+          backingStore.free(storedBlock);
+          throw new RuntimeException("already cached " + blockName);
+        }
+        if (actionWatcher != null) {
+          actionWatcher.onInsertion(blockName, this);
+        }
       }
+      newEntry.recentlyAccessed.set(System.nanoTime());
+      this.size.addAndGet(newEntry.heapSize());
+      this.storedSize.addAndGet(storedBlock.limit());
+    } finally {
+      resizeLock.readLock().unlock();
     }
-    newEntry.recentlyAccessed.set(System.nanoTime());
-    this.size.addAndGet(newEntry.heapSize());
   }
 
   @Override
@@ -186,15 +214,107 @@ public class SingleSizeCache implements BlockCache, HeapSize {
    */
   public boolean evictBlock(BlockCacheKey key) {
     stats.evict();
-    CacheablePair evictedBlock = backingMap.remove(key);
+    CacheablePair evictedBlock;
+    resizeLock.readLock().lock();
+    try {
+      evictedBlock = backingMap.remove(key);
 
-    if (evictedBlock != null) {
-      doEviction(key, evictedBlock);
+      if (evictedBlock != null) {
+        doEviction(key, evictedBlock);
+      }
+    } finally {
+      resizeLock.readLock().unlock();
     }
     return evictedBlock != null;
 
   }
 
+  /**
+   * Grows this cache by the given pages of memory.
+   * @param pages direct buffers, each at least one block large
+   */
+  public void addPages(List<ByteBuffer> pages) {
+    if (pages.isEmpty()) return;
+    resizeLock.writeLock().lock();
+    try {
+      for (ByteBuffer page : pages) {
+        backingStore.addPage(page);
+      }
+      resize();
+    } finally {
+      resizeLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Shrinks this cache by whole pages of memory. The pages with the fewest
+   * cached blocks are chosen, and their blocks evicted.
+   * @param count the number of pages to release
+   * @return the released pages, at most count of them
+   */
+  public List<ByteBuffer> releasePages(int count) {
+    resizeLock.writeLock().lock();
+    try {
+      List<ByteBuffer> pages = backingStore.getPages();
+      if (count <= 0 || pages.isEmpty()) {
+        return Collections.emptyList();
+      }
+      // Count the cached blocks of each page
+      final Map<ByteBuffer, Integer> used =
+        new IdentityHashMap<ByteBuffer, Integer>();
+      Map<BlockCacheKey, CacheablePair> cached =
+        new HashMap<BlockCacheKey, CacheablePair>(backingMap);
+      for (CacheablePair pair : cached.values()) {
+        ByteBuffer page = pair.page;
+        Integer n = used.get(page);
+        used.put(page, n == null ? 1 : n + 1);
+      }
+      Collections.sort(pages, new Comparator<ByteBuffer>() {
+        @Override
+        public int compare(ByteBuffer a, ByteBuffer b) {
+          Integer ua = used.get(a);
+          Integer ub = used.get(b);
+          return (ua == null ? 0 : ua) - (ub == null ? 0 : ub);
+        }
+      });
+      List<ByteBuffer> released =
+        new ArrayList<ByteBuffer>(pages.subList(0, Math.min(count, pages.size())));
+      Set<ByteBuffer> releasedSet = Collections.newSetFromMap(
+        new IdentityHashMap<ByteBuffer, Boolean>());
+      releasedSet.addAll(released);
+
+      // Evict what lives in the released pages, then take them out
+      for (Map.Entry<BlockCacheKey, CacheablePair> e : cached.entrySet()) {
+        if (releasedSet.contains(e.getValue().page) &&
+            backingMap.remove(e.getKey(), e.getValue())) {
+          stats.evict();
+          doEviction(e.getKey(), e.getValue());
+        }
+      }
+      backingStore.removePages(releasedSet);
+      resize();
+      return released;
+    } finally {
+      resizeLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Moves the cached blocks to a map bounded by the current number of
+   * blocks. Called with the write lock held.
+   */
+  private void resize() {
+    int oldNumBlocks = numBlocks;
+    numBlocks = backingStore.getBlockCapacity();
+    ConcurrentMap<BlockCacheKey, CacheablePair> newMap =
+      createBackingMap(numBlocks);
+    // Blocks that no longer fit are evicted by the new map
+    newMap.putAll(backingMap);
+    backingMap = newMap;
+    LOG.info("Resized slab of blockSize " + blockSize + " from " +
+        oldNumBlocks + " to " + numBlocks + " blocks");
+  }
+
   private void doEviction(BlockCacheKey key, CacheablePair evictedBlock) {
     long evictedHeap = 0;
     synchronized (evictedBlock) {
@@ -204,6 +324,7 @@ public class SingleSizeCache implements BlockCache, HeapSize {
       }
       evictedHeap = evictedBlock.heapSize();
       ByteBuffer bb = evictedBlock.serializedData;
+      storedSize.addAndGet(-bb.limit());
       evictedBlock.serializedData = null;
       backingStore.free(bb);
 
@@ -281,6 +402,24 @@ public class SingleSizeCache implements BlockCache, HeapSize {
     return (long) (numBlocks - backingStore.getBlocksRemaining()) * (long) blockSize;
   }
 
+  /**
+   * @return the bytes of cached data, at most {@link #getOccupiedSize()}
+   */
+  public long getStoredSize() {
+    return storedSize.get();
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @return the number of pages of memory, if the cache is built from pages
+   */
+  public int getPageCount() {
+    return backingStore.getPages().size();
+  }
+
   public long getEvictedCount() {
     return stats.getEvictedCount();
   }
@@ -330,17 +469,36 @@ public class SingleSizeCache implements BlockCache, HeapSize {
     throw new UnsupportedOperationException();
   }
 
+  /*
+   * Priorities are not tracked, every block is reported as single access.
+   */
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys =
+      new HashMap<BlockCacheKey, CachedBlock.BlockPriority>();
+    for (BlockCacheKey key : backingMap.keySet()) {
+      if (hfileNames.contains(key.getHfileName())) {
+        keys.put(key, CachedBlock.BlockPriority.SINGLE);
+      }
+    }
+    return keys;
+  }
+
   /* Just a pair class, holds a reference to the parent cacheable */
   private class CacheablePair implements HeapSize {
     final CacheableDeserializer<Cacheable> deserializer;
     ByteBuffer serializedData;
     AtomicLong recentlyAccessed;
+    /** The page the data is in, if the slab is built from pages */
+    final ByteBuffer page;
 
     private CacheablePair(CacheableDeserializer<Cacheable> deserializer,
-        ByteBuffer serializedData) {
+        ByteBuffer serializedData, ByteBuffer page) {
       this.recentlyAccessed = new AtomicLong();
       this.deserializer = deserializer;
       this.serializedData = serializedData;
+      this.page = page;
     }
 
     /*
@@ -350,7 +508,7 @@ public class SingleSizeCache implements BlockCache, HeapSize {
      */
     @Override
     public long heapSize() {
-      return ClassSize.align(ClassSize.OBJECT + ClassSize.REFERENCE * 3
+      return ClassSize.align(ClassSize.OBJECT + ClassSize.REFERENCE * 4
           + ClassSize.ATOMIC_LONG);
     }
   }
@@ -20,6 +20,13 @@
 package org.apache.hadoop.hbase.io.hfile.slab;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -33,6 +40,10 @@ import com.google.common.base.Preconditions;
  * Slab is a class which is designed to allocate blocks of a certain size.
  * Constructor creates a number of DirectByteBuffers and slices them into the
  * requisite size, then puts them all in a buffer.
+ * <p>
+ * A slab can also be built from pages handed to it at runtime, which it can
+ * give back once none of their blocks are in use, so that memory moves
+ * between slabs of different block sizes.
  **/
 
 class Slab implements org.apache.hadoop.hbase.io.HeapSize {
@@ -44,8 +55,15 @@ class Slab implements org.apache.hadoop.hbase.io.HeapSize {
   /** This is where our Slabs are stored */
   private ConcurrentLinkedQueue<ByteBuffer> slabs;
 
+  /** The pages handed to this slab, also in slabs */
+  private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+
+  /** The page of each block, by identity, for slabs built from pages */
+  private final Map<ByteBuffer, ByteBuffer> pageOfBlock =
+    Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, ByteBuffer>());
+
   private final int blockSize;
-  private final int numBlocks;
+  private volatile int numBlocks;
   private long heapSize;
 
   Slab(int blockSize, int numBlocks) {
@@ -82,6 +100,80 @@ class Slab implements org.apache.hadoop.hbase.io.HeapSize {
     }
   }
 
+  /**
+   * Slices a page into blocks of this slab. The tail of the page that is
+   * smaller than a block is unused.
+   * @param page a direct buffer, at least one block large
+   */
+  synchronized void addPage(ByteBuffer page) {
+    int pageBlocks = page.capacity() / blockSize;
+    Preconditions.checkArgument(pageBlocks > 0, "Page smaller than a block");
+    slabs.add(page);
+    pages.add(page);
+    for (int j = 0; j < pageBlocks * blockSize; j += blockSize) {
+      page.limit(j + blockSize).position(j);
+      ByteBuffer aSlice = page.slice();
+      pageOfBlock.put(aSlice, page);
+      buffers.add(aSlice);
+      heapSize += ClassSize.estimateBase(aSlice.getClass(), false);
+    }
+    page.clear();
+    numBlocks += pageBlocks;
+  }
+
+  /**
+   * @param block a block of this slab
+   * @return the page the block was sliced from, or null if the slab was not
+   *         built from pages
+   */
+  ByteBuffer getPage(ByteBuffer block) {
+    return pageOfBlock.get(block);
+  }
+
+  /**
+   * @return the pages handed to this slab
+   */
+  synchronized List<ByteBuffer> getPages() {
+    return new ArrayList<ByteBuffer>(pages);
+  }
+
+  /**
+   * Takes pages out of this slab. All their blocks must be free.
+   * @param toRemove pages of this slab, in a set that compares by identity
+   */
+  synchronized void removePages(Set<ByteBuffer> toRemove) {
+    List<ByteBuffer> free = new ArrayList<ByteBuffer>(buffers.size());
+    buffers.drainTo(free);
+    int removed = 0;
+    for (ByteBuffer block : free) {
+      ByteBuffer page = pageOfBlock.get(block);
+      if (page != null && toRemove.contains(page)) {
+        pageOfBlock.remove(block);
+        heapSize -= ClassSize.estimateBase(block.getClass(), false);
+        removed++;
+      } else {
+        buffers.add(block);
+      }
+    }
+    int expected = 0;
+    // ByteBuffer equality is by content, so compare by identity
+    for (Iterator<ByteBuffer> it = slabs.iterator(); it.hasNext();) {
+      if (toRemove.contains(it.next())) {
+        it.remove();
+      }
+    }
+    for (Iterator<ByteBuffer> it = pages.iterator(); it.hasNext();) {
+      ByteBuffer page = it.next();
+      if (toRemove.contains(page)) {
+        it.remove();
+        expected += page.capacity() / blockSize;
+      }
+    }
+    Preconditions.checkState(removed == expected, "Removed " + removed +
+        " free blocks out of " + expected + " in the removed pages");
+    numBlocks -= removed;
+  }
+
   /*
    * Shutdown deallocates the memory for all the DirectByteBuffers. Each
    * DirectByteBuffer has a "cleaner" method, which is similar to a
@@ -122,6 +214,21 @@ class Slab implements org.apache.hadoop.hbase.io.HeapSize {
     return returnedBuffer;
   }
 
+  /*
+   * Like alloc, but returns null right away if no block is free.
+   */
+  ByteBuffer tryAlloc(int bufferSize) {
+    int newCapacity = Preconditions.checkPositionIndex(bufferSize, blockSize);
+
+    ByteBuffer returnedBuffer = buffers.poll();
+    if (returnedBuffer == null) {
+      return null;
+    }
+
+    returnedBuffer.clear().limit(newCapacity);
+    return returnedBuffer;
+  }
+
   void free(ByteBuffer toBeFreed) {
     Preconditions.checkArgument(toBeFreed.capacity() == blockSize);
     buffers.add(toBeFreed);
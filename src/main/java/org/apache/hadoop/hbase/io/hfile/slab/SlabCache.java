@@ -21,8 +21,15 @@
 package org.apache.hadoop.hbase.io.hfile.slab;
 
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -39,6 +46,7 @@ import org.apache.hadoop.hbase.io.hfile.BlockCacheColumnFamilySummary;
 import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
 import org.apache.hadoop.hbase.io.hfile.CacheStats;
 import org.apache.hadoop.hbase.io.hfile.Cacheable;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock;
 import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.hbase.util.HasThread;
 import org.apache.hadoop.util.StringUtils;
@@ -50,7 +58,13 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * SlabCache is composed of multiple SingleSizeCaches. It uses a TreeMap in
  * order to determine where a given element fits. Redirects gets and puts to the
  * correct SingleSizeCache.
- *
+ * <p>
+ * In adaptive mode, see {@link #SLAB_ADAPTIVE_KEY}, the memory is split into
+ * pages shared by a range of block sizes, each a constant factor larger than
+ * the previous one. The sizes of the blocks asked to be cached are counted,
+ * and pages are periodically moved from the block sizes that get fewer
+ * requests than their share of memory to those that get more. A block whose
+ * block size has no pages yet goes to the next larger one that has.
  **/
 public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
 
@@ -59,6 +73,34 @@ public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
   static final Log LOG = LogFactory.getLog(SlabCache.class);
   static final int STAT_THREAD_PERIOD_SECS = 60 * 5;
 
+  /** Configuration key to size the slabs from the sizes of cached blocks */
+  public static final String SLAB_ADAPTIVE_KEY =
+    "hbase.offheapcache.slab.adaptive";
+
+  /** Configuration key for the unit of memory moved between slabs */
+  public static final String SLAB_PAGE_SIZE_KEY =
+    "hbase.offheapcache.slab.pagesize";
+
+  /** Configuration key for the ratio between consecutive block sizes */
+  public static final String SLAB_GROWTH_FACTOR_KEY =
+    "hbase.offheapcache.slab.growthfactor";
+
+  /** Configuration key for the seconds between moves of pages */
+  public static final String SLAB_REBALANCE_PERIOD_KEY =
+    "hbase.offheapcache.slab.rebalance.period";
+
+  static final int DEFAULT_SLAB_PAGE_SIZE = 4 * 1024 * 1024;
+  static final float DEFAULT_SLAB_GROWTH_FACTOR = 1.25f;
+  static final int DEFAULT_SLAB_REBALANCE_PERIOD_SECS = 60;
+
+  /** Requests per block size, since the last rebalance, if adaptive */
+  private final Map<Integer, AtomicLong> slabRequests =
+    new HashMap<Integer, AtomicLong>();
+
+  /** Decayed requests per block size, updated on rebalance */
+  private final Map<Integer, Double> slabDemand =
+    new HashMap<Integer, Double>();
+
   private final ScheduledExecutorService scheduleThreadPool = Executors.newScheduledThreadPool(1,
       new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Slab Statistics #%d").build());
 
@@ -106,6 +148,10 @@ public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
    * @param conf Configuration file.
    */
   public void addSlabByConf(Configuration conf) {
+    if (conf.getBoolean(SLAB_ADAPTIVE_KEY, false)) {
+      addAdaptiveSlabs(conf);
+      return;
+    }
     // Proportions we allocate to each slab of the total size.
     String[] porportions = conf.getStrings(
         "hbase.offheapcache.slab.proportions", "0.80", "0.20");
@@ -155,6 +201,132 @@ public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
     }
   }
 
+  /**
+   * Creates slabs for block sizes from an eighth of the average block size
+   * to the largest default slab size, and splits the memory into pages. At
+   * first the pages are split like the default proportions, between the two
+   * block sizes that fit the average block and twice that.
+   * @param conf configuration
+   */
+  private void addAdaptiveSlabs(Configuration conf) {
+    float growthFactor = conf.getFloat(SLAB_GROWTH_FACTOR_KEY,
+        DEFAULT_SLAB_GROWTH_FACTOR);
+    Preconditions.checkArgument(growthFactor > 1,
+        SLAB_GROWTH_FACTOR_KEY + " must be greater than 1");
+    int maxBlockSize = (int) (avgBlockSize * 21 / 10);
+    int pageSize = Math.max(maxBlockSize,
+        conf.getInt(SLAB_PAGE_SIZE_KEY, DEFAULT_SLAB_PAGE_SIZE));
+    int blockSize = Math.max(1024, (int) (avgBlockSize / 8));
+    while (blockSize < maxBlockSize) {
+      addSlab(blockSize, 0);
+      slabRequests.put(blockSize, new AtomicLong());
+      blockSize = Math.max(blockSize + 8, (int) (blockSize * growthFactor));
+      blockSize = (blockSize + 7) & ~7;
+    }
+    addSlab(maxBlockSize, 0);
+    slabRequests.put(maxBlockSize, new AtomicLong());
+
+    int numPages = (int) (this.size / pageSize);
+    List<ByteBuffer> pages = new ArrayList<ByteBuffer>(numPages);
+    for (int i = 0; i < numPages; i++) {
+      pages.add(ByteBuffer.allocateDirect(pageSize));
+    }
+    int smallPages = numPages * 8 / 10;
+    getHigherBlock((int) (avgBlockSize * 11 / 10)).getValue().addPages(
+        pages.subList(0, smallPages));
+    sizer.get(maxBlockSize).addPages(pages.subList(smallPages, numPages));
+    LOG.info("Created " + sizer.size() + " adaptive slabs from " + numPages +
+        " pages of " + StringUtils.humanReadableInt(pageSize));
+
+    int period = conf.getInt(SLAB_REBALANCE_PERIOD_KEY,
+        DEFAULT_SLAB_REBALANCE_PERIOD_SECS);
+    this.scheduleThreadPool.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebalance();
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to rebalance the slabs", e);
+        }
+      }
+    }, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Moves pages between slabs, so that each block size gets a share of the
+   * memory close to its share of the requested bytes. Requests are decayed
+   * by half on every call. At most a tenth of the pages move per call, and a
+   * slab only gives pages away when it has more than one above its share.
+   * @return the number of pages moved
+   */
+  synchronized int rebalance() {
+    if (slabRequests.isEmpty()) return 0;
+    double totalDemand = 0;
+    int totalPages = 0;
+    for (Entry<Integer, SingleSizeCache> e : sizer.entrySet()) {
+      Double previous = slabDemand.get(e.getKey());
+      double demand = (previous == null ? 0 : previous / 2) +
+          (double) slabRequests.get(e.getKey()).getAndSet(0) * e.getKey();
+      slabDemand.put(e.getKey(), demand);
+      totalDemand += demand;
+      totalPages += e.getValue().getPageCount();
+    }
+    if (totalDemand == 0 || totalPages == 0) return 0;
+
+    Map<Integer, Integer> deficits = new TreeMap<Integer, Integer>();
+    int maxMoves = Math.max(1, totalPages / 10);
+    List<ByteBuffer> freed = new ArrayList<ByteBuffer>();
+    for (Entry<Integer, SingleSizeCache> e : sizer.entrySet()) {
+      int target = (int) (totalPages * slabDemand.get(e.getKey()) / totalDemand);
+      int pages = e.getValue().getPageCount();
+      if (pages > target + 1 && freed.size() < maxMoves) {
+        freed.addAll(e.getValue().releasePages(
+            Math.min(pages - target - 1, maxMoves - freed.size())));
+      } else if (pages < target) {
+        deficits.put(e.getKey(), target - pages);
+      }
+    }
+    int moved = freed.size();
+    // Largest deficits first; pages left over go back to the largest slab
+    List<Entry<Integer, Integer>> byDeficit =
+        new ArrayList<Entry<Integer, Integer>>(deficits.entrySet());
+    Collections.sort(byDeficit, new Comparator<Entry<Integer, Integer>>() {
+      @Override
+      public int compare(Entry<Integer, Integer> a, Entry<Integer, Integer> b) {
+        return b.getValue() - a.getValue();
+      }
+    });
+    for (Entry<Integer, Integer> e : byDeficit) {
+      int n = Math.min(e.getValue(), freed.size());
+      sizer.get(e.getKey()).addPages(new ArrayList<ByteBuffer>(
+          freed.subList(0, n)));
+      freed.subList(0, n).clear();
+    }
+    if (!freed.isEmpty()) {
+      sizer.lastEntry().getValue().addPages(freed);
+    }
+    if (moved > 0) {
+      LOG.info("Moved " + moved + " pages between slabs, fragmentation is " +
+          StringUtils.formatPercent(getFragmentation(), 2));
+    }
+    return moved;
+  }
+
+  /**
+   * @return the fraction of the memory holding cached blocks that is not
+   *         used by their data, because blocks are smaller than their slab's
+   *         block size
+   */
+  public double getFragmentation() {
+    long occupied = 0;
+    long stored = 0;
+    for (SingleSizeCache s : sizer.values()) {
+      occupied += s.getOccupiedSize();
+      stored += s.getStoredSize();
+    }
+    return occupied == 0 ? 0 : 1 - (double) stored / occupied;
+  }
+
   /**
    * Gets the size of the slab cache a ByteBuffer of this size would be
    * allocated to.
@@ -200,7 +372,16 @@ public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
 
     this.requestStats.addin(cachedItem.getSerializedLength());
 
+    if (scacheEntry != null && !slabRequests.isEmpty()) {
+      slabRequests.get(scacheEntry.getKey()).incrementAndGet();
+      // Until pages come to this size, use the next larger one with pages
+      while (scacheEntry != null && scacheEntry.getValue().size() == 0) {
+        scacheEntry = sizer.higherEntry(scacheEntry.getKey());
+      }
+    }
+
     if (scacheEntry == null) {
+      stats.reject();
       return; // we can't cache, something too big.
     }
 
@@ -423,4 +604,20 @@ public class SlabCache implements SlabItemActionWatcher, BlockCache, HeapSize {
     throw new UnsupportedOperationException();
   }
 
+  /*
+   * Priorities are not tracked, every block is reported as single access.
+   */
+  @Override
+  public Map<BlockCacheKey, CachedBlock.BlockPriority> getCachedBlockKeys(
+      Set<String> hfileNames) {
+    Map<BlockCacheKey, CachedBlock.BlockPriority> keys =
+      new HashMap<BlockCacheKey, CachedBlock.BlockPriority>();
+    for (BlockCacheKey key : backingStore.keySet()) {
+      if (hfileNames.contains(key.getHfileName())) {
+        keys.put(key, CachedBlock.BlockPriority.SINGLE);
+      }
+    }
+    return keys;
+  }
+
 }
@@ -677,11 +677,15 @@ public class LoadIncrementalHFiles extends Configured implements Tool {
               .withBytesPerChecksum(Store.getBytesPerChecksum(conf))
               .build();
       HFileScanner scanner = halfReader.getScanner(false, false, false);
-      scanner.seekTo();
-      do {
-        KeyValue kv = scanner.getKeyValue();
-        halfWriter.append(kv);
-      } while (scanner.next());
+      try {
+        scanner.seekTo();
+        do {
+          KeyValue kv = scanner.getKeyValue();
+          halfWriter.append(kv);
+        } while (scanner.next());
+      } finally {
+        scanner.close();
+      }
 
       for (Map.Entry<byte[],byte[]> entry : fileInfo.entrySet()) {
         if (shouldCopyHFileMetaKey(entry.getKey())) {
@@ -0,0 +1,312 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.io.hfile.BlockCache;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock.BlockPriority;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileBlock;
+import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Warms up the block cache of a region after it is reopened.
+ * <p>
+ * When a region is closed cleanly, the keys of its cached blocks, the HFile
+ * name and offset of each with its priority, are saved in the region
+ * directory. When the region is opened again, on this or another region
+ * server, the saved file is removed and the blocks are read back into the
+ * block cache in the background: in-memory blocks first, then blocks that
+ * were read more than once, then the rest. The reads are throttled so that
+ * warming up does not compete with client reads for the disks, and stop as
+ * soon as the region starts closing, when its warm up task is cancelled.
+ * <p>
+ * Blocks of files that no longer exist, for example because they were
+ * compacted away while the region was offline, are skipped.
+ */
+class BlockCacheWarmer {
+  static final Log LOG = LogFactory.getLog(BlockCacheWarmer.class);
+
+  /** Whether to save cached block keys on close and warm up on open */
+  public static final String PERSIST_KEY = "hbase.rs.blockcache.persist";
+
+  /** Bytes per second to read when warming up; zero or less is unlimited */
+  public static final String WARMUP_BANDWIDTH_KEY =
+    "hbase.rs.blockcache.warmup.bandwidth";
+
+  static final long DEFAULT_WARMUP_BANDWIDTH = 20 * 1024 * 1024;
+
+  /** Name of the file in the region directory holding the block keys */
+  static final String CACHED_BLOCKS_FILE = ".cachedblocks";
+
+  private static final int VERSION = 1;
+
+  /** A saved block to read back */
+  static class Block implements Comparable<Block> {
+    final HFile.Reader reader;
+    final long offset;
+    final BlockPriority priority;
+
+    Block(HFile.Reader reader, long offset, BlockPriority priority) {
+      this.reader = reader;
+      this.offset = offset;
+      this.priority = priority;
+    }
+
+    /** Higher priorities first, then in file order */
+    @Override
+    public int compareTo(Block other) {
+      if (this.priority != other.priority) {
+        return other.priority.ordinal() - this.priority.ordinal();
+      }
+      int cmp = this.reader.getName().compareTo(other.reader.getName());
+      if (cmp != 0) return cmp;
+      return this.offset < other.offset? -1: this.offset > other.offset? 1: 0;
+    }
+  }
+
+  /**
+   * Creates the pool running the warm ups. It warms one region at a time, so
+   * that the throttle holds for all the regions sharing it. The region
+   * server creates one and shuts it down when it stops.
+   * @return the pool
+   */
+  static ThreadPoolExecutor createPool() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactoryBuilder()
+        .setNameFormat("BlockCacheWarmer-%d")
+        .setDaemon(true)
+        .build());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * @param conf configuration
+   * @return whether block cache persistence is enabled
+   */
+  static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(PERSIST_KEY, false);
+  }
+
+  /**
+   * Saves the keys of the cached blocks of the region. Failures are logged
+   * and otherwise ignored, as the region can be closed anyway.
+   * @param region the region being closed
+   */
+  static void saveCachedBlocks(HRegion region) {
+    Map<String, HFile.Reader> readers = getReaders(region);
+    BlockCache blockCache = getBlockCache(region);
+    if (readers.isEmpty() || blockCache == null) return;
+    Map<BlockCacheKey, BlockPriority> keys =
+      blockCache.getCachedBlockKeys(readers.keySet());
+    if (keys.isEmpty()) return;
+
+    // Group by file, so that each name is written once
+    Map<String, List<Map.Entry<BlockCacheKey, BlockPriority>>> byFile =
+      new TreeMap<String, List<Map.Entry<BlockCacheKey, BlockPriority>>>();
+    for (Map.Entry<BlockCacheKey, BlockPriority> e : keys.entrySet()) {
+      String name = e.getKey().getHfileName();
+      List<Map.Entry<BlockCacheKey, BlockPriority>> entries = byFile.get(name);
+      if (entries == null) {
+        entries = new ArrayList<Map.Entry<BlockCacheKey, BlockPriority>>();
+        byFile.put(name, entries);
+      }
+      entries.add(e);
+    }
+
+    FileSystem fs = region.getFilesystem();
+    Path path = new Path(region.getRegionDir(), CACHED_BLOCKS_FILE);
+    try {
+      FSDataOutputStream out = fs.create(path, true);
+      try {
+        out.writeInt(VERSION);
+        out.writeInt(byFile.size());
+        for (Map.Entry<String, List<Map.Entry<BlockCacheKey, BlockPriority>>>
+            file : byFile.entrySet()) {
+          out.writeUTF(file.getKey());
+          out.writeInt(file.getValue().size());
+          for (Map.Entry<BlockCacheKey, BlockPriority> e : file.getValue()) {
+            out.writeLong(e.getKey().getOffset());
+            out.writeByte(e.getValue().ordinal());
+          }
+        }
+      } finally {
+        out.close();
+      }
+      LOG.debug("Saved the keys of " + keys.size() + " cached blocks of " +
+        region);
+    } catch (IOException e) {
+      LOG.warn("Failed to save the keys of the cached blocks of " + region, e);
+    }
+  }
+
+  /**
+   * Removes the saved block keys of the region, if any, and starts reading
+   * the blocks back into the block cache in the background. Cancelling the
+   * returned task with an interrupt stops the warm up after the block being
+   * read, if any.
+   * @param region the region being opened
+   * @param pool the pool to run the warm up on
+   * @return the warm up task, or null if there is nothing to warm up
+   */
+  static Future<?> scheduleWarmUp(final HRegion region,
+      final ExecutorService pool) {
+    FileSystem fs = region.getFilesystem();
+    Path path = new Path(region.getRegionDir(), CACHED_BLOCKS_FILE);
+    final List<Block> blocks;
+    try {
+      if (!fs.exists(path)) return null;
+      blocks = readCachedBlocks(fs, path, getReaders(region));
+      if (!fs.delete(path, false)) {
+        LOG.warn("Failed to delete " + path);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read the keys of the cached blocks of " + region, e);
+      return null;
+    }
+    if (blocks.isEmpty() || getBlockCache(region) == null) return null;
+    final long bandwidth = region.getConf().getLong(WARMUP_BANDWIDTH_KEY,
+      DEFAULT_WARMUP_BANDWIDTH);
+    return pool.submit(new Runnable() {
+      @Override
+      public void run() {
+        warmUp(region, blocks, bandwidth);
+      }
+    });
+  }
+
+  static List<Block> readCachedBlocks(FileSystem fs, Path path,
+      Map<String, HFile.Reader> readers) throws IOException {
+    List<Block> blocks = new ArrayList<Block>();
+    BlockPriority [] priorities = BlockPriority.values();
+    FSDataInputStream in = fs.open(path);
+    try {
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unknown version " + version + " of " + path);
+      }
+      int files = in.readInt();
+      for (int i = 0; i < files; i++) {
+        HFile.Reader reader = readers.get(in.readUTF());
+        int count = in.readInt();
+        for (int j = 0; j < count; j++) {
+          long offset = in.readLong();
+          int priority = in.readByte();
+          // Skip the blocks of files that are gone
+          if (reader != null && priority >= 0 && priority < priorities.length) {
+            blocks.add(new Block(reader, offset, priorities[priority]));
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    Collections.sort(blocks);
+    return blocks;
+  }
+
+  static void warmUp(HRegion region, List<Block> blocks, long bandwidth) {
+    long start = EnvironmentEdgeManager.currentTimeMillis();
+    long bytesRead = 0;
+    int loaded = 0;
+    for (Block block : blocks) {
+      if (region.isClosing() || region.isClosed() ||
+          Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      try {
+        HFileBlock hfileBlock = block.reader.readBlock(block.offset, -1, true,
+          true, false, null);
+        bytesRead += hfileBlock.getOnDiskSizeWithHeader();
+        loaded++;
+      } catch (InterruptedIOException e) {
+        break;
+      } catch (IOException e) {
+        // The file may have been compacted away since the region opened
+        LOG.debug("Failed to warm up block " + block.offset + " of " +
+          block.reader.getName(), e);
+        continue;
+      }
+      if (bandwidth > 0) {
+        long ahead = bytesRead * 1000 / bandwidth -
+          (EnvironmentEdgeManager.currentTimeMillis() - start);
+        if (ahead > 0) {
+          try {
+            Thread.sleep(ahead);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+    LOG.info("Warmed up the block cache of " + region + " with " + loaded +
+      " of " + blocks.size() + " blocks in " +
+      (EnvironmentEdgeManager.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * @return the readers of the region's store files that can read single
+   * blocks, by the name their blocks are cached under
+   */
+  private static Map<String, HFile.Reader> getReaders(HRegion region) {
+    Map<String, HFile.Reader> readers = new HashMap<String, HFile.Reader>();
+    for (Store store : region.getStores().values()) {
+      for (StoreFile sf : store.getStorefiles()) {
+        StoreFile.Reader reader = sf.getReader();
+        if (reader != null && reader.getHFileVersion() >= 2) {
+          HFile.Reader hfileReader = reader.getHFileReader();
+          readers.put(hfileReader.getName(), hfileReader);
+        }
+      }
+    }
+    return readers;
+  }
+
+  private static BlockCache getBlockCache(HRegion region) {
+    for (Store store : region.getStores().values()) {
+      return store.getCacheConfig().getBlockCache();
+    }
+    return null;
+  }
+}
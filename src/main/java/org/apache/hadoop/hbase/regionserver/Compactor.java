@@ -224,6 +224,12 @@ class Compactor extends Configured {
         if (scanner != null) {
           scanner.close();
         }
+        // A coprocessor scanner may not close the store file scanners, and
+        // none was opened over them if opening one failed. Closing a store
+        // file scanner twice is harmless.
+        for (StoreFileScanner sfs : scanners) {
+          sfs.close();
+        }
       }
     } finally {
       if (writer != null) {
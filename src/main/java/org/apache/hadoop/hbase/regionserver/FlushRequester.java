@@ -31,6 +31,15 @@ public interface FlushRequester {
    */
   void requestFlush(HRegion region);
 
+  /**
+   * Tell the listener the cache needs to be flushed.
+   *
+   * @param region the HRegion requesting the cache flush
+   * @param forceFlushAllStores whether all the stores of the region must be
+   * flushed, even if per column family flushing is enabled
+   */
+  void requestFlush(HRegion region, boolean forceFlushAllStores);
+
   /**
    * Tell the listener the cache needs to be flushed after a delay
    *
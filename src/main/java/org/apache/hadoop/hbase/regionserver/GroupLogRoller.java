@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.hbase.Server;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
+
+/**
+ * Rolls one of the additional HLogs of a region server that spreads its
+ * regions over several HLogs.
+ */
+@InterfaceAudience.Private
+class GroupLogRoller extends LogRoller {
+  private final int group;
+  private volatile HLog wal;
+
+  public GroupLogRoller(Server server, RegionServerServices services, int group) {
+    super(server, services);
+    this.group = group;
+  }
+
+  /**
+   * The roller is a listener of the HLog it rolls, so it exists before it.
+   * @param wal the HLog of this roller's group
+   */
+  void setWAL(HLog wal) {
+    this.wal = wal;
+  }
+
+  int getGroup() {
+    return this.group;
+  }
+
+  @Override
+  protected HLog getWAL() throws IOException {
+    return this.wal;
+  }
+}
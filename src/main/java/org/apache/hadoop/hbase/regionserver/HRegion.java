@@ -424,8 +424,18 @@ public class HRegion implements HeapSize { // , Writable{
   private volatile long lastFlushTime;
   final RegionServerServices rsServices;
   private RegionServerAccounting rsAccounting;
+  // The block cache warm up, cancelled when the region starts closing
+  private volatile Future<?> blockCacheWarmUp;
+  // The pool warming up a region opened outside of a region server
+  private ThreadPoolExecutor blockCacheWarmUpPool;
+  // The pool compacting the memstores of a region opened outside of a region
+  // server
+  private ThreadPoolExecutor inMemoryCompactionPool;
   private List<Pair<Long, Long>> recentFlushes = new ArrayList<Pair<Long,Long>>();
   private long flushCheckInterval;
+  // Flush only the large stores when the region is over its flush size
+  private boolean perFamilyFlush;
+  private long perFamilyFlushLowerBound;
   private long blockingMemStoreSize;
   final long threadWakeFrequency;
   // Used to guard closes
@@ -535,6 +545,9 @@ public class HRegion implements HeapSize { // , Writable{
     }
     this.flushCheckInterval = conf.getInt(MEMSTORE_PERIODIC_FLUSH_INTERVAL,
         DEFAULT_CACHE_FLUSH_INTERVAL);
+    this.perFamilyFlush = conf.getBoolean(PER_FAMILY_FLUSH_KEY, false);
+    this.perFamilyFlushLowerBound = conf.getLong(
+        PER_FAMILY_FLUSH_LOWER_BOUND_KEY, DEFAULT_PER_FAMILY_FLUSH_LOWER_BOUND);
     this.rowLockWaitDuration = conf.getInt("hbase.rowlock.wait.duration",
                     DEFAULT_ROWLOCK_WAIT_DURATION);
 
@@ -722,6 +735,10 @@ public class HRegion implements HeapSize { // , Writable{
     // Recover any edits if available.
     maxSeqId = Math.max(maxSeqId, replayRecoveredEditsIfAny(
         this.regiondir, maxSeqIdInStores, reporter, status));
+    // Edits from now on all come after maxSeqId
+    for (Store store : this.stores.values()) {
+      store.setFlushedSequenceId(maxSeqId);
+    }
 
     status.setStatus("Cleaning up detritus from prior splits");
     // Get rid of any splits or merges that were lost in-progress.  Clean out
@@ -748,6 +765,19 @@ public class HRegion implements HeapSize { // , Writable{
     this.closing.set(false);
     this.closed.set(false);
 
+    if (BlockCacheWarmer.isEnabled(conf)) {
+      status.setStatus("Scheduling block cache warm up");
+      ThreadPoolExecutor pool = this.rsServices == null ? null :
+        this.rsServices.getBlockCacheWarmUpPool();
+      if (pool == null) {
+        if (this.blockCacheWarmUpPool == null) {
+          this.blockCacheWarmUpPool = BlockCacheWarmer.createPool();
+        }
+        pool = this.blockCacheWarmUpPool;
+      }
+      this.blockCacheWarmUp = BlockCacheWarmer.scheduleWarmUp(this, pool);
+    }
+
     if (coprocessorHost != null) {
       status.setStatus("Running coprocessor post-open hooks");
       coprocessorHost.postOpen();
@@ -994,6 +1024,23 @@ public class HRegion implements HeapSize { // , Writable{
     return this.rsServices;
   }
 
+  /**
+   * @return the pool running the in-memory compactions of the memstores: the
+   * region server's, or one of the region's own, shut down on close, if it was
+   * opened outside of a region server
+   */
+  synchronized ThreadPoolExecutor getInMemoryCompactionPool() {
+    ThreadPoolExecutor pool = this.rsServices == null ? null :
+      this.rsServices.getInMemoryCompactionPool();
+    if (pool != null) {
+      return pool;
+    }
+    if (this.inMemoryCompactionPool == null) {
+      this.inMemoryCompactionPool = Store.createInMemoryCompactionPool(conf);
+    }
+    return this.inMemoryCompactionPool;
+  }
+
   /** @return requestsCount for this region */
   public long getRequestsCount() {
     return this.readRequestsCount.get() + this.writeRequestsCount.get();
@@ -1070,6 +1117,15 @@ public class HRegion implements HeapSize { // , Writable{
   /** Default interval for the memstore flush */
   public static final int DEFAULT_CACHE_FLUSH_INTERVAL = 3600000;
 
+  /** Conf key to flush only the large stores of a region over its flush size */
+  public static final String PER_FAMILY_FLUSH_KEY =
+      "hbase.hregion.memstore.percolumnfamilyflush";
+  /** Conf key for the memstore size above which a store is flushed on its own */
+  public static final String PER_FAMILY_FLUSH_LOWER_BOUND_KEY =
+      "hbase.hregion.memstore.percolumnfamilyflush.lowerbound";
+  public static final long DEFAULT_PER_FAMILY_FLUSH_LOWER_BOUND =
+      16 * 1024 * 1024L;
+
   /**
    * Close down this HRegion.  Flush the cache unless abort parameter is true,
    * Shut down each HStore, don't service any more calls.
@@ -1109,6 +1165,17 @@ public class HRegion implements HeapSize { // , Writable{
       return null;
     }
 
+    // Stop reading blocks of the files about to be closed
+    Future<?> warmUp = this.blockCacheWarmUp;
+    if (warmUp != null) {
+      warmUp.cancel(true);
+      this.blockCacheWarmUp = null;
+    }
+    if (this.blockCacheWarmUpPool != null) {
+      this.blockCacheWarmUpPool.shutdownNow();
+      this.blockCacheWarmUpPool = null;
+    }
+
     if (coprocessorHost != null) {
       status.setStatus("Running coprocessor pre-close hooks");
       this.coprocessorHost.preClose(abort);
@@ -1175,6 +1242,11 @@ public class HRegion implements HeapSize { // , Writable{
         }
       }
 
+      if (!abort && BlockCacheWarmer.isEnabled(conf)) {
+        status.setStatus("Saving the keys of cached blocks");
+        BlockCacheWarmer.saveCachedBlocks(this);
+      }
+
       List<StoreFile> result = new ArrayList<StoreFile>();
       if (!stores.isEmpty()) {
         // initialize the thread pool for closing stores in parallel.
@@ -1211,6 +1283,12 @@ public class HRegion implements HeapSize { // , Writable{
         }
       }
       this.closed.set(true);
+      synchronized (this) {
+        if (this.inMemoryCompactionPool != null) {
+          this.inMemoryCompactionPool.shutdownNow();
+          this.inMemoryCompactionPool = null;
+        }
+      }
       if (memstoreSize.get() != 0) LOG.error("Memstore size is " + memstoreSize.get());
       if (coprocessorHost != null) {
         status.setStatus("Running coprocessor post-close hooks");
@@ -1557,6 +1635,23 @@ public class HRegion implements HeapSize { // , Writable{
    * because a Snapshot was not properly persisted.
    */
   public FlushResult flushcache() throws IOException {
+    return flushcache(true);
+  }
+
+  /**
+   * Flush the cache, see {@link #flushcache()}.
+   *
+   * @param forceFlushAllStores if false and per column family flushing is
+   * enabled, only the stores picked by {@link #selectStoresToFlush()} are
+   * flushed
+   * @return true if the region needs compaction
+   *
+   * @throws IOException general io exceptions
+   * @throws DroppedSnapshotException Thrown when replay of hlog is required
+   * because a Snapshot was not properly persisted.
+   */
+  public FlushResult flushcache(boolean forceFlushAllStores)
+  throws IOException {
     // fail-fast instead of waiting on the lock
     if (this.closing.get()) {
       String msg = "Skipping flush on " + this + " because closing";
@@ -1599,7 +1694,8 @@ public class HRegion implements HeapSize { // , Writable{
         }
       }
       try {
-        FlushResult fs = internalFlushcache(status);
+        FlushResult fs = forceFlushAllStores? internalFlushcache(status):
+          internalFlushcache(this.log, -1, selectStoresToFlush(), status);
 
         if (coprocessorHost != null) {
           status.setStatus("Running post-flush coprocessor hooks");
@@ -1644,6 +1740,52 @@ public class HRegion implements HeapSize { // , Writable{
     return false;
   }
 
+  /**
+   * Pick the stores to write out when the region is flushed because it grew
+   * over its flush size. With per column family flushing enabled these are
+   * the stores whose memstore is at least
+   * <code>hbase.hregion.memstore.percolumnfamilyflush.lowerbound</code>, and
+   * those holding an edit older than the periodic flush interval. The small
+   * stores are left in memory rather than being written out as tiny files.
+   * @return the stores to flush; all of them if per column family flushing is
+   * disabled or none of the stores qualifies
+   */
+  Collection<Store> selectStoresToFlush() {
+    if (!this.perFamilyFlush) {
+      return this.stores.values();
+    }
+    long now = EnvironmentEdgeManager.currentTimeMillis();
+    List<Store> selected = new ArrayList<Store>(this.stores.size());
+    for (Store s : this.stores.values()) {
+      if (s.getFlushableSize() >= this.perFamilyFlushLowerBound ||
+          (this.flushCheckInterval > 0 &&
+            s.timeOfOldestEdit() < now - this.flushCheckInterval)) {
+        selected.add(s);
+      }
+    }
+    return selected.isEmpty()? this.stores.values(): selected;
+  }
+
+  /*
+   * @return the lowest sequence id an edit in the memstore of the stores
+   * that are not in <code>storesToFlush</code> may have, or -1 if these are
+   * all empty
+   */
+  private long getOldestUnflushedSequenceId(
+      final Collection<Store> storesToFlush) {
+    long oldest = -1;
+    for (Store s : this.stores.values()) {
+      if (storesToFlush.contains(s) || s.getFlushableSize() <= 0) {
+        continue;
+      }
+      long seqId = s.getFlushedSequenceId() + 1;
+      if (oldest == -1 || seqId < oldest) {
+        oldest = seqId;
+      }
+    }
+    return oldest;
+  }
+
   /**
    * Flush the memstore.
    *
@@ -1695,6 +1837,23 @@ public class HRegion implements HeapSize { // , Writable{
    */
   protected FlushResult internalFlushcache(
       final HLog wal, final long myseqid, MonitoredTask status)
+  throws IOException {
+    return internalFlushcache(wal, myseqid, this.stores.values(), status);
+  }
+
+  /**
+   * @param wal Null if we're NOT to go via hlog/wal.
+   * @param myseqid The seqid to use if <code>wal</code> is null writing out
+   * flush file.
+   * @param storesToFlush The stores to write out; the others keep their
+   * memstore.
+   * @param status
+   * @return true if the region needs compacting
+   * @throws IOException
+   * @see #internalFlushcache(MonitoredTask)
+   */
+  protected FlushResult internalFlushcache(final HLog wal, final long myseqid,
+      final Collection<Store> storesToFlush, MonitoredTask status)
   throws IOException {
     if (this.rsServices != null && this.rsServices.isAborted()) {
       // Don't flush when server aborting, it's unsafe
@@ -1708,10 +1867,18 @@ public class HRegion implements HeapSize { // , Writable{
     if (this.memstoreSize.get() <= 0) {
       return new FlushResult(FlushResult.Result.CANNOT_FLUSH_MEMSTORE_EMPTY, "Nothing to flush");
     }
+    boolean flushAllStores = storesToFlush.size() == this.stores.size();
     if (LOG.isDebugEnabled()) {
+      StringBuilder families = new StringBuilder();
+      if (!flushAllStores) {
+        for (Store s : storesToFlush) {
+          families.append(families.length() == 0? "; families ": ", ");
+          families.append(s.getColumnFamilyName());
+        }
+      }
       LOG.debug("Started memstore flush for " + this +
         ", current region memstore size " +
-        StringUtils.humanReadableInt(this.memstoreSize.get()) +
+        StringUtils.humanReadableInt(this.memstoreSize.get()) + families +
         ((wal != null)? "": "; wal is null, using passed sequenceid=" + myseqid));
     }
 
@@ -1734,17 +1901,21 @@ public class HRegion implements HeapSize { // , Writable{
     this.updatesLock.writeLock().lock();
     long totalFlushableSize = 0;
     status.setStatus("Preparing to flush by snapshotting stores");
-    List<StoreFlusher> storeFlushers = new ArrayList<StoreFlusher>(stores.size());
+    List<StoreFlusher> storeFlushers =
+      new ArrayList<StoreFlusher>(storesToFlush.size());
     try {
       // Record the mvcc for all transactions in progress.
       w = mvcc.beginMemstoreInsert();
       mvcc.advanceMemstore(w);
 
+      // The log files must be kept for the edits of the stores that are not
+      // flushed
       sequenceId = (wal == null)? myseqid:
-        wal.startCacheFlush(this.regionInfo.getEncodedNameAsBytes());
+        wal.startCacheFlush(this.regionInfo.getEncodedNameAsBytes(),
+          flushAllStores? -1: getOldestUnflushedSequenceId(storesToFlush));
       completeSequenceId = this.getCompleteCacheFlushSequenceId(sequenceId);
 
-      for (Store s : stores.values()) {
+      for (Store s : storesToFlush) {
         totalFlushableSize += s.getFlushableSize();
         storeFlushers.add(s.getStoreFlusher(completeSequenceId));
       }
@@ -1848,6 +2019,8 @@ public class HRegion implements HeapSize { // , Writable{
       StringUtils.humanReadableInt(memstoresize) + "/" + memstoresize +
       " for region " + this + " in " + time + "ms, sequenceid=" + sequenceId +
       ", compaction requested=" + compactionRequested +
+      (flushAllStores? "": ", flushed " + storesToFlush.size() + " of " +
+        this.stores.size() + " stores") +
       ((wal == null)? "; wal=null": "");
     LOG.info(msg);
     status.setStatus(msg);
@@ -5690,9 +5863,9 @@ public class HRegion implements HeapSize { // , Writable{
   public static final long FIXED_OVERHEAD = ClassSize.align(
       ClassSize.OBJECT +
       ClassSize.ARRAY +
-      36 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
-      (8 * Bytes.SIZEOF_LONG) +
-      Bytes.SIZEOF_BOOLEAN);
+      39 * ClassSize.REFERENCE + 2 * Bytes.SIZEOF_INT +
+      (9 * Bytes.SIZEOF_LONG) +
+      2 * Bytes.SIZEOF_BOOLEAN);
 
   public static final long DEEP_OVERHEAD = FIXED_OVERHEAD +
       ClassSize.OBJECT + // closeLock
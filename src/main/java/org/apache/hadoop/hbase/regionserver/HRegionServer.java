@@ -31,6 +31,7 @@ import java.lang.reflect.Method;
 import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -47,6 +48,7 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -115,8 +117,13 @@ import org.apache.hadoop.hbase.filter.WritableByteArrayComparable;
 import org.apache.hadoop.hbase.fs.HFileSystem;
 import org.apache.hadoop.hbase.io.hfile.BlockCache;
 import org.apache.hadoop.hbase.io.hfile.BlockCacheColumnFamilySummary;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheQuotas;
 import org.apache.hadoop.hbase.io.hfile.CacheConfig;
 import org.apache.hadoop.hbase.io.hfile.CacheStats;
+import org.apache.hadoop.hbase.io.hfile.DoubleBlockCache;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.io.hfile.PrefetchExecutor;
+import org.apache.hadoop.hbase.io.hfile.slab.SlabCache;
 import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
 import org.apache.hadoop.hbase.ipc.HBaseRPC;
 import org.apache.hadoop.hbase.ipc.HBaseRPCErrorHandler;
@@ -148,6 +155,8 @@ import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics.StoreMetricTyp
 import org.apache.hadoop.hbase.regionserver.snapshot.RegionServerSnapshotManager;
 import org.apache.hadoop.hbase.regionserver.wal.FailedLogCloseException;
 import org.apache.hadoop.hbase.regionserver.wal.HLog;
+import org.apache.hadoop.hbase.regionserver.wal.HLogGroupingStrategy;
+import org.apache.hadoop.hbase.regionserver.wal.RegionHLogGroupingStrategy;
 import org.apache.hadoop.hbase.regionserver.wal.WALActionsListener;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.CompressionTest;
@@ -310,6 +319,15 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
 
   private final boolean separateHLogForMeta;
 
+  // When regions are spread over more than one HLog, the HLogs other than
+  // this.hlog (group 0) and their rollers, keyed by group. Each is created on
+  // first use, like hlogForMeta.
+  private final Map<Integer, HLog> hlogGroups = new ConcurrentHashMap<Integer, HLog>();
+  private final Map<Integer, GroupLogRoller> hlogGroupRollers =
+    new ConcurrentHashMap<Integer, GroupLogRoller>();
+  private final int numHLogGroups;
+  private final HLogGroupingStrategy hlogGroupingStrategy;
+
   // flag set after we're done setting up server threads (used for testing)
   protected volatile boolean isOnline;
 
@@ -339,6 +357,12 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
   // Instance of the hbase executor service.
   private ExecutorService service;
 
+  // Pool warming up the block cache of opened regions, if enabled
+  private ThreadPoolExecutor blockCacheWarmUpPool;
+
+  // Pool compacting the memstores of the online regions in memory
+  private ThreadPoolExecutor inMemoryCompactionPool;
+
   // Replication services. If no replication, this handler will be null.
   private ReplicationSourceService replicationSourceHandler;
   private ReplicationSinkService replicationSinkHandler;
@@ -417,6 +441,10 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
 
     // Config'ed params
     this.separateHLogForMeta = conf.getBoolean(HLog.SEPARATE_HLOG_FOR_META, false);
+    this.numHLogGroups = Math.max(1, conf.getInt(HLog.HLOG_GROUPS_KEY, 1));
+    this.hlogGroupingStrategy = ReflectionUtils.newInstance(
+      conf.getClass(HLog.HLOG_GROUPING_STRATEGY_KEY, RegionHLogGroupingStrategy.class,
+        HLogGroupingStrategy.class), conf);
     this.numRetries = conf.getInt("hbase.client.retries.number", 10);
     this.threadWakeFrequency = conf.getInt(HConstants.THREAD_WAKE_FREQUENCY,
       10 * 1000);
@@ -703,6 +731,17 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     // Cache flushing thread.
     this.cacheFlusher = new MemStoreFlusher(conf, this);
 
+    // Preallocate the MemStoreLAB chunk pool, if one is configured
+    MemStoreChunkPool.getPool(conf);
+
+    // Warms up the block cache of the regions opened here
+    if (BlockCacheWarmer.isEnabled(conf)) {
+      this.blockCacheWarmUpPool = BlockCacheWarmer.createPool();
+    }
+
+    // Its threads only start once a memstore asks for an in-memory compaction
+    this.inMemoryCompactionPool = Store.createInMemoryCompactionPool(conf);
+
     // Compaction thread
     this.compactSplitThread = new CompactSplitThread(this);
 
@@ -829,6 +868,14 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
         e.printStackTrace();
       }
     }
+    // Stop warming up the block cache
+    if (this.blockCacheWarmUpPool != null) {
+      this.blockCacheWarmUpPool.shutdownNow();
+    }
+    // Stop compacting memstores in memory
+    if (this.inMemoryCompactionPool != null) {
+      this.inMemoryCompactionPool.shutdownNow();
+    }
     // Send cache a shutdown.
     if (cacheConfig.isBlockCacheEnabled()) {
       cacheConfig.getBlockCache().shutdown();
@@ -840,6 +887,9 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     if (this.compactSplitThread != null) this.compactSplitThread.interruptIfNecessary();
     if (this.hlogRoller != null) this.hlogRoller.interruptIfNecessary();
     if (this.metaHLogRoller != null) this.metaHLogRoller.interruptIfNecessary();
+    for (LogRoller roller : this.hlogGroupRollers.values()) {
+      roller.interruptIfNecessary();
+    }
     if (this.compactionChecker != null)
       this.compactionChecker.interrupt();
     if (this.healthCheckChore != null) {
@@ -1048,6 +1098,14 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
         LOG.error("Metalog close and delete failed", RemoteExceptionHandler.checkThrowable(e));
       }
     }
+    // Same for the group hlogs; they share the directory too.
+    for (HLog groupLog : this.hlogGroups.values()) {
+      try {
+        groupLog.close();
+      } catch (Throwable e) {
+        LOG.error("Group hlog close failed", RemoteExceptionHandler.checkThrowable(e));
+      }
+    }
     if (this.hlog != null) {
       try {
         if (delete) {
@@ -1159,6 +1217,16 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     return regionServerAccounting;
   }
 
+  @Override
+  public ThreadPoolExecutor getBlockCacheWarmUpPool() {
+    return this.blockCacheWarmUpPool;
+  }
+
+  @Override
+  public ThreadPoolExecutor getInMemoryCompactionPool() {
+    return this.inMemoryCompactionPool;
+  }
+
   /*
    * @param r Region to get RegionLoad for.
    *
@@ -1458,6 +1526,42 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     return this.hlogForMeta;
   }
 
+  /**
+   * Get the HLog of a group other than the default, creating it on first use.
+   * All group HLogs write to this server's log directory, using
+   * {@link HLog#getGroupPrefix(String, int)} to keep their files apart, so log
+   * splitting and archiving treat them like the default HLog's files.
+   * Synchronized for the same reason as {@link #getMetaWAL()}.
+   * @param group group number, greater than 0
+   * @return the group's HLog
+   * @throws IOException
+   */
+  synchronized HLog getGroupWAL(final int group) throws IOException {
+    HLog groupLog = this.hlogGroups.get(group);
+    if (groupLog == null) {
+      Path logdir = new Path(rootDir,
+        HLog.getHLogDirectoryName(this.serverNameFromMasterPOV.toString()));
+      final Path oldLogDir = new Path(rootDir, HConstants.HREGION_OLDLOGDIR_NAME);
+      GroupLogRoller roller = new GroupLogRoller(this, this, group);
+      List<WALActionsListener> listeners = new ArrayList<WALActionsListener>();
+      listeners.add(roller);
+      if (this.replicationSourceHandler != null &&
+          this.replicationSourceHandler.getWALActionsListener() != null) {
+        listeners.add(this.replicationSourceHandler.getWALActionsListener());
+      }
+      groupLog = new HLog(this.fs.getBackingFs(), logdir, oldLogDir, this.conf,
+        listeners, false,
+        HLog.getGroupPrefix(this.serverNameFromMasterPOV.toString(), group), false);
+      roller.setWAL(groupLog);
+      Threads.setDaemonThreadRunning(roller.getThread(),
+        Thread.currentThread().getName() + ".logRoller.group" + group,
+        uncaughtExceptionHandler);
+      this.hlogGroupRollers.put(group, roller);
+      this.hlogGroups.put(group, groupLog);
+    }
+    return groupLog;
+  }
+
   /**
    * Called by {@link #setupWALAndReplication()} creating WAL instance.
    * @param logdir
@@ -1615,9 +1719,21 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
 
     this.metrics.stores.set(stores);
     this.metrics.storefiles.set(storefiles);
-    this.metrics.hlogFileCount.set(this.hlog.getNumLogFiles());
-    this.metrics.hlogFileSizeMB.set(this.hlog.getNumLogFileSize() /(1024 * 1024));
+    int hlogFileCount = this.hlog.getNumLogFiles();
+    long hlogFileSize = this.hlog.getNumLogFileSize();
+    for (HLog groupLog : this.hlogGroups.values()) {
+      hlogFileCount += groupLog.getNumLogFiles();
+      hlogFileSize += groupLog.getNumLogFileSize();
+    }
+    this.metrics.hlogFileCount.set(hlogFileCount);
+    this.metrics.hlogFileSizeMB.set(hlogFileSize /(1024 * 1024));
     this.metrics.memstoreSizeMB.set((int) (memstoreSize / (1024 * 1024)));
+    this.metrics.memstoreChunkPoolSizeMB.set((int)
+      (this.regionServerAccounting.getMemStoreChunkPoolSize() / (1024 * 1024)));
+    this.metrics.memstoreChunkPoolHitCount.set(
+      this.regionServerAccounting.getMemStoreChunkPoolHitCount());
+    this.metrics.memstoreChunkPoolMissCount.set(
+      this.regionServerAccounting.getMemStoreChunkPoolMissCount());
     this.metrics.mbInMemoryWithoutWAL.set((int) (dataInMemoryWithoutWAL / (1024 * 1024)));
     this.metrics.numPutsWithoutWAL.set(numPutsWithoutWAL);
     this.metrics.storefileIndexSizeMB.set(
@@ -1637,6 +1753,8 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     this.metrics.updatesBlockedSeconds.set(updatesBlockedMs/1000);
     final long updatesBlockedMsHigherWater = cacheFlusher.getUpdatesBlockedMsHighWater().get();
     this.metrics.updatesBlockedSecondsHighWater.set(updatesBlockedMsHigherWater/1000);
+    this.metrics.updatesThrottledMs.set(cacheFlusher.getUpdatesDelayedMs().get());
+    this.metrics.updatesRejectedHighWater.set(cacheFlusher.getUpdatesRejected().get());
 
     BlockCache blockCache = cacheConfig.getBlockCache();
     if (blockCache != null) {
@@ -1647,6 +1765,15 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
       this.metrics.blockCacheHitCount.set(cacheStats.getHitCount());
       this.metrics.blockCacheMissCount.set(cacheStats.getMissCount());
       this.metrics.blockCacheEvictedCount.set(blockCache.getEvictedCount());
+      this.metrics.blockCacheRejectedCount.set(cacheStats.getRejectedCount());
+      this.metrics.blockCachePrefetchPendingCount.set(
+          PrefetchExecutor.getPendingCount());
+      this.metrics.blockCachePrefetchCompletedCount.set(
+          PrefetchExecutor.getCompletedCount());
+      this.metrics.blockCachePrefetchedBlockCount.set(
+          PrefetchExecutor.getPrefetchedBlockCount());
+      this.metrics.blockCachePrefetchedBytes.set(
+          PrefetchExecutor.getPrefetchedBytes());
       double ratio = blockCache.getStats().getHitRatio();
       int percent = (int) (ratio * 100);
       this.metrics.blockCacheHitRatio.set(percent);
@@ -1661,6 +1788,21 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
       ratio = cacheStats.getHitCachingRatioPastNPeriods();
       percent = (int) (ratio * 100);
       this.metrics.blockCacheHitCachingRatioPastNPeriods.set(percent);
+      if (blockCache instanceof DoubleBlockCache) {
+        SlabCache slabCache = ((DoubleBlockCache) blockCache).getOffHeapCache();
+        this.metrics.blockCacheSlabFragmentation.set(
+            (int) (slabCache.getFragmentation() * 100));
+        this.metrics.blockCacheSlabRejectedCount.set(
+            slabCache.getStats().getRejectedCount());
+      }
+      if (blockCache instanceof LruBlockCache) {
+        for (Entry<String, Long> e :
+            ((LruBlockCache) blockCache).getQuotaUsage().entrySet()) {
+          RegionMetricsStorage.setNumericMetric(
+              BlockCacheQuotas.getUsageMetricName(e.getKey()),
+              e.getValue().longValue());
+        }
+      }
     }
     float localityIndex = hdfsBlocksDistribution.getBlockLocalityIndex(
       getServerName().getHostname());
@@ -1808,6 +1950,12 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
       stop("Meta HLog roller thread is no longer alive -- stop");
       return false;
     }
+    for (LogRoller roller : this.hlogGroupRollers.values()) {
+      if (!roller.isAlive()) {
+        stop("Group HLog roller thread is no longer alive -- stop");
+        return false;
+      }
+    }
     return true;
   }
 
@@ -1831,6 +1979,12 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
         regionInfo.isMetaTable()) {
       return getMetaWAL();
     }
+    if (this.numHLogGroups > 1 && regionInfo != null && !regionInfo.isMetaTable()) {
+      int group = this.hlogGroupingStrategy.getGroup(regionInfo, this.numHLogGroups);
+      if (group > 0) {
+        return getGroupWAL(group);
+      }
+    }
     return this.hlog;
   }
 
@@ -1990,6 +2144,9 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     if (this.metaHLogRoller != null) {
       Threads.shutdown(this.metaHLogRoller.getThread());
     }
+    for (LogRoller roller : this.hlogGroupRollers.values()) {
+      Threads.shutdown(roller.getThread());
+    }
     if (this.compactSplitThread != null) {
       this.compactSplitThread.join();
     }
@@ -2254,7 +2411,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     HRegion region = getRegion(regionName);
     try {
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
       boolean writeToWAL = put.getWriteToWAL();
       region.put(put, getLockFromId(put.getLockId()), writeToWAL);
@@ -2272,7 +2429,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     try {
       region = getRegion(regionName);
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
 
       @SuppressWarnings("unchecked")
@@ -2305,7 +2462,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     HRegion region = getRegion(regionName);
     try {
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
       return region.checkAndMutate(row, family, qualifier, compareOp,
         comparator, w, lock, true);
@@ -2856,7 +3013,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
       this.requestCount.incrementAndGet();
       HRegion region = getRegion(regionName);
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
       Integer lid = getLockFromId(delete.getLockId());
       region.delete(delete, lid, writeToWAL);
@@ -2874,7 +3031,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     try {
       region = getRegion(regionName);
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
       int size = deletes.size();
       Integer[] locks = new Integer[size];
@@ -3713,7 +3870,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
     try {
       HRegion region = getRegion(regionName);
       if (!region.getRegionInfo().isMetaTable()) {
-        this.cacheFlusher.reclaimMemStoreMemory();
+        this.cacheFlusher.reclaimMemStoreMemory(region);
       }
       region.mutateRow(rm);
     } catch (IOException e) {
@@ -3886,7 +4043,7 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
           HRegion region = getRegion(regionName);
 
           if (!region.getRegionInfo().isMetaTable()) {
-            this.cacheFlusher.reclaimMemStoreMemory();
+            this.cacheFlusher.reclaimMemStoreMemory(region);
           }
 
           List<Pair<Mutation,Integer>> mutationsWithLocks =
@@ -4165,7 +4322,22 @@ public class HRegionServer implements HRegionInterface, HBaseRPCErrorHandler,
   @Override
   public byte[][] rollHLogWriter() throws IOException, FailedLogCloseException {
     HLog wal = this.getWAL();
-    return wal.rollWriter(true);
+    byte[][] regionsToFlush = wal.rollWriter(true);
+    if (this.hlogGroups.isEmpty()) {
+      return regionsToFlush;
+    }
+    List<byte[]> allRegionsToFlush = new ArrayList<byte[]>();
+    if (regionsToFlush != null) {
+      allRegionsToFlush.addAll(Arrays.asList(regionsToFlush));
+    }
+    for (HLog groupLog : this.hlogGroups.values()) {
+      regionsToFlush = groupLog.rollWriter(true);
+      if (regionsToFlush != null) {
+        allRegionsToFlush.addAll(Arrays.asList(regionsToFlush));
+      }
+    }
+    return allRegionsToFlush.isEmpty() ? null :
+      allRegionsToFlush.toArray(new byte[allRegionsToFlush.size()][]);
   }
 
   /**
@@ -0,0 +1,383 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * An immutable {@link java.util.Set} of {@link KeyValue}s backed by a sorted
+ * array.
+ * <p>
+ * Used for memstore segments that no longer take writes. Compared to a
+ * {@link KeyValueSkipListSet} there is no per-entry node or index overhead,
+ * lookups are binary searches and iteration walks the array in order. Sub-sets
+ * and the descending set share the backing array. Methods that would modify
+ * the set throw {@link UnsupportedOperationException}; so does the
+ * iterator's <code>remove</code>.
+ */
+public class KeyValueArraySet implements NavigableSet<KeyValue> {
+  private final KeyValue.KVComparator comparator;
+  private final KeyValue [] kvs;
+  // Range of kvs in this set: from inclusive, to exclusive
+  private final int from;
+  private final int to;
+
+  /**
+   * Create an empty set.
+   */
+  KeyValueArraySet(final KeyValue.KVComparator c) {
+    this(c, new KeyValue[0], 0, 0);
+  }
+
+  /**
+   * @param c comparator the <code>kvs</code> are sorted by
+   * @param kvs sorted, distinct KeyValues; the array is not copied
+   * @param count number of KeyValues used from the start of <code>kvs</code>
+   */
+  KeyValueArraySet(final KeyValue.KVComparator c, final KeyValue [] kvs,
+      final int count) {
+    this(c, kvs, 0, count);
+  }
+
+  private KeyValueArraySet(final KeyValue.KVComparator c,
+      final KeyValue [] kvs, final int from, final int to) {
+    this.comparator = c;
+    this.kvs = kvs;
+    this.from = from;
+    this.to = to;
+  }
+
+  /*
+   * @return index of the first entry greater than or equal to
+   * <code>key</code>, or strictly greater if <code>inclusive</code> is false;
+   * <code>to</code> if there is none
+   */
+  private int ceilingIndex(final KeyValue key, final boolean inclusive) {
+    int low = this.from;
+    int high = this.to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = this.comparator.compare(this.kvs[mid], key);
+      if (cmp < 0 || (cmp == 0 && !inclusive)) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private KeyValue at(final int index) {
+    return index >= this.from && index < this.to? this.kvs[index]: null;
+  }
+
+  public KeyValue ceiling(KeyValue e) {
+    return at(ceilingIndex(e, true));
+  }
+
+  public KeyValue higher(KeyValue e) {
+    return at(ceilingIndex(e, false));
+  }
+
+  public KeyValue floor(KeyValue e) {
+    return at(ceilingIndex(e, false) - 1);
+  }
+
+  public KeyValue lower(KeyValue e) {
+    return at(ceilingIndex(e, true) - 1);
+  }
+
+  /**
+   * @param kv
+   * @return the entry equal to <code>kv</code>, or null
+   */
+  public KeyValue get(KeyValue kv) {
+    KeyValue found = ceiling(kv);
+    return found != null && this.comparator.compare(found, kv) == 0? found: null;
+  }
+
+  public Iterator<KeyValue> iterator() {
+    return new Iterator<KeyValue>() {
+      private int index = from;
+
+      public boolean hasNext() {
+        return index < to;
+      }
+
+      public KeyValue next() {
+        if (index >= to) throw new NoSuchElementException();
+        return kvs[index++];
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  public Iterator<KeyValue> descendingIterator() {
+    return new Iterator<KeyValue>() {
+      private int index = to - 1;
+
+      public boolean hasNext() {
+        return index >= from;
+      }
+
+      public KeyValue next() {
+        if (index < from) throw new NoSuchElementException();
+        return kvs[index--];
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  public NavigableSet<KeyValue> descendingSet() {
+    return new DescendingSet(this);
+  }
+
+  public SortedSet<KeyValue> headSet(final KeyValue toElement) {
+    return headSet(toElement, false);
+  }
+
+  public NavigableSet<KeyValue> headSet(final KeyValue toElement,
+      boolean inclusive) {
+    return new KeyValueArraySet(this.comparator, this.kvs, this.from,
+      ceilingIndex(toElement, !inclusive));
+  }
+
+  public SortedSet<KeyValue> subSet(KeyValue fromElement, KeyValue toElement) {
+    return subSet(fromElement, true, toElement, false);
+  }
+
+  public NavigableSet<KeyValue> subSet(KeyValue fromElement,
+      boolean fromInclusive, KeyValue toElement, boolean toInclusive) {
+    int start = ceilingIndex(fromElement, fromInclusive);
+    int end = Math.max(start, ceilingIndex(toElement, !toInclusive));
+    return new KeyValueArraySet(this.comparator, this.kvs, start, end);
+  }
+
+  public SortedSet<KeyValue> tailSet(KeyValue fromElement) {
+    return tailSet(fromElement, true);
+  }
+
+  public NavigableSet<KeyValue> tailSet(KeyValue fromElement, boolean inclusive) {
+    return new KeyValueArraySet(this.comparator, this.kvs,
+      ceilingIndex(fromElement, inclusive), this.to);
+  }
+
+  public Comparator<? super KeyValue> comparator() {
+    return this.comparator;
+  }
+
+  public KeyValue first() {
+    if (isEmpty()) throw new NoSuchElementException();
+    return this.kvs[this.from];
+  }
+
+  public KeyValue last() {
+    if (isEmpty()) throw new NoSuchElementException();
+    return this.kvs[this.to - 1];
+  }
+
+  public KeyValue pollFirst() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public KeyValue pollLast() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean add(KeyValue e) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean addAll(Collection<? extends KeyValue> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public void clear() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean remove(Object o) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean removeAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean retainAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean contains(Object o) {
+    return o instanceof KeyValue && get((KeyValue)o) != null;
+  }
+
+  public boolean containsAll(Collection<?> c) {
+    for (Object o : c) {
+      if (!contains(o)) return false;
+    }
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return this.to <= this.from;
+  }
+
+  public int size() {
+    return this.to - this.from;
+  }
+
+  public Object[] toArray() {
+    return Arrays.copyOfRange(this.kvs, this.from, this.to, Object[].class);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T[] toArray(T[] a) {
+    int size = size();
+    if (a.length < size) {
+      a = (T[])java.lang.reflect.Array.newInstance(
+        a.getClass().getComponentType(), size);
+    }
+    System.arraycopy(this.kvs, this.from, a, 0, size);
+    if (a.length > size) {
+      a[size] = null;
+    }
+    return a;
+  }
+
+  /**
+   * Reversed view of a {@link KeyValueArraySet}, sharing its backing array.
+   */
+  private static class DescendingSet extends AbstractSet<KeyValue>
+      implements NavigableSet<KeyValue> {
+    private final KeyValueArraySet ascending;
+
+    DescendingSet(final KeyValueArraySet ascending) {
+      this.ascending = ascending;
+    }
+
+    public KeyValue ceiling(KeyValue e) {
+      return this.ascending.floor(e);
+    }
+
+    public KeyValue higher(KeyValue e) {
+      return this.ascending.lower(e);
+    }
+
+    public KeyValue floor(KeyValue e) {
+      return this.ascending.ceiling(e);
+    }
+
+    public KeyValue lower(KeyValue e) {
+      return this.ascending.higher(e);
+    }
+
+    @Override
+    public Iterator<KeyValue> iterator() {
+      return this.ascending.descendingIterator();
+    }
+
+    public Iterator<KeyValue> descendingIterator() {
+      return this.ascending.iterator();
+    }
+
+    public NavigableSet<KeyValue> descendingSet() {
+      return this.ascending;
+    }
+
+    public SortedSet<KeyValue> headSet(final KeyValue toElement) {
+      return headSet(toElement, false);
+    }
+
+    public NavigableSet<KeyValue> headSet(final KeyValue toElement,
+        boolean inclusive) {
+      return this.ascending.tailSet(toElement, inclusive).descendingSet();
+    }
+
+    public SortedSet<KeyValue> subSet(KeyValue fromElement,
+        KeyValue toElement) {
+      return subSet(fromElement, true, toElement, false);
+    }
+
+    public NavigableSet<KeyValue> subSet(KeyValue fromElement,
+        boolean fromInclusive, KeyValue toElement, boolean toInclusive) {
+      return this.ascending.subSet(toElement, toInclusive, fromElement,
+        fromInclusive).descendingSet();
+    }
+
+    public SortedSet<KeyValue> tailSet(KeyValue fromElement) {
+      return tailSet(fromElement, true);
+    }
+
+    public NavigableSet<KeyValue> tailSet(KeyValue fromElement,
+        boolean inclusive) {
+      return this.ascending.headSet(fromElement, inclusive).descendingSet();
+    }
+
+    public Comparator<? super KeyValue> comparator() {
+      return Collections.reverseOrder(this.ascending.comparator);
+    }
+
+    public KeyValue first() {
+      return this.ascending.last();
+    }
+
+    public KeyValue last() {
+      return this.ascending.first();
+    }
+
+    public KeyValue pollFirst() {
+      throw new UnsupportedOperationException("Immutable");
+    }
+
+    public KeyValue pollLast() {
+      throw new UnsupportedOperationException("Immutable");
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return this.ascending.contains(o);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return this.ascending.isEmpty();
+    }
+
+    @Override
+    public int size() {
+      return this.ascending.size();
+    }
+  }
+}
@@ -126,7 +126,8 @@ class LogRoller extends HasThread implements WALActionsListener {
     if (r != null) {
       requester = this.services.getFlushRequester();
       if (requester != null) {
-        requester.requestFlush(r);
+        // Only a flush of all the stores lets go of the region's oldest edits
+        requester.requestFlush(r, true);
         scheduled = true;
       }
     }
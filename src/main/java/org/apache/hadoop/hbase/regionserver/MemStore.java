@@ -23,6 +23,7 @@ package org.apache.hadoop.hbase.regionserver;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.rmi.UnexpectedException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -35,7 +36,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.io.HeapSize;
@@ -56,6 +59,12 @@ import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
  * </p>
  * TODO: Adjust size of the memstore when we remove items because they have
  * been deleted.
+ * <p>
+ * If the column family has {@link HColumnDescriptor#isInMemoryCompaction()}
+ * set, the committed cells are periodically merged into an immutable sorted
+ * segment, dropping the put versions that can no longer be read. Rows that are
+ * overwritten often then take much less memory and the store flushes less
+ * often. See {@link #compactInMemory(long)}.
  * TODO: With new KVSLS, need to make sure we update HeapSize with difference
  * in KV size.
  */
@@ -64,7 +73,14 @@ public class MemStore implements HeapSize {
 
   static final String USEMSLAB_KEY =
     "hbase.hregion.memstore.mslab.enabled";
-  private static final boolean USEMSLAB_DEFAULT = true;
+  static final boolean USEMSLAB_DEFAULT = true;
+
+  static final String IN_MEMORY_COMPACTION_FRACTION_KEY =
+    "hbase.hregion.memstore.inmemorycompaction.fraction";
+  static final float IN_MEMORY_COMPACTION_FRACTION_DEFAULT = 0.25f;
+  // An in-memory compaction that drops less than this share of the cells is
+  // not repeated until the next snapshot.
+  static final float IN_MEMORY_COMPACTION_MIN_PRUNED = 0.1f;
 
   private Configuration conf;
 
@@ -78,6 +94,13 @@ public class MemStore implements HeapSize {
   // Snapshot of memstore.  Made for flusher.
   volatile KeyValueSkipListSet snapshot;
 
+  // Result of the in-memory compactions since the last snapshot, and the one
+  // that was moved to the snapshot. If the latter is not empty, the whole
+  // snapshot is merged into it once its flush starts. Both are empty unless
+  // the family has in-memory compaction enabled.
+  volatile KeyValueArraySet compacted;
+  volatile KeyValueArraySet snapshotCompacted;
+
   final KeyValue.KVComparator comparator;
 
   // Used comparing versions -- same r/c and ts but different type.
@@ -93,11 +116,24 @@ public class MemStore implements HeapSize {
   // Used to track when to flush
   volatile long timeOfOldestEdit = Long.MAX_VALUE;
 
+  // Bytes added to the active set that trigger an in-memory compaction; 0 if
+  // the memstore is not compacted in memory
+  private final long compactionThreshold;
+  // Versions kept by in-memory compactions
+  private final int maxVersions;
+  // Heap size of the compacted segment
+  private volatile long compactedSize;
+  // Bytes of the cells dropped by in-memory compactions that are still in the
+  // chunks of the allocator
+  private long droppedSinceCopy;
+  private volatile boolean compactionUseful = true;
+
   TimeRangeTracker timeRangeTracker;
   TimeRangeTracker snapshotTimeRangeTracker;
 
   MemStoreLAB allocator;
-
+  // Allocator of the current snapshot, closed once the snapshot is flushed
+  MemStoreLAB snapshotAllocator;
 
 
   /**
@@ -113,6 +149,18 @@ public class MemStore implements HeapSize {
    */
   public MemStore(final Configuration conf,
                   final KeyValue.KVComparator c) {
+    this(conf, c, null);
+  }
+
+  /**
+   * Constructor.
+   * @param c Comparator
+   * @param family Column family of the store; may be null. Decides whether
+   * the memstore is compacted in memory.
+   */
+  public MemStore(final Configuration conf,
+                  final KeyValue.KVComparator c,
+                  final HColumnDescriptor family) {
     this.conf = conf;
     this.comparator = c;
     this.comparatorIgnoreTimestamp =
@@ -120,6 +168,8 @@ public class MemStore implements HeapSize {
     this.comparatorIgnoreType = this.comparator.getComparatorIgnoringType();
     this.kvset = new KeyValueSkipListSet(c);
     this.snapshot = new KeyValueSkipListSet(c);
+    this.compacted = new KeyValueArraySet(c);
+    this.snapshotCompacted = new KeyValueArraySet(c);
     timeRangeTracker = new TimeRangeTracker();
     snapshotTimeRangeTracker = new TimeRangeTracker();
     this.size = new AtomicLong(DEEP_OVERHEAD);
@@ -129,15 +179,31 @@ public class MemStore implements HeapSize {
     } else {
       this.allocator = null;
     }
+    if (family != null && family.isInMemoryCompaction()) {
+      long flushSize = conf.getLong(HConstants.HREGION_MEMSTORE_FLUSH_SIZE,
+        HTableDescriptor.DEFAULT_MEMSTORE_FLUSH_SIZE);
+      this.compactionThreshold = (long)(flushSize * conf.getFloat(
+        IN_MEMORY_COMPACTION_FRACTION_KEY, IN_MEMORY_COMPACTION_FRACTION_DEFAULT));
+      this.maxVersions = family.getMaxVersions();
+    } else {
+      this.compactionThreshold = 0;
+      this.maxVersions = 0;
+    }
   }
 
   void dump() {
     for (KeyValue kv: this.kvset) {
       LOG.info(kv);
     }
+    for (KeyValue kv: this.compacted) {
+      LOG.info(kv);
+    }
     for (KeyValue kv: this.snapshot) {
       LOG.info(kv);
     }
+    for (KeyValue kv: this.snapshotCompacted) {
+      LOG.info(kv);
+    }
   }
 
   /**
@@ -148,20 +214,26 @@ public class MemStore implements HeapSize {
   void snapshot() {
     // If snapshot currently has entries, then flusher failed or didn't call
     // cleanup.  Log a warning.
-    if (!this.snapshot.isEmpty()) {
+    if (!this.snapshot.isEmpty() || !this.snapshotCompacted.isEmpty()) {
       LOG.warn("Snapshot called again without clearing previous. " +
         "Doing nothing. Another ongoing flush or did we fail last attempt?");
     } else {
-      if (!this.kvset.isEmpty()) {
+      if (!this.kvset.isEmpty() || !this.compacted.isEmpty()) {
         this.snapshotSize = keySize();
         this.snapshot = this.kvset;
         this.kvset = new KeyValueSkipListSet(this.comparator);
+        this.snapshotCompacted = this.compacted;
+        this.compacted = new KeyValueArraySet(this.comparator);
+        this.compactedSize = 0;
+        this.droppedSinceCopy = 0;
+        this.compactionUseful = true;
         this.snapshotTimeRangeTracker = this.timeRangeTracker;
         this.timeRangeTracker = new TimeRangeTracker();
         // Reset heap to not include any keys
         this.size.set(DEEP_OVERHEAD);
         // Reset allocator so we get a fresh buffer for the new memstore
         if (allocator != null) {
+          this.snapshotAllocator = this.allocator;
           this.allocator = new MemStoreLAB(conf);
         }
         timeOfOldestEdit = Long.MAX_VALUE;
@@ -181,6 +253,72 @@ public class MemStore implements HeapSize {
     return this.snapshot;
   }
 
+  /**
+   * @return the in-memory compacted part of the current snapshot
+   */
+  KeyValueArraySet getSnapshotCompacted() {
+    return this.snapshotCompacted;
+  }
+
+  /**
+   * Merge the current snapshot and its in-memory compacted part into a single
+   * sorted array segment, so there is one set to flush. Only call once no
+   * rollback can reach the snapshot any more, that is after the flush waited
+   * on the region's MVCC; the snapshot then no longer changes and no lock is
+   * needed.
+   * @return the merged segment, to be installed with
+   * {@link #setFlatSnapshot(KeyValueArraySet)}
+   */
+  KeyValueArraySet mergeSnapshot() {
+    if (this.snapshot.isEmpty()) {
+      // Nothing to merge, e.g. the flush of an already merged snapshot is
+      // being retried
+      return this.snapshotCompacted;
+    }
+    return merge(this.snapshotCompacted, this.snapshot);
+  }
+
+  /**
+   * Replace the snapshot with the segment made by {@link #mergeSnapshot()}.
+   * The segment is then what {@link #clearSnapshot(SortedSet)} expects.
+   * Callers must hold the write lock.
+   * @param flat
+   */
+  void setFlatSnapshot(final KeyValueArraySet flat) {
+    // Publish the merged segment before dropping the sets it was made from;
+    // a reader in between sees cells twice, never misses any.
+    this.snapshotCompacted = flat;
+    this.snapshot = new KeyValueSkipListSet(this.comparator);
+  }
+
+  /*
+   * Merge two sorted sets into a sorted array segment. On equal keys the
+   * entry of <code>b</code> is kept.
+   */
+  private KeyValueArraySet merge(final NavigableSet<KeyValue> a,
+      final NavigableSet<KeyValue> b) {
+    List<KeyValue> merged = new ArrayList<KeyValue>(a.size());
+    Iterator<KeyValue> ia = a.iterator();
+    Iterator<KeyValue> ib = b.iterator();
+    KeyValue ka = ia.hasNext()? ia.next(): null;
+    KeyValue kb = ib.hasNext()? ib.next(): null;
+    while (ka != null || kb != null) {
+      int cmp = ka == null? 1: kb == null? -1: this.comparator.compare(ka, kb);
+      if (cmp < 0) {
+        merged.add(ka);
+        ka = ia.hasNext()? ia.next(): null;
+      } else {
+        if (cmp == 0) {
+          ka = ia.hasNext()? ia.next(): null;
+        }
+        merged.add(kb);
+        kb = ib.hasNext()? ib.next(): null;
+      }
+    }
+    return new KeyValueArraySet(this.comparator,
+      merged.toArray(new KeyValue[merged.size()]), merged.size());
+  }
+
   /**
    * On flush, how much memory we will clear.
    * Flush will first clear out the data in snapshot if any (It will take a second flush
@@ -201,7 +339,7 @@ public class MemStore implements HeapSize {
    */
   void clearSnapshot(final SortedSet<KeyValue> ss)
   throws UnexpectedException {
-    if (this.snapshot != ss) {
+    if (this.snapshot != ss && this.snapshotCompacted != ss) {
       throw new UnexpectedException("Current snapshot is " +
         this.snapshot + ", was passed " + ss);
     }
@@ -211,7 +349,13 @@ public class MemStore implements HeapSize {
       this.snapshot = new KeyValueSkipListSet(this.comparator);
       this.snapshotTimeRangeTracker = new TimeRangeTracker();
     }
+    this.snapshotCompacted = new KeyValueArraySet(this.comparator);
     this.snapshotSize = 0;
+    // The snapshot's chunks can go back to the pool once its scanners are done
+    if (this.snapshotAllocator != null) {
+      this.snapshotAllocator.close();
+      this.snapshotAllocator = null;
+    }
   }
 
   /**
@@ -260,6 +404,11 @@ public class MemStore implements HeapSize {
   }
 
   private KeyValue maybeCloneWithAllocator(KeyValue kv) {
+    return maybeCloneWithAllocator(this.allocator, kv);
+  }
+
+  private static KeyValue maybeCloneWithAllocator(MemStoreLAB allocator,
+      KeyValue kv) {
     if (allocator == null) {
       return kv;
     }
@@ -278,6 +427,161 @@ public class MemStore implements HeapSize {
     return newKv;
   }
 
+  /**
+   * @return true if the memstore is compacted in memory and enough was added
+   * since the last in-memory compaction to run another one
+   */
+  boolean shouldCompactInMemory() {
+    return this.compactionThreshold > 0 && this.compactionUseful &&
+      keySize() - this.compactedSize > this.compactionThreshold;
+  }
+
+  /**
+   * Merge the cells of the active set into the compacted segment, keeping
+   * only the put versions that can still be read: the newest
+   * <code>maxVersions</code> timestamps of each column.
+   * <p>
+   * Cells newer than <code>readPoint</code> belong to transactions that may
+   * still roll back, or are not seen by some open scanner; they stay in the
+   * active set and do not count as newer versions. Columns with a delete
+   * marker in the memstore, and rows with a family delete, are kept whole;
+   * deletes are left to the flush and the compactions of the store files.
+   * <p>
+   * The cells stay where they are: the compacted segment and the active set
+   * share the MemStoreLAB, so only references are merged. The bytes of the
+   * dropped cells are left in its chunks until they take more room than the
+   * cells that are kept; only then are the kept cells copied to a new
+   * allocator and the old chunks let go. So on average each byte added is
+   * copied at most once, however many times the memstore is compacted.
+   * <p>
+   * Callers must hold the write lock.
+   * @param readPoint the smallest read point of the region's scanners
+   * @return change in heap size of the memstore
+   */
+  long compactInMemory(final long readPoint) {
+    long oldSize = this.size.get();
+    List<KeyValue> active = new ArrayList<KeyValue>();
+    long activeSize = 0;
+    List<KeyValue> kept = new ArrayList<KeyValue>(this.compacted.size());
+    long keptSize = ClassSize.align(ClassSize.ARRAY);
+    int cellCount = 0;
+    long cellBytes = 0;
+
+    List<KeyValue> column = new ArrayList<KeyValue>();
+    boolean rowDeleted = false;
+    for (KeyValue kv : merge(this.compacted, this.kvset)) {
+      cellCount++;
+      cellBytes += kv.getLength();
+      if (kv.getMemstoreTS() > readPoint) {
+        active.add(kv);
+        activeSize += heapSizeChange(kv, true);
+        continue;
+      }
+      if (!column.isEmpty() &&
+          !this.comparator.matchingRowColumn(column.get(0), kv)) {
+        keptSize += pruneColumn(column, rowDeleted, kept);
+        if (!this.comparator.matchingRows(column.get(0), kv)) {
+          rowDeleted = false;
+        }
+        column.clear();
+      }
+      if (kv.isDeleteFamily()) {
+        rowDeleted = true;
+      }
+      column.add(kv);
+    }
+    if (!column.isEmpty()) {
+      keptSize += pruneColumn(column, rowDeleted, kept);
+    }
+
+    long newSize = DEEP_OVERHEAD + keptSize + activeSize;
+    MemStoreLAB oldAllocator = this.allocator;
+    if (oldAllocator != null) {
+      long liveBytes = getLength(kept) + getLength(active);
+      this.droppedSinceCopy += cellBytes - liveBytes;
+      if (this.droppedSinceCopy > liveBytes) {
+        MemStoreLAB newAllocator = new MemStoreLAB(this.conf);
+        copyWithAllocator(newAllocator, kept);
+        copyWithAllocator(newAllocator, active);
+        this.allocator = newAllocator;
+        oldAllocator.close();
+        this.droppedSinceCopy = 0;
+      }
+    }
+    KeyValueSkipListSet activeSet = new KeyValueSkipListSet(this.comparator);
+    for (KeyValue kv : active) {
+      activeSet.add(kv);
+    }
+    this.compacted = new KeyValueArraySet(this.comparator,
+      kept.toArray(new KeyValue[kept.size()]), kept.size());
+    this.kvset = activeSet;
+    this.compactedSize = keptSize;
+    this.size.set(newSize);
+    int dropped = cellCount - kept.size() - active.size();
+    if (dropped < cellCount * IN_MEMORY_COMPACTION_MIN_PRUNED) {
+      // Not worth doing again before the next flush
+      this.compactionUseful = false;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("In-memory compaction dropped " + dropped + " of " +
+        cellCount + " cells, size " + oldSize + " -> " + newSize);
+    }
+    return newSize - oldSize;
+  }
+
+  /*
+   * Add the readable versions of a column to <code>kept</code>.
+   * @param column the committed cells of one column, in order
+   * @param rowDeleted true if the row has a family delete in the memstore
+   * @return heap size of the cells added
+   */
+  private long pruneColumn(final List<KeyValue> column,
+      final boolean rowDeleted, final List<KeyValue> kept) {
+    boolean keepAll = rowDeleted;
+    for (int i = 0; !keepAll && i < column.size(); i++) {
+      keepAll = column.get(i).isDelete();
+    }
+    long keptSize = 0;
+    int versions = 0;
+    KeyValue previous = null;
+    for (KeyValue kv : column) {
+      if (!keepAll) {
+        // An older cell with the same timestamp is never read
+        if (previous != null && previous.getTimestamp() == kv.getTimestamp()) {
+          continue;
+        }
+        previous = kv;
+        if (++versions > this.maxVersions) {
+          break;
+        }
+      }
+      kept.add(kv);
+      keptSize += kv.heapSize() + ClassSize.REFERENCE;
+    }
+    return keptSize;
+  }
+
+  /*
+   * @return the total length of the cells
+   */
+  private static long getLength(final List<KeyValue> kvs) {
+    long length = 0;
+    for (KeyValue kv : kvs) {
+      length += kv.getLength();
+    }
+    return length;
+  }
+
+  /*
+   * Replace the cells of <code>kvs</code> with copies made by the allocator.
+   */
+  private static void copyWithAllocator(final MemStoreLAB allocator,
+      final List<KeyValue> kvs) {
+    for (int i = 0; i < kvs.size(); i++) {
+      kvs.set(i, maybeCloneWithAllocator(allocator, kvs.get(i)));
+    }
+  }
+
   /**
    * Remove n key from the memstore. Only kvs that have the same key and the
    * same memstoreTS are removed.  It is ok to not update timeRangeTracker
@@ -326,7 +630,10 @@ public class MemStore implements HeapSize {
    * @return Next row or null if none found.
    */
   KeyValue getNextRow(final KeyValue kv) {
-    return getLowest(getNextRow(kv, this.kvset), getNextRow(kv, this.snapshot));
+    KeyValue next = getLowest(getNextRow(kv, this.kvset),
+      getNextRow(kv, this.snapshot));
+    next = getLowest(next, getNextRow(kv, this.compacted));
+    return getLowest(next, getNextRow(kv, this.snapshotCompacted));
   }
 
   /*
@@ -371,7 +678,9 @@ public class MemStore implements HeapSize {
    */
   void getRowKeyAtOrBefore(final GetClosestRowBeforeTracker state) {
     getRowKeyAtOrBefore(kvset, state);
+    getRowKeyAtOrBefore(compacted, state);
     getRowKeyAtOrBefore(snapshot, state);
+    getRowKeyAtOrBefore(snapshotCompacted, state);
   }
 
   /*
@@ -409,7 +718,7 @@ public class MemStore implements HeapSize {
       // Did we go beyond the target row? If so break.
       if (state.isTooFar(kv, firstOnRow)) break;
       if (state.isExpired(kv)) {
-        i.remove();
+        removeExpired(set, i);
         continue;
       }
       // If we added something, this row is a contender. break.
@@ -421,6 +730,17 @@ public class MemStore implements HeapSize {
     return foundCandidate;
   }
 
+  /*
+   * Drop an expired cell found by <code>i</code>, unless the set it iterates
+   * is an immutable segment.
+   */
+  private static void removeExpired(final SortedSet<KeyValue> set,
+      final Iterator<KeyValue> i) {
+    if (!(set instanceof KeyValueArraySet)) {
+      i.remove();
+    }
+  }
+
   /*
    * Walk backwards through the passed set a row at a time until we run out of
    * set or until we get a candidate.
@@ -484,7 +804,24 @@ public class MemStore implements HeapSize {
     // so we cant add the new KV w/o knowing what's there already, but we also
     // want to take this chance to delete some kvs. So two loops (sad)
 
-    SortedSet<KeyValue> ss = kvset.tailSet(firstKv);
+    now = getNewestPutTimestamp(kvset, firstKv, family, qualifier, now);
+    now = getNewestPutTimestamp(compacted, firstKv, family, qualifier, now);
+
+    // create or update (upsert) a new KeyValue with
+    // 'now' and a 0 memstoreTS == immediately visible
+    return upsert(Arrays.asList(
+        new KeyValue(row, family, qualifier, now, Bytes.toBytes(newValue)))
+    );
+  }
+
+  /*
+   * @return the larger of <code>now</code> and the newest put timestamp of
+   * the column in <code>set</code>
+   */
+  private long getNewestPutTimestamp(final NavigableSet<KeyValue> set,
+      final KeyValue firstKv, final byte [] family, final byte [] qualifier,
+      long now) {
+    SortedSet<KeyValue> ss = set.tailSet(firstKv);
     Iterator<KeyValue> it = ss.iterator();
     while ( it.hasNext() ) {
       KeyValue kv = it.next();
@@ -500,12 +837,7 @@ public class MemStore implements HeapSize {
         now = kv.getTimestamp();
       }
     }
-
-    // create or update (upsert) a new KeyValue with
-    // 'now' and a 0 memstoreTS == immediately visible
-    return upsert(Arrays.asList(
-        new KeyValue(row, family, qualifier, now, Bytes.toBytes(newValue)))
-    );
+    return now;
   }
 
   /**
@@ -626,7 +958,7 @@ public class MemStore implements HeapSize {
     for (Iterator<KeyValue> i = head.descendingIterator(); i.hasNext();) {
       KeyValue found = i.next();
       if (state.isExpired(found)) {
-        i.remove();
+        removeExpired(head, i);
         continue;
       }
       return new Member(head, found);
@@ -638,8 +970,23 @@ public class MemStore implements HeapSize {
    * @return scanner on memstore and snapshot in this order.
    */
   List<KeyValueScanner> getScanners() {
-    return Collections.<KeyValueScanner>singletonList(
-        new MemStoreScanner(MultiVersionConsistencyControl.getThreadReadPoint()));
+    long readPoint = MultiVersionConsistencyControl.getThreadReadPoint();
+    KeyValueArraySet compacted = this.compacted;
+    KeyValueArraySet snapshotCompacted = this.snapshotCompacted;
+    if (compacted.isEmpty() && snapshotCompacted.isEmpty()) {
+      return Collections.<KeyValueScanner>singletonList(
+          new MemStoreScanner(readPoint));
+    }
+    List<KeyValueScanner> scanners = new ArrayList<KeyValueScanner>(3);
+    scanners.add(new MemStoreScanner(readPoint));
+    if (!compacted.isEmpty()) {
+      scanners.add(new SegmentScanner(compacted, this.allocator, readPoint));
+    }
+    if (!snapshotCompacted.isEmpty()) {
+      scanners.add(new SegmentScanner(snapshotCompacted,
+        this.snapshotAllocator, readPoint));
+    }
+    return scanners;
   }
 
   /**
@@ -686,6 +1033,10 @@ public class MemStore implements HeapSize {
     private KeyValue theNext;
     private final long readPoint;
 
+    // The allocators of kvset and snapshot, kept open until the scanner closes
+    private MemStoreLAB allocatorAtCreation;
+    private MemStoreLAB snapshotAllocatorAtCreation;
+
     /*
     Some notes...
 
@@ -711,6 +1062,16 @@ public class MemStore implements HeapSize {
       super();
 
       this.readPoint = readPoint;
+      // Pin the allocators before reading the sets so their chunks are not
+      // recycled while this scanner can still see them.
+      if (allocator != null) {
+        this.allocatorAtCreation = allocator;
+        this.allocatorAtCreation.incScannerCount();
+      }
+      if (snapshotAllocator != null) {
+        this.snapshotAllocatorAtCreation = snapshotAllocator;
+        this.snapshotAllocatorAtCreation.incScannerCount();
+      }
       kvsetAtCreation = kvset;
       snapshotAtCreation = snapshot;
     }
@@ -721,7 +1082,11 @@ public class MemStore implements HeapSize {
         while (it.hasNext()) {
           v = it.next();
           if (v.getMemstoreTS() <= readPoint) {
-            return v;
+            MemStoreLAB lab = it == snapshotIt ?
+                snapshotAllocatorAtCreation : allocatorAtCreation;
+            // Callers may keep the KeyValue past our close, when its chunk
+            // can be recycled
+            return lab != null && lab.isPooled(v) ? v.clone() : v;
           }
         }
 
@@ -876,6 +1241,15 @@ public class MemStore implements HeapSize {
 
       this.kvsetItRow = null;
       this.snapshotItRow = null;
+
+      if (this.allocatorAtCreation != null) {
+        this.allocatorAtCreation.decScannerCount();
+        this.allocatorAtCreation = null;
+      }
+      if (this.snapshotAllocatorAtCreation != null) {
+        this.snapshotAllocatorAtCreation.decScannerCount();
+        this.snapshotAllocatorAtCreation = null;
+      }
     }
 
     /**
@@ -894,8 +1268,105 @@ public class MemStore implements HeapSize {
     }
   }
 
+  /*
+   * Scanner over an immutable segment of the memstore, the result of
+   * in-memory compactions. Seeks are binary searches of the segment.
+   */
+  protected class SegmentScanner extends NonLazyKeyValueScanner {
+    private final NavigableSet<KeyValue> segment;
+    private final long readPoint;
+    // Allocator holding the cells of the segment, kept open until we close
+    private MemStoreLAB allocatorAtCreation;
+    private Iterator<KeyValue> it;
+    // The KeyValue to be returned by peek() or next()
+    private KeyValue theNext;
+
+    SegmentScanner(final NavigableSet<KeyValue> segment,
+        final MemStoreLAB allocator, final long readPoint) {
+      super();
+      this.segment = segment;
+      this.readPoint = readPoint;
+      if (allocator != null) {
+        this.allocatorAtCreation = allocator;
+        this.allocatorAtCreation.incScannerCount();
+      }
+    }
+
+    private KeyValue getNext() {
+      while (it.hasNext()) {
+        KeyValue v = it.next();
+        if (v.getMemstoreTS() <= readPoint) {
+          // Callers may keep the KeyValue past our close, when its chunk
+          // can be recycled
+          return allocatorAtCreation != null &&
+              allocatorAtCreation.isPooled(v) ? v.clone() : v;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized boolean seek(KeyValue key) {
+      if (key == null) {
+        close();
+        return false;
+      }
+      it = segment.tailSet(key).iterator();
+      theNext = getNext();
+      return theNext != null;
+    }
+
+    @Override
+    public synchronized boolean reseek(KeyValue key) {
+      if (theNext != null && comparator.compare(theNext, key) >= 0) {
+        return true;
+      }
+      return seek(key);
+    }
+
+    @Override
+    public synchronized KeyValue peek() {
+      return theNext;
+    }
+
+    @Override
+    public synchronized KeyValue next() {
+      final KeyValue ret = theNext;
+      if (ret != null) {
+        theNext = getNext();
+      }
+      return ret;
+    }
+
+    public synchronized void close() {
+      this.it = null;
+      this.theNext = null;
+      if (this.allocatorAtCreation != null) {
+        this.allocatorAtCreation.decScannerCount();
+        this.allocatorAtCreation = null;
+      }
+    }
+
+    /**
+     * The segment is newer than all the store files but older than the
+     * active set, whose {@link MemStoreScanner} wins the ties, e.g. against
+     * an upserted cell of the same timestamp.
+     */
+    @Override
+    public long getSequenceID() {
+      return Long.MAX_VALUE - 1;
+    }
+
+    @Override
+    public boolean shouldUseScanner(Scan scan, SortedSet<byte[]> columns,
+        long oldestUnexpiredTS) {
+      return shouldSeek(scan, oldestUnexpiredTS);
+    }
+  }
+
   public final static long FIXED_OVERHEAD = ClassSize.align(
-      ClassSize.OBJECT + (10 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_LONG));
+      ClassSize.OBJECT + (13 * ClassSize.REFERENCE) + (5 * Bytes.SIZEOF_LONG) +
+      Bytes.SIZEOF_INT + Bytes.SIZEOF_BOOLEAN);
 
   public final static long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.ATOMIC_LONG +
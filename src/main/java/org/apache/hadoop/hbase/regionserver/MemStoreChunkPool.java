@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.regionserver.MemStoreLAB.Chunk;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * A pool of {@link Chunk} instances shared by all the {@link MemStoreLAB}s of
+ * a region server.
+ * <p>
+ * A MemStoreLAB takes its chunks from the pool and gives them back once the
+ * memstore snapshot they hold has been flushed and every scanner reading from
+ * them is closed. Reusing the chunks this way keeps the 2MB arrays out of the
+ * garbage collector's way: they are allocated once and then stay in the old
+ * generation instead of being promoted and freed on every flush.
+ * <p>
+ * The pool is capped at <code>hbase.hregion.memstore.chunkpool.maxsize</code>,
+ * a fraction of the global memstore limit; chunks given back beyond that are
+ * left to the garbage collector. <code>hbase.hregion.memstore.chunkpool.initialsize</code>
+ * is the fraction of the pool allocated up front. The pool is disabled when the
+ * max size is 0 or the MemStoreLAB is turned off.
+ */
+public class MemStoreChunkPool {
+  private static final Log LOG = LogFactory.getLog(MemStoreChunkPool.class);
+  final static String CHUNK_POOL_MAXSIZE_KEY = "hbase.hregion.memstore.chunkpool.maxsize";
+  final static String CHUNK_POOL_INITIALSIZE_KEY =
+    "hbase.hregion.memstore.chunkpool.initialsize";
+  final static float POOL_MAX_SIZE_DEFAULT = 0.0f;
+  final static float POOL_INITIAL_SIZE_DEFAULT = 0.0f;
+
+  // Static reference to the MemStoreChunkPool
+  private static MemStoreChunkPool globalInstance;
+  // Boolean whether we have disabled the memstore chunk pool entirely.
+  static boolean chunkPoolDisabled = false;
+
+  private final int maxCount;
+
+  // A queue of reclaimed chunks
+  private final BlockingQueue<Chunk> reclaimedChunks;
+  private final int chunkSize;
+
+  // Statistics
+  private final AtomicLong createdChunkCount = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  MemStoreChunkPool(int chunkSize, int maxCount, int initialCount) {
+    this.maxCount = maxCount;
+    this.chunkSize = chunkSize;
+    this.reclaimedChunks = new LinkedBlockingQueue<Chunk>();
+    for (int i = 0; i < initialCount; i++) {
+      Chunk chunk = new Chunk(chunkSize);
+      chunk.init();
+      reclaimedChunks.add(chunk);
+    }
+    this.createdChunkCount.set(initialCount);
+  }
+
+  /**
+   * Poll a chunk from the pool, reset it if not null, else create a new chunk
+   * to return
+   * @return a chunk
+   */
+  Chunk getChunk() {
+    Chunk chunk = reclaimedChunks.poll();
+    if (chunk == null) {
+      chunk = new Chunk(chunkSize);
+      createdChunkCount.incrementAndGet();
+      missCount.incrementAndGet();
+    } else {
+      chunk.reset();
+      hitCount.incrementAndGet();
+    }
+    return chunk;
+  }
+
+  /**
+   * Add the chunks to the pool, when the pool achieves the max size, it will
+   * skip the remaining chunks
+   * @param chunks
+   */
+  void putbackChunks(BlockingQueue<Chunk> chunks) {
+    int maxNumToPutback = this.maxCount - reclaimedChunks.size();
+    if (maxNumToPutback <= 0) {
+      return;
+    }
+    chunks.drainTo(reclaimedChunks, maxNumToPutback);
+  }
+
+  /**
+   * Add the chunk to the pool, if the pool has achieved the max size, it will
+   * skip it
+   * @param chunk
+   */
+  void putbackChunk(Chunk chunk) {
+    if (reclaimedChunks.size() >= this.maxCount) {
+      return;
+    }
+    reclaimedChunks.add(chunk);
+  }
+
+  /**
+   * @return number of chunks waiting in the pool
+   */
+  int getPoolSize() {
+    return this.reclaimedChunks.size();
+  }
+
+  /**
+   * @return bytes held by the chunks waiting in the pool
+   */
+  long getPoolSizeInBytes() {
+    return (long) getPoolSize() * this.chunkSize;
+  }
+
+  /**
+   * @return number of chunks that have been allocated from the JVM
+   */
+  long getCreatedChunkCount() {
+    return this.createdChunkCount.get();
+  }
+
+  /**
+   * @return number of chunks handed out that were reused from the pool
+   */
+  long getHitCount() {
+    return this.hitCount.get();
+  }
+
+  /**
+   * @return number of chunks handed out that had to be newly allocated
+   */
+  long getMissCount() {
+    return this.missCount.get();
+  }
+
+  int getMaxCount() {
+    return this.maxCount;
+  }
+
+  /*
+   * Only used in testing
+   */
+  void clearChunks() {
+    this.reclaimedChunks.clear();
+  }
+
+  /**
+   * @return the global MemStoreChunkPool instance if it has been created,
+   * otherwise null
+   */
+  static synchronized MemStoreChunkPool getPool() {
+    return globalInstance;
+  }
+
+  /**
+   * @param conf
+   * @return the global MemStoreChunkPool instance, or null if the pool is
+   * disabled
+   */
+  static synchronized MemStoreChunkPool getPool(Configuration conf) {
+    if (globalInstance != null) return globalInstance;
+    if (chunkPoolDisabled) return null;
+
+    float poolSizePercentage = conf.getFloat(CHUNK_POOL_MAXSIZE_KEY,
+        POOL_MAX_SIZE_DEFAULT);
+    if (poolSizePercentage <= 0 ||
+        !conf.getBoolean(MemStore.USEMSLAB_KEY, MemStore.USEMSLAB_DEFAULT)) {
+      chunkPoolDisabled = true;
+      return null;
+    }
+    if (poolSizePercentage > 1.0) {
+      throw new IllegalArgumentException(CHUNK_POOL_MAXSIZE_KEY
+          + " must be between 0.0 and 1.0");
+    }
+    long heapMax = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+        .getMax();
+    long globalMemStoreLimit = MemStoreFlusher.globalMemStoreLimit(heapMax,
+        MemStoreFlusher.DEFAULT_UPPER, MemStoreFlusher.UPPER_KEY, conf);
+    int chunkSize = conf.getInt(MemStoreLAB.CHUNK_SIZE_KEY,
+        MemStoreLAB.CHUNK_SIZE_DEFAULT);
+    int maxCount = (int) (globalMemStoreLimit * poolSizePercentage / chunkSize);
+
+    float initialCountPercentage = conf.getFloat(CHUNK_POOL_INITIALSIZE_KEY,
+        POOL_INITIAL_SIZE_DEFAULT);
+    if (initialCountPercentage > 1.0 || initialCountPercentage < 0) {
+      throw new IllegalArgumentException(CHUNK_POOL_INITIALSIZE_KEY
+          + " must be between 0.0 and 1.0");
+    }
+
+    int initialCount = (int) (initialCountPercentage * maxCount);
+    LOG.info("Allocating MemStoreChunkPool with chunk size "
+        + StringUtils.byteDesc(chunkSize) + ", max count " + maxCount
+        + ", initial count " + initialCount);
+    globalInstance = new MemStoreChunkPool(chunkSize, maxCount, initialCount);
+    return globalInstance;
+  }
+}
@@ -40,6 +40,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.DroppedSnapshotException;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.RegionTooBusyException;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.EnvironmentEdgeManager;
@@ -76,16 +77,33 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
   protected final long globalMemStoreLimit;
   protected final long globalMemStoreLimitLowMark;
 
-  private static final float DEFAULT_UPPER = 0.4f;
+  static final float DEFAULT_UPPER = 0.4f;
   private static final float DEFAULT_LOWER = 0.35f;
-  private static final String UPPER_KEY =
+  static final String UPPER_KEY =
     "hbase.regionserver.global.memstore.upperLimit";
   private static final String LOWER_KEY =
     "hbase.regionserver.global.memstore.lowerLimit";
   
+  static final String THROTTLE_KEY =
+    "hbase.regionserver.global.memstore.throttle";
+  static final String THROTTLE_MAX_DELAY_KEY =
+    "hbase.regionserver.global.memstore.throttle.maxdelay";
+  static final String THROTTLE_MAX_BLOCK_KEY =
+    "hbase.regionserver.global.memstore.throttle.maxblock";
+  static final long DEFAULT_THROTTLE_MAX_DELAY = 500;
+  static final long DEFAULT_THROTTLE_MAX_BLOCK = 5000;
+
   private long blockingWaitTime;
   private final Counter updatesBlockedMsHighWater = new Counter();
 
+  // Slow updates down between the low and high water marks instead of only
+  // blocking them above the high water mark
+  private final boolean throttle;
+  private final long throttleMaxDelay;
+  private final long throttleMaxBlock;
+  private final Counter updatesDelayedMs = new Counter();
+  private final Counter updatesRejected = new Counter();
+
   /**
    * @param conf
    * @param server
@@ -109,6 +127,11 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
     
     this.blockingWaitTime = conf.getInt("hbase.hstore.blockingWaitTime",
       90000);
+    this.throttle = conf.getBoolean(THROTTLE_KEY, false);
+    this.throttleMaxDelay = conf.getLong(THROTTLE_MAX_DELAY_KEY,
+      DEFAULT_THROTTLE_MAX_DELAY);
+    this.throttleMaxBlock = conf.getLong(THROTTLE_MAX_BLOCK_KEY,
+      DEFAULT_THROTTLE_MAX_BLOCK);
     LOG.info("globalMemStoreLimit=" +
       StringUtils.humanReadableInt(this.globalMemStoreLimit) +
       ", globalMemStoreLimitLowMark=" +
@@ -146,6 +169,21 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
     return this.updatesBlockedMsHighWater;
   }
 
+  /**
+   * @return time updates were delayed by the global memstore throttle
+   */
+  public Counter getUpdatesDelayedMs() {
+    return this.updatesDelayedMs;
+  }
+
+  /**
+   * @return number of updates turned away because the global memstore stayed
+   * above the high water mark
+   */
+  public Counter getUpdatesRejected() {
+    return this.updatesRejected;
+  }
+
   /**
    * The memstore across all regions has exceeded the low water mark. Pick
    * one region to flush and flush it synchronously (this is called from the
@@ -311,13 +349,20 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
   }
 
   public void requestFlush(HRegion r) {
+    requestFlush(r, false);
+  }
+
+  public void requestFlush(HRegion r, boolean forceFlushAllStores) {
     synchronized (regionsInQueue) {
-      if (!regionsInQueue.containsKey(r)) {
+      FlushRegionEntry queued = regionsInQueue.get(r);
+      if (queued == null) {
         // This entry has no delay so it will be added at the top of the flush
         // queue.  It'll come out near immediately.
-        FlushRegionEntry fqe = new FlushRegionEntry(r);
+        FlushRegionEntry fqe = new FlushRegionEntry(r, forceFlushAllStores);
         this.regionsInQueue.put(r, fqe);
         this.flushQueue.add(fqe);
+      } else if (forceFlushAllStores) {
+        queued.setForceFlushAllStores();
       }
     }
   }
@@ -326,7 +371,7 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
     synchronized (regionsInQueue) {
       if (!regionsInQueue.containsKey(r)) {
         // This entry has some delay
-        FlushRegionEntry fqe = new FlushRegionEntry(r);
+        FlushRegionEntry fqe = new FlushRegionEntry(r, false);
         fqe.requeue(delay);
         this.regionsInQueue.put(r, fqe);
         this.flushQueue.add(fqe);
@@ -391,7 +436,11 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
         return true;
       }
     }
-    return flushRegion(region, false);
+    return flushRegion(region, false, fqe.isForceFlushAllStores());
+  }
+
+  private boolean flushRegion(final HRegion region, final boolean emergencyFlush) {
+    return flushRegion(region, emergencyFlush, false);
   }
 
   /*
@@ -401,12 +450,15 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
    * needs to be removed from the flush queue. If false, when we were called
    * from the main flusher run loop and we got the entry to flush by calling
    * poll on the flush queue (which removed it).
+   * @param forceFlushAllStores Set to flush all the stores of the region even
+   * if per column family flushing is enabled.
    *
    * @return true if the region was successfully flushed, false otherwise. If
    * false, there will be accompanying log messages explaining why the log was
    * not flushed.
    */
-  private boolean flushRegion(final HRegion region, final boolean emergencyFlush) {
+  private boolean flushRegion(final HRegion region, final boolean emergencyFlush,
+      boolean forceFlushAllStores) {
     synchronized (this.regionsInQueue) {
       FlushRegionEntry fqe = this.regionsInQueue.remove(region);
       if (fqe != null && emergencyFlush) {
@@ -414,10 +466,14 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
         // emergencyFlush, then item was removed via a flushQueue.poll.
         flushQueue.remove(fqe);
      }
+      if (fqe != null && fqe.isForceFlushAllStores()) {
+        forceFlushAllStores = true;
+      }
      lock.lock();
     }
     try {
-      boolean shouldCompact = region.flushcache().isCompactionNeeded();
+      boolean shouldCompact =
+        region.flushcache(forceFlushAllStores).isCompactionNeeded();
       // We just want to check the size
       boolean shouldSplit = region.checkSplit() != null;
       if (shouldSplit) {
@@ -466,41 +522,139 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
    */
   public void reclaimMemStoreMemory() {
     if (isAboveHighWaterMark()) {
-      lock.lock();
-      try {
-        boolean blocked = false;
-        long startTime = 0;
-        while (isAboveHighWaterMark() && !server.isStopped()) {
-          if(!blocked){
-            startTime = EnvironmentEdgeManager.currentTimeMillis();
-            LOG.info("Blocking updates on " + server.toString() +
-            ": the global memstore size " +
-            StringUtils.humanReadableInt(server.getRegionServerAccounting().getGlobalMemstoreSize()) +
-            " is >= than blocking " +
-            StringUtils.humanReadableInt(globalMemStoreLimit) + " size");
-          }
-          blocked = true;
-          wakeupFlushThread();
-          try {
-            // we should be able to wait forever, but we've seen a bug where
-            // we miss a notify, so put a 5 second bound on it at least.
-            flushOccurred.await(5, TimeUnit.SECONDS);
-          } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
-          }
+      blockUntilBelowHighWaterMark(Long.MAX_VALUE);
+    } else if (isAboveLowWaterMark()) {
+      wakeupFlushThread();
+    }
+  }
+
+  /**
+   * Check the regionserver's memstore memory usage before an update of
+   * <code>region</code>.
+   * <p>
+   * Unless <code>hbase.regionserver.global.memstore.throttle</code> is set,
+   * this is {@link #reclaimMemStoreMemory()}. Otherwise, between the low and
+   * the high water mark the calling handler sleeps for a time that grows with
+   * the global memstore size and with how close the region is to its own
+   * flush size, up to <code>hbase.regionserver.global.memstore.throttle.maxdelay</code>.
+   * Writers slow down gradually while the flushes catch up instead of all
+   * stopping at once. Above the high water mark the caller waits for flushes
+   * at most <code>hbase.regionserver.global.memstore.throttle.maxblock</code>,
+   * then the update is turned away so the client backs off and retries.
+   * @param region the region about to be updated
+   * @throws RegionTooBusyException if the global memstore stays above the
+   * high water mark
+   */
+  public void reclaimMemStoreMemory(final HRegion region)
+  throws RegionTooBusyException {
+    if (!this.throttle) {
+      reclaimMemStoreMemory();
+      return;
+    }
+    long globalSize =
+      server.getRegionServerAccounting().getGlobalMemstoreSize();
+    if (globalSize < globalMemStoreLimitLowMark) {
+      return;
+    }
+    wakeupFlushThread();
+    if (globalSize < globalMemStoreLimit) {
+      long delay = getThrottleDelay(globalSize, globalMemStoreLimitLowMark,
+        globalMemStoreLimit, region.getMemstoreSize().get(),
+        region.memstoreFlushSize, throttleMaxDelay);
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
         }
-        if(blocked){
-          final long totalTime = EnvironmentEdgeManager.currentTimeMillis() - startTime;
-          if(totalTime > 0){
-            this.updatesBlockedMsHighWater.add(totalTime);
+        this.updatesDelayedMs.add(delay);
+      }
+      return;
+    }
+    if (!blockUntilBelowHighWaterMark(throttleMaxBlock)) {
+      this.updatesRejected.increment();
+      throw new RegionTooBusyException("Above global memstore limit of " +
+        StringUtils.humanReadableInt(globalMemStoreLimit) + " on " + server +
+        " after waiting " + throttleMaxBlock + "ms, region " +
+        region.getRegionNameAsString());
+    }
+  }
+
+  /**
+   * How long to delay an update when the global memstore size is between the
+   * low and high water marks. The delay grows with the square of how far
+   * into that range we are, so it stays small until the pressure is real,
+   * and is halved for regions far from their own flush size since they are
+   * not the ones filling the memstore.
+   * @param globalSize current global memstore size
+   * @param lowMark global memstore low water mark
+   * @param highMark global memstore high water mark
+   * @param regionSize memstore size of the updated region
+   * @param regionFlushSize flush size of the updated region
+   * @param maxDelay longest delay, in ms
+   * @return delay in ms
+   */
+  static long getThrottleDelay(final long globalSize, final long lowMark,
+      final long highMark, final long regionSize, final long regionFlushSize,
+      final long maxDelay) {
+    if (globalSize <= lowMark || highMark <= lowMark) {
+      return 0;
+    }
+    double pressure =
+      Math.min(1.0, (double)(globalSize - lowMark) / (highMark - lowMark));
+    double share = regionFlushSize <= 0? 1.0:
+      Math.min(1.0, (double)regionSize / regionFlushSize);
+    return (long)(maxDelay * pressure * pressure * (0.5 + 0.5 * share));
+  }
+
+  /*
+   * Block until the global memstore size is below the high water mark, or
+   * <code>maxWait</code> ms have passed.
+   * @return true if the global memstore size is below the high water mark
+   */
+  private boolean blockUntilBelowHighWaterMark(final long maxWait) {
+    lock.lock();
+    try {
+      boolean blocked = false;
+      long startTime = 0;
+      while (isAboveHighWaterMark() && !server.isStopped()) {
+        long waited = 0;
+        if(!blocked){
+          startTime = EnvironmentEdgeManager.currentTimeMillis();
+          LOG.info("Blocking updates on " + server.toString() +
+          ": the global memstore size " +
+          StringUtils.humanReadableInt(server.getRegionServerAccounting().getGlobalMemstoreSize()) +
+          " is >= than blocking " +
+          StringUtils.humanReadableInt(globalMemStoreLimit) + " size");
+        } else {
+          waited = EnvironmentEdgeManager.currentTimeMillis() - startTime;
+          if (waited >= maxWait) {
+            break;
           }
-          LOG.info("Unblocking updates for server " + server.toString());
         }
-      } finally {
-        lock.unlock();
+        blocked = true;
+        wakeupFlushThread();
+        try {
+          // we should be able to wait forever, but we've seen a bug where
+          // we miss a notify, so put a 5 second bound on it at least.
+          flushOccurred.await(Math.min(5000, maxWait - waited),
+            TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
       }
-    } else if (isAboveLowWaterMark()) {
-      wakeupFlushThread();
+      boolean below = !isAboveHighWaterMark();
+      if(blocked){
+        final long totalTime = EnvironmentEdgeManager.currentTimeMillis() - startTime;
+        if(totalTime > 0){
+          this.updatesBlockedMsHighWater.add(totalTime);
+        }
+        LOG.info((below? "Unblocking updates": "Stopped waiting on flushes") +
+          " for server " + server.toString());
+      }
+      return below;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -555,11 +709,28 @@ class MemStoreFlusher extends HasThread implements FlushRequester {
     private final long createTime;
     private long whenToExpire;
     private int requeueCount = 0;
+    private volatile boolean forceFlushAllStores;
 
-    FlushRegionEntry(final HRegion r) {
+    FlushRegionEntry(final HRegion r, final boolean forceFlushAllStores) {
       this.region = r;
       this.createTime = System.currentTimeMillis();
       this.whenToExpire = this.createTime;
+      this.forceFlushAllStores = forceFlushAllStores;
+    }
+
+    /**
+     * @return True if all the stores of the region must be flushed.
+     */
+    public boolean isForceFlushAllStores() {
+      return this.forceFlushAllStores;
+    }
+
+    /**
+     * Have all the stores of the region flushed, whatever the request that
+     * queued this entry asked for.
+     */
+    public void setForceFlushAllStores() {
+      this.forceFlushAllStores = true;
     }
 
     /**
@@ -19,10 +19,14 @@
  */
 package org.apache.hadoop.hbase.regionserver;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
 import com.google.common.base.Preconditions;
 
 /**
@@ -41,6 +45,14 @@ import com.google.common.base.Preconditions;
  * interleaved throughout the heap, and the old generation gets progressively
  * more fragmented until a stop-the-world compacting collection occurs.
  * <p>
+ * If a {@link MemStoreChunkPool} is configured, chunks are taken from the
+ * pool and handed back to it once the memstore they belong to has been
+ * flushed and no scanner reads from them any more, so the chunks are reused
+ * instead of becoming garbage on every flush. The memstore scanners hand
+ * out copies of the KeyValues held in pooled chunks, see
+ * {@link #isPooled(KeyValue)}, so that no KeyValue kept past the close of
+ * its scanner points into a recycled chunk.
+ * <p>
  * TODO: we should probably benchmark whether word-aligning the allocations
  * would provide a performance improvement - probably would speed up the
  * Bytes.toLong/Bytes.toInt calls in KeyValue, but some of those are cached
@@ -57,11 +69,23 @@ public class MemStoreLAB {
   final static int MAX_ALLOC_DEFAULT = 256  * 1024; // allocs bigger than this don't go through allocator
   final int maxAlloc;
 
+  // Used in testing
+  final MemStoreChunkPool chunkPool;
+  // Chunks handed out to this allocator, to be given back to the pool on close
+  private final BlockingQueue<Chunk> chunkQueue = new LinkedBlockingQueue<Chunk>();
+  private final AtomicInteger openScannerCount = new AtomicInteger();
+  private volatile boolean closed = false;
+  private final AtomicBoolean reclaimed = new AtomicBoolean(false);
+
   public MemStoreLAB() {
     this(new Configuration());
   }
 
   public MemStoreLAB(Configuration conf) {
+    this(conf, MemStoreChunkPool.getPool(conf));
+  }
+
+  MemStoreLAB(Configuration conf, MemStoreChunkPool pool) {
     chunkSize = conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT);
     maxAlloc = conf.getInt(MAX_ALLOC_KEY, MAX_ALLOC_DEFAULT);
 
@@ -69,6 +93,7 @@ public class MemStoreLAB {
     Preconditions.checkArgument(
       maxAlloc <= chunkSize,
       MAX_ALLOC_KEY + " must be less than " + CHUNK_SIZE_KEY);
+    this.chunkPool = pool;
   }
 
   /**
@@ -103,6 +128,51 @@ public class MemStoreLAB {
     }
   }
 
+  /**
+   * Close this instance since it won't be used any more. The chunks are given
+   * back to the pool right away if no scanner is open on this allocator,
+   * otherwise when the last one is closed.
+   */
+  public void close() {
+    this.closed = true;
+    if (openScannerCount.get() == 0) {
+      reclaimChunks();
+    }
+  }
+
+  /**
+   * Called when opening a scanner on the data of this MemStoreLAB
+   */
+  public void incScannerCount() {
+    this.openScannerCount.incrementAndGet();
+  }
+
+  /**
+   * Called when closing a scanner on the data of this MemStoreLAB
+   */
+  public void decScannerCount() {
+    int count = this.openScannerCount.decrementAndGet();
+    if (this.closed && count == 0) {
+      reclaimChunks();
+    }
+  }
+
+  /**
+   * @param kv a KeyValue of the memstore using this allocator
+   * @return whether the KeyValue may be held in a chunk that goes back to
+   *         the pool, and must be copied before it is handed out by a scanner
+   */
+  boolean isPooled(KeyValue kv) {
+    // Only the chunks are this large; larger cells are not copied in
+    return chunkPool != null && kv.getBuffer().length == chunkSize;
+  }
+
+  private void reclaimChunks() {
+    if (chunkPool != null && reclaimed.compareAndSet(false, true)) {
+      chunkPool.putbackChunks(this.chunkQueue);
+    }
+  }
+
   /**
    * Try to retire the current chunk if it is still
    * <code>c</code>. Postcondition is that curChunk.get()
@@ -121,7 +191,7 @@ public class MemStoreLAB {
 
   /**
    * Get the current chunk, or, if there is no current chunk,
-   * allocate a new one from the JVM.
+   * take one from the pool or allocate a new one from the JVM.
    */
   private Chunk getOrMakeChunk() {
     while (true) {
@@ -134,12 +204,17 @@ public class MemStoreLAB {
       // No current chunk, so we want to allocate one. We race
       // against other allocators to CAS in an uninitialized chunk
       // (which is cheap to allocate)
-      c = new Chunk(chunkSize);
+      c = (chunkPool != null) ? chunkPool.getChunk() : new Chunk(chunkSize);
       if (curChunk.compareAndSet(null, c)) {
         // we won race - now we need to actually do the expensive
         // allocation step
         c.init();
+        if (chunkPool != null) {
+          this.chunkQueue.add(c);
+        }
         return c;
+      } else if (chunkPool != null) {
+        chunkPool.putbackChunk(c);
       }
       // someone else won race - that's fine, we'll try to grab theirs
       // in the next iteration of the loop.
@@ -149,7 +224,7 @@ public class MemStoreLAB {
   /**
    * A chunk of memory out of which allocations are sliced.
    */
-  private static class Chunk {
+  static class Chunk {
     /** Actual underlying data */
     private byte[] data;
 
@@ -172,7 +247,7 @@ public class MemStoreLAB {
      * this is cheap.
      * @param size in bytes
      */
-    private Chunk(int size) {
+    Chunk(int size) {
       this.size = size;
     }
 
@@ -180,11 +255,14 @@ public class MemStoreLAB {
      * Actually claim the memory for this chunk. This should only be called from
      * the thread that constructed the chunk. It is thread-safe against other
      * threads calling alloc(), who will block until the allocation is complete.
+     * A chunk recycled through the pool keeps its memory.
      */
     public void init() {
       assert nextFreeOffset.get() == UNINITIALIZED;
       try {
-        data = new byte[size];
+        if (data == null) {
+          data = new byte[size];
+        }
       } catch (OutOfMemoryError e) {
         boolean failInit = nextFreeOffset.compareAndSet(UNINITIALIZED, OOM);
         assert failInit; // should be true.
@@ -199,6 +277,16 @@ public class MemStoreLAB {
           "Multiple threads tried to init same chunk");
     }
 
+    /**
+     * Reset the offset to UNINITIALIZED before reusing an old chunk
+     */
+    void reset() {
+      if (nextFreeOffset.get() != UNINITIALIZED) {
+        nextFreeOffset.set(UNINITIALIZED);
+        allocCount.set(0);
+      }
+    }
+
     /**
      * Try to allocate <code>size</code> bytes from the chunk.
      * @return the offset of the successful allocation, or -1 to indicate not-enough-space
@@ -27,7 +27,8 @@ import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * RegionServerAccounting keeps record of some basic real time information about
- * the Region Server. Currently, it only keeps record the global memstore size. 
+ * the Region Server. Currently, it only keeps record the global memstore size
+ * and the state of the {@link MemStoreChunkPool}.
  */
 public class RegionServerAccounting {
 
@@ -45,6 +46,31 @@ public class RegionServerAccounting {
     return atomicGlobalMemstoreSize.get();
   }
   
+  /**
+   * @return bytes held by the chunks waiting in the MemStoreLAB chunk pool,
+   * which are not counted in the global Memstore size
+   */
+  public long getMemStoreChunkPoolSize() {
+    MemStoreChunkPool pool = MemStoreChunkPool.getPool();
+    return pool == null ? 0 : pool.getPoolSizeInBytes();
+  }
+
+  /**
+   * @return number of MemStoreLAB chunks that were reused from the pool
+   */
+  public long getMemStoreChunkPoolHitCount() {
+    MemStoreChunkPool pool = MemStoreChunkPool.getPool();
+    return pool == null ? 0 : pool.getHitCount();
+  }
+
+  /**
+   * @return number of MemStoreLAB chunks the pool had to allocate anew
+   */
+  public long getMemStoreChunkPoolMissCount() {
+    MemStoreChunkPool pool = MemStoreChunkPool.getPool();
+    return pool == null ? 0 : pool.getMissCount();
+  }
+
   /**
    * @param memStoreSize the Memstore size will be added to 
    *        the global Memstore size 
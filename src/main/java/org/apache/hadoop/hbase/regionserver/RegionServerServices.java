@@ -20,6 +20,7 @@
 package org.apache.hadoop.hbase.regionserver;
 
 import java.io.IOException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.hbase.HRegionInfo;
@@ -101,4 +102,15 @@ public interface RegionServerServices extends OnlineRegions {
    * @return The RegionServer's "Leases" service
    */
   public Leases getLeases();
+
+  /**
+   * @return the pool warming up the block cache of the opened regions, or
+   * null if block cache persistence is disabled
+   */
+  public ThreadPoolExecutor getBlockCacheWarmUpPool();
+
+  /**
+   * @return the pool compacting the memstores of the online regions in memory
+   */
+  public ThreadPoolExecutor getInMemoryCompactionPool();
 }
@@ -438,6 +438,20 @@ public class ScanQueryMatcher {
     return this.startKey;
   }
 
+  /**
+   * @return the row the scan stops before, empty if it scans to the end
+   */
+  byte[] getStopRow() {
+    return this.stopRow;
+  }
+
+  /**
+   * @return the time range of the scan
+   */
+  TimeRange getTimeRange() {
+    return this.tr;
+  }
+
   /**
    *
    * @return the Filter
@@ -35,7 +35,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -110,6 +113,10 @@ public class Store extends SchemaConfigured implements HeapSize {
   public static final String BLOCKING_STOREFILES_KEY = "hbase.hstore.blockingStoreFiles";
   public static final int DEFAULT_BLOCKING_STOREFILE_COUNT = 7;
 
+  static final String IN_MEMORY_COMPACTION_THREADS_KEY =
+    "hbase.hregion.memstore.inmemorycompaction.threads";
+  static final int DEFAULT_IN_MEMORY_COMPACTION_THREADS = 1;
+
   protected final MemStore memstore;
   // This stores directory in the filesystem.
   private final Path homedir;
@@ -131,8 +138,13 @@ public class Store extends SchemaConfigured implements HeapSize {
   private final int blockingStoreFileCount;
   private volatile long storeSize = 0L;
   private volatile long totalUncompressedBytes = 0L;
+  // Sequence id of the last flush that snapshotted this store. Every edit in
+  // the memstore has a higher sequence id.
+  private volatile long flushedSequenceId = -1L;
   private final Object flushLock = new Object();
   final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // Whether an in-memory compaction of the memstore is queued or running
+  private final AtomicBoolean inMemoryCompactionQueued = new AtomicBoolean();
   private final boolean verifyBulkLoads;
   
   private long blockingFileCount;
@@ -222,7 +234,7 @@ public class Store extends SchemaConfigured implements HeapSize {
     LOG.info("time to purge deletes set to " + timeToPurgeDeletes +
         "ms in store " + this);
     scanInfo = new ScanInfo(family, ttl, timeToPurgeDeletes, this.comparator);
-    this.memstore = new MemStore(conf, this.comparator);
+    this.memstore = new MemStore(conf, this.comparator, family);
 
     // By default, compact if storefile.count >= minFilesToCompact
     this.minFilesToCompact = Math.max(2,
@@ -507,12 +519,80 @@ public class Store extends SchemaConfigured implements HeapSize {
    * @return memstore size delta
    */
   protected long add(final KeyValue kv) {
+    long size;
     lock.readLock().lock();
     try {
-      return this.memstore.add(kv);
+      size = this.memstore.add(kv);
     } finally {
       lock.readLock().unlock();
     }
+    maybeCompactMemStoreInMemory();
+    return size;
+  }
+
+  /*
+   * Queue an in-memory compaction of the memstore if the family asks for it
+   * and enough was added since the last time, unless one is already queued.
+   * The compaction runs on a pool shared by the stores of the region server
+   * so that the merge is not done by the handler of the update.
+   */
+  private void maybeCompactMemStoreInMemory() {
+    if (!this.memstore.shouldCompactInMemory() ||
+        !this.inMemoryCompactionQueued.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      this.region.getInMemoryCompactionPool().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compactMemStoreInMemory();
+          } catch (RuntimeException e) {
+            LOG.error("In-memory compaction of " + Store.this + " failed", e);
+          } finally {
+            inMemoryCompactionQueued.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      this.inMemoryCompactionQueued.set(false);
+      LOG.warn("In-memory compaction of " + this + " not queued", e);
+    }
+  }
+
+  /*
+   * Compact the memstore in memory if it still needs it. Versions are only
+   * dropped if no open scanner can read them. The memory freed is taken off
+   * the region's memstore size right away.
+   */
+  void compactMemStoreInMemory() {
+    long delta;
+    this.lock.writeLock().lock();
+    try {
+      if (!this.memstore.shouldCompactInMemory()) {
+        return;
+      }
+      delta = this.memstore.compactInMemory(
+        this.region.getSmallestReadPoint());
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+    this.region.addAndGetGlobalMemstoreSize(delta);
+  }
+
+  /**
+   * Creates a pool running the in-memory compactions of memstores. Its threads
+   * exit when idle. The region server creates one and shuts it down when it
+   * stops.
+   * @param conf configuration
+   * @return the pool
+   */
+  static ThreadPoolExecutor createInMemoryCompactionPool(
+      final Configuration conf) {
+    int threads = Math.max(1, conf.getInt(IN_MEMORY_COMPACTION_THREADS_KEY,
+      DEFAULT_IN_MEMORY_COMPACTION_THREADS));
+    return Threads.getBoundedCachedThreadPool(threads, 60, TimeUnit.SECONDS,
+      Threads.newDaemonThreadFactory("memstore-inmemorycompaction-"));
   }
 
   /**
@@ -522,6 +602,22 @@ public class Store extends SchemaConfigured implements HeapSize {
     return memstore.timeOfOldestEdit();
   }
 
+  /**
+   * @return sequence id of the last flush of this store; the edits in the
+   * memstore all have a higher one
+   */
+  long getFlushedSequenceId() {
+    return this.flushedSequenceId;
+  }
+
+  /**
+   * @param sequenceId sequence id that all the edits added to the memstore
+   * from now on are known to be higher than
+   */
+  void setFlushedSequenceId(final long sequenceId) {
+    this.flushedSequenceId = sequenceId;
+  }
+
   /**
    * Adds a value to the memstore
    *
@@ -529,12 +625,15 @@ public class Store extends SchemaConfigured implements HeapSize {
    * @return memstore size delta
    */
   protected long delete(final KeyValue kv) {
+    long size;
     lock.readLock().lock();
     try {
-      return this.memstore.delete(kv);
+      size = this.memstore.delete(kv);
     } finally {
       lock.readLock().unlock();
     }
+    maybeCompactMemStoreInMemory();
+    return size;
   }
 
   /**
@@ -595,29 +694,33 @@ public class Store extends SchemaConfigured implements HeapSize {
       if (verifyBulkLoads) {
         KeyValue prevKV = null;
         HFileScanner scanner = reader.getScanner(false, false, false);
-        scanner.seekTo();
-        do {
-          KeyValue kv = scanner.getKeyValue();
-          if (prevKV != null) {
-            if (Bytes.compareTo(prevKV.getBuffer(), prevKV.getRowOffset(),
-                prevKV.getRowLength(), kv.getBuffer(), kv.getRowOffset(),
-                kv.getRowLength()) > 0) {
-              throw new InvalidHFileException("Previous row is greater than"
-                  + " current row: path=" + srcPath + " previous="
-                  + Bytes.toStringBinary(prevKV.getKey()) + " current="
-                  + Bytes.toStringBinary(kv.getKey()));
-            }
-            if (Bytes.compareTo(prevKV.getBuffer(), prevKV.getFamilyOffset(),
-                prevKV.getFamilyLength(), kv.getBuffer(), kv.getFamilyOffset(),
-                kv.getFamilyLength()) != 0) {
-              throw new InvalidHFileException("Previous key had different"
-                  + " family compared to current key: path=" + srcPath
-                  + " previous=" + Bytes.toStringBinary(prevKV.getFamily())
-                  + " current=" + Bytes.toStringBinary(kv.getFamily()));
+        try {
+          scanner.seekTo();
+          do {
+            KeyValue kv = scanner.getKeyValue();
+            if (prevKV != null) {
+              if (Bytes.compareTo(prevKV.getBuffer(), prevKV.getRowOffset(),
+                  prevKV.getRowLength(), kv.getBuffer(), kv.getRowOffset(),
+                  kv.getRowLength()) > 0) {
+                throw new InvalidHFileException("Previous row is greater than"
+                    + " current row: path=" + srcPath + " previous="
+                    + Bytes.toStringBinary(prevKV.getKey()) + " current="
+                    + Bytes.toStringBinary(kv.getKey()));
+              }
+              if (Bytes.compareTo(prevKV.getBuffer(), prevKV.getFamilyOffset(),
+                  prevKV.getFamilyLength(), kv.getBuffer(),
+                  kv.getFamilyOffset(), kv.getFamilyLength()) != 0) {
+                throw new InvalidHFileException("Previous key had different"
+                    + " family compared to current key: path=" + srcPath
+                    + " previous=" + Bytes.toStringBinary(prevKV.getFamily())
+                    + " current=" + Bytes.toStringBinary(kv.getFamily()));
+              }
             }
-          }
-          prevKV = kv;
-        } while (scanner.next());
+            prevKV = kv;
+          } while (scanner.next());
+        } finally {
+          scanner.close();
+        }
       }
     } finally {
       if (reader != null) reader.close();
@@ -2014,23 +2117,28 @@ public class Store extends SchemaConfigured implements HeapSize {
     }
     // Get a scanner that caches blocks and that uses pread.
     HFileScanner scanner = r.getScanner(true, true, false);
-    // Seek scanner.  If can't seek it, return.
-    if (!seekToScanner(scanner, firstOnRow, firstKV)) return;
-    // If we found candidate on firstOnRow, just return. THIS WILL NEVER HAPPEN!
-    // Unlikely that there'll be an instance of actual first row in table.
-    if (walkForwardInSingleRow(scanner, firstOnRow, state)) return;
-    // If here, need to start backing up.
-    while (scanner.seekBefore(firstOnRow.getBuffer(), firstOnRow.getKeyOffset(),
-       firstOnRow.getKeyLength())) {
-      KeyValue kv = scanner.getKeyValue();
-      if (!state.isTargetTable(kv)) break;
-      if (!state.isBetterCandidate(kv)) break;
-      // Make new first on row.
-      firstOnRow = new KeyValue(kv.getRow(), HConstants.LATEST_TIMESTAMP);
-      // Seek scanner.  If can't seek it, break.
-      if (!seekToScanner(scanner, firstOnRow, firstKV)) break;
-      // If we find something, break;
-      if (walkForwardInSingleRow(scanner, firstOnRow, state)) break;
+    try {
+      // Seek scanner.  If can't seek it, return.
+      if (!seekToScanner(scanner, firstOnRow, firstKV)) return;
+      // If we found candidate on firstOnRow, just return. THIS WILL NEVER
+      // HAPPEN! Unlikely that there'll be an instance of actual first row in
+      // table.
+      if (walkForwardInSingleRow(scanner, firstOnRow, state)) return;
+      // If here, need to start backing up.
+      while (scanner.seekBefore(firstOnRow.getBuffer(),
+          firstOnRow.getKeyOffset(), firstOnRow.getKeyLength())) {
+        KeyValue kv = scanner.getKeyValue();
+        if (!state.isTargetTable(kv)) break;
+        if (!state.isBetterCandidate(kv)) break;
+        // Make new first on row.
+        firstOnRow = new KeyValue(kv.getRow(), HConstants.LATEST_TIMESTAMP);
+        // Seek scanner.  If can't seek it, break.
+        if (!seekToScanner(scanner, firstOnRow, firstKV)) break;
+        // If we find something, break;
+        if (walkForwardInSingleRow(scanner, firstOnRow, state)) break;
+      }
+    } finally {
+      scanner.close();
     }
   }
 
@@ -2420,12 +2528,29 @@ public class Store extends SchemaConfigured implements HeapSize {
     @Override
     public void prepare() {
       memstore.snapshot();
+      flushedSequenceId = cacheFlushId;
       this.snapshot = memstore.getSnapshot();
       this.snapshotTimeRangeTracker = memstore.getSnapshotTimeRangeTracker();
     }
 
     @Override
     public void flushCache(MonitoredTask status) throws IOException {
+      if (!memstore.getSnapshotCompacted().isEmpty()) {
+        // No rollback can reach the snapshot any more; fold the part that
+        // was compacted in memory in so there is a single set to write out.
+        // A plain snapshot is written straight from the skip list: turning it
+        // into an array first would cost the flush an extra pass.
+        KeyValueArraySet flat = memstore.mergeSnapshot();
+        if (flat != memstore.getSnapshotCompacted()) {
+          lock.writeLock().lock();
+          try {
+            memstore.setFlatSnapshot(flat);
+          } finally {
+            lock.writeLock().unlock();
+          }
+        }
+        this.snapshot = flat;
+      }
       storeFilePath = Store.this.flushCache(
         cacheFlushId, snapshot, snapshotTimeRangeTracker, flushedSize, status);
     }
@@ -2467,7 +2592,7 @@ public class Store extends SchemaConfigured implements HeapSize {
 
   public static final long FIXED_OVERHEAD =
       ClassSize.align(SchemaConfigured.SCHEMA_CONFIGURED_UNALIGNED_HEAP_SIZE +
-          + (17 * ClassSize.REFERENCE) + (7 * Bytes.SIZEOF_LONG)
+          + (18 * ClassSize.REFERENCE) + (8 * Bytes.SIZEOF_LONG)
           + (5 * Bytes.SIZEOF_INT) + Bytes.SIZEOF_BOOLEAN);
 
   public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD
@@ -106,7 +106,12 @@ public class StoreFile extends SchemaConfigured {
     /**
      * Bloom enabled with Table row & column (family+qualifier) as Key
      */
-    ROWCOL
+    ROWCOL,
+    /**
+     * Bloom enabled with a prefix of the Table row as Key, of a fixed length
+     * or up to a delimiter, so that it also applies to scans within a prefix
+     */
+    ROWPREFIX
   }
 
   // Keys for fileinfo values in HFile
@@ -126,6 +131,14 @@ public class StoreFile extends SchemaConfigured {
   public static final byte[] BLOOM_FILTER_TYPE_KEY =
       Bytes.toBytes("BLOOM_FILTER_TYPE");
 
+  /** Fixed row prefix length of a ROWPREFIX Bloom filter in FileInfo */
+  public static final byte[] BLOOM_PREFIX_LENGTH_KEY =
+      Bytes.toBytes("BLOOM_PREFIX_LENGTH");
+
+  /** Row prefix delimiter of a ROWPREFIX Bloom filter in FileInfo */
+  public static final byte[] BLOOM_PREFIX_DELIMITER_KEY =
+      Bytes.toBytes("BLOOM_PREFIX_DELIMITER");
+
   /** Delete Family Count in FileInfo */
   public static final byte[] DELETE_FAMILY_COUNT =
       Bytes.toBytes("DELETE_FAMILY_COUNT");
@@ -748,6 +761,35 @@ public class StoreFile extends SchemaConfigured {
     return tgt;
   }
 
+  /**
+   * Computes the Bloom key of a row for {@link BloomType#ROWPREFIX} Bloom
+   * filters: either the first prefixLength bytes of the row, or the bytes up
+   * to and including the first occurrence of the delimiter, if one is given.
+   * Rows that are too short or that have no delimiter are their own Bloom
+   * key.
+   *
+   * @param row the row buffer
+   * @param offset the row offset
+   * @param length the row length
+   * @param prefixLength the fixed prefix length, used without a delimiter
+   * @param delimiter the delimiter ending the prefix, or null
+   * @return the length of the complete prefix of the row, or -1 if the row
+   *         is too short or has no delimiter
+   */
+  static int getRowPrefixLength(byte[] row, int offset, int length,
+      int prefixLength, byte[] delimiter) {
+    if (delimiter == null) {
+      return length >= prefixLength ? prefixLength : -1;
+    }
+    for (int i = 0; i + delimiter.length <= length; i++) {
+      if (Bytes.equals(row, offset + i, delimiter.length, delimiter, 0,
+          delimiter.length)) {
+        return i + delimiter.length;
+      }
+    }
+    return -1;
+  }
+
   public static class WriterBuilder {
     private final Configuration conf;
     private final CacheConfig cacheConf;
@@ -1020,6 +1062,8 @@ public class StoreFile extends SchemaConfigured {
     private final BloomFilterWriter generalBloomFilterWriter;
     private final BloomFilterWriter deleteFamilyBloomFilterWriter;
     private final BloomType bloomType;
+    private final int bloomPrefixLength;
+    private final byte[] bloomPrefixDelimiter;
     private byte[] lastBloomKey;
     private int lastBloomKeyOffset, lastBloomKeyLen;
     private KVComparator kvComparator;
@@ -1085,6 +1129,22 @@ public class StoreFile extends SchemaConfigured {
 
       this.kvComparator = comparator;
 
+      if (bloomType == BloomType.ROWPREFIX) {
+        bloomPrefixLength = BloomFilterFactory.getBloomPrefixLength(conf);
+        bloomPrefixDelimiter = BloomFilterFactory.getBloomPrefixDelimiter(
+            conf);
+        if (bloomPrefixLength <= 0 && bloomPrefixDelimiter == null) {
+          LOG.error("Neither "
+              + BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_LENGTH + " nor "
+              + BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_DELIMITER
+              + " specified for " + path + ". Not using a Bloom filter");
+          bloomType = BloomType.NONE;
+        }
+      } else {
+        bloomPrefixLength = 0;
+        bloomPrefixDelimiter = null;
+      }
+
       generalBloomFilterWriter = BloomFilterFactory.createGeneralBloomAtWrite(
           conf, cacheConf, bloomType,
           (int) Math.min(maxKeys, Integer.MAX_VALUE), writer);
@@ -1175,12 +1235,17 @@ public class StoreFile extends SchemaConfigured {
           case ROWCOL:
             newKey = ! kvComparator.matchingRowColumn(kv, lastKv);
             break;
+          case ROWPREFIX:
+            newKey = ! Bytes.equals(kv.getBuffer(), kv.getRowOffset(),
+                getRowPrefixBloomKeyLength(kv), lastBloomKey,
+                lastBloomKeyOffset, lastBloomKeyLen);
+            break;
           case NONE:
             newKey = false;
             break;
           default:
             throw new IOException("Invalid Bloom filter type: " + bloomType +
-                " (ROW or ROWCOL expected)");
+                " (ROW, ROWCOL or ROWPREFIX expected)");
           }
         }
         if (newKey) {
@@ -1188,9 +1253,10 @@ public class StoreFile extends SchemaConfigured {
            * http://2.bp.blogspot.com/_Cib_A77V54U/StZMrzaKufI/AAAAAAAAADo/ZhK7bGoJdMQ/s400/KeyValue.png
            * Key = RowLen + Row + FamilyLen + Column [Family + Qualifier] + TimeStamp
            *
-           * 2 Types of Filtering:
+           * 3 Types of Filtering:
            *  1. Row = Row
            *  2. RowCol = Row + Qualifier
+           *  3. RowPrefix = Prefix of Row
            */
           byte[] bloomKey;
           int bloomKeyOffset, bloomKeyLen;
@@ -1211,9 +1277,14 @@ public class StoreFile extends SchemaConfigured {
             bloomKeyOffset = 0;
             bloomKeyLen = bloomKey.length;
             break;
+          case ROWPREFIX:
+            bloomKey = kv.getBuffer();
+            bloomKeyOffset = kv.getRowOffset();
+            bloomKeyLen = getRowPrefixBloomKeyLength(kv);
+            break;
           default:
             throw new IOException("Invalid Bloom filter type: " + bloomType +
-                " (ROW or ROWCOL expected)");
+                " (ROW, ROWCOL or ROWPREFIX expected)");
           }
           generalBloomFilterWriter.add(bloomKey, bloomKeyOffset, bloomKeyLen);
           if (lastBloomKey != null
@@ -1234,6 +1305,13 @@ public class StoreFile extends SchemaConfigured {
       }
     }
 
+    /** @return the length of the ROWPREFIX Bloom key of the given row */
+    private int getRowPrefixBloomKeyLength(final KeyValue kv) {
+      int prefixLength = getRowPrefixLength(kv.getBuffer(), kv.getRowOffset(),
+          kv.getRowLength(), bloomPrefixLength, bloomPrefixDelimiter);
+      return prefixLength < 0 ? kv.getRowLength() : prefixLength;
+    }
+
     private void appendDeleteFamilyBloomFilter(final KeyValue kv)
         throws IOException {
       if (!kv.isDeleteFamily()) {
@@ -1295,6 +1373,15 @@ public class StoreFile extends SchemaConfigured {
         writer.addGeneralBloomFilter(generalBloomFilterWriter);
         writer.appendFileInfo(BLOOM_FILTER_TYPE_KEY,
             Bytes.toBytes(bloomType.toString()));
+        if (bloomType == BloomType.ROWPREFIX) {
+          if (bloomPrefixDelimiter != null) {
+            writer.appendFileInfo(BLOOM_PREFIX_DELIMITER_KEY,
+                bloomPrefixDelimiter);
+          } else {
+            writer.appendFileInfo(BLOOM_PREFIX_LENGTH_KEY,
+                Bytes.toBytes(bloomPrefixLength));
+          }
+        }
         if (lastBloomKey != null) {
           writer.appendFileInfo(LAST_BLOOM_KEY, Arrays.copyOfRange(
               lastBloomKey, lastBloomKeyOffset, lastBloomKeyOffset
@@ -1357,6 +1444,8 @@ public class StoreFile extends SchemaConfigured {
     protected TimeRangeTracker timeRangeTracker = null;
     protected long sequenceID = -1;
     private byte[] lastBloomKey;
+    private int bloomPrefixLength;
+    private byte[] bloomPrefixDelimiter;
     private long deleteFamilyCnt = -1;
 
     public Reader(FileSystem fs, Path path, CacheConfig cacheConf,
@@ -1480,7 +1569,8 @@ public class StoreFile extends SchemaConfigured {
 
     /**
      * Checks whether the given scan passes the Bloom filter (if present). Only
-     * checks Bloom filters for single-row or single-row-column scans. Bloom
+     * checks Bloom filters for single-row or single-row-column scans, and for
+     * scans within one row prefix in case of row prefix Bloom filters. Bloom
      * filter checking for multi-gets is implemented as part of the store
      * scanner system (see {@link StoreFileScanner#seekExactly}) and uses
      * the lower-level API {@link #passesGeneralBloomFilter(byte[], int, int, byte[],
@@ -1496,6 +1586,10 @@ public class StoreFile extends SchemaConfigured {
      */
      boolean passesBloomFilter(Scan scan,
         final SortedSet<byte[]> columns) {
+      if (this.bloomFilterType == BloomType.ROWPREFIX) {
+        return passesRowPrefixBloomFilter(scan);
+      }
+
       // Multi-column non-get scans will use Bloom filters through the
       // lower-level API function that this function calls.
       if (!scan.isGetScan()) {
@@ -1523,6 +1617,34 @@ public class StoreFile extends SchemaConfigured {
       }
     }
 
+    /**
+     * Checks a row prefix Bloom filter for a get, or for a scan whose start
+     * and stop rows share a complete prefix, so that all the rows of the scan
+     * have the same Bloom key.
+     */
+    private boolean passesRowPrefixBloomFilter(Scan scan) {
+      if (bloomPrefixLength <= 0 && bloomPrefixDelimiter == null) {
+        return true;
+      }
+
+      byte[] row = scan.getStartRow();
+      int prefixLength = getRowPrefixLength(row, 0, row.length,
+          bloomPrefixLength, bloomPrefixDelimiter);
+      if (scan.isGetScan()) {
+        if (prefixLength < 0) {
+          prefixLength = row.length;
+        }
+      } else if (prefixLength < 0 || scan.getStopRow().length < prefixLength
+          || !Bytes.equals(row, 0, prefixLength, scan.getStopRow(), 0,
+              prefixLength)) {
+        return true;
+      }
+
+      byte[] prefix = prefixLength == row.length ? row :
+          Arrays.copyOf(row, prefixLength);
+      return passesGeneralBloomFilter(prefix, 0, prefix.length, null, 0, 0);
+    }
+
     public boolean passesDeleteFamilyBloomFilter(byte[] row, int rowOffset,
         int rowLen) {
       // Cache Bloom filter as a local variable in case it is set to null by
@@ -1554,7 +1676,8 @@ public class StoreFile extends SchemaConfigured {
 
     /**
      * A method for checking Bloom filters. Called directly from
-     * StoreFileScanner in case of a multi-column query.
+     * StoreFileScanner in case of a multi-column query. For row prefix Bloom
+     * filters the row must already be the row prefix.
      *
      * @param row
      * @param rowOffset
@@ -1572,6 +1695,7 @@ public class StoreFile extends SchemaConfigured {
       byte[] key;
       switch (bloomFilterType) {
         case ROW:
+        case ROWPREFIX:
           if (col != null) {
             throw new RuntimeException("Row-only Bloom filter called with " +
                 "column specified");
@@ -1694,6 +1818,11 @@ public class StoreFile extends SchemaConfigured {
       }
 
       lastBloomKey = fi.get(LAST_BLOOM_KEY);
+      bloomPrefixDelimiter = fi.get(BLOOM_PREFIX_DELIMITER_KEY);
+      b = fi.get(BLOOM_PREFIX_LENGTH_KEY);
+      if (b != null) {
+        bloomPrefixLength = Bytes.toInt(b);
+      }
       byte[] cnt = fi.get(DELETE_FAMILY_COUNT);
       if (cnt != null) {
         deleteFamilyCnt = Bytes.toLong(cnt);
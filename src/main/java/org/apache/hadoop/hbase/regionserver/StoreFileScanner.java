@@ -29,10 +29,13 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.TimeRange;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.regionserver.StoreFile.Reader;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * KeyValueScanner adaptor over the Reader.  It also provides hooks into
@@ -207,8 +210,8 @@ public class StoreFileScanner implements KeyValueScanner {
   }
 
   public void close() {
-    // Nothing to close on HFileScanner?
     cur = null;
+    hfs.close();
   }
 
   /**
@@ -357,6 +360,16 @@ public class StoreFileScanner implements KeyValueScanner {
 
   public void setScanQueryMatcher(ScanQueryMatcher matcher) {
     this.matcher = matcher;
+    if (matcher != null &&
+        !Bytes.equals(matcher.getStopRow(), HConstants.EMPTY_END_ROW)) {
+      hfs.setStopKey(KeyValue.createFirstOnRow(matcher.getStopRow()).getKey());
+    }
+    if (matcher != null) {
+      TimeRange timeRange = matcher.getTimeRange();
+      if (timeRange.getMin() > 0 || timeRange.getMax() < Long.MAX_VALUE) {
+        hfs.setTimeRange(timeRange.getMin(), timeRange.getMax());
+      }
+    }
   }
 
   @Override
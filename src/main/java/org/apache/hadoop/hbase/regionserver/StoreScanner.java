@@ -255,15 +255,19 @@ public class StoreScanner extends NonLazyKeyValueScanner
     long expiredTimestampCutoff = minVersions == 0 ? oldestUnexpiredTS :
         Long.MIN_VALUE;
 
-    // include only those scan files which pass all filters
+    // include only those scan files which pass all filters, and close the
+    // others since nothing else will
     for (KeyValueScanner kvs : allScanners) {
       boolean isFile = kvs.isFileScanner();
       if ((!isFile && filesOnly) || (isFile && memOnly)) {
+        kvs.close();
         continue;
       }
 
       if (kvs.shouldUseScanner(scan, columns, expiredTimestampCutoff)) {
         scanners.add(kvs);
+      } else {
+        kvs.close();
       }
     }
     return scanners;
@@ -111,6 +111,49 @@ public class RegionServerMetrics implements Updater {
   public final MetricsLongValue blockCacheEvictedCount = 
       new MetricsLongValue("blockCacheEvictedCount", registry);
 
+  /**
+   * Block cache admission reject count.
+   */
+  public final MetricsLongValue blockCacheRejectedCount =
+      new MetricsLongValue("blockCacheRejectedCount", registry);
+
+  /**
+   * Percentage of the off heap slab cache memory holding blocks that is not
+   * used by their data.
+   */
+  public final MetricsIntValue blockCacheSlabFragmentation =
+      new MetricsIntValue("blockCacheSlabFragmentation", registry);
+
+  /**
+   * Number of blocks too large for the off heap slab cache.
+   */
+  public final MetricsLongValue blockCacheSlabRejectedCount =
+      new MetricsLongValue("blockCacheSlabRejectedCount", registry);
+
+  /**
+   * Number of HFiles queued or being prefetched into the block cache.
+   */
+  public final MetricsLongValue blockCachePrefetchPendingCount =
+      new MetricsLongValue("blockCachePrefetchPendingCount", registry);
+
+  /**
+   * Number of HFiles fully prefetched into the block cache.
+   */
+  public final MetricsLongValue blockCachePrefetchCompletedCount =
+      new MetricsLongValue("blockCachePrefetchCompletedCount", registry);
+
+  /**
+   * Number of blocks read by HFile prefetches.
+   */
+  public final MetricsLongValue blockCachePrefetchedBlockCount =
+      new MetricsLongValue("blockCachePrefetchedBlockCount", registry);
+
+  /**
+   * Number of bytes read by HFile prefetches.
+   */
+  public final MetricsLongValue blockCachePrefetchedBytes =
+      new MetricsLongValue("blockCachePrefetchedBytes", registry);
+
   /**
    * Block hit ratio.
    */
@@ -199,6 +242,24 @@ public class RegionServerMetrics implements Updater {
   public final MetricsIntValue memstoreSizeMB =
     new MetricsIntValue("memstoreSizeMB", registry);
 
+  /**
+   * Size of the MemStoreLAB chunks waiting in the chunk pool in MB
+   */
+  public final MetricsIntValue memstoreChunkPoolSizeMB =
+    new MetricsIntValue("memstoreChunkPoolSizeMB", registry);
+
+  /**
+   * Number of MemStoreLAB chunks reused from the chunk pool
+   */
+  public final MetricsLongValue memstoreChunkPoolHitCount =
+    new MetricsLongValue("memstoreChunkPoolHitCount", registry);
+
+  /**
+   * Number of MemStoreLAB chunks the chunk pool could not supply
+   */
+  public final MetricsLongValue memstoreChunkPoolMissCount =
+    new MetricsLongValue("memstoreChunkPoolMissCount", registry);
+
   /**
    * Number of put with WAL disabled in this regionserver in MB
    */
@@ -235,6 +296,13 @@ public class RegionServerMetrics implements Updater {
   public final MetricsHistogram fsPreadLatencyHistogram = 
       new MetricsHistogram("fsPreadLatencyHistogram", registry);
 
+  /**
+   * filesystem read latency distribution, on the streams of scanners that
+   * read sequentially
+   */
+  public final MetricsHistogram fsStreamReadLatencyHistogram =
+      new MetricsHistogram("fsStreamReadLatencyHistogram", registry);
+
   /**
    * Metrics on the distribution of filesystem write latencies (improved version of fsWriteLatency)
    */
@@ -254,6 +322,13 @@ public class RegionServerMetrics implements Updater {
   public final MetricsTimeVaryingRate fsPreadLatency =
     new MetricsTimeVaryingRate("fsPreadLatency", registry);
 
+  /**
+   * filesystem read latency, on the streams of scanners that read
+   * sequentially
+   */
+  public final MetricsTimeVaryingRate fsStreamReadLatency =
+    new MetricsTimeVaryingRate("fsStreamReadLatency", registry);
+
   /**
    * filesystem write latency
    */
@@ -272,6 +347,12 @@ public class RegionServerMetrics implements Updater {
   public final MetricsTimeVaryingRate fsSyncLatency =
     new MetricsTimeVaryingRate("fsSyncLatency", registry);
 
+  /**
+   * time handlers spend waiting on HLog syncs
+   */
+  public final MetricsTimeVaryingRate fsSyncWaitLatency =
+    new MetricsTimeVaryingRate("fsSyncWaitLatency", registry);
+
   
   /**
    * time each scheduled compaction takes
@@ -321,6 +402,18 @@ public class RegionServerMetrics implements Updater {
   public final MetricsLongValue updatesBlockedSecondsHighWater = new MetricsLongValue(
       "updatesBlockedSecondsHighWater",registry);
 
+  /**
+   * time updates were slowed down by the global memstore throttle
+   */
+  public final MetricsLongValue updatesThrottledMs = new MetricsLongValue(
+      "updatesThrottledMs", registry);
+
+  /**
+   * updates turned away on memstoreHW by the global memstore throttle
+   */
+  public final MetricsLongValue updatesRejectedHighWater = new MetricsLongValue(
+      "updatesRejectedHighWater", registry);
+
   public RegionServerMetrics() {
     MetricsContext context = MetricsUtil.getContext("hbase");
     metricsRecord = MetricsUtil.createRecord(context, "regionserver");
@@ -382,6 +475,9 @@ public class RegionServerMetrics implements Updater {
       this.totalStaticIndexSizeKB.pushMetric(this.metricsRecord);
       this.totalStaticBloomSizeKB.pushMetric(this.metricsRecord);
       this.memstoreSizeMB.pushMetric(this.metricsRecord);
+      this.memstoreChunkPoolSizeMB.pushMetric(this.metricsRecord);
+      this.memstoreChunkPoolHitCount.pushMetric(this.metricsRecord);
+      this.memstoreChunkPoolMissCount.pushMetric(this.metricsRecord);
       this.mbInMemoryWithoutWAL.pushMetric(this.metricsRecord);
       this.numPutsWithoutWAL.pushMetric(this.metricsRecord);
       this.readRequestsCount.pushMetric(this.metricsRecord);
@@ -396,6 +492,13 @@ public class RegionServerMetrics implements Updater {
       this.blockCacheHitCount.pushMetric(this.metricsRecord);
       this.blockCacheMissCount.pushMetric(this.metricsRecord);
       this.blockCacheEvictedCount.pushMetric(this.metricsRecord);
+      this.blockCacheRejectedCount.pushMetric(this.metricsRecord);
+      this.blockCacheSlabFragmentation.pushMetric(this.metricsRecord);
+      this.blockCacheSlabRejectedCount.pushMetric(this.metricsRecord);
+      this.blockCachePrefetchPendingCount.pushMetric(this.metricsRecord);
+      this.blockCachePrefetchCompletedCount.pushMetric(this.metricsRecord);
+      this.blockCachePrefetchedBlockCount.pushMetric(this.metricsRecord);
+      this.blockCachePrefetchedBytes.pushMetric(this.metricsRecord);
       this.blockCacheHitRatio.pushMetric(this.metricsRecord);
       this.blockCacheHitCachingRatio.pushMetric(this.metricsRecord);
       this.hdfsBlocksLocalityIndex.pushMetric(this.metricsRecord);
@@ -415,6 +518,7 @@ public class RegionServerMetrics implements Updater {
       addHLogMetric(HLog.getWriteTime(), this.fsWriteLatency);
       addHLogMetric(HLog.getWriteSize(), this.fsWriteSize);
       addHLogMetric(HLog.getSyncTime(), this.fsSyncLatency);
+      addHLogMetric(HLog.getSyncWaitTime(), this.fsSyncWaitLatency);
       addHLogMetric(HLog.getSlowAppendTime(), this.slowHLogAppendTime);
       this.slowHLogAppendCount.set(HLog.getSlowAppendCount());
       // HFile metrics, sequential reads
@@ -423,6 +527,11 @@ public class RegionServerMetrics implements Updater {
       // HFile metrics, positional reads
       ops = HFile.getPreadOps(); 
       if (ops != 0) this.fsPreadLatency.inc(ops, HFile.getPreadTimeMs());
+      // HFile metrics, reads on the streams of sequential scanners
+      ops = HFile.getStreamReadOps();
+      if (ops != 0) {
+        this.fsStreamReadLatency.inc(ops, HFile.getStreamReadTimeMs());
+      }
       this.checksumFailuresCount.set(HFile.getChecksumFailuresCount());
 
       /* NOTE: removed HFile write latency.  2 reasons:
@@ -438,6 +547,9 @@ public class RegionServerMetrics implements Updater {
       for(Long latency : HFile.getPreadLatenciesNanos()) {
         this.fsPreadLatencyHistogram.update(latency);
       }
+      for(Long latency : HFile.getStreamReadLatenciesNanos()) {
+        this.fsStreamReadLatencyHistogram.update(latency);
+      }
       for(Long latency : HFile.getWriteLatenciesNanos()) {
         this.fsWriteLatencyHistogram.update(latency);
       }
@@ -445,6 +557,7 @@ public class RegionServerMetrics implements Updater {
 
       // push the result
       this.fsPreadLatency.pushMetric(this.metricsRecord);
+      this.fsStreamReadLatency.pushMetric(this.metricsRecord);
       this.fsReadLatency.pushMetric(this.metricsRecord);
       this.fsWriteLatency.pushMetric(this.metricsRecord);
       this.fsWriteSize.pushMetric(this.metricsRecord);
@@ -452,8 +565,10 @@ public class RegionServerMetrics implements Updater {
       this.fsReadLatencyHistogram.pushMetric(this.metricsRecord);
       this.fsWriteLatencyHistogram.pushMetric(this.metricsRecord);
       this.fsPreadLatencyHistogram.pushMetric(this.metricsRecord);
+      this.fsStreamReadLatencyHistogram.pushMetric(this.metricsRecord);
 
       this.fsSyncLatency.pushMetric(this.metricsRecord);
+      this.fsSyncWaitLatency.pushMetric(this.metricsRecord);
       this.compactionTime.pushMetric(this.metricsRecord);
       this.compactionSize.pushMetric(this.metricsRecord);
       this.flushTime.pushMetric(this.metricsRecord);
@@ -464,6 +579,8 @@ public class RegionServerMetrics implements Updater {
       this.checksumFailuresCount.pushMetric(this.metricsRecord);
       this.updatesBlockedSeconds.pushMetric(this.metricsRecord);
       this.updatesBlockedSecondsHighWater.pushMetric(this.metricsRecord);
+      this.updatesThrottledMs.pushMetric(this.metricsRecord);
+      this.updatesRejectedHighWater.pushMetric(this.metricsRecord);
     }
     this.metricsRecord.update();
   }
@@ -486,6 +603,7 @@ public class RegionServerMetrics implements Updater {
     this.fsWriteLatency.resetMinMax();
     this.fsWriteSize.resetMinMax();
     this.fsSyncLatency.resetMinMax();
+    this.fsSyncWaitLatency.resetMinMax();
     this.slowHLogAppendTime.resetMinMax();
   }
 
@@ -555,6 +673,12 @@ public class RegionServerMetrics implements Updater {
         Integer.valueOf(this.totalStaticBloomSizeKB.get()));
     sb = Strings.appendKeyValue(sb, this.memstoreSizeMB.getName(),
       Integer.valueOf(this.memstoreSizeMB.get()));
+    sb = Strings.appendKeyValue(sb, "memstoreChunkPoolSizeMB",
+      Integer.valueOf(this.memstoreChunkPoolSizeMB.get()));
+    sb = Strings.appendKeyValue(sb, "memstoreChunkPoolHitCount",
+      Long.valueOf(this.memstoreChunkPoolHitCount.get()));
+    sb = Strings.appendKeyValue(sb, "memstoreChunkPoolMissCount",
+      Long.valueOf(this.memstoreChunkPoolMissCount.get()));
     sb = Strings.appendKeyValue(sb, "mbInMemoryWithoutWAL",
       Integer.valueOf(this.mbInMemoryWithoutWAL.get()));
     sb = Strings.appendKeyValue(sb, "numberOfPutsWithoutWAL",
@@ -587,6 +711,25 @@ public class RegionServerMetrics implements Updater {
         Long.valueOf(this.blockCacheMissCount.get()));
     sb = Strings.appendKeyValue(sb, this.blockCacheEvictedCount.getName(),
         Long.valueOf(this.blockCacheEvictedCount.get()));
+    sb = Strings.appendKeyValue(sb, this.blockCacheRejectedCount.getName(),
+        Long.valueOf(this.blockCacheRejectedCount.get()));
+    sb = Strings.appendKeyValue(sb,
+        this.blockCacheSlabFragmentation.getName(),
+        Long.valueOf(this.blockCacheSlabFragmentation.get())+"%");
+    sb = Strings.appendKeyValue(sb,
+        this.blockCacheSlabRejectedCount.getName(),
+        Long.valueOf(this.blockCacheSlabRejectedCount.get()));
+    sb = Strings.appendKeyValue(sb,
+        this.blockCachePrefetchPendingCount.getName(),
+        Long.valueOf(this.blockCachePrefetchPendingCount.get()));
+    sb = Strings.appendKeyValue(sb,
+        this.blockCachePrefetchCompletedCount.getName(),
+        Long.valueOf(this.blockCachePrefetchCompletedCount.get()));
+    sb = Strings.appendKeyValue(sb,
+        this.blockCachePrefetchedBlockCount.getName(),
+        Long.valueOf(this.blockCachePrefetchedBlockCount.get()));
+    sb = Strings.appendKeyValue(sb, this.blockCachePrefetchedBytes.getName(),
+        Long.valueOf(this.blockCachePrefetchedBytes.get()));
     sb = Strings.appendKeyValue(sb, this.blockCacheHitRatio.getName(),
         Long.valueOf(this.blockCacheHitRatio.get())+"%");
     sb = Strings.appendKeyValue(sb, this.blockCacheHitCachingRatio.getName(),
@@ -597,6 +740,7 @@ public class RegionServerMetrics implements Updater {
         Long.valueOf(this.slowHLogAppendCount.get()));
     sb = appendHistogram(sb, this.fsReadLatencyHistogram);
     sb = appendHistogram(sb, this.fsPreadLatencyHistogram);
+    sb = appendHistogram(sb, this.fsStreamReadLatencyHistogram);
     sb = appendHistogram(sb, this.fsWriteLatencyHistogram);
 
     return sb.toString();
@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.regionserver.wal.HLog.Entry;
+import org.apache.hadoop.hbase.regionserver.wal.HLog.Writer;
+import org.apache.hadoop.hbase.util.HasThread;
+import org.apache.hadoop.hbase.util.Threads;
+
+/**
+ * Group commit engine for an {@link HLog}.
+ *
+ * <p>Handlers no longer take turns doing the append-and-sync themselves.
+ * Instead a single writer thread drains the entries buffered by the HLog,
+ * appends them to the current {@link Writer} and hands the resulting
+ * transaction id to one of several sync threads.  Because a sync only has to
+ * wait for the bytes that were written before it was issued, several syncs can
+ * be outstanding against the HDFS pipeline at once while the writer thread
+ * keeps appending the next batch.  Whenever a sync acknowledges, every handler
+ * waiting on a transaction id at or below the synced one is released in one go.
+ *
+ * <p>Enabled with <code>hbase.regionserver.hlog.groupcommit.enabled</code>;
+ * the number of sync threads is set by
+ * <code>hbase.regionserver.hlog.groupcommit.syncers</code>.
+ */
+class GroupCommitSyncer {
+  static final Log LOG = LogFactory.getLog(GroupCommitSyncer.class);
+
+  private final HLog log;
+  private final AsyncWriter writer;
+  private final AsyncSyncer[] syncers;
+
+  // Highest txid a handler asked to have synced. Guarded by writeLock.
+  private long requestedTxid = 0;
+  private final Object writeLock = new Object();
+
+  // Highest txid for which a sync failed, and the failure. Guarded by syncedLock.
+  private long failedTxid = 0;
+  private IOException failure = null;
+  private final Object syncedLock = new Object();
+
+  private volatile boolean closed = false;
+
+  GroupCommitSyncer(final HLog log, final int numSyncers) {
+    this.log = log;
+    this.writer = new AsyncWriter();
+    this.syncers = new AsyncSyncer[Math.max(1, numSyncers)];
+    for (int i = 0; i < this.syncers.length; i++) {
+      this.syncers[i] = new AsyncSyncer(i);
+    }
+  }
+
+  /**
+   * Start the writer and sync threads.
+   * @param prefix thread name prefix
+   */
+  void start(final String prefix) {
+    for (AsyncSyncer syncer : this.syncers) {
+      Threads.setDaemonThreadRunning(syncer.getThread(),
+        prefix + ".asyncSyncer" + syncer.index);
+    }
+    Threads.setDaemonThreadRunning(this.writer.getThread(), prefix + ".asyncWriter");
+  }
+
+  /**
+   * Block until all transactions up to and including <code>txid</code> have
+   * been synced to the filesystem.
+   * @param txid transaction id to wait on
+   * @throws IOException if the sync covering <code>txid</code> failed
+   */
+  void sync(final long txid) throws IOException {
+    if (txid <= this.log.getSyncedTillHere()) {
+      return;
+    }
+    synchronized (this.writeLock) {
+      if (txid > this.requestedTxid) {
+        this.requestedTxid = txid;
+        this.writeLock.notify();
+      }
+    }
+    synchronized (this.syncedLock) {
+      while (txid > this.log.getSyncedTillHere()) {
+        if (this.failure != null && txid <= this.failedTxid) {
+          throw this.failure;
+        }
+        if (this.closed) {
+          return;
+        }
+        try {
+          this.syncedLock.wait(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          InterruptedIOException iie =
+            new InterruptedIOException("Interrupted waiting on sync of txid=" + txid);
+          iie.initCause(e);
+          throw iie;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sync everything outstanding and stop the writer and sync threads.
+   */
+  void close() {
+    try {
+      sync(this.log.getUnflushedEntries());
+    } catch (IOException e) {
+      LOG.error("Failed final sync on close", e);
+    }
+    this.closed = true;
+    synchronized (this.writeLock) {
+      this.writeLock.notifyAll();
+    }
+    for (AsyncSyncer syncer : this.syncers) {
+      syncer.close();
+    }
+    synchronized (this.syncedLock) {
+      this.syncedLock.notifyAll();
+    }
+    try {
+      this.writer.join();
+      for (AsyncSyncer syncer : this.syncers) {
+        syncer.join();
+      }
+    } catch (InterruptedException e) {
+      LOG.error("Exception while waiting for group commit threads to die", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Called by a sync thread once <code>txid</code> has been synced. Wakes all
+   * handlers whose transaction is now durable.
+   */
+  private void synced(final long txid) {
+    synchronized (this.syncedLock) {
+      this.log.setSyncedTillHere(txid);
+      this.syncedLock.notifyAll();
+    }
+  }
+
+  /**
+   * Called when the batch ending at <code>txid</code> could not be synced.
+   * Fails the waiting handlers that were relying on it.
+   */
+  private void failed(final long txid, final IOException e) {
+    synchronized (this.syncedLock) {
+      this.failedTxid = Math.max(this.failedTxid, txid);
+      this.failure = e;
+      this.syncedLock.notifyAll();
+    }
+    this.log.requestLogRoll();
+  }
+
+  /**
+   * Drains the HLog's buffered entries, appends them to the current writer and
+   * hands each written batch to the next sync thread.
+   */
+  private class AsyncWriter extends HasThread {
+    private long writtenTxid = 0;
+    private int nextSyncer = 0;
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          synchronized (writeLock) {
+            while (requestedTxid <= this.writtenTxid && !closed) {
+              writeLock.wait(1000);
+            }
+          }
+          if (closed) break;
+          Writer w = log.getCurrentWriter();
+          if (w == null) {
+            // Between close of the old writer and install of the new one.
+            Thread.sleep(10);
+            continue;
+          }
+          // Read the txid before draining; the drained list holds at least
+          // every entry up to it.
+          long doneUpto = log.getUnflushedEntries();
+          List<Entry> pending = log.getPendingWrites();
+          try {
+            append(w, pending);
+          } catch (IOException e) {
+            // A roll may have swapped the writer after we picked it up; if so
+            // write the batch again to the new one.
+            Writer current = log.getCurrentWriter();
+            if (current == null || current == w) {
+              LOG.error("Error appending to hlog, txid=" + doneUpto, e);
+              this.writtenTxid = doneUpto;
+              failed(doneUpto, e);
+              continue;
+            }
+            w = current;
+            try {
+              append(w, pending);
+            } catch (IOException ioe) {
+              LOG.error("Error appending to hlog, txid=" + doneUpto, ioe);
+              this.writtenTxid = doneUpto;
+              failed(doneUpto, ioe);
+              continue;
+            }
+          }
+          this.writtenTxid = doneUpto;
+          syncers[this.nextSyncer].request(w, doneUpto);
+          this.nextSyncer = (this.nextSyncer + 1) % syncers.length;
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + " interrupted while waiting for sync requests");
+      } finally {
+        LOG.info(getName() + " exiting");
+      }
+    }
+  }
+
+  private static void append(final Writer w, final List<Entry> pending)
+  throws IOException {
+    for (Entry e : pending) {
+      w.append(e);
+    }
+  }
+
+  /**
+   * Issues syncs against the writer for the txids handed to it by the
+   * {@link AsyncWriter}. Requests that pile up while a sync is outstanding
+   * are coalesced into the highest one.
+   */
+  private class AsyncSyncer extends HasThread {
+    private final int index;
+    private Writer writer = null;
+    private long txidToSync = 0;
+    private long syncedTxid = 0;
+    private boolean closeSyncer = false;
+
+    AsyncSyncer(final int index) {
+      this.index = index;
+    }
+
+    synchronized void request(final Writer w, final long txid) {
+      if (txid > this.txidToSync) {
+        this.writer = w;
+        this.txidToSync = txid;
+        notify();
+      }
+    }
+
+    synchronized void close() {
+      this.closeSyncer = true;
+      notify();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Writer w;
+          long txid;
+          synchronized (this) {
+            while (this.txidToSync <= this.syncedTxid && !this.closeSyncer) {
+              wait();
+            }
+            if (this.txidToSync <= this.syncedTxid) break;
+            w = this.writer;
+            txid = this.txidToSync;
+          }
+          if (txid <= log.getSyncedTillHere()) {
+            // Covered by a sync that another syncer finished meanwhile.
+            this.syncedTxid = txid;
+            continue;
+          }
+          long now = System.currentTimeMillis();
+          try {
+            w.sync();
+          } catch (IOException e) {
+            // The writer may have been rolled and closed under us after a
+            // later sync already covered this batch.
+            if (txid > log.getSyncedTillHere()) {
+              LOG.error("Error syncing hlog, txid=" + txid, e);
+              failed(txid, e);
+            }
+            this.syncedTxid = txid;
+            continue;
+          }
+          this.syncedTxid = txid;
+          synced(txid);
+          log.postSync(w, System.currentTimeMillis() - now);
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + " interrupted while waiting for sync requests");
+      } finally {
+        LOG.info(getName() + " exiting");
+      }
+    }
+  }
+
+  /**
+   * @return the number of sync threads; exposed for tests
+   */
+  int getNumSyncers() {
+    return this.syncers.length;
+  }
+}
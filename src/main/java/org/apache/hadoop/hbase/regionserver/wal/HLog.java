@@ -123,6 +123,20 @@ public class HLog implements Syncable {
   /** The META region's HLog filename extension */
   public static final String META_HLOG_FILE_EXTN = ".meta";
   public static final String SEPARATE_HLOG_FOR_META = "hbase.regionserver.separate.hlog.for.meta";
+  /** Conf key to hand syncs to a {@link GroupCommitSyncer} */
+  public static final String GROUP_COMMIT_ENABLED_KEY =
+    "hbase.regionserver.hlog.groupcommit.enabled";
+  /** Conf key for the number of concurrent syncs the group commit keeps in flight */
+  public static final String GROUP_COMMIT_SYNCERS_KEY =
+    "hbase.regionserver.hlog.groupcommit.syncers";
+  public static final int DEFAULT_GROUP_COMMIT_SYNCERS = 5;
+  /** Conf key for the number of HLogs a region server spreads its regions over */
+  public static final String HLOG_GROUPS_KEY = "hbase.regionserver.hlog.groups";
+  /** Conf key for the {@link HLogGroupingStrategy} placing regions in HLogs */
+  public static final String HLOG_GROUPING_STRATEGY_KEY =
+    "hbase.regionserver.hlog.grouping.strategy";
+  /** Separates the server name from the group number in a group HLog's prefix */
+  public static final String HLOG_GROUP_SEPARATOR = ".group";
 
   /*
    * Name of directory that holds recovered edits written by the wal log
@@ -186,7 +200,7 @@ public class HLog implements Syncable {
   /*
    * Current log file.
    */
-  Writer writer;
+  volatile Writer writer;
 
   /*
    * Map of all log files but the current one.
@@ -259,6 +273,11 @@ public class HLog implements Syncable {
    */
   private final LogSyncer logSyncer;
 
+  /**
+   * Pipelined group commit, or null if handlers sync the log themselves
+   */
+  private final GroupCommitSyncer groupCommit;
+
   /** Number of log close errors tolerated before we abort */
   private final int closeErrorsTolerated;
 
@@ -312,6 +331,8 @@ public class HLog implements Syncable {
   private static Metric writeSize = new Metric();
   // For measuring latency of syncs
   private static Metric syncTime = new Metric();
+  // For measuring how long handlers wait on their sync to complete
+  private static Metric syncWaitTime = new Metric();
   //For measuring slow HLog appends
   private static AtomicLong slowHLogAppendCount = new AtomicLong();
   private static Metric slowHLogAppendTime = new Metric();
@@ -328,6 +349,10 @@ public class HLog implements Syncable {
     return syncTime.get();
   }
 
+  public static Metric getSyncWaitTime() {
+    return syncWaitTime.get();
+  }
+
   public static long getSlowAppendCount() {
     return slowHLogAppendCount.get();
   }
@@ -464,6 +489,14 @@ public class HLog implements Syncable {
           + this.optionalFlushInterval + ". Deferred log syncing won't work. "
           + "Any Mutation, marked to be deferred synced, will be flushed immediately.");
     }
+    if (conf.getBoolean(GROUP_COMMIT_ENABLED_KEY, false)) {
+      int syncers = conf.getInt(GROUP_COMMIT_SYNCERS_KEY, DEFAULT_GROUP_COMMIT_SYNCERS);
+      LOG.info("Using group commit with " + syncers + " concurrent syncers");
+      groupCommit = new GroupCommitSyncer(this, syncers);
+      groupCommit.start(Thread.currentThread().getName());
+    } else {
+      groupCommit = null;
+    }
     coprocessorHost = new WALCoprocessorHost(this, conf);
   }
 
@@ -960,6 +993,33 @@ public class HLog implements Syncable {
     return new Path(dir, child);
   }
 
+  /**
+   * @param serverName server name the default HLog's files are prefixed with
+   * @param group HLog group; 0 for the default HLog
+   * @return the file prefix to use for the given group's HLog
+   */
+  public static String getGroupPrefix(final String serverName, final int group) {
+    return group == 0 ? serverName : serverName + HLOG_GROUP_SEPARATOR + group;
+  }
+
+  /**
+   * All files written by one HLog share a prefix and differ only in their
+   * trailing file number. Logs of different HLogs on the same server
+   * (groups, or the meta HLog) can be told apart by it.
+   * @param logName name of an HLog file
+   * @return the name with its file number removed
+   */
+  public static String getWALGroup(final String logName) {
+    String name = logName;
+    String suffix = "";
+    if (name.endsWith(META_HLOG_FILE_EXTN)) {
+      suffix = META_HLOG_FILE_EXTN;
+      name = name.substring(0, name.length() - META_HLOG_FILE_EXTN.length());
+    }
+    int index = name.lastIndexOf('.');
+    return (index < 0 ? name : name.substring(0, index)) + suffix;
+  }
+
   public static boolean isMetaFile(Path p) {
     if (p.getName().endsWith(HLog.META_HLOG_FILE_EXTN)) {
       return true;
@@ -1018,6 +1078,9 @@ public class HLog implements Syncable {
         LOG.error("Exception while waiting for syncer thread to die", e);
       }
     }
+    if (this.groupCommit != null) {
+      this.groupCommit.close();
+    }
 
     cacheFlushLock.lock();
     try {
@@ -1317,6 +1380,20 @@ public class HLog implements Syncable {
     if (txid <= this.syncedTillHere) {
       return;
     }
+    long start = System.currentTimeMillis();
+    try {
+      if (this.groupCommit != null) {
+        this.groupCommit.sync(txid);
+      } else {
+        syncWriter(txid);
+      }
+    } finally {
+      syncWaitTime.inc(System.currentTimeMillis() - start);
+    }
+  }
+
+  // append pending writes and sync the writer from the calling thread
+  private void syncWriter(long txid) throws IOException {
     Writer tempWriter;
     synchronized (this.updateLock) {
       if (this.closed) return;
@@ -1368,18 +1445,7 @@ public class HLog implements Syncable {
       }
       this.syncedTillHere = Math.max(this.syncedTillHere, doneUpto);
 
-      syncTime.inc(System.currentTimeMillis() - now);
-      if (!this.logRollRunning) {
-        checkLowReplication();
-        try {
-          curLogSize = tempWriter.getLength();
-          if (curLogSize > this.logrollsize) {
-            requestLogRoll();
-          }
-        } catch (IOException x) {
-          LOG.debug("Log roll failed and will be retried. (This is not an error)");
-        }
-      }
+      postSync(tempWriter, System.currentTimeMillis() - now);
     } catch (IOException e) {
       LOG.fatal("Could not sync. Requesting close of hlog", e);
       requestLogRoll();
@@ -1387,6 +1453,57 @@ public class HLog implements Syncable {
     }
   }
 
+  /**
+   * Bookkeeping after a successful sync: record its latency and ask for a
+   * roll if the pipeline lost replicas or the file grew past the roll size.
+   * @param syncedWriter the writer that was synced
+   * @param took sync time in milliseconds
+   */
+  void postSync(final Writer syncedWriter, final long took) {
+    syncTime.inc(took);
+    if (!this.logRollRunning) {
+      checkLowReplication();
+      try {
+        curLogSize = syncedWriter.getLength();
+        if (curLogSize > this.logrollsize) {
+          requestLogRoll();
+        }
+      } catch (IOException x) {
+        LOG.debug("Log roll failed and will be retried. (This is not an error)");
+      }
+    }
+  }
+
+  /** @return the highest txid known to be synced */
+  long getSyncedTillHere() {
+    return this.syncedTillHere;
+  }
+
+  /**
+   * Advance the synced txid; never moves it backwards.
+   * Callers serialize on their own lock.
+   */
+  void setSyncedTillHere(final long txid) {
+    if (txid > this.syncedTillHere) {
+      this.syncedTillHere = txid;
+    }
+  }
+
+  /** @return the txid of the last appended transaction */
+  long getUnflushedEntries() {
+    return this.unflushedEntries.get();
+  }
+
+  /** @return entries appended since the last call; new appends go to a fresh list */
+  List<Entry> getPendingWrites() {
+    return this.logSyncer.getPendingWrites();
+  }
+
+  /** @return the current writer; null while a roll is swapping writers */
+  Writer getCurrentWriter() {
+    return this.writer;
+  }
+
   private void checkLowReplication() {
     // if the number of replicas in HDFS has fallen below the configured
     // value, then roll logs.
@@ -1476,7 +1593,7 @@ public class HLog implements Syncable {
     syncer(txid);
   }
 
-  private void requestLogRoll() {
+  void requestLogRoll() {
     if (!this.listeners.isEmpty()) {
       for (WALActionsListener i: this.listeners) {
         i.logRollRequested();
@@ -1588,6 +1705,27 @@ public class HLog implements Syncable {
    * @see #abortCacheFlush(byte[])
    */
   public long startCacheFlush(final byte[] encodedRegionName) {
+    return startCacheFlush(encodedRegionName, -1L);
+  }
+
+  /**
+   * Like {@link #startCacheFlush(byte[])}, for a flush that only writes out
+   * some of the stores of the region.
+   *
+   * The stores that are not flushed still hold edits. While the flush is
+   * active the region's entry in lastSeqWritten is set to the oldest lsn they
+   * may hold, so the logs with these edits are not archived once the flush
+   * completes.
+   *
+   * @param encodedRegionName
+   * @param oldestUnflushedSeqId lowest lsn the stores that are not flushed
+   * may hold, or -1 if they are all empty
+   * @return sequence ID to pass
+   *         {@link #completeCacheFlush(byte[], byte[], long, boolean)}
+   * @see #startCacheFlush(byte[])
+   */
+  public long startCacheFlush(final byte[] encodedRegionName,
+      final long oldestUnflushedSeqId) {
     this.cacheFlushLock.lock();
     Long seq = this.lastSeqWritten.remove(encodedRegionName);
     // seq is the lsn of the oldest edit associated with this region. If a
@@ -1606,6 +1744,12 @@ public class HLog implements Syncable {
             " overwritten oldseq=" + oldseq + "with new seq=" + seq);
         Runtime.getRuntime().halt(1);
       }
+      if (oldestUnflushedSeqId >= 0) {
+        // Updates to the region are blocked while we are called, so no
+        // append can race us here
+        lastSeqWritten.put(encodedRegionName,
+          Math.max(seq.longValue(), oldestUnflushedSeqId));
+      }
     }
     return obtainSeqNum();
   }
@@ -1678,10 +1822,12 @@ public class HLog implements Syncable {
       // lastSeqWritten.putIfAbsent() in append() and we will always win
       // before releasing cacheFlushLock make sure that the region's entry in
       // lastSeqWritten points to the earliest edit in the region
+      // The current entry may equal the snapshot's if only some of the
+      // stores were being flushed.
       Long current_memstore_earliest_seq =
         this.lastSeqWritten.put(encodedRegionName, snapshot_seq);
       if (current_memstore_earliest_seq != null &&
-          (current_memstore_earliest_seq.longValue() <=
+          (current_memstore_earliest_seq.longValue() <
             snapshot_seq.longValue())) {
         LOG.error("Logic Error region " + Bytes.toString(encodedRegionName) +
             "acquired edits out of order current memstore seq=" +
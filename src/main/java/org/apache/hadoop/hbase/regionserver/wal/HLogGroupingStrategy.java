@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+
+/**
+ * Decides which of a region server's HLogs a region writes its edits to when
+ * the server runs more than one (<code>hbase.regionserver.hlog.groups</code>).
+ * Implementations must be stateless and return the same group for a region
+ * for as long as the number of groups does not change.
+ * <p>
+ * Catalog regions are not routed through the strategy; they use the default
+ * HLog or the separate meta HLog.
+ */
+public interface HLogGroupingStrategy {
+  /**
+   * @param regionInfo the region to place
+   * @param numGroups number of HLogs on the server; always at least 2
+   * @return the group, in <code>[0, numGroups)</code>. Group 0 is the default HLog.
+   */
+  int getGroup(HRegionInfo regionInfo, int numGroups);
+}
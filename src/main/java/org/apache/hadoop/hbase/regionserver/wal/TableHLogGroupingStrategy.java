@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Puts all regions of a table in the same HLog, picked by hash of the table
+ * name. Keeps a busy table from sharing a sync stream with others, at the cost
+ * of a less even spread when there are few tables.
+ */
+public class TableHLogGroupingStrategy implements HLogGroupingStrategy {
+  @Override
+  public int getGroup(HRegionInfo regionInfo, int numGroups) {
+    int hash = Bytes.hashCode(regionInfo.getTableName());
+    return (hash & Integer.MAX_VALUE) % numGroups;
+  }
+}
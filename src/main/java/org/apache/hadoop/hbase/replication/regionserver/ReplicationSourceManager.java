@@ -24,9 +24,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -43,6 +46,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.Stoppable;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.replication.ReplicationZookeeper;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperListener;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWatcher;
@@ -78,8 +82,14 @@ public class ReplicationSourceManager {
   private final Map<String, SortedSet<String>> hlogsById;
   private final Configuration conf;
   private final FileSystem fs;
-  // The path to the latest log we saw, for new coming sources
-  private Path latestPath;
+  // The path to the latest log of each WAL group, for new coming sources.
+  // A region server running several HLogs has one group per HLog, see
+  // HLog#getWALGroup(String).
+  private final Map<String, Path> latestPaths;
+  // The WAL group each normal source replicates. Logs of concurrently
+  // written HLogs are never handed to the same source, since a source only
+  // moves to its next log once the current one is closed.
+  private final Map<ReplicationSourceInterface, String> walGroups;
   // List of all the other region servers in this cluster
   private final List<String> otherRegionServers = new ArrayList<String>();
   // Path to the hlogs directories
@@ -117,6 +127,8 @@ public class ReplicationSourceManager {
     this.zkHelper = zkHelper;
     this.stopper = stopper;
     this.hlogsById = new HashMap<String, SortedSet<String>>();
+    this.latestPaths = new HashMap<String, Path>();
+    this.walGroups = new HashMap<ReplicationSourceInterface, String>();
     this.oldsources = new ArrayList<ReplicationSourceInterface>();
     this.conf = conf;
     this.fs = fs;
@@ -165,8 +177,8 @@ public class ReplicationSourceManager {
   }
 
   /**
-   * Cleans a log file and all older files from ZK. Called when we are sure that a
-   * log file is closed and has no more entries.
+   * Cleans a log file and all older files of the same WAL group from ZK.
+   * Called when we are sure that a log file is closed and has no more entries.
    * @param key Path to the log
    * @param id id of the peer cluster
    * @param queueRecovered Whether this is a recovered queue
@@ -179,11 +191,15 @@ public class ReplicationSourceManager {
       if (queueRecovered || hlogs.first().equals(key)) {
         return;
       }
-      SortedSet<String> hlogSet = hlogs.headSet(key);
-      for (String hlog : hlogSet) {
-        this.zkHelper.removeLogFromList(hlog, id);
+      String group = HLog.getWALGroup(key);
+      Iterator<String> it = hlogs.headSet(key).iterator();
+      while (it.hasNext()) {
+        String hlog = it.next();
+        if (group.equals(HLog.getWALGroup(hlog))) {
+          this.zkHelper.removeLogFromList(hlog, id);
+          it.remove();
+        }
       }
-      hlogSet.clear();
     }
   }
 
@@ -215,30 +231,62 @@ public class ReplicationSourceManager {
   }
 
   /**
-   * Add a new normal source to this region server
+   * Add a new normal source to this region server, one per WAL group
    * @param id the id of the peer cluster
-   * @return the source that was created
+   * @return the (first) source that was created
    * @throws IOException
    */
   public ReplicationSourceInterface addSource(String id) throws IOException {
+    List<Path> latest;
+    synchronized (this.hlogsById) {
+      this.hlogsById.put(id, new TreeSet<String>());
+      latest = new ArrayList<Path>(this.latestPaths.values());
+    }
+    if (latest.isEmpty()) {
+      // No log yet; the source takes the group of the first one rolled
+      return addSource(id, null, true);
+    }
+    ReplicationSourceInterface first = null;
+    for (Path log : latest) {
+      ReplicationSourceInterface src = addSource(id, log, true);
+      if (first == null) {
+        first = src;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Add a normal source for one WAL group of this region server
+   * @param id the id of the peer cluster
+   * @param latestPath latest log of the group, or null if none was rolled yet
+   * @param queueInZK whether to add the latest log to the peer's queue in ZK;
+   * false if it is already there
+   * @return the source that was created
+   * @throws IOException
+   */
+  private ReplicationSourceInterface addSource(String id, Path latestPath,
+      boolean queueInZK) throws IOException {
     ReplicationSourceInterface src =
         getReplicationSource(this.conf, this.fs, this, stopper, replicating, id);
     synchronized (this.hlogsById) {
       this.sources.add(src);
-      this.hlogsById.put(id, new TreeSet<String>());
       // Add the latest hlog to that source's queue
-      if (this.latestPath != null) {
-        String name = this.latestPath.getName();
+      if (latestPath != null) {
+        String name = latestPath.getName();
+        this.walGroups.put(src, HLog.getWALGroup(name));
         this.hlogsById.get(id).add(name);
-        try {
-          this.zkHelper.addLogToList(name, src.getPeerClusterZnode());
-        } catch (KeeperException ke) {
-          String message = "Cannot add log to zk for" +
-            " replication when creating a new source";
-          stopper.stop(message);
-          throw new IOException(message, ke);
+        if (queueInZK) {
+          try {
+            this.zkHelper.addLogToList(name, src.getPeerClusterZnode());
+          } catch (KeeperException ke) {
+            String message = "Cannot add log to zk for" +
+              " replication when creating a new source";
+            stopper.stop(message);
+            throw new IOException(message, ke);
+          }
         }
-        src.enqueueLog(this.latestPath);
+        src.enqueueLog(latestPath);
       }
     }
     src.startup();
@@ -290,9 +338,16 @@ public class ReplicationSourceManager {
 
     synchronized (this.hlogsById) {
       String name = newLog.getName();
+      String group = HLog.getWALGroup(name);
+      // A peer has one source per WAL group; queue the log once per peer
+      Set<String> peers = new HashSet<String>();
       for (ReplicationSourceInterface source : this.sources) {
+        String peer = source.getPeerClusterZnode();
+        if (!peers.add(peer)) {
+          continue;
+        }
         try {
-          this.zkHelper.addLogToList(name, source.getPeerClusterZnode());
+          this.zkHelper.addLogToList(name, peer);
         } catch (KeeperException ke) {
           throw new IOException("Cannot add log to zk for replication", ke);
         }
@@ -301,13 +356,17 @@ public class ReplicationSourceManager {
         if (this.sources.isEmpty()) {
           // If there's no slaves, don't need to keep the old hlogs since
           // we only consider the last one when a new slave comes in
-          hlogs.clear();
+          Iterator<String> it = hlogs.iterator();
+          while (it.hasNext()) {
+            if (group.equals(HLog.getWALGroup(it.next()))) {
+              it.remove();
+            }
+          }
         }
         hlogs.add(name);
       }
+      this.latestPaths.put(group, newLog);
     }
-
-    this.latestPath = newLog;
   }
 
   void postLogRoll(Path newLog) throws IOException {
@@ -317,8 +376,26 @@ public class ReplicationSourceManager {
     }
 
     // This only updates the sources we own, not the recovered ones
-    for (ReplicationSourceInterface source : this.sources) {
-      source.enqueueLog(newLog);    
+    String group = HLog.getWALGroup(newLog.getName());
+    List<String> peersWithoutSource;
+    synchronized (this.hlogsById) {
+      peersWithoutSource = new ArrayList<String>(this.hlogsById.keySet());
+      for (ReplicationSourceInterface source : this.sources) {
+        String sourceGroup = this.walGroups.get(source);
+        if (sourceGroup == null) {
+          // First log this source sees; it now replicates this group
+          this.walGroups.put(source, group);
+        } else if (!sourceGroup.equals(group)) {
+          continue;
+        }
+        source.enqueueLog(newLog);
+        peersWithoutSource.remove(source.getPeerClusterZnode());
+      }
+    }
+    // A new HLog was started; give it a source for every peer. The log was
+    // queued in ZK for those peers by preLogRoll.
+    for (String id : peersWithoutSource) {
+      addSource(id, newLog, false);
     }
   }
 
@@ -402,7 +479,6 @@ public class ReplicationSourceManager {
         + sources.size() + " and another "
         + oldsources.size() + " that were recovered");
     String terminateMessage = "Replication stream was removed by a user";
-    ReplicationSourceInterface srcToRemove = null;
     List<ReplicationSourceInterface> oldSourcesToDelete =
         new ArrayList<ReplicationSourceInterface>();
     // First close all the recovered sources for this peer
@@ -417,19 +493,27 @@ public class ReplicationSourceManager {
     }
     LOG.info("Number of deleted recovered sources for " + id + ": "
         + oldSourcesToDelete.size());
-    // Now look for the one on this cluster
-    for (ReplicationSourceInterface src : this.sources) {
-      if (id.equals(src.getPeerClusterId())) {
-        srcToRemove = src;
-        break;
+    // Now look for the ones on this cluster, one per WAL group
+    List<ReplicationSourceInterface> sourcesToRemove =
+        new ArrayList<ReplicationSourceInterface>();
+    synchronized (this.hlogsById) {
+      for (ReplicationSourceInterface src : this.sources) {
+        if (id.equals(src.getPeerClusterId())) {
+          sourcesToRemove.add(src);
+        }
+      }
+      if (sourcesToRemove.isEmpty()) {
+        LOG.error("The queue we wanted to close is missing " + id);
+        return;
+      }
+      this.sources.removeAll(sourcesToRemove);
+      for (ReplicationSourceInterface src : sourcesToRemove) {
+        this.walGroups.remove(src);
       }
     }
-    if (srcToRemove == null) {
-      LOG.error("The queue we wanted to close is missing " + id);
-      return;
+    for (ReplicationSourceInterface src : sourcesToRemove) {
+      src.terminate(terminateMessage);
     }
-    srcToRemove.terminate(terminateMessage);
-    this.sources.remove(srcToRemove);
     this.zkHelper.deleteSource(id, true);
   }
 
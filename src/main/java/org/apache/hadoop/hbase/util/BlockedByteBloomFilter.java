@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A blocked Bloom filter: the bit array is split into blocks of
+ * {@link #BLOCK_BYTES} bytes, the size of a cache line, and all the bits of
+ * a key are set in a single block chosen by the first hash of the key. A
+ * lookup therefore touches one cache line instead of one per hash function,
+ * at the cost of a slightly higher false positive rate for the same number
+ * of bits, because blocks are unevenly loaded. The number of keys a filter
+ * holds is reduced to keep the requested error rate (see
+ * {@link #computeMaxKeys(long, double, int)}).
+ * <p>
+ * Blocks are chosen by the first hash modulo the number of blocks, so the
+ * filter can be folded like a {@link ByteBloomFilter} as long as the number
+ * of blocks is even. Within a block, the bits are chosen by the top bits of
+ * the second hash stepped through a multiplicative sequence. Double hashing
+ * with an additive step, as in {@link ByteBloomFilter}, leaves too few
+ * distinct bit patterns in a block of 512 bits, and doubles the error rate
+ * of small targets.
+ */
+public class BlockedByteBloomFilter extends ByteBloomFilter {
+
+  /** The number of bytes in a block */
+  public static final int BLOCK_BYTES = 64;
+
+  private static final int BLOCK_BITS = BLOCK_BYTES * 8;
+
+  /** The number of hash bits choosing a bit in a block */
+  private static final int BLOCK_BITS_LOG = 9;
+
+  /** The multiplier of the sequence of hashes choosing bits in a block */
+  private static final int MIX = 0x9e3779b1;
+
+  private BlockedByteBloomFilter(int hashType) {
+    super(hashType);
+  }
+
+  /**
+   * Creates a blocked Bloom filter of about the given size.
+   *
+   * @param byteSizeHint the desired number of bytes for the Bloom filter bit
+   *          array. Will be rounded to a number of blocks that allows folding,
+   *          if the filter has enough blocks.
+   * @param errorRate target false positive rate of the Bloom filter
+   * @param hashType Bloom filter hash function type
+   * @param foldFactor the maximum fold factor
+   * @return the new Bloom filter
+   */
+  public static BlockedByteBloomFilter createBySize(int byteSizeHint,
+      double errorRate, int hashType, int foldFactor) {
+    BlockedByteBloomFilter bbf = new BlockedByteBloomFilter(hashType);
+
+    long numBlocks = Math.max(1,
+        (byteSizeHint + BLOCK_BYTES - 1) / BLOCK_BYTES);
+    int fold = 0;
+    while (fold < foldFactor && (2L << fold) <= numBlocks) {
+      ++fold;
+    }
+    numBlocks = ((numBlocks + (1 << fold) - 1) >> fold) << fold;
+    if (numBlocks * BLOCK_BYTES > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("byteSize too large for "
+          + "byteSizeHint=" + byteSizeHint);
+    }
+
+    bbf.byteSize = numBlocks * BLOCK_BYTES;
+    long bitSize = bbf.byteSize * 8;
+    bbf.hashCount = optimalFunctionCount(
+        (int) Math.max(1, idealMaxKeys(bitSize, errorRate)), bitSize);
+    bbf.maxKeys = (int) computeMaxKeys(bitSize, errorRate, bbf.hashCount);
+    bbf.sanityCheck();
+    return bbf;
+  }
+
+  /**
+   * The maximum number of keys a blocked Bloom filter of the given size can
+   * hold with the given number of hash functions and error rate. The number
+   * of keys in a block follows a binomial distribution, and the error rate is
+   * the average error rate of a block over this distribution.
+   *
+   * @param bitSize
+   * @param errorRate
+   * @param hashCount
+   * @return the maximum number of keys, at least one
+   */
+  public static long computeMaxKeys(long bitSize, double errorRate,
+      int hashCount) {
+    long low = 1;
+    long high = Math.max(1,
+        ByteBloomFilter.computeMaxKeys(bitSize, errorRate, hashCount));
+    while (low < high) {
+      long mid = (low + high + 1) >>> 1;
+      if (actualErrorRate(mid, bitSize, hashCount) <= errorRate) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param keyCount
+   * @param bitSize
+   * @param hashCount
+   * @return the expected false positive rate of a blocked Bloom filter of the
+   *         given size holding the given number of keys
+   */
+  public static double actualErrorRate(long keyCount, long bitSize,
+      int hashCount) {
+    long numBlocks = bitSize / BLOCK_BITS;
+    if (numBlocks <= 1) {
+      return blockErrorRate(keyCount, hashCount);
+    }
+
+    // Sum over the likely block loads, computing the binomial probabilities
+    // incrementally in log space.
+    double q = 1.0 / numBlocks;
+    double logRatio = Math.log(q) - Math.log1p(-q);
+    double logP = keyCount * Math.log1p(-q);
+    double mean = keyCount * q;
+    double errorRate = 0;
+    for (long j = 0; j <= keyCount; ++j) {
+      if (j > 0) {
+        logP += Math.log(keyCount - j + 1) - Math.log(j) + logRatio;
+      }
+      double p = Math.exp(logP);
+      errorRate += p * blockErrorRate(j, hashCount);
+      if (j > mean && p < 1e-12) {
+        break;
+      }
+    }
+    return errorRate;
+  }
+
+  /** @return the false positive rate of a block holding the given keys */
+  private static double blockErrorRate(long keyCount, int hashCount) {
+    return Math.pow(1 - Math.pow(1 - 1.0 / BLOCK_BITS,
+        (double) hashCount * keyCount), hashCount);
+  }
+
+  @Override
+  public double actualErrorRate() {
+    return actualErrorRate(keyCount, byteSize * 8, hashCount);
+  }
+
+  @Override
+  public BlockedByteBloomFilter createAnother() {
+    BlockedByteBloomFilter bbf = new BlockedByteBloomFilter(hashType);
+    bbf.byteSize = byteSize;
+    bbf.hashCount = hashCount;
+    bbf.maxKeys = maxKeys;
+    return bbf;
+  }
+
+  @Override
+  protected boolean canFold(int byteSize) {
+    return byteSize % (2 * BLOCK_BYTES) == 0;
+  }
+
+  @Override
+  public void add(byte[] buf, int offset, int len) {
+    int hash1 = this.hash.hash(buf, offset, len, 0);
+    int hash2 = this.hash.hash(buf, offset, len, hash1);
+
+    long blockStart = (long) ((hash1 & Integer.MAX_VALUE)
+        % (this.byteSize / BLOCK_BYTES)) * BLOCK_BITS;
+    int compositeHash = hash2;
+    for (int i = 0; i < this.hashCount; i++) {
+      set(blockStart + (compositeHash >>> (32 - BLOCK_BITS_LOG)));
+      compositeHash = compositeHash * MIX + hash1;
+    }
+
+    ++this.keyCount;
+  }
+
+  @Override
+  public boolean contains(byte[] buf, int offset, int length,
+      ByteBuffer theBloom) {
+    if (theBloom == null) {
+      theBloom = bloom;
+    }
+
+    if (theBloom.limit() != byteSize) {
+      throw new IllegalArgumentException("Bloom does not match expected size:"
+          + " theBloom.limit()=" + theBloom.limit() + ", byteSize=" + byteSize);
+    }
+
+    return contains(buf, offset, length, theBloom.array(),
+        theBloom.arrayOffset(), (int) byteSize, hash, hashCount);
+  }
+
+  public static boolean contains(byte[] buf, int offset, int length,
+      byte[] bloomArray, int bloomOffset, int bloomSize, Hash hash,
+      int hashCount) {
+    int hash1 = hash.hash(buf, offset, length, 0);
+    int hash2 = hash.hash(buf, offset, length, hash1);
+    int numBlocks = bloomSize / BLOCK_BYTES;
+
+    if (randomGeneratorForTest == null) {
+      // Production mode.
+      int blockStart = ((hash1 & Integer.MAX_VALUE) % numBlocks) * BLOCK_BITS;
+      int compositeHash = hash2;
+      for (int i = 0; i < hashCount; i++) {
+        int hashLoc = blockStart + (compositeHash >>> (32 - BLOCK_BITS_LOG));
+        compositeHash = compositeHash * MIX + hash1;
+        if (!get(hashLoc, bloomArray, bloomOffset)) {
+          return false;
+        }
+      }
+    } else {
+      // Test mode with "fake lookups" to estimate "ideal false positive rate",
+      // with random bits in a random block.
+      int blockStart = randomGeneratorForTest.nextInt(numBlocks) * BLOCK_BITS;
+      for (int i = 0; i < hashCount; i++) {
+        int hashLoc = blockStart + randomGeneratorForTest.nextInt(BLOCK_BITS);
+        if (!get(hashLoc, bloomArray, bloomOffset)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+}
@@ -80,6 +80,29 @@ public final class BloomFilterFactory {
   public static final String IO_STOREFILE_BLOOM_BLOCK_SIZE =
       "io.storefile.bloom.block.size";
 
+  /**
+   * Whether compound Bloom filters are written as blocked Bloom filters, which
+   * check all the bits of a key in one 64-byte block, at the cost of slightly
+   * larger filters for the same error rate.
+   */
+  public static final String IO_STOREFILE_BLOOM_BLOCKED =
+      "io.storefile.bloom.blocked";
+
+  /**
+   * The fixed length of the row prefixes used as keys of row prefix Bloom
+   * filters. Like other Bloom filter settings, it can be set for a column
+   * family.
+   */
+  public static final String IO_STOREFILE_BLOOM_PREFIX_LENGTH =
+      "io.storefile.bloom.prefix.length";
+
+  /**
+   * The delimiter ending the row prefixes used as keys of row prefix Bloom
+   * filters. Takes precedence over the fixed prefix length.
+   */
+  public static final String IO_STOREFILE_BLOOM_PREFIX_DELIMITER =
+      "io.storefile.bloom.prefix.delimiter";
+
   /** Maximum number of times a Bloom filter can be "folded" if oversized */
   private static final int MAX_ALLOWED_FOLD_FACTOR = 7;
 
@@ -108,6 +131,9 @@ public final class BloomFilterFactory {
       case CompoundBloomFilterBase.VERSION:
         return new CompoundBloomFilter(meta, reader);
 
+      case CompoundBloomFilterBase.BLOCKED_VERSION:
+        return new CompoundBloomFilter(meta, reader, true);
+
       default:
         throw new IllegalArgumentException(
           "Bad bloom filter format version " + version
@@ -149,6 +175,32 @@ public final class BloomFilterFactory {
     return conf.getInt(IO_STOREFILE_BLOOM_BLOCK_SIZE, 128 * 1024);
   }
 
+  /**
+   * @return true if compound Bloom filters are blocked in the given
+   *         configuration
+   */
+  public static boolean isBloomBlocked(Configuration conf) {
+    return conf.getBoolean(IO_STOREFILE_BLOOM_BLOCKED, false);
+  }
+
+  /**
+   * @return the fixed row prefix length of row prefix Bloom filters from the
+   *         configuration, or 0 if not set
+   */
+  public static int getBloomPrefixLength(Configuration conf) {
+    return conf.getInt(IO_STOREFILE_BLOOM_PREFIX_LENGTH, 0);
+  }
+
+  /**
+   * @return the row prefix delimiter of row prefix Bloom filters from the
+   *         configuration, or null if not set
+   */
+  public static byte[] getBloomPrefixDelimiter(Configuration conf) {
+    String delimiter = conf.get(IO_STOREFILE_BLOOM_PREFIX_DELIMITER);
+    return delimiter == null || delimiter.isEmpty() ? null :
+        Bytes.toBytes(delimiter);
+  }
+
   /**
   * @return max key for the Bloom filter from the configuration
   */
@@ -201,7 +253,8 @@ public final class BloomFilterFactory {
       CompoundBloomFilterWriter bloomWriter = new CompoundBloomFilterWriter(
           getBloomBlockSize(conf), err, Hash.getHashType(conf), maxFold,
           cacheConf.shouldCacheBloomsOnWrite(), bloomType == BloomType.ROWCOL
-              ? KeyValue.KEY_COMPARATOR : Bytes.BYTES_RAWCOMPARATOR);
+              ? KeyValue.KEY_COMPARATOR : Bytes.BYTES_RAWCOMPARATOR,
+          isBloomBlocked(conf));
       writer.addInlineBlockWriter(bloomWriter);
       return bloomWriter;
     } else {
@@ -255,7 +308,8 @@ public final class BloomFilterFactory {
       CompoundBloomFilterWriter bloomWriter = new CompoundBloomFilterWriter(
           getBloomBlockSize(conf), err, Hash.getHashType(conf),
           maxFold,
-          cacheConf.shouldCacheBloomsOnWrite(), Bytes.BYTES_RAWCOMPARATOR);
+          cacheConf.shouldCacheBloomsOnWrite(), Bytes.BYTES_RAWCOMPARATOR,
+          isBloomBlocked(conf));
       writer.addInlineBlockWriter(bloomWriter);
       return bloomWriter;
     } else {
@@ -109,7 +109,7 @@ public class ByteBloomFilter implements BloomFilter, BloomFilterWriter {
    * A random number generator to use for "fake lookups" when testing to
    * estimate the ideal false positive rate.
    */
-  private static Random randomGeneratorForTest;
+  static Random randomGeneratorForTest;
 
   /** Bit-value lookup array to prevent doing the same work over and over */
   private static final byte [] bitvals = {
@@ -243,12 +243,12 @@ public class ByteBloomFilter implements BloomFilter, BloomFilterWriter {
     return (int) byteSizeLong;
   }
 
-  private static int optimalFunctionCount(int maxKeys, long bitSize) {
+  static int optimalFunctionCount(int maxKeys, long bitSize) {
     return (int) Math.ceil(Math.log(2) * (bitSize / maxKeys));
   }
 
-  /** Private constructor used by other constructors. */
-  private ByteBloomFilter(int hashType) {
+  /** Constructor used by other constructors and subclasses. */
+  protected ByteBloomFilter(int hashType) {
     this.hashType = hashType;
     this.hash = Hash.getInstance(hashType);
   }
@@ -500,7 +500,7 @@ public class ByteBloomFilter implements BloomFilter, BloomFilterWriter {
       int newMaxKeys = this.maxKeys;
 
       // while exponentially smaller & folding is lossless
-      while ( (newByteSize & 1) == 0 && newMaxKeys > (this.keyCount<<1) ) {
+      while ( canFold(newByteSize) && newMaxKeys > (this.keyCount<<1) ) {
         pieces <<= 1;
         newByteSize >>= 1;
         newMaxKeys >>= 1;
@@ -528,6 +528,15 @@ public class ByteBloomFilter implements BloomFilter, BloomFilterWriter {
   }
 
 
+  /**
+   * @param byteSize the current size of the bit array while folding
+   * @return true if a bit array of this size can be folded in half without
+   *         losing any keys
+   */
+  protected boolean canFold(int byteSize) {
+    return (byteSize & 1) == 0;
+  }
+
   //---------------------------------------------------------------------------
 
   /**
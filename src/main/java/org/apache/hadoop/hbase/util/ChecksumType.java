@@ -104,11 +104,23 @@ public enum ChecksumType {
 
     @Override
     public void initialize() {
+      final String JDKCRC32C = "java.util.zip.CRC32C";
       final String PURECRC32C = "org.apache.hadoop.util.PureJavaCrc32C";
       LOG = LogFactory.getLog(ChecksumType.class);
+
+      // The JDK implementation, on Java 9 and later, is an intrinsic that
+      // uses the CRC32 instructions of the processor
+      try {
+        ctor = ChecksumFactory.newConstructor(JDKCRC32C);
+        LOG.info("Checksum using " + JDKCRC32C);
+      } catch (Exception e) {
+        LOG.trace(JDKCRC32C + " not available.");
+      }
       try {
-        ctor = ChecksumFactory.newConstructor(PURECRC32C);
-        LOG.info("Checksum can use " + PURECRC32C);
+        if (ctor == null) {
+          ctor = ChecksumFactory.newConstructor(PURECRC32C);
+          LOG.info("Checksum can use " + PURECRC32C);
+        }
       } catch (Exception e) {
         LOG.trace(PURECRC32C + " not available.");
       }
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.SortedSet;
 
 import org.apache.hadoop.hbase.KeyValue;
@@ -99,8 +100,13 @@ public class CollectionBackedScanner extends NonLazyKeyValueScanner {
 
   @Override
   public boolean seek(KeyValue seekKv) {
-    // restart iterator
-    iter = data.iterator();
+    if (data instanceof NavigableSet) {
+      // jump straight to the key rather than walking up to it
+      iter = ((NavigableSet<KeyValue>)data).tailSet(seekKv, true).iterator();
+    } else {
+      // restart iterator
+      iter = data.iterator();
+    }
     return reseek(seekKv);
   }
 
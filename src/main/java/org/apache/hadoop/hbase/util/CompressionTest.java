@@ -95,7 +95,7 @@ public class CompressionTest {
 
   public static void usage() {
     System.err.println(
-      "Usage: CompressionTest <path> none|gz|lzo|snappy\n" +
+      "Usage: CompressionTest <path> none|gz|lzo|snappy|lz4_java|snappy_java\n" +
       "\n" +
       "For example:\n" +
       "  hbase " + CompressionTest.class + " file:///tmp/testfile gz\n");
@@ -206,6 +206,47 @@ public class TestDataBlockEncoders {
     }
   }
 
+  /**
+   * Test seeking to every key of a block with a row index, exactly and
+   * before it.
+   */
+  @Test
+  public void testRowIndexSeeking() throws IOException {
+    List<KeyValue> kvList = new ArrayList<KeyValue>();
+    for (int i = 0; i < 200; ++i) {
+      byte[] row = Bytes.toBytes(String.format("row%04d", i));
+      for (int j = 0; j < 1 + i % 5; ++j) {
+        kvList.add(new KeyValue(row, Bytes.toBytes("f"),
+            Bytes.toBytes("q" + j), 0l, Type.Put, Bytes.toBytes(i * j)));
+      }
+    }
+    ByteBuffer originalBuffer =
+        RedundantKVGenerator.convertKvToByteBuffer(kvList, includesMemstoreTS);
+    DataBlockEncoder encoder = DataBlockEncoding.ROW_INDEX.getEncoder();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    encoder.compressKeyValues(new DataOutputStream(baos), originalBuffer,
+        includesMemstoreTS);
+    DataBlockEncoder.EncodedSeeker seeker =
+        encoder.createSeeker(KeyValue.KEY_COMPARATOR, includesMemstoreTS);
+    seeker.setCurrentBuffer(ByteBuffer.wrap(baos.toByteArray()));
+
+    for (int i = kvList.size() - 1; i >= 0; --i) {
+      KeyValue kv = kvList.get(i);
+      assertEquals(0, seeker.seekToKeyInBlock(kv.getBuffer(),
+          kv.getKeyOffset(), kv.getKeyLength(), false));
+      assertEquals(kv, seeker.getKeyValue());
+      if (i > 0) {
+        assertEquals(1, seeker.seekToKeyInBlock(kv.getBuffer(),
+            kv.getKeyOffset(), kv.getKeyLength(), true));
+        assertEquals(kvList.get(i - 1), seeker.getKeyValue());
+      }
+    }
+    KeyValue lastOnRow = kvList.get(kvList.size() / 2).createLastOnRowCol();
+    seeker.seekToKeyInBlock(lastOnRow.getBuffer(), lastOnRow.getKeyOffset(),
+        lastOnRow.getKeyLength(), false);
+    assertEquals(kvList.get(kvList.size() / 2), seeker.getKeyValue());
+  }
+
   /**
    * Test iterating on encoded buffers.
    */
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Compares the throughput of block cache implementations under concurrent
+ * gets and caches of a zipf distributed working set larger than the cache,
+ * the way region server handlers use it: look the block up, and cache it on
+ * a miss.
+ * <p>
+ * Usage: <code>BlockCacheBenchmark [threads] [cacheSizeMB] [blockSizeKB]
+ * [seconds]</code>
+ */
+public class BlockCacheBenchmark {
+
+  /**
+   * A block that only takes up heap, so that the benchmark measures the
+   * cache and not block creation.
+   */
+  private static class Block implements Cacheable {
+    private final long heapSize;
+
+    Block(int size) {
+      this.heapSize = ClassSize.align(size);
+    }
+
+    @Override
+    public long heapSize() {
+      return this.heapSize;
+    }
+
+    @Override
+    public int getSerializedLength() {
+      return 0;
+    }
+
+    @Override
+    public void serialize(ByteBuffer destination) {
+    }
+
+    @Override
+    public CacheableDeserializer<Cacheable> getDeserializer() {
+      return null;
+    }
+
+    @Override
+    public BlockType getBlockType() {
+      return BlockType.DATA;
+    }
+
+    @Override
+    public SchemaMetrics getSchemaMetrics() {
+      return null;
+    }
+  }
+
+  private static void run(final String name, final BlockCache cache,
+      int threadCount, final int blockSize, final int keySpace, int seconds)
+  throws InterruptedException {
+    final AtomicLong operations = new AtomicLong();
+    final long deadline = System.currentTimeMillis() + seconds * 1000L;
+    Thread [] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int seed = t;
+      threads[t] = new Thread(name + "-" + t) {
+        @Override
+        public void run() {
+          RandomDistribution.DiscreteRNG keys = new RandomDistribution.Zipf(
+            new Random(seed), 0, keySpace, 1.1);
+          Block block = new Block(blockSize);
+          long ops = 0;
+          while ((ops & 1023) != 0 || System.currentTimeMillis() < deadline) {
+            BlockCacheKey key = new BlockCacheKey("hfile", keys.nextInt());
+            if (cache.getBlock(key, true, false) == null) {
+              cache.cacheBlock(key, block);
+            }
+            ops++;
+          }
+          operations.addAndGet(ops);
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    CacheStats stats = cache.getStats();
+    System.out.println(String.format(
+      "%-22s threads=%3d ops/s=%,12.0f hitRatio=%.3f evicted=%,d",
+      name, threadCount, operations.get() / elapsed, stats.getHitRatio(),
+      stats.getEvictedCount()));
+    cache.shutdown();
+  }
+
+  public static void main(String [] args) throws Exception {
+    int threads = args.length > 0? Integer.parseInt(args[0]): 32;
+    long cacheSize = (args.length > 1? Long.parseLong(args[1]): 256) *
+      1024 * 1024;
+    int blockSize = (args.length > 2? Integer.parseInt(args[2]): 64) * 1024;
+    int seconds = args.length > 3? Integer.parseInt(args[3]): 20;
+    // Twice as many distinct blocks as fit in the cache
+    int keySpace = (int)(2 * cacheSize / blockSize);
+    Configuration conf = HBaseConfiguration.create();
+    conf.setInt("hbase.regionserver.handler.count", threads);
+
+    for (int t = 1; t <= threads; t *= 2) {
+      run("LruBlockCache", new LruBlockCache(cacheSize, blockSize, conf),
+        t, blockSize, keySpace, seconds);
+      run("SegmentedBlockCache", new SegmentedBlockCache(cacheSize, conf),
+        t, blockSize, keySpace, seconds);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.ChecksumType;
+
+/**
+ * Measures the throughput of every HBase checksum type, computing the
+ * checksums of a block chunk by chunk the way blocks are checksummed when
+ * written and verified when read.
+ * <p>
+ * Usage: <code>ChecksumBenchmark [blockSizeKB] [bytesPerChecksum]
+ * [seconds]</code>
+ */
+public class ChecksumBenchmark {
+
+  private static void run(ChecksumType type, byte[] block,
+      int bytesPerChecksum, int seconds) throws Exception {
+    byte[] checksums = new byte[(int) ChecksumUtil.numBytes(block.length,
+        bytesPerChecksum)];
+    // Warm up, so that the JIT compiles the checksum loop first
+    long deadline = System.currentTimeMillis() + 1000L;
+    while (System.currentTimeMillis() < deadline) {
+      ChecksumUtil.generateChecksums(block, 0, block.length, checksums, 0,
+          type, bytesPerChecksum);
+    }
+
+    long blocks = 0;
+    deadline = System.currentTimeMillis() + seconds * 1000L;
+    long start = System.nanoTime();
+    while ((blocks & 63) != 0 || System.currentTimeMillis() < deadline) {
+      ChecksumUtil.generateChecksums(block, 0, block.length, checksums, 0,
+          type, bytesPerChecksum);
+      blocks++;
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%-8s %-40s MB/s=%,10.1f",
+        type.getName(), type.getChecksumObject().getClass().getName(),
+        blocks * block.length / elapsed / (1024 * 1024)));
+  }
+
+  public static void main(String [] args) throws Exception {
+    int blockSize = (args.length > 0? Integer.parseInt(args[0]): 64) * 1024;
+    int bytesPerChecksum = args.length > 1? Integer.parseInt(args[1]):
+      HFile.DEFAULT_BYTES_PER_CHECKSUM;
+    int seconds = args.length > 2? Integer.parseInt(args[2]): 10;
+    byte[] block = new byte[blockSize];
+    new Random(42).nextBytes(block);
+
+    for (ChecksumType type : ChecksumType.values()) {
+      if (type != ChecksumType.NULL) {
+        run(type, block, bytesPerChecksum, seconds);
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * Measures the compression ratio and the compression and decompression
+ * throughput of every compression algorithm available on this host, on a
+ * block of KeyValues, compressing and decompressing it the way HFile blocks
+ * are. Algorithms whose codec cannot be loaded are skipped, like
+ * {@link org.apache.hadoop.hbase.util.CompressionTest} would fail them.
+ * <p>
+ * Usage: <code>CompressionBenchmark [blockSizeKB] [seconds]</code>
+ */
+public class CompressionBenchmark {
+
+  private static byte[] createBlock(int blockSize) {
+    Random random = new Random(42);
+    ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize);
+    byte[] value = new byte[100];
+    for (int i = 0; block.size() < blockSize; i++) {
+      // Values of a few distinct bytes compress like typical text
+      for (int j = 0; j < value.length; j++) {
+        value[j] = (byte) ('a' + random.nextInt(8));
+      }
+      KeyValue kv = new KeyValue(Bytes.toBytes(String.format("row%08d", i)),
+          Bytes.toBytes("family"), Bytes.toBytes("qualifier" + (i % 10)),
+          System.currentTimeMillis(), value);
+      block.write(kv.getBuffer(), kv.getOffset(), kv.getLength());
+    }
+    return Arrays.copyOf(block.toByteArray(), blockSize);
+  }
+
+  private static byte[] compress(CompressionOutputStream out,
+      ByteArrayOutputStream compressed, byte[] block) throws Exception {
+    compressed.reset();
+    out.resetState();
+    out.write(block, 0, block.length);
+    out.flush();
+    out.finish();
+    return compressed.toByteArray();
+  }
+
+  private static void decompress(Compression.Algorithm algo,
+      byte[] compressed, byte[] dest) throws Exception {
+    JavaBlockCodec codec = algo.getJavaBlockCodec();
+    if (codec != null) {
+      codec.decompressBlock(compressed, 0, compressed.length, dest, 0,
+          dest.length);
+      return;
+    }
+    Decompressor decompressor = algo.getDecompressor();
+    try {
+      InputStream in = algo.createDecompressionStream(
+          new ByteArrayInputStream(compressed), decompressor, 0);
+      IOUtils.readFully(in, dest, 0, dest.length);
+      in.close();
+    } finally {
+      algo.returnDecompressor(decompressor);
+    }
+  }
+
+  private static void run(Compression.Algorithm algo, byte[] block,
+      int seconds) throws Exception {
+    Compressor compressor;
+    try {
+      compressor = algo.getCompressor();
+    } catch (Throwable t) {
+      System.out.println(String.format("%-12s not available: %s",
+          algo.getName(), t));
+      return;
+    }
+    try {
+      ByteArrayOutputStream compressedStream = new ByteArrayOutputStream();
+      CompressionOutputStream out = algo == Compression.Algorithm.NONE ?
+          null : algo.createPlainCompressionStream(compressedStream,
+              compressor);
+      byte[] compressed = out == null ? block :
+          compress(out, compressedStream, block);
+      byte[] dest = new byte[block.length];
+      decompress(algo, compressed, dest);
+      if (!Arrays.equals(block, dest)) {
+        throw new AssertionError(algo.getName() + " corrupted the block");
+      }
+
+      long blocks = 0;
+      long deadline = System.currentTimeMillis() + seconds * 1000L;
+      long start = System.nanoTime();
+      while (out != null &&
+          ((blocks & 15) != 0 || System.currentTimeMillis() < deadline)) {
+        compress(out, compressedStream, block);
+        blocks++;
+      }
+      double compressRate = out == null ? 0 :
+        blocks * block.length / ((System.nanoTime() - start) / 1e9);
+
+      blocks = 0;
+      deadline = System.currentTimeMillis() + seconds * 1000L;
+      start = System.nanoTime();
+      while ((blocks & 15) != 0 || System.currentTimeMillis() < deadline) {
+        decompress(algo, compressed, dest);
+        blocks++;
+      }
+      double decompressRate =
+        blocks * block.length / ((System.nanoTime() - start) / 1e9);
+
+      System.out.println(String.format(
+          "%-12s ratio=%5.2f compress MB/s=%,9.1f decompress MB/s=%,9.1f",
+          algo.getName(), (double) block.length / compressed.length,
+          compressRate / (1024 * 1024), decompressRate / (1024 * 1024)));
+    } finally {
+      algo.returnCompressor(compressor);
+    }
+  }
+
+  public static void main(String [] args) throws Exception {
+    int blockSize = (args.length > 0? Integer.parseInt(args[0]): 64) * 1024;
+    int seconds = args.length > 1? Integer.parseInt(args[1]): 5;
+    byte[] block = createBlock(blockSize);
+    for (Compression.Algorithm algo : Compression.Algorithm.values()) {
+      run(algo, block, seconds);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.fs.HFileSystem;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile.BloomType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests that the time ranges of the data blocks are written, and that
+ * scanners with a time range skip the data blocks outside of it.
+ */
+@Category(MediumTests.class)
+public class TestDataBlockTimeRanges {
+  private static final HBaseTestingUtility TEST_UTIL =
+    new HBaseTestingUtility();
+
+  private static final int NUM_KV = 2000;
+  private static final int DATA_BLOCK_SIZE = 1024;
+  private static final int DELETE_ROW = 1500;
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  private Configuration conf;
+  private CacheConfig cacheConf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(HFile.FORMAT_VERSION_KEY, 2);
+    conf.setBoolean(DataBlockTimeRanges.ENABLED_KEY, true);
+    fs = HFileSystem.get(conf);
+    cacheConf = new CacheConfig(conf);
+  }
+
+  @Test
+  public void testSkipDataBlocks() throws IOException {
+    checkSkipDataBlocks();
+  }
+
+  @Test
+  public void testSkipDataBlocksCompressedInParallel() throws IOException {
+    conf.setInt(HFileWriterV2.COMPRESSION_THREADS_KEY, 2);
+    checkSkipDataBlocks();
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    conf.setBoolean(DataBlockTimeRanges.ENABLED_KEY, false);
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs,
+        writeStoreFile(), cacheConf);
+    try {
+      assertNull(reader.getDataBlockTimeRanges());
+      HFileScanner scanner = reader.getScanner(false, false, false);
+      scanner.setTimeRange(1000, 1100);
+      assertEquals(NUM_KV, scan(scanner, null));
+      scanner.close();
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  private void checkSkipDataBlocks() throws IOException {
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs,
+        writeStoreFile(), cacheConf);
+    try {
+      DataBlockTimeRanges timeRanges = reader.getDataBlockTimeRanges();
+      assertNotNull(timeRanges);
+      HFileBlockIndex.BlockIndexReader index = reader.getDataBlockIndexReader();
+      assertEquals(index.getRootBlockCount(), timeRanges.size());
+      for (int i = 0; i < timeRanges.size(); i++) {
+        assertEquals(index.getRootBlockOffset(i), timeRanges.getOffset(i));
+        assertEquals(index.getRootBlockDataSize(i),
+            timeRanges.getOnDiskSize(i));
+      }
+
+      // The column delete marker keeps its block in every earlier range
+      int deleteBlock = index.rootBlockContainingKey(keyOf(DELETE_ROW), 0,
+          keyOf(DELETE_ROW).length);
+      assertTrue(timeRanges.overlaps(deleteBlock, 0, 1));
+      assertFalse(timeRanges.overlaps(deleteBlock + 1, 0, 1));
+
+      // Without a time range, every key is read
+      HFileScanner scanner = reader.getScanner(false, false, false);
+      assertEquals(NUM_KV, scan(scanner, null));
+      scanner.close();
+
+      // With a time range, the first block the scanner seeks to, the blocks
+      // in the range and the block of the delete marker
+      Set<Long> timestamps = new HashSet<Long>();
+      scanner = reader.getScanner(false, false, false);
+      scanner.setTimeRange(1000, 1100);
+      int count = scan(scanner, timestamps);
+      scanner.close();
+      for (long ts = 1000; ts < 1100; ts++) {
+        assertTrue("Missing " + ts, timestamps.contains(ts));
+      }
+      assertTrue(timestamps.contains((long) DELETE_ROW));
+      assertTrue(timestamps.contains(0L));
+      assertTrue("Read " + count + " keys", count < NUM_KV / 4);
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  /**
+   * Reads the scanner from the start of the file.
+   * @return the number of keys read
+   */
+  private static int scan(HFileScanner scanner, Set<Long> timestamps)
+      throws IOException {
+    int count = 0;
+    if (scanner.seekTo()) {
+      do {
+        if (timestamps != null) {
+          timestamps.add(scanner.getKeyValue().getTimestamp());
+        }
+        count++;
+      } while (scanner.next());
+    }
+    return count;
+  }
+
+  private static KeyValue keyValueOf(int i) {
+    return new KeyValue(Bytes.toBytes(String.format("row%06d", i)), FAMILY,
+        QUALIFIER, i, i == DELETE_ROW ? KeyValue.Type.DeleteColumn :
+        KeyValue.Type.Put, Bytes.toBytes("value" + i));
+  }
+
+  private static byte[] keyOf(int i) {
+    return keyValueOf(i).getKey();
+  }
+
+  private Path writeStoreFile() throws IOException {
+    Path storeFileParentDir = new Path(TEST_UTIL.getDataTestDir(),
+        "TestDataBlockTimeRanges");
+    StoreFile.Writer sfw = new StoreFile.WriterBuilder(conf, cacheConf,
+        fs, DATA_BLOCK_SIZE)
+            .withOutputDir(storeFileParentDir)
+            .withComparator(KeyValue.COMPARATOR)
+            .withBloomType(BloomType.NONE)
+            .withMaxKeyCount(NUM_KV)
+            .build();
+
+    // Timestamps grow with the rows, like time series data
+    for (int i = 0; i < NUM_KV; ++i) {
+      sfw.append(keyValueOf(i));
+    }
+    sfw.close();
+    return sfw.getPath();
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
@@ -24,7 +24,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -435,6 +437,56 @@ public class TestHFileBlockIndex {
     }
   }
 
+  @Test
+  public void testRootIndexSearch() throws IOException {
+    int numEntries = 500;
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    List<byte[]> rootKeys = new ArrayList<byte[]>();
+    for (int i = 0; i < numEntries; ++i) {
+      // Even keys are in the index, odd keys fall between them
+      byte[] k = TestHFileWriterV2.randomOrderedKey(rand, i * 2);
+      rootKeys.add(k);
+      dos.writeLong(getDummyFileOffset(i));
+      dos.writeInt(getDummyOnDiskSize(i));
+      Bytes.writeByteArray(dos, k);
+    }
+    dos.flush();
+
+    BlockIndexReader bi =
+        new BlockIndexReader(Bytes.BYTES_RAWCOMPARATOR, 1);
+    bi.readRootIndex(new DataInputStream(new ByteArrayInputStream(
+        baos.toByteArray())), numEntries);
+    assertEquals(numEntries, bi.getRootBlockCount());
+
+    byte[] before = Bytes.toBytes("a");
+    assertEquals(-1, bi.rootBlockContainingKey(before, 0, before.length));
+    for (int i = 0; i < numEntries; ++i) {
+      byte[] k = rootKeys.get(i);
+      assertTrue(Bytes.equals(k, bi.getRootBlockKey(i)));
+      assertEquals(getDummyFileOffset(i), bi.getRootBlockOffset(i));
+      assertEquals(getDummyOnDiskSize(i), bi.getRootBlockDataSize(i));
+      assertEquals(i, bi.rootBlockContainingKey(k, 0, k.length));
+
+      // A key in a larger array, between two root keys
+      byte[] between = TestHFileWriterV2.randomOrderedKey(rand, i * 2 + 1);
+      byte[] array = new byte[between.length + 10];
+      System.arraycopy(between, 0, array, 5, between.length);
+      assertEquals(i, bi.rootBlockContainingKey(array, 5, between.length));
+      assertTrue(bi.compareRootBlockKey(array, 5, between.length, i) > 0);
+      assertEquals(0, bi.compareRootBlockKey(k, 0, k.length, i));
+    }
+
+    // The keys are packed in one array, without an array header per key
+    long keyBytes = 0;
+    for (byte[] k : rootKeys) {
+      keyBytes += k.length;
+    }
+    assertTrue(bi.heapSize() < ClassSize.estimateBase(BlockIndexReader.class,
+        false) + keyBytes + numEntries * (Bytes.SIZEOF_LONG +
+        2 * Bytes.SIZEOF_INT) + 4 * ClassSize.ARRAY + 64);
+  }
+
   /** Checks if the HeapSize calculator is within reason */
   @Test
   public void testHeapSizeForBlockIndex() throws IOException {
@@ -446,10 +498,11 @@ public class TestHFileBlockIndex {
         new HFileBlockIndex.BlockIndexReader(Bytes.BYTES_RAWCOMPARATOR, 1);
     long actual = bi.heapSize();
 
-    // Since the arrays in BlockIndex(byte [][] blockKeys, long [] blockOffsets,
-    // int [] blockDataSizes) are all null they are not going to show up in the
-    // HeapSize calculation, so need to remove those array costs from expected.
-    expected -= ClassSize.align(3 * ClassSize.ARRAY);
+    // Since the arrays in BlockIndex(byte [] blockKeys, int [] blockKeyOffsets,
+    // long [] blockOffsets, int [] blockDataSizes) are all null they are not
+    // going to show up in the HeapSize calculation, so need to remove those
+    // array costs from expected.
+    expected -= ClassSize.align(4 * ClassSize.ARRAY);
 
     if (expected != actual) {
       ClassSize.estimateBase(cl, true);
@@ -38,9 +38,11 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.*;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
 import org.apache.hadoop.hbase.io.hfile.Compression.Algorithm;
 import org.apache.hadoop.hbase.io.hfile.HFile.FileInfo;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableUtils;
@@ -103,6 +105,60 @@ public class TestHFileWriterV2 {
     writeDataAndReadFromHFile(hfilePath, compressAlgo, entryCount, true);
   }
 
+  @Test
+  public void testParallelCompression() throws IOException {
+    for (DataBlockEncoding encoding : new DataBlockEncoding[] {
+        DataBlockEncoding.NONE, DataBlockEncoding.PREFIX }) {
+      for (Algorithm compressAlgo : new Algorithm[] {
+          Algorithm.NONE, Algorithm.GZ }) {
+        String name = "testParallelCompression_" + encoding + "_" +
+            compressAlgo;
+        byte[] serial = writeForParallelCompression(name + "_serial",
+            encoding, compressAlgo, 0);
+        byte[] parallel = writeForParallelCompression(name + "_parallel",
+            encoding, compressAlgo, 3);
+        assertTrue(name + " differs from the serially written file",
+            Bytes.equals(serial, parallel));
+      }
+    }
+  }
+
+  /** Writes a file with a multi-level index, and returns its bytes */
+  private byte[] writeForParallelCompression(String name,
+      DataBlockEncoding encoding, Algorithm compressAlgo,
+      int compressionThreads) throws IOException {
+    Configuration writerConf = new Configuration(conf);
+    writerConf.setInt(HFileWriterV2.COMPRESSION_THREADS_KEY,
+        compressionThreads);
+    writerConf.setInt(HFileBlockIndex.MAX_CHUNK_SIZE_KEY, 512);
+    Path hfilePath = new Path(TEST_UTIL.getDataTestDir(), name);
+    HFileWriterV2 writer = (HFileWriterV2)
+        new HFileWriterV2.WriterFactoryV2(writerConf,
+            new CacheConfig(writerConf))
+            .withPath(fs, hfilePath)
+            .withBlockSize(4096)
+            .withCompression(compressAlgo)
+            .withDataBlockEncoder(new HFileDataBlockEncoderImpl(encoding))
+            .withComparator(KeyValue.KEY_COMPARATOR)
+            .create();
+    Random rand = new Random(9713312);
+    for (int i = 0; i < 5000; ++i) {
+      writer.append(new KeyValue(randomOrderedKey(rand, i),
+          COLUMN_FAMILY_NAME.getBytes(), null, i, randomValue(rand)));
+    }
+    writer.appendMetaBlock("CAPITAL_OF_FRANCE", new Text("Paris"));
+    writer.close();
+
+    byte[] contents = new byte[(int) fs.getFileStatus(hfilePath).getLen()];
+    FSDataInputStream in = fs.open(hfilePath);
+    try {
+      IOUtils.readFully(in, contents, 0, contents.length);
+    } finally {
+      in.close();
+    }
+    return contents;
+  }
+
   private void writeDataAndReadFromHFile(Path hfilePath,
       Algorithm compressAlgo, int entryCount, boolean findMidKey) throws IOException {
 
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the pure Java compression algorithms, through compression streams
+ * and through the direct decompression of blocks.
+ */
+@Category(SmallTests.class)
+public class TestJavaBlockCodec {
+
+  private static final Compression.Algorithm[] ALGORITHMS = {
+    Compression.Algorithm.LZ4_JAVA, Compression.Algorithm.SNAPPY_JAVA };
+
+  private final Random random = new Random(42);
+
+  /** Data of a few distinct bytes, with runs, random data at every 4th */
+  private byte[] createData(int length, int seed) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      switch (seed % 4) {
+      case 0:
+        data[i] = (byte) random.nextInt();
+        break;
+      case 1:
+        data[i] = (byte) ('a' + random.nextInt(4));
+        break;
+      case 2:
+        data[i] = (byte) (i % 7);
+        break;
+      default:
+        data[i] = i < length / 2 ? 0 : (byte) random.nextInt(3);
+      }
+    }
+    return data;
+  }
+
+  private byte[] compress(Compression.Algorithm algo, byte[] data)
+      throws IOException {
+    Compressor compressor = algo.getCompressor();
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      CompressionOutputStream out = algo.createPlainCompressionStream(
+          compressed, compressor);
+      out.write(data, 0, data.length);
+      out.flush();
+      out.finish();
+      return compressed.toByteArray();
+    } finally {
+      algo.returnCompressor(compressor);
+    }
+  }
+
+  @Test
+  public void testRoundTrips() throws IOException {
+    int[] lengths = { 0, 1, 12, 13, 100, 65536, 65537, 200000,
+        3 * JavaBlockCodec.BUFFER_SIZE + 17 };
+    for (Compression.Algorithm algo : ALGORITHMS) {
+      for (int i = 0; i < lengths.length; i++) {
+        for (int seed = 0; seed < 4; seed++) {
+          byte[] data = createData(lengths[i], seed);
+          byte[] compressed = compress(algo, data);
+          if (seed != 0 && data.length > 1000) {
+            assertTrue(algo + " did not compress",
+                compressed.length < data.length);
+          }
+
+          // Directly, with checksums after the compressed data
+          byte[] src = new byte[compressed.length + 8];
+          System.arraycopy(compressed, 0, src, 3, compressed.length);
+          byte[] dest = new byte[data.length + 2];
+          algo.getJavaBlockCodec().decompressBlock(src, 3, compressed.length,
+              dest, 2, data.length);
+          for (int j = 0; j < data.length; j++) {
+            assertEquals(data[j], dest[j + 2]);
+          }
+
+          // Through a stream
+          Decompressor decompressor = algo.getDecompressor();
+          try {
+            InputStream in = algo.createDecompressionStream(
+                new ByteArrayInputStream(compressed), decompressor, 0);
+            byte[] read = new byte[data.length];
+            IOUtils.readFully(in, read, 0, read.length);
+            assertEquals(-1, in.read());
+            in.close();
+            assertArrayEquals(data, read);
+          } finally {
+            algo.returnDecompressor(decompressor);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptData() throws IOException {
+    for (Compression.Algorithm algo : ALGORITHMS) {
+      byte[] data = createData(10000, 1);
+      byte[] compressed = compress(algo, data);
+      byte[] dest = new byte[data.length];
+      try {
+        algo.getJavaBlockCodec().decompressBlock(compressed, 0,
+            compressed.length / 2, dest, 0, data.length);
+        fail(algo + " decompressed a truncated block");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
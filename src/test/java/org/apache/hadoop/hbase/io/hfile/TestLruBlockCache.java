@@ -27,11 +27,13 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Random;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.MediumTests;
 import org.apache.hadoop.hbase.io.HeapSize;
 import org.apache.hadoop.hbase.io.hfile.LruBlockCache.EvictionThread;
 import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics.SchemaAware;
 import org.apache.hadoop.hbase.regionserver.metrics.TestSchemaMetrics;
 import org.apache.hadoop.hbase.util.ClassSize;
 import org.junit.After;
@@ -446,6 +448,113 @@ public class TestLruBlockCache {
 
   }
 
+  @Test
+  public void testAdmissionFilter() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setBoolean(LruBlockCache.LRU_ADMISSION_FILTER_CONFIG_NAME, true);
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false, conf);
+
+    CachedItem [] hotBlocks = generateFixedBlocks(3, blockSize, "hot");
+    CachedItem [] scanBlocks = generateFixedBlocks(50, blockSize, "scan");
+
+    // Read the hot blocks a few times, caching them on the first miss
+    for (CachedItem block : hotBlocks) {
+      assertEquals(null, cache.getBlock(block.cacheKey, true, false));
+      cache.cacheBlock(block.cacheKey, block);
+      for (int i = 0; i < 3; i++) {
+        assertTrue(cache.getBlock(block.cacheKey, true, false) == block);
+      }
+    }
+
+    // A scan reads every block once, and tries to cache it
+    for (CachedItem block : scanBlocks) {
+      assertEquals(null, cache.getBlock(block.cacheKey, true, false));
+      cache.cacheBlock(block.cacheKey, block);
+    }
+
+    // Once the cache was full and had evicted scanned blocks, the rest of
+    // the scan was kept out
+    assertEquals(1, cache.getEvictionCount());
+    assertTrue(cache.getStats().getRejectedCount() > 0);
+    assertEquals(scanBlocks.length, cache.getStats().getRejectedCount() +
+      cache.getEvictedCount() + cache.size() - hotBlocks.length);
+    for (CachedItem block : hotBlocks) {
+      assertTrue(cache.getBlock(block.cacheKey, true, false) == block);
+    }
+
+    // A block read more often than the evicted ones gets in
+    CachedItem warmBlock = new CachedItem("warm", (int)blockSize);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(null, cache.getBlock(warmBlock.cacheKey, true, false));
+    }
+    cache.cacheBlock(warmBlock.cacheKey, warmBlock);
+    assertTrue(cache.getBlock(warmBlock.cacheKey, true, false) == warmBlock);
+    cache.shutdown();
+  }
+
+  @Test
+  public void testQuotas() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.set(BlockCacheQuotas.SOFT_QUOTAS_KEY, "t1=0.2");
+    conf.set(BlockCacheQuotas.HARD_QUOTAS_KEY, "t2:f=0.3");
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false, conf);
+
+    // Older blocks of a table without a quota
+    OwnedCachedItem [] otherBlocks = new OwnedCachedItem[3];
+    for (int i = 0; i < otherBlocks.length; i++) {
+      otherBlocks[i] = new OwnedCachedItem("other" + i, (int)blockSize,
+        "t0", "f");
+      cache.cacheBlock(otherBlocks[i].cacheKey, otherBlocks[i]);
+    }
+
+    // Newer blocks of a table with a soft quota, until the cache evicts
+    for (int i = 0; cache.getEvictionCount() == 0; i++) {
+      OwnedCachedItem block = new OwnedCachedItem("soft" + i, (int)blockSize,
+        "t1", "f");
+      cache.cacheBlock(block.cacheKey, block);
+    }
+
+    // The table over its soft quota was evicted from, not the older blocks
+    assertTrue(cache.getQuotaUsage().get("t1") <= maxSize * 0.2);
+    assertTrue(cache.getQuotaUsage().get("t1:f") <= maxSize * 0.2);
+    for (OwnedCachedItem block : otherBlocks) {
+      assertTrue(cache.getBlock(block.cacheKey, true, false) == block);
+    }
+    assertEquals(0, cache.getStats().getRejectedCount());
+    cache.shutdown();
+
+    // A family never goes over its hard quota, and rejecting its blocks does
+    // not run evictions while the cache has room
+    cache = new LruBlockCache(maxSize, blockSize, false, conf);
+    for (int i = 0; i < 10; i++) {
+      OwnedCachedItem block =
+        new OwnedCachedItem("hard" + i, (int)blockSize, "t2", "f");
+      cache.cacheBlock(block.cacheKey, block);
+      assertTrue(cache.getQuotaUsage().get("t2:f") <= maxSize * 0.3);
+    }
+    assertTrue(cache.getStats().getRejectedCount() > 0);
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(0, cache.getEvictedCount());
+
+    // The family still stays under its hard quota once the cache evicts
+    for (int i = 0; cache.getEvictionCount() == 0; i++) {
+      OwnedCachedItem block = new OwnedCachedItem("fill" + i, (int)blockSize,
+        "t0", "f");
+      cache.cacheBlock(block.cacheKey, block);
+    }
+    assertTrue(cache.getEvictedCount() > 0);
+    assertTrue(cache.getQuotaUsage().get("t2:f") <= maxSize * 0.3);
+    cache.shutdown();
+  }
+
   // test setMaxSize
   @Test
   public void testResizeBlockCache() throws Exception {
@@ -644,6 +753,30 @@ public class TestLruBlockCache {
         LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
   }
 
+  /** A cached item that belongs to a table and column family */
+  private static class OwnedCachedItem extends CachedItem
+      implements SchemaAware {
+    private final String tableName;
+    private final String cfName;
+
+    OwnedCachedItem(String blockName, int size, String tableName,
+        String cfName) {
+      super(blockName, size);
+      this.tableName = tableName;
+      this.cfName = cfName;
+    }
+
+    @Override
+    public String getTableName() {
+      return tableName;
+    }
+
+    @Override
+    public String getColumnFamilyName() {
+      return cfName;
+    }
+  }
+
   private static class CachedItem implements Cacheable {
     BlockCacheKey cacheKey;
     int size;
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.fs.HFileSystem;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile.BloomType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests reads of memory mapped files, and of HFiles through their mapping.
+ */
+@Category(MediumTests.class)
+public class TestMappedFileInputStream {
+  private static final HBaseTestingUtility TEST_UTIL =
+    new HBaseTestingUtility();
+
+  private static final int NUM_KV = 2000;
+
+  @Test
+  public void testReads() throws IOException {
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    File file = new File(TEST_UTIL.getDataTestDir("testReads").toString());
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+
+    // Small chunks, so that reads span several of them
+    MappedFileInputStream in = MappedFileInputStream.open(file, 1024);
+    assertEquals(data.length, in.getLength());
+    byte[] buf = new byte[3000];
+    assertEquals(buf.length, in.read(1000, buf, 0, buf.length));
+    assertTrue(Bytes.equals(data, 1000, buf.length, buf, 0, buf.length));
+    assertEquals(500, in.read(data.length - 500, buf, 0, buf.length));
+    assertEquals(-1, in.read(data.length, buf, 0, buf.length));
+    try {
+      in.readFully(data.length - 500, buf);
+      fail("Read past the end of the file");
+    } catch (EOFException e) {
+      // expected
+    }
+
+    in.seek(9000);
+    assertEquals((byte) 9000, in.readByte());
+    in.readFully(buf, 0, 999);
+    assertEquals(data.length, in.getPos());
+    assertEquals(-1, in.read());
+    assertFalse(in.seekToNewSource(0));
+
+    in.close();
+    try {
+      in.read(0, buf, 0, 1);
+      fail("Read a closed stream");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMappedHFile() throws Exception {
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(HFile.FORMAT_VERSION_KEY, 2);
+    conf.setBoolean(HFile.MMAP_ENABLED_KEY, true);
+    HFileSystem hfs = new HFileSystem(conf, true);
+    CacheConfig cacheConf = new CacheConfig(conf);
+    StoreFile.Writer sfw = new StoreFile.WriterBuilder(conf, cacheConf, hfs,
+        1024)
+            .withOutputDir(new Path(TEST_UTIL.getDataTestDir(),
+                "TestMappedFileInputStream"))
+            .withComparator(KeyValue.COMPARATOR)
+            .withBloomType(BloomType.NONE)
+            .withMaxKeyCount(NUM_KV)
+            .build();
+    for (int i = 0; i < NUM_KV; ++i) {
+      sfw.append(new KeyValue(Bytes.toBytes(String.format("row%06d", i)),
+          Bytes.toBytes("f"), Bytes.toBytes("q"), Bytes.toBytes("value" + i)));
+    }
+    sfw.close();
+
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(hfs,
+        sfw.getPath(), cacheConf);
+    try {
+      assertTrue(reader.istreamNoFsChecksum instanceof MappedFileInputStream);
+      HFileScanner scanner = reader.getScanner(false, true, false);
+      assertTrue(scanner.seekTo());
+      for (int i = 0; i < NUM_KV; i++) {
+        assertEquals("value" + i,
+            Bytes.toString(scanner.getKeyValue().getValue()));
+        assertEquals(i < NUM_KV - 1, scanner.next());
+      }
+      assertEquals(0, reader.getStreamReaderCount());
+      scanner.close();
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
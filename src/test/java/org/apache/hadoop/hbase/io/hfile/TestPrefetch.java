@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.fs.HFileSystem;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile.BloomType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests that the blocks of an HFile are read into the block cache when the
+ * file is opened with prefetching enabled.
+ */
+@Category(MediumTests.class)
+public class TestPrefetch {
+  private static final HBaseTestingUtility TEST_UTIL =
+    new HBaseTestingUtility();
+
+  private static final int NUM_KV = 5000;
+  private static final int DATA_BLOCK_SIZE = 2048;
+
+  private Configuration conf;
+  private CacheConfig cacheConf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(HFile.FORMAT_VERSION_KEY, 2);
+    conf.setBoolean(CacheConfig.PREFETCH_BLOCKS_ON_OPEN_KEY, true);
+    fs = HFileSystem.get(conf);
+    cacheConf = new CacheConfig(conf);
+  }
+
+  @Test
+  public void testPrefetchFlags() {
+    Configuration noPrefetchConf = new Configuration(conf);
+    noPrefetchConf.setBoolean(CacheConfig.PREFETCH_BLOCKS_ON_OPEN_KEY, false);
+    HColumnDescriptor family = new HColumnDescriptor("f");
+    assertFalse(family.shouldPrefetchBlocksOnOpen());
+    assertFalse(new CacheConfig(noPrefetchConf, family).shouldPrefetchOnOpen());
+    family.setPrefetchBlocksOnOpen(true);
+    assertTrue(new CacheConfig(noPrefetchConf, family).shouldPrefetchOnOpen());
+    assertTrue(cacheConf.shouldPrefetchOnOpen());
+  }
+
+  @Test
+  public void testPrefetch() throws Exception {
+    Path storeFile = writeStoreFile();
+    readStoreFile(storeFile);
+  }
+
+  @Test
+  public void testCloseCancelsOwnPrefetchOnly() throws Exception {
+    Path storeFile = writeStoreFile();
+    // The prefetches are requested by hand, to control when they run
+    CacheConfig noPrefetchCacheConf = new CacheConfig(
+        cacheConf.getBlockCache(), true, false, false, false, false, false,
+        false, false);
+    HFile.Reader first = HFile.createReader(fs, storeFile,
+        noPrefetchCacheConf);
+    HFile.Reader second = HFile.createReader(fs, storeFile,
+        noPrefetchCacheConf);
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocked = new Runnable() {
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    try {
+      PrefetchExecutor.request(first, blocked);
+      PrefetchExecutor.request(second, blocked);
+      first.close(true);
+      assertTrue(PrefetchExecutor.isCancelled(first));
+      assertFalse(PrefetchExecutor.isCancelled(second));
+      assertFalse(PrefetchExecutor.isCompleted(second));
+    } finally {
+      release.countDown();
+    }
+    for (int i = 0; i < 100 && !PrefetchExecutor.isCompleted(second); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(PrefetchExecutor.isCompleted(second));
+    second.close(true);
+  }
+
+  private void readStoreFile(Path storeFilePath) throws Exception {
+    long completed = PrefetchExecutor.getCompletedCount();
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs,
+        storeFilePath, cacheConf);
+    try {
+      for (int i = 0; i < 100 && !PrefetchExecutor.isCompleted(reader); i++) {
+        Thread.sleep(100);
+      }
+      assertTrue(PrefetchExecutor.isCompleted(reader));
+      assertTrue(PrefetchExecutor.getCompletedCount() > completed);
+
+      // Every data, index and bloom block is now in the cache
+      BlockCache blockCache = cacheConf.getBlockCache();
+      long offset = 0;
+      HFileBlock prevBlock = null;
+      while (offset < reader.getTrailer().getLoadOnOpenDataOffset()) {
+        long onDiskSize = -1;
+        if (prevBlock != null) {
+          onDiskSize = prevBlock.getNextBlockOnDiskSizeWithHeader();
+        }
+        HFileBlock block = reader.readBlock(offset, onDiskSize, false, true,
+            false, null);
+        BlockCacheKey blockCacheKey = new BlockCacheKey(reader.getName(),
+            offset);
+        assertNotNull("Block at offset " + offset + " of type " +
+            block.getBlockType() + " is not cached",
+            blockCache.getBlock(blockCacheKey, true, false));
+        prevBlock = block;
+        offset += block.getOnDiskSizeWithHeader();
+      }
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  private Path writeStoreFile() throws IOException {
+    Path storeFileParentDir = new Path(TEST_UTIL.getDataTestDir(),
+        "TestPrefetch");
+    // Do not cache on write, so that only the prefetch caches blocks
+    CacheConfig writeCacheConf = new CacheConfig(cacheConf.getBlockCache(),
+        true, false, false, false, false, false, false);
+    StoreFile.Writer sfw = new StoreFile.WriterBuilder(conf, writeCacheConf,
+        fs, DATA_BLOCK_SIZE)
+            .withOutputDir(storeFileParentDir)
+            .withComparator(KeyValue.COMPARATOR)
+            .withBloomType(BloomType.ROW)
+            .withMaxKeyCount(NUM_KV)
+            .build();
+
+    for (int i = 0; i < NUM_KV; ++i) {
+      byte[] row = Bytes.toBytes(String.format("row%06d", i));
+      sfw.append(new KeyValue(row, Bytes.toBytes("f"), Bytes.toBytes("q"),
+          Bytes.toBytes("value" + i)));
+    }
+    sfw.close();
+    return sfw.getPath();
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.fs.HFileSystem;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile.BloomType;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests that scanners reading an HFile sequentially switch to a stream of
+ * their own, and back to positional reads when they seek elsewhere, and
+ * that they read blocks ahead up to their stop key.
+ */
+@Category(MediumTests.class)
+public class TestScannerStreamReads {
+  private static final HBaseTestingUtility TEST_UTIL =
+    new HBaseTestingUtility();
+
+  private static final int NUM_KV = 2000;
+  private static final int DATA_BLOCK_SIZE = 1024;
+  private static final byte[] FAMILY = Bytes.toBytes("f");
+  private static final byte[] QUALIFIER = Bytes.toBytes("q");
+
+  private Configuration conf;
+  private CacheConfig cacheConf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setInt(HFile.FORMAT_VERSION_KEY, 2);
+    fs = HFileSystem.get(conf);
+    cacheConf = new CacheConfig(conf);
+  }
+
+  @Test
+  public void testStreamReads() throws Exception {
+    Path storeFile = writeStoreFile();
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs, storeFile,
+        cacheConf);
+    try {
+      // Do not cache, so that every block is read from the file
+      HFileScanner scanner = reader.getScanner(false, false, false);
+      HFile.getStreamReadOps();
+      assertTrue(scanner.seekTo());
+      for (int i = 0; i < NUM_KV / 2; i++) {
+        assertEquals(String.format("row%06d", i),
+            Bytes.toString(scanner.getKeyValue().getRow()));
+        assertTrue(scanner.next());
+      }
+      assertEquals(1, reader.getStreamReaderCount());
+      assertTrue(HFile.getStreamReadOps() > 0);
+
+      // Seeking back to the first key closes the stream
+      assertEquals(0, scanner.seekTo(keyOf(0)));
+      assertEquals(0, reader.getStreamReaderCount());
+
+      // The rest of the file is read from a new stream
+      for (int i = 0; i < NUM_KV - 1; i++) {
+        assertEquals(String.format("row%06d", i),
+            Bytes.toString(scanner.getKeyValue().getRow()));
+        assertTrue(scanner.next());
+      }
+      assertEquals(1, reader.getStreamReaderCount());
+      scanner.close();
+      assertEquals(0, reader.getStreamReaderCount());
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  @Test
+  public void testRandomReads() throws Exception {
+    Path storeFile = writeStoreFile();
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs, storeFile,
+        cacheConf);
+    try {
+      HFileScanner scanner = reader.getScanner(false, false, false);
+      for (int i = 0; i < NUM_KV; i += NUM_KV / 20) {
+        assertEquals(0, scanner.seekTo(keyOf(i)));
+        assertEquals(0, reader.getStreamReaderCount());
+      }
+      scanner.close();
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  @Test
+  public void testReadAhead() throws Exception {
+    // Read-ahead is off by default
+    conf.setInt(HFileReaderV2.READAHEAD_BLOCKS_KEY, 2);
+    fs = HFileSystem.get(conf);
+    Path storeFile = writeStoreFile();
+    HFileReaderV2 reader = (HFileReaderV2) HFile.createReader(fs, storeFile,
+        cacheConf);
+    try {
+      HFileBlockIndex.BlockIndexReader index = reader.getDataBlockIndexReader();
+      assertTrue(index.getRootBlockCount() > 4);
+      BlockCache blockCache = cacheConf.getBlockCache();
+      HFileScanner scanner = reader.getScanner(true, false, false);
+      scanner.setStopKey(index.getRootBlockKey(2));
+      assertTrue(scanner.seekTo());
+      byte[] secondBlockRow =
+          KeyValue.createKeyValueFromKey(index.getRootBlockKey(1)).getRow();
+      while (!Bytes.equals(secondBlockRow, scanner.getKeyValue().getRow())) {
+        assertTrue(scanner.next());
+      }
+
+      // Moving to the second block reads the third one ahead, but not the
+      // fourth, past the stop key
+      BlockCacheKey thirdBlock = new BlockCacheKey(reader.getName(),
+          index.getRootBlockOffset(2));
+      for (int i = 0; i < 100 &&
+          blockCache.getBlock(thirdBlock, false, false) == null; i++) {
+        Thread.sleep(100);
+      }
+      assertNotNull(blockCache.getBlock(thirdBlock, false, false));
+      Thread.sleep(200);
+      assertNull(blockCache.getBlock(new BlockCacheKey(reader.getName(),
+          index.getRootBlockOffset(3)), false, false));
+      scanner.close();
+    } finally {
+      reader.close(true);
+    }
+  }
+
+  private static byte[] keyOf(int i) {
+    return new KeyValue(Bytes.toBytes(String.format("row%06d", i)), FAMILY,
+        QUALIFIER, HConstants.LATEST_TIMESTAMP, KeyValue.Type.Put).getKey();
+  }
+
+  private Path writeStoreFile() throws IOException {
+    Path storeFileParentDir = new Path(TEST_UTIL.getDataTestDir(),
+        "TestScannerStreamReads");
+    StoreFile.Writer sfw = new StoreFile.WriterBuilder(conf, cacheConf,
+        fs, DATA_BLOCK_SIZE)
+            .withOutputDir(storeFileParentDir)
+            .withComparator(KeyValue.COMPARATOR)
+            .withBloomType(BloomType.NONE)
+            .withMaxKeyCount(NUM_KV)
+            .build();
+
+    for (int i = 0; i < NUM_KV; ++i) {
+      byte[] row = Bytes.toBytes(String.format("row%06d", i));
+      sfw.append(new KeyValue(row, FAMILY, QUALIFIER,
+          Bytes.toBytes("value" + i)));
+    }
+    sfw.close();
+    return sfw.getPath();
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
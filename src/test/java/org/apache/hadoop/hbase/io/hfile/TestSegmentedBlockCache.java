@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.util.ClassSize;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the {@link SegmentedBlockCache}.
+ */
+// Starts 50 threads, high variability of execution time => Medium
+@Category(MediumTests.class)
+public class TestSegmentedBlockCache {
+  private static final int BLOCK_SIZE = 1000;
+
+  @Test
+  public void testSegmentCount() {
+    Configuration conf = HBaseConfiguration.create();
+    conf.setInt("hbase.regionserver.handler.count", 10);
+    SegmentedBlockCache cache = new SegmentedBlockCache(1000000, conf);
+    assertEquals(32, cache.getSegmentCount());
+    cache.shutdown();
+    conf.setInt(SegmentedBlockCache.SEGMENTS_KEY, 3);
+    cache = new SegmentedBlockCache(1000000, conf);
+    assertEquals(4, cache.getSegmentCount());
+    cache.shutdown();
+  }
+
+  @Test
+  public void testCacheAndEvict() {
+    SegmentedBlockCache cache = new SegmentedBlockCache(100 * BLOCK_SIZE, 4,
+      0.25f);
+    long emptySize = cache.heapSize();
+    CachedItem [] items = generate("block", 10);
+    for (CachedItem item : items) {
+      assertNull(cache.getBlock(item.cacheKey, true, false));
+      cache.cacheBlock(item.cacheKey, item);
+    }
+    long expectedSize = emptySize;
+    for (CachedItem item : items) {
+      assertTrue(item == cache.getBlock(item.cacheKey, true, false));
+      expectedSize += item.cacheBlockHeapSize();
+    }
+    assertEquals(expectedSize, cache.heapSize());
+    assertEquals(items.length, cache.getBlockCount());
+
+    // Caching again is a no-op
+    cache.cacheBlock(items[0].cacheKey, items[0]);
+    assertEquals(expectedSize, cache.heapSize());
+
+    assertTrue(cache.evictBlock(items[0].cacheKey));
+    assertNull(cache.getBlock(items[0].cacheKey, true, false));
+    assertEquals(items.length - 1, cache.evictBlocksByHfileName("block"));
+    assertEquals(emptySize, cache.heapSize());
+    assertEquals(0, cache.getBlockCount());
+    cache.shutdown();
+  }
+
+  @Test
+  public void testEvictionKeepsSizeBounded() {
+    long maxSize = 100 * BLOCK_SIZE;
+    SegmentedBlockCache cache = new SegmentedBlockCache(maxSize, 4, 0.25f);
+    for (CachedItem item : generate("block", 1000)) {
+      cache.cacheBlock(item.cacheKey, item);
+      assertTrue(cache.heapSize() <= maxSize + SegmentedBlockCache.CACHE_FIXED_OVERHEAD);
+    }
+    assertTrue(cache.getEvictedCount() > 0);
+    assertTrue(cache.getStats().getEvictionCount() > 0);
+    cache.shutdown();
+  }
+
+  @Test
+  public void testScanResistance() {
+    // A single segment so that every block competes for the same space
+    SegmentedBlockCache cache = new SegmentedBlockCache(100 * BLOCK_SIZE, 1,
+      0.25f);
+    CachedItem [] hot = generate("hot", 40);
+    for (CachedItem item : hot) {
+      cache.cacheBlock(item.cacheKey, item);
+      cache.getBlock(item.cacheKey, true, false);
+    }
+    // A scan that touches every block once
+    for (CachedItem item : generate("scan", 500)) {
+      cache.cacheBlock(item.cacheKey, item);
+      // The hot set keeps being read
+      for (int i = 0; i < hot.length; i += 10) {
+        cache.getBlock(hot[i].cacheKey, true, false);
+      }
+    }
+    for (int i = 0; i < hot.length; i += 10) {
+      assertNotNull(cache.getBlock(hot[i].cacheKey, true, false));
+    }
+    cache.shutdown();
+  }
+
+  @Test
+  public void testInMemoryBlocks() {
+    SegmentedBlockCache cache = new SegmentedBlockCache(100 * BLOCK_SIZE, 1,
+      0.25f);
+    CachedItem [] memory = generate("memory", 20);
+    for (CachedItem item : memory) {
+      cache.cacheBlock(item.cacheKey, item, true);
+    }
+    for (CachedItem item : generate("single", 500)) {
+      cache.cacheBlock(item.cacheKey, item);
+    }
+    // The in-memory blocks that fit in their share survived
+    int survivors = 0;
+    for (CachedItem item : memory) {
+      if (cache.getBlock(item.cacheKey, true, false) != null) survivors++;
+    }
+    assertTrue("survivors=" + survivors, survivors >= 20);
+
+    // More in-memory blocks than their share push out the oldest ones
+    for (CachedItem item : generate("memory2", 100)) {
+      cache.cacheBlock(item.cacheKey, item, true);
+    }
+    assertNull(cache.getBlock(memory[0].cacheKey, true, false));
+    cache.shutdown();
+  }
+
+  @Test
+  public void testHeapSizeChanges() {
+    SegmentedBlockCache cache = new SegmentedBlockCache(1000000, 4, 0.25f);
+    CacheTestUtils.testHeapSizeChanges(cache, BLOCK_SIZE);
+    cache.shutdown();
+  }
+
+  @Test
+  public void testCacheMultiThreaded() throws Exception {
+    SegmentedBlockCache cache = new SegmentedBlockCache(1000000, 16, 0.25f);
+    CacheTestUtils.testCacheMultiThreaded(cache, BLOCK_SIZE, 50, 1000, 0.80);
+    cache.shutdown();
+  }
+
+  @Test
+  public void testCacheMultiThreadedEviction() throws Exception {
+    SegmentedBlockCache cache = new SegmentedBlockCache(1000000, 16, 0.25f);
+    CacheTestUtils.hammerEviction(cache, BLOCK_SIZE, 10, 100);
+    cache.shutdown();
+  }
+
+  private static CachedItem [] generate(String hfileName, int count) {
+    CachedItem [] items = new CachedItem[count];
+    for (int i = 0; i < count; i++) {
+      items[i] = new CachedItem(hfileName, i, BLOCK_SIZE - 300);
+    }
+    return items;
+  }
+
+  private static class CachedItem implements Cacheable {
+    BlockCacheKey cacheKey;
+    int size;
+
+    CachedItem(String hfileName, long offset, int size) {
+      this.cacheKey = new BlockCacheKey(hfileName, offset);
+      this.size = size;
+    }
+
+    @Override
+    public long heapSize() {
+      return ClassSize.align(size);
+    }
+
+    /** Heap the segmented cache charges for this item */
+    long cacheBlockHeapSize() {
+      return CachedBlock.PER_BLOCK_OVERHEAD +
+        ClassSize.align(cacheKey.heapSize()) + ClassSize.align(size) +
+        SegmentedBlockCache.PER_NODE_OVERHEAD;
+    }
+
+    @Override
+    public int getSerializedLength() {
+      return 0;
+    }
+
+    @Override
+    public void serialize(ByteBuffer destination) {
+    }
+
+    @Override
+    public CacheableDeserializer<Cacheable> getDeserializer() {
+      return null;
+    }
+
+    @Override
+    public BlockType getBlockType() {
+      return BlockType.DATA;
+    }
+
+    @Override
+    public SchemaMetrics getSchemaMetrics() {
+      return SchemaMetrics.getUnknownInstanceForTest();
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
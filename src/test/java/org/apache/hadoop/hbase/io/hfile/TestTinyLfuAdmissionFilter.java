@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the {@link TinyLfuAdmissionFilter}.
+ */
+@Category(SmallTests.class)
+public class TestTinyLfuAdmissionFilter {
+
+  @Test
+  public void testFrequency() {
+    TinyLfuAdmissionFilter filter = new TinyLfuAdmissionFilter(1000);
+    BlockCacheKey key = new BlockCacheKey("file", 0);
+    assertEquals(0, filter.frequency(key));
+    for (int i = 0; i < 5; i++) {
+      filter.record(key);
+    }
+    assertEquals(5, filter.frequency(key));
+    assertEquals(0, filter.frequency(new BlockCacheKey("file", 65536)));
+
+    // Counters saturate
+    for (int i = 0; i < 100; i++) {
+      filter.record(key);
+    }
+    assertEquals(TinyLfuAdmissionFilter.MAX_FREQUENCY, filter.frequency(key));
+  }
+
+  @Test
+  public void testAging() {
+    TinyLfuAdmissionFilter filter = new TinyLfuAdmissionFilter(1000);
+    BlockCacheKey key = new BlockCacheKey("file", 0);
+    BlockCacheKey hotKey = new BlockCacheKey("file", 65536);
+    for (int i = 0; i < 8; i++) {
+      filter.record(key);
+    }
+    // Fill up the sample, the last access halves all counters
+    for (long i = 8; i < filter.getSampleSize(); i++) {
+      filter.record(hotKey);
+    }
+    assertEquals(4, filter.frequency(key));
+    assertEquals(TinyLfuAdmissionFilter.MAX_FREQUENCY / 2,
+      filter.frequency(hotKey));
+  }
+
+  @Test
+  public void testAdmission() {
+    TinyLfuAdmissionFilter filter = new TinyLfuAdmissionFilter(1000);
+    BlockCacheKey once = new BlockCacheKey("file", 0);
+    BlockCacheKey twice = new BlockCacheKey("file", 65536);
+    BlockCacheKey never = new BlockCacheKey("file", 131072);
+    filter.record(once);
+    filter.record(twice);
+    filter.record(twice);
+
+    // Nothing was evicted yet
+    assertTrue(filter.admit(never));
+
+    // Evicted blocks were read once on average
+    filter.recordEviction(twice);
+    filter.recordEviction(never);
+    filter.evictionCompleted();
+    assertEquals(1.0, filter.getVictimFrequency(), 0.0);
+    assertFalse(filter.admit(never));
+    assertFalse(filter.admit(once));
+    assertTrue(filter.admit(twice));
+
+    // An eviction run that evicted nothing keeps the bar where it was
+    filter.evictionCompleted();
+    assertEquals(1.0, filter.getVictimFrequency(), 0.0);
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
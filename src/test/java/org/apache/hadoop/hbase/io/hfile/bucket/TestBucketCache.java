@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile.bucket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.BlockType;
+import org.apache.hadoop.hbase.io.hfile.CacheTestUtils;
+import org.apache.hadoop.hbase.io.hfile.Cacheable;
+import org.apache.hadoop.hbase.io.hfile.CacheableDeserializer;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests the {@link BucketCache}, its allocator and IO engines, and its use as
+ * the victim cache of an {@link LruBlockCache}.
+ */
+// Starts 50 threads, high variability of execution time => Medium
+@Category(MediumTests.class)
+public class TestBucketCache {
+  static final int CACHE_SIZE = 2 * 1024 * 1024;
+  static final int [] BUCKET_SIZES = { 8 * 1024, 16 * 1024, 64 * 1024 };
+  static final int BLOCK_SIZE = 4000;
+  static final int NUM_THREADS = 50;
+  static final int NUM_QUERIES = 1000;
+  BucketCache cache;
+
+  @Before
+  public void setup() throws IOException {
+    cache = new BucketCache("heap", CACHE_SIZE, BUCKET_SIZES);
+  }
+
+  @After
+  public void tearDown() {
+    cache.shutdown();
+  }
+
+  @Test
+  public void testBucketAllocator() throws Exception {
+    int [] sizes = { 1024, 4096 };
+    // Ten buckets of four 4K items or sixteen 1K items
+    BucketAllocator allocator = new BucketAllocator(10 * 4 * 4096, sizes);
+    assertEquals(10, allocator.getFreeBucketCount());
+    assertEquals(0, allocator.getSizeIndex(1000));
+    assertEquals(1, allocator.getSizeIndex(1025));
+    assertEquals(-1, allocator.getSizeIndex(4097));
+
+    List<Long> offsets = new ArrayList<Long>();
+    try {
+      while (true) offsets.add(allocator.allocate(1000));
+    } catch (BucketAllocator.CacheFullException e) {
+      // expected
+    }
+    assertEquals(10 * 16, offsets.size());
+    assertEquals(allocator.getTotalSize(), allocator.getUsedSize());
+    assertEquals(0, allocator.getFreeBucketCount());
+    try {
+      allocator.allocate(4000);
+      fail("All buckets are assigned to the small size class");
+    } catch (BucketAllocator.CacheFullException e) {
+      // expected
+    }
+
+    // Freed buckets can be assigned to the other size class
+    for (long offset : offsets) {
+      assertEquals(1024, allocator.free(offset));
+    }
+    assertEquals(0, allocator.getUsedSize());
+    assertEquals(10, allocator.getFreeBucketCount());
+    for (int i = 0; i < 10 * 4; i++) {
+      allocator.allocate(4000);
+    }
+    assertEquals(allocator.getTotalSize(), allocator.getUsedSize());
+  }
+
+  @Test
+  public void testCacheMultiThreaded() throws Exception {
+    CacheTestUtils.testCacheMultiThreaded(cache, BLOCK_SIZE, NUM_THREADS,
+        NUM_QUERIES, 0.80);
+  }
+
+  @Test
+  public void testCacheMultiThreadedSingleKey() throws Exception {
+    CacheTestUtils.hammerSingleKey(cache, BLOCK_SIZE, NUM_THREADS, NUM_QUERIES);
+  }
+
+  @Test
+  public void testCacheMultiThreadedEviction() throws Exception {
+    CacheTestUtils.hammerEviction(cache, BLOCK_SIZE, 10, NUM_QUERIES);
+    assertTrue(cache.getCurrentSize() <= cache.size());
+  }
+
+  @Test
+  public void testHeapSizeChanges() {
+    CacheTestUtils.testHeapSizeChanges(cache, BLOCK_SIZE);
+  }
+
+  @Test
+  public void testTooLargeBlockIsNotCached() {
+    BlockCacheKey key = new BlockCacheKey("large", 0);
+    cache.cacheBlock(key, new TestBlock(new byte[128 * 1024]));
+    assertNull(cache.getBlock(key, true, false));
+    assertEquals(1, cache.getFailedInsertCount());
+  }
+
+  @Test
+  public void testFreeSpaceEvictsLeastRecentlyAccessed() {
+    // 8 buckets of 32 items of 8K; free space down to 217 items
+    int count = 230;
+    for (int i = 0; i < count; i++) {
+      cache.cacheBlock(new BlockCacheKey("file", i),
+        new TestBlock(new byte[BLOCK_SIZE]));
+    }
+    assertEquals(count, cache.getBlockCount());
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(cache.getBlock(new BlockCacheKey("file", i), true, false));
+    }
+    cache.freeSpace(-1);
+    assertEquals(217, cache.getBlockCount());
+    for (int i = 0; i < count; i++) {
+      Cacheable block = cache.getBlock(new BlockCacheKey("file", i), true,
+        false);
+      if (i >= 10 && i < 23) {
+        assertNull("block " + i, block);
+      } else {
+        assertNotNull("block " + i, block);
+      }
+    }
+  }
+
+  @Test
+  public void testFileMmapIOEngine() throws IOException {
+    File file = File.createTempFile("TestBucketCache", ".cache");
+    file.deleteOnExit();
+    // Small mappings so that a read and a write cross a mapping boundary
+    FileMmapIOEngine engine = new FileMmapIOEngine(file.getPath(), 10000, 4096);
+    try {
+      byte [] data = new byte[3000];
+      for (int i = 0; i < data.length; i++) data[i] = (byte)i;
+      engine.write(ByteBuffer.wrap(data), 3000);
+      ByteBuffer read = ByteBuffer.allocate(data.length);
+      engine.read(read, 3000);
+      assertArrayEquals(data, read.array());
+      engine.sync();
+    } finally {
+      engine.shutdown();
+    }
+    assertEquals(10000, file.length());
+  }
+
+  @Test
+  public void testVictimCache() throws Exception {
+    Configuration conf = HBaseConfiguration.create();
+    int blockSize = 1000;
+    LruBlockCache lru = new LruBlockCache(50 * blockSize, blockSize, false,
+      conf);
+    lru.setVictimCache(cache);
+    TestBlock [] blocks = new TestBlock[100];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new TestBlock(Bytes.toBytes("block" + i));
+      lru.cacheBlock(new BlockCacheKey("file", i), blocks[i]);
+    }
+    assertTrue(lru.getEvictedCount() > 0);
+    assertEquals(lru.getEvictedCount(), cache.getBlockCount());
+
+    // Every block can be found, in either level
+    for (int i = 0; i < blocks.length; i++) {
+      TestBlock block =
+        (TestBlock)lru.getBlock(new BlockCacheKey("file", i), true, false);
+      assertNotNull("block " + i, block);
+      assertArrayEquals(blocks[i].buf, block.buf);
+    }
+    assertTrue(cache.getStats().getHitCount() > 0);
+
+    // Explicit evictions reach the victim cache too
+    assertEquals(blocks.length, lru.evictBlocksByHfileName("file"));
+    assertEquals(0, cache.getBlockCount());
+    assertNull(lru.getBlock(new BlockCacheKey("file", 0), true, false));
+    lru.shutdown();
+  }
+
+  /**
+   * A block whose heap size makes a small LRU cache evict it quickly.
+   */
+  private static class TestBlock implements Cacheable {
+    final byte [] buf;
+
+    TestBlock(byte [] buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public long heapSize() {
+      return 1000 + buf.length;
+    }
+
+    @Override
+    public int getSerializedLength() {
+      return Bytes.SIZEOF_INT + buf.length;
+    }
+
+    @Override
+    public void serialize(ByteBuffer destination) {
+      destination.putInt(buf.length);
+      destination.put(buf);
+      destination.rewind();
+    }
+
+    @Override
+    public CacheableDeserializer<Cacheable> getDeserializer() {
+      return new CacheableDeserializer<Cacheable>() {
+        @Override
+        public Cacheable deserialize(ByteBuffer b) throws IOException {
+          byte [] buf = new byte[b.getInt()];
+          b.get(buf);
+          return new TestBlock(buf);
+        }
+      };
+    }
+
+    @Override
+    public BlockType getBlockType() {
+      return BlockType.DATA;
+    }
+
+    @Override
+    public SchemaMetrics getSchemaMetrics() {
+      return SchemaMetrics.getUnknownInstanceForTest();
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
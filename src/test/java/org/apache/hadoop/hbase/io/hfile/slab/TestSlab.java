@@ -73,6 +73,20 @@ public class TestSlab {
     }
   }
 
+  @Test
+  public void testTryAllocDoesNotWait() {
+    for (int i = 0; i < NUMBLOCKS; i++) {
+      buffers[i] = testSlab.tryAlloc(BLOCKSIZE);
+      assertEquals(BLOCKSIZE, buffers[i].limit());
+    }
+    // Every block is taken
+    assertNull(testSlab.tryAlloc(BLOCKSIZE));
+
+    testSlab.free(buffers[0]);
+    buffers[0] = testSlab.tryAlloc(BLOCKSIZE);
+    assertEquals(BLOCKSIZE, buffers[0].limit());
+  }
+
 
   @org.junit.Rule
   public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
@@ -22,10 +22,17 @@ package org.apache.hadoop.hbase.io.hfile.slab;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.BlockType;
 import org.apache.hadoop.hbase.io.hfile.CacheTestUtils;
+import org.apache.hadoop.hbase.io.hfile.Cacheable;
+import org.apache.hadoop.hbase.io.hfile.CacheableDeserializer;
 import org.apache.hadoop.hbase.io.hfile.slab.SlabCache.SlabStats;
+import org.apache.hadoop.hbase.regionserver.metrics.SchemaMetrics;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -108,6 +115,95 @@ public class TestSlabCache {
     CacheTestUtils.testHeapSizeChanges(cache, BLOCK_SIZE);
   }
 
+  @Test
+  public void testAdaptiveSlabs() throws Exception {
+    int avgBlockSize = 16384;
+    int pageSize = 65536;
+    Configuration conf = new Configuration();
+    conf.setBoolean(SlabCache.SLAB_ADAPTIVE_KEY, true);
+    conf.setInt(SlabCache.SLAB_PAGE_SIZE_KEY, pageSize);
+    conf.setInt(SlabCache.SLAB_REBALANCE_PERIOD_KEY, 3600);
+    SlabCache adaptive = new SlabCache(40 * pageSize, avgBlockSize);
+    adaptive.addSlabByConf(conf);
+    try {
+      // Small blocks have no pages of their size yet, so go to larger ones
+      SingleSizeCache smallSlab = adaptive.getHigherBlock(3000).getValue();
+      assertEquals(0, smallSlab.getPageCount());
+      int block = 0;
+      for (; block < 200; block++) {
+        adaptive.cacheBlock(new BlockCacheKey("small", block),
+            new SizedItem(3000));
+      }
+      double fragmentation = adaptive.getFragmentation();
+      assertTrue(fragmentation > 0.5);
+
+      // Pages move to the requested size, and the next blocks waste less
+      assertTrue(adaptive.rebalance() > 0);
+      assertTrue(smallSlab.getPageCount() > 0);
+      for (; block < 400; block++) {
+        adaptive.cacheBlock(new BlockCacheKey("small", block),
+            new SizedItem(3000));
+      }
+      assertTrue(adaptive.getFragmentation() < fragmentation);
+      Cacheable cached = adaptive.getBlock(
+          new BlockCacheKey("small", block - 1), true, false);
+      assertEquals(3000, cached.getSerializedLength());
+
+      // Blocks larger than the largest size are rejected
+      assertEquals(0, adaptive.getStats().getRejectedCount());
+      adaptive.cacheBlock(new BlockCacheKey("large", 0),
+          new SizedItem(avgBlockSize * 3));
+      assertEquals(1, adaptive.getStats().getRejectedCount());
+    } finally {
+      adaptive.shutdown();
+    }
+  }
+
+  /** A cacheable of a given serialized size */
+  private static class SizedItem implements Cacheable {
+    private final int size;
+
+    SizedItem(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public long heapSize() {
+      return size;
+    }
+
+    @Override
+    public int getSerializedLength() {
+      return size;
+    }
+
+    @Override
+    public void serialize(ByteBuffer destination) {
+      destination.put(new byte[size]);
+      destination.rewind();
+    }
+
+    @Override
+    public CacheableDeserializer<Cacheable> getDeserializer() {
+      return new CacheableDeserializer<Cacheable>() {
+        @Override
+        public Cacheable deserialize(ByteBuffer b) {
+          return new SizedItem(b.limit());
+        }
+      };
+    }
+
+    @Override
+    public BlockType getBlockType() {
+      return BlockType.DATA;
+    }
+
+    @Override
+    public SchemaMetrics getSchemaMetrics() {
+      return SchemaMetrics.getUnknownInstanceForTest();
+    }
+  }
+
   @org.junit.Rule
   public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
     new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
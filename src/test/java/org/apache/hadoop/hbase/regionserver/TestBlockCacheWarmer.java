@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.hfile.BlockCache;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.CachedBlock.BlockPriority;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests that the block cache of a region is warmed up again after the region
+ * is closed and reopened.
+ */
+@Category(MediumTests.class)
+public class TestBlockCacheWarmer {
+  private static final HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final byte [] FAMILY = Bytes.toBytes("f");
+  private static final byte [] QUALIFIER = Bytes.toBytes("q");
+
+  @Test
+  public void testWarmUpAfterReopen() throws Exception {
+    Configuration conf = new Configuration(TEST_UTIL.getConfiguration());
+    conf.setBoolean(BlockCacheWarmer.PERSIST_KEY, true);
+    conf.setLong(BlockCacheWarmer.WARMUP_BANDWIDTH_KEY, 0);
+
+    HTableDescriptor htd = new HTableDescriptor("TestBlockCacheWarmer");
+    htd.addFamily(new HColumnDescriptor(FAMILY).setBlocksize(1024));
+    HRegionInfo info = new HRegionInfo(htd.getName(), null, null, false);
+    Path rootDir = TEST_UTIL.getDataTestDir("TestBlockCacheWarmer");
+    HRegion region = HRegion.createHRegion(info, rootDir, conf, htd);
+    BlockCache blockCache = new CacheConfig(conf).getBlockCache();
+
+    for (int i = 0; i < 1000; i++) {
+      Put put = new Put(Bytes.toBytes(String.format("row%04d", i)));
+      put.add(FAMILY, QUALIFIER, Bytes.toBytes("value" + i));
+      put.setWriteToWAL(false);
+      region.put(put);
+    }
+    region.flushcache();
+
+    // Read a few rows, twice, so that their blocks are cached
+    for (int n = 0; n < 2; n++) {
+      for (int i = 0; i < 1000; i += 100) {
+        region.get(new Get(Bytes.toBytes(String.format("row%04d", i))), null);
+      }
+    }
+    Set<String> hfileNames = new HashSet<String>();
+    for (StoreFile sf : region.getStore(FAMILY).getStorefiles()) {
+      hfileNames.add(sf.getPath().getName());
+    }
+    Map<BlockCacheKey, BlockPriority> cached =
+      blockCache.getCachedBlockKeys(hfileNames);
+    assertFalse(cached.isEmpty());
+    assertTrue(cached.containsValue(BlockPriority.MULTI));
+
+    Path cachedBlocksFile = new Path(region.getRegionDir(),
+      BlockCacheWarmer.CACHED_BLOCKS_FILE);
+    region.close();
+    region.getLog().closeAndDelete();
+    assertTrue(region.getFilesystem().exists(cachedBlocksFile));
+
+    // As if the region server restarted
+    for (String hfileName : hfileNames) {
+      blockCache.evictBlocksByHfileName(hfileName);
+    }
+    assertTrue(blockCache.getCachedBlockKeys(hfileNames).isEmpty());
+
+    region = HRegion.openHRegion(region.getTableDir(), info, htd, null, conf);
+    try {
+      assertFalse(region.getFilesystem().exists(cachedBlocksFile));
+      for (int i = 0; i < 100; i++) {
+        if (blockCache.getCachedBlockKeys(hfileNames).size() >= cached.size()) {
+          break;
+        }
+        Thread.sleep(100);
+      }
+      assertEquals(cached.keySet(),
+        blockCache.getCachedBlockKeys(hfileNames).keySet());
+    } finally {
+      region.close();
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
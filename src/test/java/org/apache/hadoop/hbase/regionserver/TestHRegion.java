@@ -240,6 +240,53 @@ public class TestHRegion extends HBaseTestCase {
     scanner1.close();
   }
 
+  public void testPerColumnFamilyFlush() throws Exception {
+    String method = "testPerColumnFamilyFlush";
+    byte[] tableName = Bytes.toBytes(method);
+    byte[] hot = Bytes.toBytes("hot");
+    byte[] cold = Bytes.toBytes("cold");
+    Configuration conf = HBaseConfiguration.create(this.conf);
+    conf.setBoolean(HRegion.PER_FAMILY_FLUSH_KEY, true);
+    conf.setLong(HRegion.PER_FAMILY_FLUSH_LOWER_BOUND_KEY, 64 * 1024);
+    this.region = initHRegion(tableName, method, conf, hot, cold);
+    try {
+      byte[] value = new byte[1024];
+      for (int i = 0; i < 100; i++) {
+        Put put = new Put(Bytes.toBytes(i));
+        put.add(hot, Bytes.toBytes("q"), value);
+        if (i == 0) {
+          put.add(cold, Bytes.toBytes("q"), Bytes.toBytes(i));
+        }
+        region.put(put);
+      }
+      Store hotStore = region.getStore(hot);
+      Store coldStore = region.getStore(cold);
+      long coldSize = coldStore.getFlushableSize();
+      assertTrue(coldSize > 0);
+
+      // Only the large store is written out
+      region.flushcache(false);
+      assertEquals(1, hotStore.getStorefilesCount());
+      assertEquals(0, coldStore.getStorefilesCount());
+      assertEquals(coldSize, region.getMemstoreSize().get());
+      assertTrue(coldStore.getFlushedSequenceId() <
+        hotStore.getFlushedSequenceId());
+
+      // Both are still read
+      Result result = region.get(new Get(Bytes.toBytes(0)));
+      assertEquals(2, result.size());
+
+      // A forced flush writes out the rest
+      region.flushcache();
+      assertEquals(1, hotStore.getStorefilesCount());
+      assertEquals(1, coldStore.getStorefilesCount());
+      assertEquals(0, region.getMemstoreSize().get());
+    } finally {
+      HRegion.closeHRegion(this.region);
+      this.region = null;
+    }
+  }
+
   public void testSkipRecoveredEditsReplay() throws Exception {
     String method = "testSkipRecoveredEditsReplay";
     byte[] tableName = Bytes.toBytes(method);
@@ -476,6 +476,59 @@ public class TestMemStore extends TestCase {
     }
   }
 
+  /**
+   * Test that a snapshot turned into a sorted array reads the same as the
+   * skip list it was made from, and is cleared like it.
+   * @throws IOException
+   */
+  public void testFlatSnapshot() throws IOException {
+    int rowCount = addRows(this.memstore);
+    this.memstore.snapshot();
+    KeyValueSkipListSet ss = this.memstore.getSnapshot();
+    KeyValueArraySet flat = this.memstore.mergeSnapshot();
+    assertEquals(ss.size(), flat.size());
+    assertEquals(ss.first(), flat.first());
+    assertEquals(ss.last(), flat.last());
+    this.memstore.setFlatSnapshot(flat);
+    assertTrue(this.memstore.getSnapshot().isEmpty());
+    // Merging again hands back the same segment
+    assertTrue(flat == this.memstore.mergeSnapshot());
+
+    MultiVersionConsistencyControl.resetThreadReadPoint(mvcc);
+    List<KeyValueScanner> memstorescanners = this.memstore.getScanners();
+    Scan scan = new Scan();
+    List<KeyValue> result = new ArrayList<KeyValue>();
+    ScanInfo scanInfo = new ScanInfo(null, 0, 1, HConstants.LATEST_TIMESTAMP, false,
+        0, this.memstore.comparator);
+    StoreScanner s = new StoreScanner(scan, scanInfo, ScanType.USER_SCAN, null,
+        memstorescanners);
+    int count = 0;
+    try {
+      while (s.next(result)) {
+        assertTrue(Bytes.compareTo(Bytes.toBytes(count), result.get(0).getRow()) == 0);
+        assertEquals(rowCount, result.size());
+        count++;
+        result.clear();
+      }
+    } finally {
+      s.close();
+    }
+    assertEquals(rowCount, count);
+
+    // Seeks into the middle of the segment
+    KeyValue middle = KeyValue.createFirstOnRow(Bytes.toBytes(rowCount / 2));
+    for (KeyValueScanner scanner : this.memstore.getScanners()) {
+      if (scanner.seek(middle)) {
+        assertTrue(Bytes.equals(middle.getRow(), scanner.peek().getRow()));
+      }
+      scanner.close();
+    }
+
+    this.memstore.clearSnapshot(flat);
+    assertTrue(this.memstore.getSnapshotCompacted().isEmpty());
+    assertEquals(0, this.memstore.getFlushableSize());
+  }
+
   public void testMultipleVersionsSimple() throws Exception {
     MemStore m = new MemStore(new Configuration(), KeyValue.COMPARATOR);
     byte [] row = Bytes.toBytes("testRow");
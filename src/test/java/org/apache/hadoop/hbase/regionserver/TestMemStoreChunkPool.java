@@ -0,0 +1,238 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test the {@link MemStoreChunkPool} class
+ */
+@Category(SmallTests.class)
+public class TestMemStoreChunkPool {
+  private final static Configuration conf = HBaseConfiguration.create();
+  private static MemStoreChunkPool chunkPool;
+  private static boolean chunkPoolDisabledBeforeTest;
+
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    conf.setBoolean(MemStore.USEMSLAB_KEY, true);
+    conf.setFloat(MemStoreChunkPool.CHUNK_POOL_MAXSIZE_KEY, 0.2f);
+    chunkPoolDisabledBeforeTest = MemStoreChunkPool.chunkPoolDisabled;
+    MemStoreChunkPool.chunkPoolDisabled = false;
+    chunkPool = MemStoreChunkPool.getPool(conf);
+    assertNotNull(chunkPool);
+  }
+
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    MemStoreChunkPool.chunkPoolDisabled = chunkPoolDisabledBeforeTest;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    chunkPool.clearChunks();
+  }
+
+  @Test
+  public void testReusingChunks() {
+    MemStoreLAB mslab = new MemStoreLAB(conf, chunkPool);
+    int expectedOff = 0;
+    byte[] lastBuffer = null;
+    // Randomly allocate some bytes
+    for (int i = 0; i < 100; i++) {
+      int size = 1000 + i * 10;
+      MemStoreLAB.Allocation alloc = mslab.allocateBytes(size);
+      if (alloc.getData() != lastBuffer) {
+        expectedOff = 0;
+        lastBuffer = alloc.getData();
+      }
+      assertEquals(expectedOff, alloc.getOffset());
+      expectedOff += size;
+    }
+    // chunks will be put back to pool after close
+    mslab.close();
+    int chunkCount = chunkPool.getPoolSize();
+    assertTrue(chunkCount > 0);
+
+    // reconstruct mslab; the chunks should come out of the pool
+    long hits = chunkPool.getHitCount();
+    mslab = new MemStoreLAB(conf, chunkPool);
+    MemStoreLAB.Allocation alloc = mslab.allocateBytes(1000);
+    assertEquals(0, alloc.getOffset());
+    assertEquals(hits + 1, chunkPool.getHitCount());
+    assertEquals(chunkCount - 1, chunkPool.getPoolSize());
+  }
+
+  @Test
+  public void testPuttingBackChunksAfterFlushing() throws UnexpectedException {
+    byte[] row = Bytes.toBytes("testrow");
+    byte[] fam = Bytes.toBytes("testfamily");
+    byte[] qf1 = Bytes.toBytes("testqualifier1");
+    byte[] qf2 = Bytes.toBytes("testqualifier2");
+    byte[] val = Bytes.toBytes("testval");
+
+    MemStore memstore = new MemStore(conf, KeyValue.COMPARATOR);
+    memstore.add(new KeyValue(row, fam, qf1, val));
+    memstore.add(new KeyValue(row, fam, qf2, val));
+
+    // Creating a snapshot
+    memstore.snapshot();
+    KeyValueSkipListSet snapshot = memstore.getSnapshot();
+    assertEquals(2, snapshot.size());
+
+    // Adding a value to the new memstore
+    memstore.add(new KeyValue(row, fam, qf1, val));
+
+    // Clearing the snapshot gives its chunk back to the pool
+    int chunkCount = chunkPool.getPoolSize();
+    memstore.clearSnapshot(snapshot);
+    assertEquals(chunkCount + 1, chunkPool.getPoolSize());
+  }
+
+  @Test
+  public void testPuttingBackChunksWithOpeningScanner()
+      throws UnexpectedException {
+    byte[] row = Bytes.toBytes("testrow");
+    byte[] fam = Bytes.toBytes("testfamily");
+    byte[] qf1 = Bytes.toBytes("testqualifier1");
+    byte[] qf2 = Bytes.toBytes("testqualifier2");
+    byte[] val = Bytes.toBytes("testval");
+
+    MemStore memstore = new MemStore(conf, KeyValue.COMPARATOR);
+    memstore.add(new KeyValue(row, fam, qf1, val));
+    memstore.add(new KeyValue(row, fam, qf2, val));
+
+    // Creating a snapshot
+    memstore.snapshot();
+    KeyValueSkipListSet snapshot = memstore.getSnapshot();
+
+    // Open a scanner before clearing the snapshot
+    List<KeyValueScanner> scanners = memstore.getScanners();
+    int chunkCount = chunkPool.getPoolSize();
+    memstore.clearSnapshot(snapshot);
+    // The scanner still reads from the snapshot's chunk
+    assertEquals(chunkCount, chunkPool.getPoolSize());
+
+    for (KeyValueScanner scanner : scanners) {
+      scanner.close();
+    }
+    // Closing the last scanner gives the chunk back
+    assertEquals(chunkCount + 1, chunkPool.getPoolSize());
+  }
+
+  @Test
+  public void testReusingChunksWithScannersBetweenFlushes() throws Exception {
+    byte[] row = Bytes.toBytes("testrow");
+    byte[] fam = Bytes.toBytes("testfamily");
+    byte[] qf = Bytes.toBytes("testqualifier");
+    byte[] val = Bytes.toBytes("testval");
+
+    MemStore memstore = new MemStore(conf, KeyValue.COMPARATOR);
+    long hits = chunkPool.getHitCount();
+    for (int i = 0; i < 5; i++) {
+      memstore.add(new KeyValue(row, fam, qf, val));
+      List<KeyValueScanner> scanners = memstore.getScanners();
+      for (KeyValueScanner scanner : scanners) {
+        scanner.seek(KeyValue.createFirstOnRow(row));
+        KeyValue kv = scanner.next();
+        // The scanner hands out a copy, not the cell in the chunk
+        assertNotNull(kv);
+        assertTrue(kv.getBuffer().length < 1024);
+        scanner.close();
+      }
+      memstore.snapshot();
+      memstore.clearSnapshot(memstore.getSnapshot());
+    }
+    // Every memstore after the first reuses the chunk of the previous one
+    assertTrue(chunkPool.getHitCount() - hits >= 4);
+  }
+
+  @Test
+  public void testFlushingWhileScanning() throws Exception {
+    byte[] row = Bytes.toBytes("testrow");
+    byte[] fam = Bytes.toBytes("testfamily");
+    byte[] qf = Bytes.toBytes("testqualifier");
+    int count = 100;
+
+    MemStore memstore = new MemStore(conf, KeyValue.COMPARATOR);
+    for (int i = 0; i < count; i++) {
+      memstore.add(new KeyValue(row, fam, Bytes.add(qf, Bytes.toBytes(i)),
+          Bytes.toBytes("value" + i)));
+    }
+
+    // Read half of the cells, then flush while the scanner is open
+    List<KeyValueScanner> scanners = memstore.getScanners();
+    KeyValueScanner scanner = scanners.get(0);
+    scanner.seek(KeyValue.createFirstOnRow(HConstants.EMPTY_START_ROW));
+    List<KeyValue> results = new ArrayList<KeyValue>();
+    for (int i = 0; i < count / 2; i++) {
+      results.add(scanner.next());
+    }
+    memstore.snapshot();
+    memstore.clearSnapshot(memstore.getSnapshot());
+    for (int i = count / 2; i < count; i++) {
+      results.add(scanner.next());
+    }
+    for (KeyValueScanner s : scanners) {
+      s.close();
+    }
+
+    // Fill new memstores from the pool, overwriting any reused chunk
+    byte[] garbage = new byte[1000];
+    Arrays.fill(garbage, (byte) 0xff);
+    for (int i = 0; i < 10; i++) {
+      MemStore other = new MemStore(conf, KeyValue.COMPARATOR);
+      for (int j = 0; j < count; j++) {
+        other.add(new KeyValue(garbage, fam, qf, garbage));
+      }
+      other.snapshot();
+      other.clearSnapshot(other.getSnapshot());
+    }
+
+    assertEquals(count, results.size());
+    for (int i = 0; i < count; i++) {
+      KeyValue kv = results.get(i);
+      assertTrue(Bytes.equals(row, kv.getRow()));
+      assertTrue(Bytes.equals(Bytes.add(qf, Bytes.toBytes(i)),
+          kv.getQualifier()));
+      assertEquals("value" + i, Bytes.toString(kv.getValue()));
+    }
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.hbase.SmallTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test the delays of the global memstore throttle in {@link MemStoreFlusher}.
+ */
+@Category(SmallTests.class)
+public class TestMemStoreFlusherThrottle {
+  private static final long LOW = 350;
+  private static final long HIGH = 400;
+  private static final long FLUSH_SIZE = 128;
+  private static final long MAX_DELAY = 1000;
+
+  private long delay(long globalSize, long regionSize) {
+    return MemStoreFlusher.getThrottleDelay(globalSize, LOW, HIGH, regionSize,
+      FLUSH_SIZE, MAX_DELAY);
+  }
+
+  @Test
+  public void testNoDelayBelowLowWaterMark() {
+    assertEquals(0, delay(0, FLUSH_SIZE));
+    assertEquals(0, delay(LOW, FLUSH_SIZE));
+    // Degenerate marks never delay
+    assertEquals(0, MemStoreFlusher.getThrottleDelay(HIGH, HIGH, HIGH,
+      FLUSH_SIZE, FLUSH_SIZE, MAX_DELAY));
+  }
+
+  @Test
+  public void testDelayGrowsWithPressure() {
+    long previous = 0;
+    for (long size = LOW + 5; size <= HIGH; size += 5) {
+      long d = delay(size, FLUSH_SIZE);
+      assertTrue(d > previous);
+      previous = d;
+    }
+    assertEquals(MAX_DELAY, delay(HIGH, FLUSH_SIZE));
+    assertEquals(MAX_DELAY, delay(2 * HIGH, 2 * FLUSH_SIZE));
+    // Half way through the range gives a quarter of the delay
+    assertEquals(MAX_DELAY / 4, delay((LOW + HIGH) / 2, FLUSH_SIZE));
+  }
+
+  @Test
+  public void testSmallRegionsAreDelayedLess() {
+    assertEquals(MAX_DELAY / 2, delay(HIGH, 0));
+    assertTrue(delay(HIGH, FLUSH_SIZE / 2) < delay(HIGH, FLUSH_SIZE));
+    assertTrue(delay(HIGH, FLUSH_SIZE / 2) > delay(HIGH, 0));
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
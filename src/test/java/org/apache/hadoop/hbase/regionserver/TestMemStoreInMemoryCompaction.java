@@ -0,0 +1,272 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test in-memory compaction of the {@link MemStore} and the
+ * {@link KeyValueArraySet} segments it produces.
+ */
+@Category(SmallTests.class)
+public class TestMemStoreInMemoryCompaction {
+  private static final byte [] ROW = Bytes.toBytes("row");
+  private static final byte [] FAMILY = Bytes.toBytes("family");
+  private static final byte [] QUALIFIER = Bytes.toBytes("qualifier");
+  private static final int MAX_VERSIONS = 3;
+
+  private MemStore memstore;
+
+  @Before
+  public void setUp() throws Exception {
+    Configuration conf = HBaseConfiguration.create();
+    HColumnDescriptor family = new HColumnDescriptor(FAMILY);
+    family.setMaxVersions(MAX_VERSIONS);
+    family.setInMemoryCompaction(true);
+    this.memstore = new MemStore(conf, KeyValue.COMPARATOR, family);
+  }
+
+  private KeyValue put(byte [] qualifier, long ts, long memstoreTS) {
+    KeyValue kv = new KeyValue(ROW, FAMILY, qualifier, ts, Bytes.toBytes(ts));
+    kv.setMemstoreTS(memstoreTS);
+    this.memstore.add(kv);
+    return kv;
+  }
+
+  private List<KeyValue> scan() throws Exception {
+    List<KeyValue> result = new ArrayList<KeyValue>();
+    MultiVersionConsistencyControl.setThreadReadPoint(Long.MAX_VALUE);
+    KeyValueHeap heap =
+      new KeyValueHeap(this.memstore.getScanners(), KeyValue.COMPARATOR);
+    heap.seek(KeyValue.createFirstOnRow(ROW));
+    for (KeyValue kv = heap.next(); kv != null; kv = heap.next()) {
+      result.add(kv);
+    }
+    heap.close();
+    return result;
+  }
+
+  @Test
+  public void testOldVersionsAreDropped() throws Exception {
+    for (long ts = 1; ts <= 10; ts++) {
+      put(QUALIFIER, ts, 1);
+    }
+    long before = this.memstore.heapSize();
+    long delta = this.memstore.compactInMemory(1);
+    assertTrue(delta < 0);
+    assertEquals(before + delta, this.memstore.heapSize());
+    assertEquals(MAX_VERSIONS, this.memstore.compacted.size());
+    assertTrue(this.memstore.kvset.isEmpty());
+
+    List<KeyValue> kvs = scan();
+    assertEquals(MAX_VERSIONS, kvs.size());
+    assertEquals(10, kvs.get(0).getTimestamp());
+    assertEquals(8, kvs.get(MAX_VERSIONS - 1).getTimestamp());
+
+    // Newer writes are merged with the compacted segment
+    put(QUALIFIER, 11, 2);
+    this.memstore.compactInMemory(2);
+    kvs = scan();
+    assertEquals(MAX_VERSIONS, kvs.size());
+    assertEquals(11, kvs.get(0).getTimestamp());
+  }
+
+  @Test
+  public void testKeptCellsCopiedOnlyOnceDroppedOnesTakeMoreRoom()
+  throws Exception {
+    for (long ts = 1; ts <= MAX_VERSIONS + 1; ts++) {
+      for (int i = 0; i < 10; i++) {
+        put(Bytes.toBytes("q" + i), ts, 1);
+      }
+    }
+    KeyValue newest = this.memstore.kvset.first();
+    this.memstore.compactInMemory(1);
+    // A quarter of the cells were dropped; the kept ones stay where they are
+    assertEquals(10 * MAX_VERSIONS, this.memstore.compacted.size());
+    assertSame(newest, this.memstore.compacted.first());
+
+    for (long ts = MAX_VERSIONS + 2; ts <= 2 * MAX_VERSIONS + 1; ts++) {
+      for (int i = 0; i < 10; i++) {
+        put(Bytes.toBytes("q" + i), ts, 1);
+      }
+    }
+    newest = this.memstore.kvset.first();
+    this.memstore.compactInMemory(1);
+    // Now more was dropped than kept, so the kept cells were copied
+    assertEquals(10 * MAX_VERSIONS, this.memstore.compacted.size());
+    assertEquals(newest, this.memstore.compacted.first());
+    assertNotSame(newest, this.memstore.compacted.first());
+    assertEquals(10 * MAX_VERSIONS, scan().size());
+  }
+
+  @Test
+  public void testUpsertAfterCompaction() throws Exception {
+    KeyValue kv = new KeyValue(ROW, FAMILY, QUALIFIER, 5, Bytes.toBytes(1L));
+    this.memstore.upsert(Collections.singletonList(kv));
+    this.memstore.compactInMemory(1);
+    assertEquals(1, this.memstore.compacted.size());
+    assertTrue(this.memstore.kvset.isEmpty());
+
+    // Same key and memstoreTS as the compacted cell; the active set wins
+    kv = new KeyValue(ROW, FAMILY, QUALIFIER, 5, Bytes.toBytes(2L));
+    this.memstore.upsert(Collections.singletonList(kv));
+    for (int i = 0; i < 10; i++) {
+      List<KeyValue> kvs = scan();
+      assertEquals(2, kvs.size());
+      assertEquals(2L, Bytes.toLong(kvs.get(0).getValue()));
+    }
+  }
+
+  @Test
+  public void testUncommittedCellsStayActive() throws Exception {
+    for (long ts = 1; ts <= 5; ts++) {
+      put(QUALIFIER, ts, 1);
+    }
+    KeyValue pending = put(QUALIFIER, 6, 5);
+    this.memstore.compactInMemory(1);
+    assertEquals(1, this.memstore.kvset.size());
+    // The uncommitted cell did not push a committed version out
+    assertEquals(MAX_VERSIONS, this.memstore.compacted.size());
+    assertEquals(5, this.memstore.compacted.first().getTimestamp());
+
+    // It can still be rolled back
+    this.memstore.rollback(pending);
+    assertTrue(this.memstore.kvset.isEmpty());
+  }
+
+  @Test
+  public void testColumnsWithDeletesAreKept() throws Exception {
+    for (long ts = 1; ts <= 5; ts++) {
+      put(QUALIFIER, ts, 1);
+    }
+    KeyValue delete = new KeyValue(ROW, FAMILY, QUALIFIER, 5,
+      KeyValue.Type.Delete);
+    delete.setMemstoreTS(1);
+    this.memstore.delete(delete);
+    byte [] other = Bytes.toBytes("other");
+    for (long ts = 1; ts <= 5; ts++) {
+      put(other, ts, 1);
+    }
+    this.memstore.compactInMemory(1);
+    // 5 puts and the delete of the first column, 3 puts of the second
+    assertEquals(6 + MAX_VERSIONS, this.memstore.compacted.size());
+  }
+
+  @Test
+  public void testFlushCompactedSnapshot() throws Exception {
+    for (long ts = 1; ts <= 10; ts++) {
+      put(QUALIFIER, ts, 1);
+    }
+    this.memstore.compactInMemory(1);
+    put(Bytes.toBytes("other"), 1, 1);
+
+    this.memstore.snapshot();
+    assertTrue(this.memstore.compacted.isEmpty());
+    assertEquals(MAX_VERSIONS, this.memstore.getSnapshotCompacted().size());
+    assertEquals(1, this.memstore.getSnapshot().size());
+    assertEquals(MAX_VERSIONS + 1, scan().size());
+
+    KeyValueArraySet flat = this.memstore.mergeSnapshot();
+    assertEquals(MAX_VERSIONS + 1, flat.size());
+    this.memstore.setFlatSnapshot(flat);
+    assertEquals(MAX_VERSIONS + 1, scan().size());
+
+    this.memstore.clearSnapshot(flat);
+    assertTrue(this.memstore.getSnapshotCompacted().isEmpty());
+    assertEquals(0, scan().size());
+  }
+
+  @Test
+  public void testNotCompactedWithoutFamilyFlag() throws Exception {
+    MemStore plain = new MemStore(HBaseConfiguration.create(),
+      KeyValue.COMPARATOR, new HColumnDescriptor(FAMILY));
+    assertFalse(plain.shouldCompactInMemory());
+  }
+
+  @Test
+  public void testArraySetNavigation() {
+    KeyValue [] kvs = new KeyValue[10];
+    for (int i = 0; i < kvs.length; i++) {
+      byte [] row = Bytes.toBytes(String.format("row%02d", 2 * i));
+      kvs[i] = new KeyValue(row, FAMILY, QUALIFIER, 1, Bytes.toBytes(i));
+    }
+    KeyValueArraySet set = new KeyValueArraySet(KeyValue.COMPARATOR, kvs,
+      kvs.length);
+    assertEquals(10, set.size());
+    KeyValue missing = KeyValue.createFirstOnRow(Bytes.toBytes("row03"));
+    KeyValue present = kvs[4];
+    assertEquals(kvs[2], set.ceiling(missing));
+    assertEquals(kvs[1], set.floor(missing));
+    assertEquals(present, set.ceiling(present));
+    assertEquals(kvs[5], set.higher(present));
+    assertEquals(kvs[3], set.lower(present));
+    assertEquals(present, set.get(present));
+    assertNull(set.get(missing));
+    assertEquals(6, set.tailSet(present).size());
+    assertEquals(5, set.tailSet(present, false).size());
+    assertEquals(4, set.headSet(present).size());
+    assertEquals(5, set.headSet(present, true).size());
+    assertEquals(2, set.subSet(missing, present).size());
+    assertEquals(kvs[9], set.last());
+    assertEquals(kvs[9], set.descendingIterator().next());
+    assertTrue(set.tailSet(KeyValue.createFirstOnRow(Bytes.toBytes("s")))
+      .isEmpty());
+
+    // The descending set is the same view in reverse
+    NavigableSet<KeyValue> descending = set.descendingSet();
+    assertEquals(10, descending.size());
+    assertEquals(kvs[9], descending.first());
+    assertEquals(kvs[0], descending.last());
+    assertEquals(kvs[9], descending.iterator().next());
+    assertEquals(kvs[1], descending.ceiling(missing));
+    assertEquals(kvs[2], descending.floor(missing));
+    assertEquals(kvs[3], descending.higher(present));
+    assertEquals(kvs[5], descending.lower(present));
+    assertEquals(5, descending.headSet(present).size());
+    assertEquals(5, descending.tailSet(present).size());
+    assertEquals(kvs[4], descending.tailSet(present).first());
+    assertEquals(3, descending.subSet(present, missing).size());
+    assertTrue(descending.comparator().compare(kvs[9], kvs[0]) < 0);
+    assertTrue(descending.contains(present));
+    assertTrue(descending.descendingSet() == set);
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
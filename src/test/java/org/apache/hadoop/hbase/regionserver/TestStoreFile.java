@@ -724,6 +724,91 @@ public class TestStoreFile extends HBaseTestCase {
     }
   }
 
+  public void testRowPrefixBloomFilter() throws Exception {
+    float err = (float) 0.01;
+    FileSystem fs = FileSystem.getLocal(conf);
+    conf.setFloat(BloomFilterFactory.IO_STOREFILE_BLOOM_ERROR_RATE, err);
+    conf.setBoolean(BloomFilterFactory.IO_STOREFILE_BLOOM_ENABLED, true);
+
+    int prefixCount = 200;
+    int rowsPerPrefix = 10;
+
+    // run once with a fixed prefix length and once with a delimiter
+    String[] formats = {"%04d%04d", "%d_%04d"};
+    for (int x : new int[]{0,1}) {
+      if (x == 0) {
+        conf.setInt(BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_LENGTH, 4);
+      } else {
+        conf.set(BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_DELIMITER, "_");
+      }
+      Path f = new Path(ROOT_DIR, getName() + x);
+      StoreFile.Writer writer = new StoreFile.WriterBuilder(conf, cacheConf,
+          fs, StoreFile.DEFAULT_BLOCKSIZE_SMALL)
+              .withFilePath(f)
+              .withBloomType(StoreFile.BloomType.ROWPREFIX)
+              .withMaxKeyCount(prefixCount)
+              .withChecksumType(CKTYPE)
+              .withBytesPerChecksum(CKBYTES)
+              .build();
+
+      // only even prefixes, sorted as strings with the delimiter
+      TreeSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+      for (int i = 0; i < prefixCount; i += 2) {
+        for (int j = 0; j < rowsPerPrefix; j++) {
+          rows.add(Bytes.toBytes(String.format(formats[x], i, j)));
+        }
+      }
+      long now = System.currentTimeMillis();
+      for (byte[] row : rows) {
+        writer.append(new KeyValue(row, "family".getBytes(),
+            "col".getBytes(), now, "value".getBytes()));
+      }
+      writer.close();
+
+      StoreFile.Reader reader = new StoreFile.Reader(fs, f, cacheConf,
+          DataBlockEncoding.NONE);
+      reader.loadFileInfo();
+      reader.loadBloomfilter();
+      StoreFileScanner scanner = reader.getStoreFileScanner(false, false);
+      assertEquals(StoreFile.BloomType.ROWPREFIX, reader.getBloomFilterType());
+      assertEquals(prefixCount / 2, reader.generalBloomFilter.getKeyCount());
+
+      int falsePos = 0;
+      int falseNeg = 0;
+      for (int i = 0; i < prefixCount; i++) {
+        // a scan within the prefix, and a get
+        Scan scan = new Scan(Bytes.toBytes(String.format(formats[x], i, 0)),
+            Bytes.toBytes(String.format(formats[x], i, 9999)));
+        byte[] row = Bytes.toBytes(String.format(formats[x], i, 1));
+        for (Scan s : new Scan[] { scan, new Scan(row, row) }) {
+          boolean exists = scanner.shouldUseScanner(s, null, Long.MIN_VALUE);
+          if (i % 2 == 0) {
+            if (!exists) falseNeg++;
+          } else {
+            if (exists) falsePos++;
+          }
+        }
+      }
+
+      // scans across prefixes can not use the Bloom filter
+      String lastRow = String.format(formats[x], prefixCount, 0);
+      assertTrue(scanner.shouldUseScanner(new Scan(
+          Bytes.toBytes(String.format(formats[x], 1, 0)),
+          Bytes.toBytes(lastRow)), null, Long.MIN_VALUE));
+      assertTrue(scanner.shouldUseScanner(new Scan(
+          Bytes.toBytes(String.format(formats[x], 1, 0))), null,
+          Long.MIN_VALUE));
+
+      reader.close(true); // evict because we are about to delete the file
+      fs.delete(f, true);
+      assertEquals(0, falseNeg);
+      assertTrue("Too many false positives: " + falsePos,
+          falsePos <= 2 * 2 * prefixCount * err + 2);
+    }
+    conf.setInt(BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_LENGTH, 0);
+    conf.set(BloomFilterFactory.IO_STOREFILE_BLOOM_PREFIX_DELIMITER, "");
+  }
+
   public void testBloomEdgeCases() throws Exception {
     float err = (float)0.005;
     FileSystem fs = FileSystem.getLocal(conf);
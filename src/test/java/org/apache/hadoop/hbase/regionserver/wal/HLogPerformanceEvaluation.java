@@ -123,6 +123,7 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
     boolean verify = false;
     boolean verbose = false;
     long roll = Long.MAX_VALUE;
+    int groupCommitSyncers = 0;
     // Process command line args
     for (int i = 0; i < args.length; i++) {
       String cmd = args[i];
@@ -149,6 +150,8 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
           verbose = true;
         } else if (cmd.equals("-roll")) {
           roll = Long.parseLong(args[++i]);
+        } else if (cmd.equals("-groupcommit")) {
+          groupCommitSyncers = Integer.parseInt(args[++i]);
         } else if (cmd.equals("-h")) {
           printUsageAndExit();
         } else if (cmd.equals("--help")) {
@@ -162,6 +165,11 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
       }
     }
 
+    if (groupCommitSyncers > 0) {
+      getConf().setBoolean(HLog.GROUP_COMMIT_ENABLED_KEY, true);
+      getConf().setInt(HLog.GROUP_COMMIT_SYNCERS_KEY, groupCommitSyncers);
+    }
+
     // Run HLog Performance Evaluation
     FileSystem fs = FileSystem.get(getConf());
     LOG.info("" + fs);
@@ -192,9 +200,13 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
       HRegion region = null;
       try {
         region = openRegion(fs, rootRegionDir, htd, hlog);
+        // Reset the sync metrics so they only cover the benchmark run
+        HLog.getSyncTime();
+        HLog.getSyncWaitTime();
         long putTime = runBenchmark(new HLogPutBenchmark(region, htd, numIterations, noSync), numThreads);
         logBenchmarkResult("Summary: threads=" + numThreads + ", iterations=" + numIterations,
           numIterations * numThreads, putTime);
+        logSyncResult(HLog.getSyncTime(), HLog.getSyncWaitTime(), putTime);
         if (region != null) {
           closeRegion(region);
           region = null;
@@ -267,6 +279,16 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
     LOG.info(String.format("%s took %.3fs %.3fops/s", testName, tsec, numTests / tsec));
   }
 
+  private static void logSyncResult(HLog.Metric syncs, HLog.Metric waits, long totalTime) {
+    float tsec = totalTime / 1000.0f;
+    LOG.info(String.format("Syncs: count=%d, %.3fsyncs/s, avg sync %.3fms",
+      syncs.count, syncs.count / tsec,
+      syncs.count == 0 ? 0.0f : (float) syncs.total / syncs.count));
+    LOG.info(String.format("Handler sync waits: count=%d, avg %.3fms, max %dms",
+      waits.count, waits.count == 0 ? 0.0f : (float) waits.total / waits.count,
+      waits.count == 0 ? 0 : waits.max));
+  }
+
   private void printUsageAndExit() {
     System.err.printf("Usage: bin/hbase %s [options]\n", getClass().getName());
     System.err.println(" where [options] are:");
@@ -282,12 +304,16 @@ public final class HLogPerformanceEvaluation extends Configured implements Tool
     System.err.println("  -verify          Verify edits written in sequence");
     System.err.println("  -verbose         Output extra info; e.g. all edit seq ids when verifying");
     System.err.println("  -roll <N>        Roll the way every N appends");
+    System.err.println("  -groupcommit <N> Use group commit with N syncs in flight");
     System.err.println("");
     System.err.println("Examples:");
     System.err.println("");
     System.err.println(" To run 100 threads on hdfs with log rolling every 10k edits and verification afterward do:");
     System.err.println(" $ ./bin/hbase org.apache.hadoop.hbase.regionserver.wal.HLogPerformanceEvaluation \\");
     System.err.println("    -conf ./core-site.xml -path hdfs://example.org:7000/tmp -threads 100 -roll 10000 -verify");
+    System.err.println("");
+    System.err.println(" To compare syncs/s and handler wait time with group commit on, run the same again adding:");
+    System.err.println("    -groupcommit 5");
     System.exit(1);
   }
 
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MediumTests;
+import org.apache.hadoop.hbase.regionserver.wal.TestLogRollingNoCluster.Appender;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Test concurrent appenders against an {@link HLog} that syncs through a
+ * {@link GroupCommitSyncer}, with and without log rolls.
+ */
+@Category(MediumTests.class)
+public class TestGroupCommitSyncer {
+  private final static HBaseTestingUtility TEST_UTIL = new HBaseTestingUtility();
+  private static final int THREAD_COUNT = 20;
+
+  private HLog createGroupCommitLog(final String name, final int syncers)
+  throws IOException {
+    Configuration conf = HBaseConfiguration.create(TEST_UTIL.getConfiguration());
+    conf.setBoolean(HLog.GROUP_COMMIT_ENABLED_KEY, true);
+    conf.setInt(HLog.GROUP_COMMIT_SYNCERS_KEY, syncers);
+    FileSystem fs = FileSystem.get(conf);
+    Path dir = new Path(TEST_UTIL.getDataTestDir(), name);
+    return new HLog(fs, new Path(dir, "logs"), new Path(dir, "oldlogs"), conf);
+  }
+
+  /**
+   * Every synced append must be in the log, and the synced txid must cover
+   * every transaction once the appenders return.
+   */
+  @Test
+  public void testConcurrentSyncs() throws Exception {
+    HLog wal = createGroupCommitLog("testConcurrentSyncs", 3);
+    Appender [] appenders = new Appender[THREAD_COUNT];
+    try {
+      for (int i = 0; i < THREAD_COUNT; i++) {
+        appenders[i] = new Appender(wal, i, THREAD_COUNT);
+        appenders[i].start();
+      }
+      for (int i = 0; i < THREAD_COUNT; i++) {
+        appenders[i].join();
+      }
+      assertEquals(wal.getUnflushedEntries(), wal.getSyncedTillHere());
+    } finally {
+      wal.close();
+    }
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      assertFalse(appenders[i].isException());
+    }
+    assertEquals(THREAD_COUNT * THREAD_COUNT, countEntries(wal));
+  }
+
+  /**
+   * Syncs already satisfied return right away; syncs on a closed log do not
+   * block.
+   */
+  @Test
+  public void testSyncAfterClose() throws Exception {
+    HLog wal = createGroupCommitLog("testSyncAfterClose", 1);
+    wal.sync();
+    wal.sync(0);
+    wal.close();
+    wal.sync(Long.MAX_VALUE);
+    assertTrue(wal.getSyncedTillHere() <= wal.getUnflushedEntries());
+  }
+
+  private long countEntries(final HLog wal) throws IOException {
+    Configuration conf = TEST_UTIL.getConfiguration();
+    FileSystem fs = FileSystem.get(conf);
+    long count = 0;
+    for (FileStatus status : fs.listStatus(wal.getDir())) {
+      HLog.Reader reader = HLog.getReader(fs, status.getPath(), conf);
+      try {
+        while (reader.next() != null) count++;
+      } finally {
+        reader.close();
+      }
+    }
+    return count;
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
@@ -742,6 +742,43 @@ public class TestHLog  {
     }
   }
 
+  /**
+   * Logs holding edits of stores that a flush left in memory must be kept.
+   */
+  @Test
+  public void testLogCleaningAfterPartialFlush() throws Exception {
+    LOG.info("testLogCleaningAfterPartialFlush");
+    final byte [] tableName = Bytes.toBytes("testLogCleaningAfterPartialFlush");
+
+    HLog log = new HLog(fs, dir, oldLogDir, conf);
+    try {
+      HRegionInfo hri = new HRegionInfo(tableName,
+          HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+      addEdits(log, hri, tableName, 1);
+      log.rollWriter();
+      long oldestUnflushed = log.getSequenceNumber() + 1;
+      addEdits(log, hri, tableName, 1);
+      log.rollWriter();
+      assertEquals(3, log.getNumLogFiles());
+
+      // Flush the stores holding the first edit only; just the first log can
+      // go
+      long seqId = log.startCacheFlush(hri.getEncodedNameAsBytes(),
+        oldestUnflushed);
+      log.completeCacheFlush(hri.getEncodedNameAsBytes(), tableName, seqId, false);
+      log.rollWriter();
+      assertEquals(3, log.getNumLogFiles());
+
+      // Flushing the whole region lets go of all of them
+      seqId = log.startCacheFlush(hri.getEncodedNameAsBytes());
+      log.completeCacheFlush(hri.getEncodedNameAsBytes(), tableName, seqId, false);
+      log.rollWriter();
+      assertEquals(1, log.getNumLogFiles());
+    } finally {
+      if (log != null) log.closeAndDelete();
+    }
+  }
+
   /**
    * A loaded WAL coprocessor won't break existing HLog test cases.
    */
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.SmallTests;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Tests placement of regions in HLog groups and the naming of group HLogs.
+ */
+@Category(SmallTests.class)
+public class TestHLogGrouping {
+  private static final int NUM_GROUPS = 4;
+
+  private static HRegionInfo[] createRegions(final String table, final int count) {
+    HRegionInfo[] regions = new HRegionInfo[count];
+    byte[] start = null;
+    for (int i = 0; i < count; i++) {
+      byte[] end = i == count - 1 ? null : Bytes.toBytes(String.format("row%04d", i));
+      regions[i] = new HRegionInfo(Bytes.toBytes(table), start, end);
+      start = end;
+    }
+    return regions;
+  }
+
+  @Test
+  public void testRegionGroupingSpreadsRegions() {
+    HLogGroupingStrategy strategy = new RegionHLogGroupingStrategy();
+    Set<Integer> used = new HashSet<Integer>();
+    for (HRegionInfo hri : createRegions("t1", 100)) {
+      int group = strategy.getGroup(hri, NUM_GROUPS);
+      assertTrue(group >= 0 && group < NUM_GROUPS);
+      assertEquals(group, strategy.getGroup(hri, NUM_GROUPS));
+      used.add(group);
+    }
+    assertEquals(NUM_GROUPS, used.size());
+  }
+
+  @Test
+  public void testTableGroupingKeepsTableTogether() {
+    HLogGroupingStrategy strategy = new TableHLogGroupingStrategy();
+    HRegionInfo[] regions = createRegions("t1", 20);
+    int group = strategy.getGroup(regions[0], NUM_GROUPS);
+    assertTrue(group >= 0 && group < NUM_GROUPS);
+    for (HRegionInfo hri : regions) {
+      assertEquals(group, strategy.getGroup(hri, NUM_GROUPS));
+    }
+  }
+
+  @Test
+  public void testGetWALGroup() {
+    String server = "host%2C60020%2C1371000000000";
+    String defaultLog = server + ".1371000001234";
+    String groupLog = HLog.getGroupPrefix(server, 2) + ".1371000001234";
+    String metaLog = defaultLog + HLog.META_HLOG_FILE_EXTN;
+    assertEquals(server, HLog.getGroupPrefix(server, 0));
+    assertEquals(server, HLog.getWALGroup(defaultLog));
+    assertEquals(server + HLog.HLOG_GROUP_SEPARATOR + 2, HLog.getWALGroup(groupLog));
+    assertEquals(server + HLog.META_HLOG_FILE_EXTN, HLog.getWALGroup(metaLog));
+    assertEquals(HLog.getWALGroup(defaultLog),
+      HLog.getWALGroup(server + ".1371000005678"));
+    assertFalse(HLog.getWALGroup(defaultLog).equals(HLog.getWALGroup(groupLog)));
+    assertTrue(HLog.validateHLogFilename(groupLog));
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}
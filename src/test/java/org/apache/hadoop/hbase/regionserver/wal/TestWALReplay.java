@@ -839,6 +839,61 @@ public class TestWALReplay {
     });
   }
 
+  /**
+   * Regions of a server running several HLog groups have their edits in
+   * different logs of the same directory; splitting it recovers them all.
+   */
+  @Test
+  public void testReplayEditsWrittenIntoGroupWALs() throws Exception {
+    final String tableNameStr = "testReplayEditsWrittenIntoGroupWALs";
+    final byte[] tableName = Bytes.toBytes(tableNameStr);
+    final HTableDescriptor htd = createBasic3FamilyHTD(tableNameStr);
+    final byte[] splitRow = Bytes.toBytes("m");
+    final HRegionInfo[] regions = {
+      new HRegionInfo(tableName, null, splitRow),
+      new HRegionInfo(tableName, splitRow, null)
+    };
+    final byte[][] rows = { Bytes.toBytes("a"), Bytes.toBytes("z") };
+    deleteDir(new Path(hbaseRootDir, tableNameStr));
+    for (HRegionInfo hri : regions) {
+      HRegion region = HRegion.createHRegion(hri, hbaseRootDir, this.conf, htd);
+      region.close();
+      region.getLog().closeAndDelete();
+    }
+
+    // One HLog per group in the log directory, each region in its own group
+    final int countPerFamily = 100;
+    for (int i = 0; i < regions.length; i++) {
+      HLog wal = new HLog(this.fs, this.logDir, this.oldLogDir, this.conf,
+        null, false, HLog.getGroupPrefix("testReplayGroups", i), false);
+      for (HColumnDescriptor hcd : htd.getFamilies()) {
+        addWALEdits(tableName, regions[i], rows[i], hcd.getName(),
+          countPerFamily, ee, wal, htd);
+      }
+      wal.sync();
+      wal.close();
+    }
+
+    HLogSplitter logSplitter = HLogSplitter.createLogSplitter(this.conf,
+        this.hbaseRootDir, this.logDir, this.oldLogDir, this.fs);
+    List<Path> splits = logSplitter.splitLog();
+    assertEquals("splits=" + splits, regions.length, splits.size());
+
+    for (int i = 0; i < regions.length; i++) {
+      HLog newWal = createWAL(this.conf);
+      try {
+        HRegion region = HRegion.openHRegion(regions[i], htd, newWal,
+          this.conf);
+        Result result = region.get(new Get(rows[i]), -1);
+        assertEquals(countPerFamily * htd.getFamilies().size(),
+          result.size());
+        region.close();
+      } finally {
+        newWal.closeAndDelete();
+      }
+    }
+  }
+
   @Test
   public void testSequentialEditLogSeqNum() throws IOException {
     final String tableNameStr = "testSequentialEditLogSeqNum";
@@ -940,6 +995,11 @@ public class TestWALReplay {
       }
     }
 
+    @Override
+    public void requestFlush(HRegion region, boolean forceFlushAllStores) {
+      requestFlush(region);
+    }
+
     @Override
     public void requestDelayedFlush(HRegion region, long when) {
       // TODO Auto-generated method stub
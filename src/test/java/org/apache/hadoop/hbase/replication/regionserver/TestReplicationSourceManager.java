@@ -25,9 +25,14 @@ import static org.junit.Assert.assertTrue;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -223,6 +228,70 @@ public class TestReplicationSourceManager {
     // TODO Need a case with only 2 HLogs and we only want to delete the first one
   }
   
+  @Test
+  public void testLogRollWithGroups() throws Exception {
+    // A manager of its own, so that its queues are not shared with the
+    // other tests
+    Server server = new DummyServer("grouped.example.org");
+    Replication groupedReplication =
+      new Replication(server, fs, logDir, oldLogDir);
+    ReplicationSourceManager groupedManager =
+      groupedReplication.getReplicationManager();
+    groupedManager.addSource(slaveId);
+
+    List<WALActionsListener> listeners = new ArrayList<WALActionsListener>();
+    listeners.add(groupedReplication);
+    int groups = 3;
+    int rolls = 2;
+    HLog[] hlogs = new HLog[groups];
+    try {
+      for (int i = 0; i < groups; i++) {
+        hlogs[i] = new HLog(fs, logDir, oldLogDir, conf, listeners, false,
+          HLog.getGroupPrefix("grouped", i), false);
+      }
+      for (int roll = 0; roll < rolls; roll++) {
+        for (HLog hlog : hlogs) {
+          hlog.rollWriter();
+        }
+      }
+
+      // One source per group, each on a log of its own group
+      List<ReplicationSourceInterface> sources = groupedManager.getSources();
+      assertEquals(groups, sources.size());
+      Set<String> sourceGroups = new HashSet<String>();
+      for (ReplicationSourceInterface source : sources) {
+        assertEquals(slaveId, source.getPeerClusterZnode());
+        sourceGroups.add(HLog.getWALGroup(source.getCurrentPath().getName()));
+      }
+      assertEquals(groups, sourceGroups.size());
+
+      // Every log of every group is queued, once, for the peer
+      SortedSet<String> hlogNames = groupedManager.getHLogs().get(slaveId);
+      assertEquals(groups * (rolls + 1), hlogNames.size());
+      Map<String, Integer> logsPerGroup = new HashMap<String, Integer>();
+      for (String name : hlogNames) {
+        String group = HLog.getWALGroup(name);
+        Integer count = logsPerGroup.get(group);
+        logsPerGroup.put(group, count == null ? 1 : count + 1);
+      }
+      assertEquals(sourceGroups, logsPerGroup.keySet());
+      for (Integer count : logsPerGroup.values()) {
+        assertEquals(rolls + 1, count.intValue());
+      }
+      String queueZnode = ZKUtil.joinZNode(ZKUtil.joinZNode(
+        "/hbase/replication/rs", server.getServerName().toString()), slaveId);
+      assertEquals(hlogNames,
+        new TreeSet<String>(ZKUtil.listChildrenNoWatch(zkw, queueZnode)));
+    } finally {
+      for (HLog hlog : hlogs) {
+        if (hlog != null) {
+          hlog.closeAndDelete();
+        }
+      }
+      groupedManager.join();
+    }
+  }
+
   @Test
   public void testNodeFailoverWorkerCopyQueuesFromRSUsingMulti() throws Exception {
     LOG.debug("testNodeFailoverWorkerCopyQueuesFromRSUsingMulti");
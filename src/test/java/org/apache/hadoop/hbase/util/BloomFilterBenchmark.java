@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import java.util.Random;
+
+/**
+ * Compares the false positive rate and the lookup throughput of standard and
+ * blocked Bloom filter chunks. Many chunks of the compound Bloom filter chunk
+ * size are filled up to their maximum number of keys, so that together they
+ * do not fit in the CPU caches, and each lookup goes to a random chunk, like
+ * lookups in the cached Bloom blocks of many store files.
+ * <p>
+ * Usage: <code>BloomFilterBenchmark [chunks] [chunkSizeKB] [errorRate]
+ * [seconds]</code>
+ */
+public class BloomFilterBenchmark {
+
+  private static final int NUM_QUERIES = 1 << 16;
+
+  private static ByteBloomFilter[] createFilters(boolean blocked, int chunks,
+      int chunkSize, double errorRate) {
+    ByteBloomFilter[] filters = new ByteBloomFilter[chunks];
+    int key = 0;
+    for (int i = 0; i < chunks; i++) {
+      filters[i] = blocked ?
+          BlockedByteBloomFilter.createBySize(chunkSize, errorRate,
+              Hash.MURMUR_HASH, 0) :
+          ByteBloomFilter.createBySize(chunkSize, errorRate, Hash.MURMUR_HASH,
+              0);
+      filters[i].allocBloom();
+      while (filters[i].getKeyCount() < filters[i].getMaxKeys()) {
+        filters[i].add(Bytes.toBytes(String.format("row%012d", key++)));
+      }
+    }
+    return filters;
+  }
+
+  private static void run(boolean blocked, int chunks, int chunkSize,
+      double errorRate, int seconds) {
+    ByteBloomFilter[] filters = createFilters(blocked, chunks, chunkSize,
+        errorRate);
+
+    // Absent keys, each checked against a random chunk
+    Random random = new Random(42);
+    byte[][] queries = new byte[NUM_QUERIES][];
+    int[] targets = new int[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; i++) {
+      queries[i] = Bytes.toBytes(String.format("absent%012d",
+          random.nextInt(Integer.MAX_VALUE)));
+      targets[i] = random.nextInt(chunks);
+    }
+
+    long lookups = 0;
+    long positives = 0;
+    long deadline = System.currentTimeMillis() + seconds * 1000L;
+    long start = System.nanoTime();
+    while (System.currentTimeMillis() < deadline) {
+      for (int i = 0; i < NUM_QUERIES; i++) {
+        byte[] query = queries[i];
+        if (filters[targets[i]].contains(query, 0, query.length, null)) {
+          positives++;
+        }
+      }
+      lookups += NUM_QUERIES;
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(String.format(
+        "%-8s chunks=%d bytes/chunk=%d keys/chunk=%d hashes=%d "
+            + "falsePositiveRate=%.5f lookups/s=%,.0f",
+        blocked ? "blocked" : "standard", chunks, filters[0].getByteSize(),
+        filters[0].getKeyCount(), filters[0].getHashCount(),
+        positives * 1.0 / lookups, lookups / elapsed));
+  }
+
+  public static void main(String[] args) {
+    int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int chunkSize = (args.length > 1 ? Integer.parseInt(args[1]) : 128) * 1024;
+    double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.01;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+    for (boolean blocked : new boolean[] { false, true, false, true }) {
+      run(blocked, chunks, chunkSize, errorRate, seconds);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -164,6 +165,16 @@ public class MockRegionServerServices implements RegionServerServices {
     return null;
   }
 
+  @Override
+  public ThreadPoolExecutor getBlockCacheWarmUpPool() {
+    return null;
+  }
+
+  @Override
+  public ThreadPoolExecutor getInMemoryCompactionPool() {
+    return null;
+  }
+
   @Override
   public boolean removeFromRegionsInTransition(HRegionInfo hri) {
     // TODO Auto-generated method stub
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.hbase.SmallTests;
+import org.junit.experimental.categories.Category;
+
+@Category(SmallTests.class)
+public class TestBlockedByteBloomFilter extends TestCase {
+
+  private static final double ERROR_RATE = 0.01;
+
+  private static BlockedByteBloomFilter fill(int byteSize, int maxFold,
+      int numKeys) {
+    BlockedByteBloomFilter bf = BlockedByteBloomFilter.createBySize(byteSize,
+        ERROR_RATE, Hash.MURMUR_HASH, maxFold);
+    bf.allocBloom();
+    for (int i = 0; i < numKeys; ++i) {
+      bf.add(Bytes.toBytes(i));
+    }
+    return bf;
+  }
+
+  public void testSizing() {
+    BlockedByteBloomFilter bf = BlockedByteBloomFilter.createBySize(
+        128 * 1024, ERROR_RATE, Hash.MURMUR_HASH, 7);
+    assertEquals(128 * 1024, bf.getByteSize());
+    long bitSize = bf.getByteSize() * 8;
+    assertTrue(BlockedByteBloomFilter.actualErrorRate(bf.getMaxKeys(),
+        bitSize, bf.getHashCount()) <= ERROR_RATE);
+    assertTrue(BlockedByteBloomFilter.actualErrorRate(bf.getMaxKeys() + 1,
+        bitSize, bf.getHashCount()) > ERROR_RATE);
+
+    // Blocks cost a few keys compared to a standard Bloom filter.
+    long standardMaxKeys = ByteBloomFilter.computeMaxKeys(bitSize, ERROR_RATE,
+        bf.getHashCount());
+    assertTrue(bf.getMaxKeys() < standardMaxKeys);
+    assertTrue(bf.getMaxKeys() > standardMaxKeys * 0.8);
+
+    // Small filters are rounded to whole blocks.
+    assertEquals(BlockedByteBloomFilter.BLOCK_BYTES,
+        BlockedByteBloomFilter.createBySize(10, ERROR_RATE, Hash.MURMUR_HASH,
+            7).getByteSize());
+    assertEquals(16 * BlockedByteBloomFilter.BLOCK_BYTES,
+        BlockedByteBloomFilter.createBySize(600, ERROR_RATE, Hash.MURMUR_HASH,
+            7).getByteSize());
+  }
+
+  public void testFalsePositives() {
+    BlockedByteBloomFilter bf = BlockedByteBloomFilter.createBySize(
+        16 * 1024, ERROR_RATE, Hash.MURMUR_HASH, 0);
+    bf.allocBloom();
+    int numKeys = (int) bf.getMaxKeys();
+    for (int i = 0; i < numKeys; ++i) {
+      bf.add(Bytes.toBytes(i));
+    }
+    for (int i = 0; i < numKeys; ++i) {
+      assertTrue(bf.contains(Bytes.toBytes(i)));
+    }
+
+    int numTrials = 100000;
+    int falsePositives = 0;
+    for (int i = numKeys; i < numKeys + numTrials; ++i) {
+      if (bf.contains(Bytes.toBytes(i))) {
+        ++falsePositives;
+      }
+    }
+    double falsePosRate = falsePositives * 1.0 / numTrials;
+    assertTrue("False positive rate " + falsePosRate,
+        falsePosRate < ERROR_RATE * 1.3);
+    assertTrue("False positive rate " + falsePosRate,
+        falsePosRate > ERROR_RATE * 0.5);
+  }
+
+  public void testFold() {
+    BlockedByteBloomFilter bf = fill(64 * 1024, 7, 1000);
+    bf.compactBloom();
+    assertTrue(bf.getByteSize() < 64 * 1024);
+    assertEquals(0, bf.getByteSize() % BlockedByteBloomFilter.BLOCK_BYTES);
+    assertTrue(bf.getMaxKeys() >= 1000);
+    for (int i = 0; i < 1000; ++i) {
+      assertTrue(bf.contains(Bytes.toBytes(i)));
+    }
+
+    // A single block can not be folded.
+    bf = fill(BlockedByteBloomFilter.BLOCK_BYTES, 7, 1);
+    bf.compactBloom();
+    assertEquals(BlockedByteBloomFilter.BLOCK_BYTES, bf.getByteSize());
+    assertTrue(bf.contains(Bytes.toBytes(0)));
+  }
+
+  @org.junit.Rule
+  public org.apache.hadoop.hbase.ResourceCheckerJUnitRule cu =
+    new org.apache.hadoop.hbase.ResourceCheckerJUnitRule();
+}